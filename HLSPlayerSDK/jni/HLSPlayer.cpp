@@ -110,7 +110,7 @@ mVideoBuffer(NULL), mWindow(NULL), mSurface(NULL), mRenderedFrameCount(0),
 mDurationUs(0), mOffloadAudio(false), mStatus(STOPPED),
 mAudioTrack(NULL), mVideoTrack(NULL), mJvm(jvm), mPlayerViewClass(NULL),
 mNextSegmentMethodID(NULL), mSetVideoResolutionID(NULL), mEnableHWRendererModeID(NULL), 
-mSegmentTimeOffset(0), mVideoFrameDelta(0), mLastVideoTimeUs(-1), mVideoStartDelta(0),
+mSegmentTimeOffset(0), mVideoFrameDelta(0), mFrameWaitUs(0), mLastVideoTimeUs(-1), mVideoStartDelta(0),
 mSegmentForTimeMethodID(NULL), mFrameCount(0), mDataSource(NULL), audioThread(0),
 mScreenHeight(0), mScreenWidth(0), mAudioPlayer(NULL), mStartTimeMS(0), mUseOMXRenderer(true),
 mNotifyFormatChangeComplete(NULL), mNotifyAudioTrackChangeComplete(NULL),
@@ -203,6 +203,7 @@ void HLSPlayer::Reset()
 	mVideoStartDelta = 0;
 	mSegmentTimeOffset = 0;
 	mVideoFrameDelta = 0;
+	mFrameWaitUs = 0;
 	mFrameCount = 0;
 	mStartTimeMS = 0;
 
@@ -1120,6 +1121,7 @@ int64_t HLSPlayer::GetLastTimeUS()
 
 int HLSPlayer::GetBufferedSegmentCount()
 {
+	AutoLock locker(&lock, __func__); // Can be called from java, while the data source cache changes under us
 	int segCount = 0;
 	if (mDataSource != NULL)
 	{
@@ -1150,6 +1152,8 @@ int HLSPlayer::Update()
 
 	RUNDEBUG(LogState());
 
+	mFrameWaitUs = 0;
+
 	if (GetState() == FOUND_DISCONTINUITY)
 	{
 		if (mDataSourceCache.size() > 0)
@@ -1359,10 +1363,10 @@ int HLSPlayer::Update()
 			mLastVideoTimeUs = timeUs;
 			if (delta < -10000) // video is running ahead
 			{
-				unsigned long sleepyTime = (-delta >  50000 ? 40000 : -10000 - delta);
-				LOGTIMING("Video is running ahead - waiting til next time : delta = %lld : sleeping %lld", delta, -10000 - delta);
-				//sched_yield();
-				usleep(sleepyTime);
+				// Rather than sleep here, holding the lock, leave it to the render loop to come
+				// back when the frame is due
+				mFrameWaitUs = (-delta >  50000 ? 40000 : -10000 - delta);
+				LOGTIMING("Video is running ahead - waiting til next time : delta = %lld : waiting %lld", delta, mFrameWaitUs);
 				break; // skip out - don't render it yet
 			}
 			else if (delta > 40000) // video is running behind
@@ -2311,6 +2315,7 @@ void HLSPlayer::StopEverything()
 	mVideoStartDelta = 0;
 	mSegmentTimeOffset = 0;
 	mVideoFrameDelta = 0;
+	mFrameWaitUs = 0;
 	mFrameCount = 0;
 }
 
@@ -2748,6 +2753,24 @@ void HLSPlayer::DroppedAFrame()
 	mDroppedFrameCounts[mDroppedFrameIndex]++;
 }
 
+int32_t HLSPlayer::GetFrameWaitUs()
+{
+	AutoLock locker(&lock, __func__);
+	return (int32_t)mFrameWaitUs;
+}
+
+int32_t HLSPlayer::GetFrameIntervalUs()
+{
+	AutoLock locker(&lock, __func__);
+	return (int32_t)mVideoFrameDelta;
+}
+
+int HLSPlayer::GetRenderedFrameCount()
+{
+	AutoLock locker(&lock, __func__);
+	return mRenderedFrameCount;
+}
+
 int HLSPlayer::DroppedFramesPerSecond()
 {
 	AutoLock locker(&lock, __func__);
@@ -51,6 +51,13 @@ public:
 
 	int DroppedFramesPerSecond();
 
+	// Frame pacing, for the render loop: how long until the frame Update() held back is
+	// due (0 if it didn't hold one back), the gap between the last two frames' timestamps,
+	// and how many frames have been rendered.
+	int32_t GetFrameWaitUs();
+	int32_t GetFrameIntervalUs();
+	int GetRenderedFrameCount();
+
 	void Seek(double time);
 
 	void SetJavaVM(JavaVM* jvm);
@@ -181,6 +188,7 @@ private:
 	int64_t mLastVideoTimeUs;
 	int64_t mSegmentTimeOffset;
 	int64_t mVideoFrameDelta;
+	int64_t mFrameWaitUs;			// Set by Update() when the next frame isn't due yet
 	int64_t mVideoStartDelta; 		// The starting time offset of the video (used in comparing audio time to video time)
 	int64_t mFrameCount;
 
@@ -295,6 +295,33 @@ extern "C"
 		return rval;
 	}
 
+	jint Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_FrameWaitUs(JNIEnv* env, jobject jcaller)
+	{
+		if (gHLSPlayerSDK == NULL)
+			return 0;
+		if (!gHLSPlayerSDK->GetPlayer())
+			return 0;
+		return gHLSPlayerSDK->GetPlayer()->GetFrameWaitUs();
+	}
+
+	jint Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_FrameIntervalUs(JNIEnv* env, jobject jcaller)
+	{
+		if (gHLSPlayerSDK == NULL)
+			return 0;
+		if (!gHLSPlayerSDK->GetPlayer())
+			return 0;
+		return gHLSPlayerSDK->GetPlayer()->GetFrameIntervalUs();
+	}
+
+	jint Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_RenderedFrameCount(JNIEnv* env, jobject jcaller)
+	{
+		if (gHLSPlayerSDK == NULL)
+			return 0;
+		if (!gHLSPlayerSDK->GetPlayer())
+			return 0;
+		return gHLSPlayerSDK->GetPlayer()->GetRenderedFrameCount();
+	}
+
 	jint Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_DroppedFramesPerSecond(JNIEnv* env, jobject jcaller)
 	{
 		if (gHLSPlayerSDK == NULL)
@@ -381,6 +408,15 @@ extern "C"
 		return 0;
 	}
 
+	jint Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_GetBufferedSegmentCount(JNIEnv* env, jobject jcaller)
+	{
+		if (gHLSPlayerSDK != NULL && gHLSPlayerSDK->GetPlayer())
+		{
+			return gHLSPlayerSDK->GetPlayer()->GetBufferedSegmentCount();
+		}
+		return 0;
+	}
+
 	jboolean Java_com_kaltura_hlsplayersdk_HLSPlayerViewController_AllowAllProfiles(JNIEnv* env, jobject jcaller )
 	{
 #ifdef ALLOW_ALL_PROFILES
@@ -0,0 +1,265 @@
+package com.kaltura.hlsplayersdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/*
+ * EventDispatcher
+ *
+ * Gets player events to the listeners on the UI thread without a Runnable per event, and
+ * without letting them back up behind a slow listener.
+ *
+ * There's never more than one flush queued on the UI thread. Each flush delivers whatever
+ * has been posted since the last one:
+ *  - the playhead, progress and duration are coalesced; only the latest value is delivered.
+ *  - everything else (state changes, errors, subtitle text) is delivered in order. Event
+ *    objects are recycled once delivered, so posting allocates nothing once the pool has
+ *    grown to the usual backlog.
+ *
+ * Coalescing never reorders: posting an ordered event first queues whatever coalesced
+ * values are pending, so a playhead posted before a SEEKED still arrives before it.
+ *
+ */
+class EventDispatcher
+{
+	public static final int EVENT_STATE_CHANGE = 0;
+	public static final int EVENT_ERROR = 1;
+	public static final int EVENT_FATAL_ERROR = 2;
+	public static final int EVENT_TEXT = 3;
+
+	// Coalesced values, queued ahead of an ordered event
+	private static final int EVENT_PLAYHEAD = 4;
+	private static final int EVENT_PROGRESS = 5;
+	private static final int EVENT_DURATION = 6;
+
+	/*
+	 * Event
+	 *
+	 * One queued event. Which fields mean what depends on the type.
+	 */
+	public static class Event
+	{
+		public int type;
+		public int code;
+		public double startTime;
+		public double length;
+		public String text;
+		public String align;
+		public Object value;
+
+		private void clear()
+		{
+			text = null;
+			align = null;
+			value = null;
+		}
+	}
+
+	/*
+	 * Sink
+	 *
+	 * Delivers events to the listeners. Called on the UI thread.
+	 */
+	public interface Sink
+	{
+		public void onEvent(Event e);
+		public void onPlayhead(int msec);
+		public void onProgress(int progress);
+		public void onDurationChanged();
+	}
+
+	private Sink mSink;
+	private Handler mHandler;
+
+	private List<Event> mQueue = new ArrayList<Event>();
+	private List<Event> mDelivering = new ArrayList<Event>();
+	private List<Event> mPool = new ArrayList<Event>();
+
+	private boolean mFlushPending = false;
+	private boolean mPlayheadPending = false;
+	private int mPlayhead = 0;
+	private boolean mProgressPending = false;
+	private int mProgress = 0;
+	private boolean mDurationPending = false;
+
+	private long mPosted = 0;
+	private long mCoalesced = 0;
+
+	private Runnable mFlush = new Runnable()
+	{
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	public EventDispatcher(Sink sink)
+	{
+		this(sink, new Handler(Looper.getMainLooper()));
+	}
+
+	// Flushes on handler's thread rather than the UI thread
+	EventDispatcher(Sink sink, Handler handler)
+	{
+		mSink = sink;
+		mHandler = handler;
+	}
+
+	/*
+	 * obtain
+	 *
+	 * An event to fill in and hand to post().
+	 */
+	public synchronized Event obtain(int type)
+	{
+		Event e = mPool.isEmpty() ? new Event() : mPool.remove(mPool.size() - 1);
+		e.type = type;
+		return e;
+	}
+
+	public void post(Event e)
+	{
+		synchronized (this)
+		{
+			++mPosted;
+			queueCoalesced();
+			mQueue.add(e);
+		}
+		schedule();
+	}
+
+	// Moves the pending coalesced values into the queue, in the order flush() delivers them
+	private void queueCoalesced()
+	{
+		if (mDurationPending)
+		{
+			mQueue.add(obtain(EVENT_DURATION));
+			mDurationPending = false;
+		}
+		if (mProgressPending)
+		{
+			Event e = obtain(EVENT_PROGRESS);
+			e.code = mProgress;
+			mQueue.add(e);
+			mProgressPending = false;
+		}
+		if (mPlayheadPending)
+		{
+			Event e = obtain(EVENT_PLAYHEAD);
+			e.code = mPlayhead;
+			mQueue.add(e);
+			mPlayheadPending = false;
+		}
+	}
+
+	public void postPlayhead(int msec)
+	{
+		synchronized (this)
+		{
+			++mPosted;
+			if (mPlayheadPending) ++mCoalesced;
+			mPlayhead = msec;
+			mPlayheadPending = true;
+		}
+		schedule();
+	}
+
+	public void postProgress(int progress)
+	{
+		synchronized (this)
+		{
+			++mPosted;
+			if (mProgressPending) ++mCoalesced;
+			mProgress = progress;
+			mProgressPending = true;
+		}
+		schedule();
+	}
+
+	public void postDurationChanged()
+	{
+		synchronized (this)
+		{
+			++mPosted;
+			if (mDurationPending) ++mCoalesced;
+			mDurationPending = true;
+		}
+		schedule();
+	}
+
+	private void schedule()
+	{
+		synchronized (this)
+		{
+			if (mFlushPending) return;
+			mFlushPending = true;
+		}
+		mHandler.post(mFlush);
+	}
+
+	void flush()
+	{
+		boolean playhead, progress, duration;
+		int playheadValue, progressValue;
+		synchronized (this)
+		{
+			mFlushPending = false;
+			List<Event> swap = mDelivering;
+			mDelivering = mQueue;
+			mQueue = swap;
+			playhead = mPlayheadPending;
+			playheadValue = mPlayhead;
+			progress = mProgressPending;
+			progressValue = mProgress;
+			duration = mDurationPending;
+			mPlayheadPending = false;
+			mProgressPending = false;
+			mDurationPending = false;
+		}
+
+		for (int i = 0; i < mDelivering.size(); ++i)
+			deliver(mDelivering.get(i));
+		if (duration) mSink.onDurationChanged();
+		if (progress) mSink.onProgress(progressValue);
+		if (playhead) mSink.onPlayhead(playheadValue);
+
+		synchronized (this)
+		{
+			for (int i = 0; i < mDelivering.size(); ++i)
+			{
+				Event e = mDelivering.get(i);
+				e.clear();
+				mPool.add(e);
+			}
+			mDelivering.clear();
+		}
+	}
+
+	private void deliver(Event e)
+	{
+		switch (e.type)
+		{
+			case EVENT_PLAYHEAD:
+				mSink.onPlayhead(e.code);
+				break;
+			case EVENT_PROGRESS:
+				mSink.onProgress(e.code);
+				break;
+			case EVENT_DURATION:
+				mSink.onDurationChanged();
+				break;
+			default:
+				mSink.onEvent(e);
+				break;
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "posted=" + mPosted + " coalesced=" + mCoalesced + " pooled=" + mPool.size();
+	}
+}
@@ -0,0 +1,170 @@
+package com.kaltura.hlsplayersdk;
+
+import android.util.Log;
+
+/*
+ * FramePacer
+ *
+ * Decides when the render thread next calls into the decoder, instead of it polling.
+ *
+ *  - When the decoder holds a frame back because it isn't due yet, we sleep until it is,
+ *    however short the wait, rather than spinning on the decoder.
+ *  - When there's nothing to render (paused, stopped, buffering), we park until someone
+ *    calls wake(), or a timeout as a backstop. The segment cache wakes us when a segment
+ *    lands, so buffering ends as soon as the data is in.
+ *
+ * Also keeps frame timing statistics: how far each rendered frame's interval strays from
+ * the content's frame interval, and how many frames came at least a refresh late.
+ *
+ */
+class FramePacer
+{
+	public static final float DEFAULT_REFRESH_RATE = 60.0f;
+	public static final long PARK_TIMEOUT_MS = 250;			// Paused or stopped
+	public static final long BUFFERING_PARK_TIMEOUT_MS = 20;	// Waiting on data, a format change or a seek
+	public static final long MAX_FRAME_WAIT_US = 100000;
+
+	private final Object mParkLock = new Object();
+	private boolean mWoken = false;
+	private long mRefreshPeriodUs = (long)(1000000 / DEFAULT_REFRESH_RATE);
+
+	private long mLastFrameUs = -1;
+	private long mFrames = 0;
+	private long mLateFrames = 0;
+	private double mJitterSumUs = 0;
+	private double mJitterSumSqUs = 0;
+	private long mMaxJitterUs = 0;
+
+	/*
+	 * setRefreshRate
+	 *
+	 * The display's refresh rate, in Hz.
+	 */
+	public synchronized void setRefreshRate(float hz)
+	{
+		if (hz < 1) hz = DEFAULT_REFRESH_RATE;
+		mRefreshPeriodUs = (long)(1000000 / hz);
+	}
+
+	/*
+	 * waitForFrame
+	 *
+	 * Waits until a frame that's waitUs away is due, or until wake() is called.
+	 */
+	public void waitForFrame(long waitUs)
+	{
+		if (waitUs <= 0) return;
+		waitUs = Math.min(waitUs, MAX_FRAME_WAIT_US);
+		park(waitUs / 1000, (int)(waitUs % 1000) * 1000);
+	}
+
+	/*
+	 * park
+	 *
+	 * Waits for wake(), or timeoutMs.
+	 */
+	public void park(long timeoutMs)
+	{
+		park(timeoutMs, 0);
+	}
+
+	private void park(long timeoutMs, int timeoutNanos)
+	{
+		synchronized (mParkLock)
+		{
+			if (!mWoken && (timeoutMs > 0 || timeoutNanos > 0))
+			{
+				try
+				{
+					mParkLock.wait(timeoutMs, timeoutNanos);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			mWoken = false;
+		}
+	}
+
+	/*
+	 * wake
+	 *
+	 * Cuts a wait or a park short, for when something changes that the render thread
+	 * should see: play, pause, seek, new data, or stopping.
+	 */
+	public void wake()
+	{
+		synchronized (mParkLock)
+		{
+			mWoken = true;
+			mParkLock.notifyAll();
+		}
+	}
+
+	/*
+	 * onFrameRendered
+	 *
+	 * Notes that a frame went up. frameIntervalUs is the gap between its timestamp and the
+	 * one before it, which is what the gap on screen should have been.
+	 */
+	public synchronized void onFrameRendered(long frameIntervalUs)
+	{
+		long now = System.nanoTime() / 1000;
+		long last = mLastFrameUs;
+		mLastFrameUs = now;
+		if (last == -1 || frameIntervalUs <= 0) return;
+
+		long jitterUs = Math.abs((now - last) - frameIntervalUs);
+		++mFrames;
+		mJitterSumUs += jitterUs;
+		mJitterSumSqUs += (double)jitterUs * jitterUs;
+		mMaxJitterUs = Math.max(mMaxJitterUs, jitterUs);
+		if (now - last >= frameIntervalUs + mRefreshPeriodUs) ++mLateFrames;
+	}
+
+	/*
+	 * skip
+	 *
+	 * Playback stopped, paused or jumped; the next frame's interval isn't one we can judge.
+	 */
+	public synchronized void skip()
+	{
+		mLastFrameUs = -1;
+	}
+
+	// Mean of how far frame intervals strayed from the content's, in ms
+	public synchronized double getJitterMs()
+	{
+		return mFrames > 0 ? mJitterSumUs / mFrames / 1000.0 : 0;
+	}
+
+	public synchronized long getLateFrames()
+	{
+		return mLateFrames;
+	}
+
+	public synchronized void reset()
+	{
+		mLastFrameUs = -1;
+		mFrames = 0;
+		mLateFrames = 0;
+		mJitterSumUs = 0;
+		mJitterSumSqUs = 0;
+		mMaxJitterUs = 0;
+	}
+
+	public void log()
+	{
+		Log.i("FramePacer", toString());
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		double meanUs = mFrames > 0 ? mJitterSumUs / mFrames : 0;
+		double varianceUs = mFrames > 0 ? Math.max(0, mJitterSumSqUs / mFrames - meanUs * meanUs) : 0;
+		return "frames=" + mFrames + " jitter mean=" + String.format("%.2f", meanUs / 1000.0) + "ms sd=" + String.format("%.2f", Math.sqrt(varianceUs) / 1000.0)
+				+ "ms max=" + String.format("%.2f", mMaxJitterUs / 1000.0) + "ms late=" + mLateFrames + " refresh=" + String.format("%.2f", 1000000.0 / mRefreshPeriodUs) + "Hz";
+	}
+}
@@ -0,0 +1,257 @@
+package com.kaltura.hlsplayersdk;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/*
+ * HLSExecutors
+ *
+ * Where the SDK's background work runs. Each kind of work has its own named, bounded
+ * executor:
+ *  - work: parsing and other CPU work that shouldn't hold up a player's interface or
+ *    HTTP response thread.
+ *  - optionalWork: CPU work we can do without, like indexing segments. If it's backed
+ *    up, new work is dropped rather than run on the caller.
+ *  - blocking: short blocking calls, like DNS lookups. Best effort; if it's backed up,
+ *    new work is dropped.
+ *  - timers: anything that runs later, like playlist reloads and parse timeouts.
+ *
+ * Network callbacks and control run on each player's HTTPResponse and Interface threads,
+ * and frames on its render thread. Those are made with newThread(), so they're named
+ * and counted along with the rest.
+ *
+ * The executors are shared by every player. They're created when first needed, and shut
+ * down when the last player closes: no new work is taken, queued work gets a short grace
+ * period, and anything still running after that is interrupted.
+ *
+ */
+public class HLSExecutors
+{
+	public static final int WORK_THREADS = 2;
+	public static final int WORK_QUEUE_SIZE = 64;
+	public static final int OPTIONAL_WORK_THREADS = 1;
+	public static final int OPTIONAL_WORK_QUEUE_SIZE = 16;
+	public static final int BLOCKING_THREADS = 2;
+	public static final int BLOCKING_QUEUE_SIZE = 32;
+	public static final long IDLE_THREAD_TIMEOUT_MS = 30000;
+	public static final long SHUTDOWN_GRACE_MS = 500;
+
+	private static ThreadPoolExecutor sWork = null;
+	private static ThreadPoolExecutor sOptionalWork = null;
+	private static ThreadPoolExecutor sBlocking = null;
+	private static ScheduledThreadPoolExecutor sTimers = null;
+	private static int sUsers = 0;
+
+	private static List<Thread> sThreads = new ArrayList<Thread>();	// Dedicated threads, for metrics
+	private static int sThreadsCreated = 0;
+
+	/*
+	 * NamedThreadFactory
+	 *
+	 * Daemon threads called prefix-1, prefix-2, and so on.
+	 */
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private String mPrefix;
+		private int mCount = 0;
+
+		public NamedThreadFactory(String prefix)
+		{
+			mPrefix = prefix;
+		}
+
+		@Override
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, mPrefix + "-" + (++mCount));
+			t.setDaemon(true);
+			noteThreadCreated();
+			return t;
+		}
+	}
+
+	/*
+	 * acquire
+	 *
+	 * Called by each player as it starts. The executors stay up until every player that
+	 * acquired them has released them.
+	 */
+	public static synchronized void acquire()
+	{
+		++sUsers;
+	}
+
+	/*
+	 * release
+	 *
+	 * Called by each player as it closes. The last one out shuts everything down.
+	 */
+	public static void release()
+	{
+		synchronized (HLSExecutors.class)
+		{
+			if (sUsers == 0 || --sUsers > 0) return;
+		}
+		shutdown();
+	}
+
+	public static synchronized ExecutorService work()
+	{
+		if (sWork == null || sWork.isShutdown())
+			sWork = newPool("HLSWork", WORK_THREADS, WORK_QUEUE_SIZE, new ThreadPoolExecutor.CallerRunsPolicy());
+		return sWork;
+	}
+
+	public static synchronized ExecutorService optionalWork()
+	{
+		if (sOptionalWork == null || sOptionalWork.isShutdown())
+			sOptionalWork = newPool("HLSOptionalWork", OPTIONAL_WORK_THREADS, OPTIONAL_WORK_QUEUE_SIZE, new ThreadPoolExecutor.DiscardPolicy());
+		return sOptionalWork;
+	}
+
+	public static synchronized ExecutorService blocking()
+	{
+		if (sBlocking == null || sBlocking.isShutdown())
+			sBlocking = newPool("HLSBlocking", BLOCKING_THREADS, BLOCKING_QUEUE_SIZE, new ThreadPoolExecutor.DiscardPolicy());
+		return sBlocking;
+	}
+
+	public static synchronized ScheduledExecutorService timers()
+	{
+		if (sTimers == null || sTimers.isShutdown())
+			sTimers = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("HLSTimer"));
+		return sTimers;
+	}
+
+	private static ThreadPoolExecutor newPool(String name, int threads, int queueSize, RejectedExecutionHandler rejectionHandler)
+	{
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_MS, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(queueSize), new NamedThreadFactory(name), rejectionHandler);
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/*
+	 * newThread
+	 *
+	 * A dedicated thread for a role that needs one to itself, like rendering. It isn't
+	 * started.
+	 */
+	public static Thread newThread(Runnable r, String name)
+	{
+		Thread t = new Thread(r, name);
+		register(t);
+		return t;
+	}
+
+	/*
+	 * register
+	 *
+	 * Counts a dedicated thread made elsewhere (a HandlerThread, say) in the metrics.
+	 */
+	public static synchronized void register(Thread t)
+	{
+		sThreads.add(t);
+		++sThreadsCreated;
+	}
+
+	private static synchronized void noteThreadCreated()
+	{
+		++sThreadsCreated;
+	}
+
+	/*
+	 * shutdown
+	 *
+	 * Stops taking work, gives what's queued up to SHUTDOWN_GRACE_MS to finish, and
+	 * interrupts whatever's left. Executors asked for afterwards are made afresh.
+	 */
+	public static void shutdown()
+	{
+		List<ExecutorService> executors = new ArrayList<ExecutorService>();
+		synchronized (HLSExecutors.class)
+		{
+			if (sTimers != null) executors.add(sTimers);
+			if (sWork != null) executors.add(sWork);
+			if (sOptionalWork != null) executors.add(sOptionalWork);
+			if (sBlocking != null) executors.add(sBlocking);
+			sTimers = null;
+			sWork = null;
+			sOptionalWork = null;
+			sBlocking = null;
+		}
+
+		// Pending timers are dropped rather than waited for; nobody's left to care
+		for (ExecutorService e : executors)
+		{
+			if (e instanceof ScheduledThreadPoolExecutor)
+				((ScheduledThreadPoolExecutor)e).getQueue().clear();
+			e.shutdown();
+		}
+
+		long deadline = System.currentTimeMillis() + SHUTDOWN_GRACE_MS;
+		for (ExecutorService e : executors)
+		{
+			try
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || !e.awaitTermination(remaining, TimeUnit.MILLISECONDS))
+				{
+					List<Runnable> dropped = e.shutdownNow();
+					Log.i("HLSExecutors.shutdown", "Interrupted an executor that didn't finish in time; dropped " + dropped.size() + " tasks");
+				}
+			}
+			catch (InterruptedException ex)
+			{
+				e.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		Log.i("HLSExecutors.shutdown", "Shut down. " + getMetrics());
+	}
+
+	/*
+	 * getMetrics
+	 *
+	 * Threads, and what's running and queued on each executor, for logging.
+	 */
+	public static synchronized String getMetrics()
+	{
+		for (Iterator<Thread> it = sThreads.iterator(); it.hasNext(); )
+		{
+			if (it.next().getState() == Thread.State.TERMINATED)
+				it.remove();
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("threadsCreated=" + sThreadsCreated + " dedicatedAlive=" + sThreads.size());
+		sb.append(poolMetrics(" work", sWork));
+		sb.append(poolMetrics(" optionalWork", sOptionalWork));
+		sb.append(poolMetrics(" blocking", sBlocking));
+		sb.append(poolMetrics(" timers", sTimers));
+		return sb.toString();
+	}
+
+	private static String poolMetrics(String name, ThreadPoolExecutor pool)
+	{
+		if (pool == null) return name + "=idle";
+		return name + "=[threads " + pool.getPoolSize() + "/" + pool.getLargestPoolSize() + " active " + pool.getActiveCount()
+				+ " queued " + pool.getQueue().size() + " done " + pool.getCompletedTaskCount() + "]";
+	}
+
+	public static void log()
+	{
+		Log.i("HLSExecutors", getMetrics());
+	}
+}
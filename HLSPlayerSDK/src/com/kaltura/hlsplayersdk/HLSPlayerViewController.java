@@ -11,17 +11,23 @@ import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Surface;
 import android.view.View;
+import android.view.WindowManager;
 import android.view.ViewGroup;
 import android.widget.RelativeLayout;
 import android.widget.Toast;
 
-import com.kaltura.hlsplayersdk.StreamHandler.KnowledgePrepHandler;
+import com.kaltura.hlsplayersdk.abr.AbrPolicy;
+import com.kaltura.hlsplayersdk.abr.BandwidthHistory;
+import com.kaltura.hlsplayersdk.abr.RenditionCap;
+import com.kaltura.hlsplayersdk.abr.ThroughputAbrPolicy;
 import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
 import com.kaltura.hlsplayersdk.cache.SegmentCachedListener;
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
 import com.kaltura.hlsplayersdk.events.OnAudioTrackSwitchingListener;
 import com.kaltura.hlsplayersdk.events.OnAudioTracksListListener;
 import com.kaltura.hlsplayersdk.events.OnDurationChangedListener;
@@ -40,6 +46,7 @@ import com.kaltura.hlsplayersdk.manifest.ManifestSegment;
 import com.kaltura.hlsplayersdk.manifest.events.OnParseCompleteListener;
 import com.kaltura.hlsplayersdk.subtitles.SubtitleHandler;
 import com.kaltura.hlsplayersdk.subtitles.TextTrackCue;
+import com.kaltura.hlsplayersdk.types.PendingResult;
 import com.kaltura.hlsplayersdk.types.PlayerStates;
 
 /**
@@ -48,10 +55,17 @@ import com.kaltura.hlsplayersdk.types.PlayerStates;
  * PlayerViewController is responsible for integrating the JNI/Native side
  * with the Java APIs and interfaces. This is the central point for HLS
  * video playback!
+ *
+ * There's one native decoder per process, so only one player can decode at a
+ * time. Any number can be open, but initialize() on a second one while the
+ * first is still open fails it with a fatal MEDIA_ERROR_DECODER_BUSY, and
+ * leaves the first playing. Players that don't hold the decoder (see
+ * ownsDecoder()) ignore play(), pause(), seek() and stop(); once the holder
+ * has closed, initialize() again to take it.
  */
 public class HLSPlayerViewController extends RelativeLayout implements
 		VideoPlayerInterface, URLLoader.DownloadEventListener, OnParseCompleteListener, 
-		TextTracksInterface, AlternateAudioTracksInterface, QualityTracksInterface, SegmentCachedListener, KnowledgePrepHandler {
+		TextTracksInterface, AlternateAudioTracksInterface, QualityTracksInterface, SegmentCachedListener {
 
 	// State constants.
 	private final int STATE_STOPPED = 1;
@@ -77,6 +91,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	public native boolean AllowAllProfiles();
 	public native void SetSegmentCountToBuffer(int segmentCount);
 	public native int GetSegmentCountToBuffer();
+	public native int GetBufferedSegmentCount();
 
 	private native int GetState();
 	private native void InitNativeDecoder();
@@ -90,16 +105,75 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	private native void SeekTo(double timeInSeconds);
 	private native void ApplyFormatChange();
 	private native int DroppedFramesPerSecond();
+	private native int FrameWaitUs();
+	private native int FrameIntervalUs();
+	private native int RenderedFrameCount();
 
 	// Static interface.
-	// TODO Allow multiple active PlayerViewController instances.
+	// The native decoder is one per process, so only one player can be decoding at a time:
+	// currentController, the first to initialize while no open player held it. Any number of players can be open,
+	// each with its own state, sharing the segment cache, the download scheduler and the
+	// utility threads.
 	public static HLSPlayerViewController currentController = null;
-	private static int mQualityLevel = 0;
-	private static int mSubtitleLanguage = 0;
-	private static int mAltAudioIndex = 0;
+	private static List<HLSPlayerViewController> sPlayers = new ArrayList<HLSPlayerViewController>();
+	private static final Object sDecoderLock = new Object();	// Taking the decoder, and closing it
+	private static int sNextPlayerId = 1;
 
-	private static boolean noMoreSegments = false;
-	private static int videoPlayId = 0;
+	private final int mPlayerId = nextPlayerId();
+	private int mQualityLevel = 0;
+	private int mSubtitleLanguage = 0;
+	private int mAltAudioIndex = 0;
+
+	private boolean noMoreSegments = false;
+	private int videoPlayId = 0;
+
+	private static synchronized int nextPlayerId()
+	{
+		return sNextPlayerId++;
+	}
+
+	/**
+	 * Identifies this player's share of the segment cache, and the manifests and segments
+	 * loaded for it.
+	 */
+	public int getPlayerId()
+	{
+		return mPlayerId;
+	}
+
+	/**
+	 * The open player with the given id, for routing errors and events from shared code. Falls
+	 * back to currentController for an id of 0 (unowned) or a player that has closed.
+	 */
+	public static HLSPlayerViewController getPlayer(int playerId)
+	{
+		synchronized (sPlayers)
+		{
+			for (int i = 0; i < sPlayers.size(); ++i)
+			{
+				if (sPlayers.get(i).mPlayerId == playerId)
+					return sPlayers.get(i);
+			}
+		}
+		return currentController;
+	}
+
+	/**
+	 * Whether this player holds the decoder. Playback calls on a player that doesn't are
+	 * ignored, rather than being made on the decoder some other player is using.
+	 */
+	public boolean ownsDecoder()
+	{
+		return currentController == this;
+	}
+
+	// Logs and returns false if this player has lost the decoder
+	private boolean checkOwnsDecoder(String caller)
+	{
+		if (ownsDecoder()) return true;
+		Log.w("PlayerViewController." + caller, "Ignored; player " + mPlayerId + " doesn't hold the decoder");
+		return false;
+	}
 
 	public static String getVersion()
 	{
@@ -113,19 +187,28 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		if (currentController == null)
 			return;
 
-		ManifestSegment seg = currentController.getStreamHandler().getNextFile(mQualityLevel);
+		currentController.checkAutoSwitch();
+
+		ManifestSegment seg = currentController.getStreamHandler().getNextFile(currentController.mQualityLevel);
 		if(seg == null)
 		{
 			if (currentController.getStreamHandler().streamEnds() == true)
-				noMoreSegments = true;
+				currentController.noMoreSegments = true;
 			Log.i("HLSPlayerViewController.requestNextSegment", "---- Did not receive a valid segment ----- ");
 			return;
 		}
 
 		Log.i("HLSPlayerViewController.requestNextSegment", "---- Feeding segment '" + seg.uri + "'");
 
+		// The first segment of the new quality is on its way, so auto switching can carry on.
+		// The native player reports the end of the switch when it changes format, but it
+		// never does if the formats match.
+		if (currentController.mQualitySwitchPending && seg.quality == currentController.mQualityLevel)
+			currentController.mQualitySwitchPending = false;
 
-		HLSSegmentCache.precache(seg, false, currentController.getStreamHandler(), getInterfaceThreadHandler());
+
+		List<ManifestSegment> upcoming = currentController.getStreamHandler().getSegmentsAfter(seg, HLSSegmentCache.MAX_COALESCED_SEGMENTS - 1);
+		HLSSegmentCache.precache(seg, upcoming, false, currentController.getStreamHandler(), getInterfaceThreadHandler());
 		if (seg.altAudioSegment != null)
 		{
 			currentController.FeedSegment(seg.uri, seg.quality, seg.continuityEra, seg.altAudioSegment.uri, seg.altAudioSegment.altAudioIndex, seg.startTime, seg.cryptoId, seg.altAudioSegment.cryptoId);
@@ -146,7 +229,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		if(currentController == null)
 			return 0;
 
-		ManifestSegment seg = currentController.getStreamHandler().getFileForTime(time, mQualityLevel);
+		ManifestSegment seg = currentController.getStreamHandler().getFileForTime(time, currentController.mQualityLevel);
 		if(seg == null)
 		{
 			Log.i("HLSPlayerViewController.requestSegmentForTime", "Did not recieve a segment. StreamHandler.isStalled() = " + currentController.getStreamHandler().isStalled());
@@ -278,11 +361,12 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		}
 	}
 
-    private HLSUtilityThread mHTTPResponseThread = null;
+	// Shared by every open player; made by the first to open and shut down by the last to close
+    private static HLSUtilityThread sHTTPResponseThread = null;
 
 	public static HLSUtilityThread getHTTPResponseThread()
 	{
-		return currentController != null ? currentController.mHTTPResponseThread : null;
+		return sHTTPResponseThread;
 	}
 
 	public static void postToHTTPResponseThread(Runnable runnable)
@@ -299,11 +383,11 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		return (getHTTPResponseThread() != null) ? getHTTPResponseThread().getHandler() : null;
 	}
 
-	private HLSUtilityThread mInterfaceThread = null;
+	private static HLSUtilityThread sInterfaceThread = null;
 
 	public static HLSUtilityThread getInterfaceThread()
 	{
-		return currentController != null ? currentController.mInterfaceThread : null;
+		return sInterfaceThread;
 	}
 
 	public static void postToInterfaceThread(Runnable runnable)
@@ -349,10 +433,12 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	private int mStartupState = STARTUP_STATE_WAITING_TO_START;
 
 	// Thread to run video rendering.
-	private boolean stopVideoThread = false;
-	private int mRenderThreadState = THREAD_STATE_STOPPED;
+	private static final long RENDER_THREAD_STOP_MS = 1000;
+	private volatile boolean stopVideoThread = false;
+	private volatile int mRenderThreadState = THREAD_STATE_STOPPED;
 	private Thread mRenderThread;
 	private Runnable renderRunnable = new VideoRenderRunnable();
+	private FramePacer mFramePacer = new FramePacer();
 	
 	// Handle discontinuity/format change
 	public void HandleFormatChange()
@@ -361,6 +447,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
                  public void run() {
                      Log.i("HandleFormatChange", "UI Thread calling ApplyFormatChange()");
                      ApplyFormatChange();
+                     mFramePacer.wake();
                  }
              }
         );
@@ -383,46 +470,132 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	 * Load JNI libraries and set up the render thread.
 	 */
 	private void initializeNative() {
-		try {
-			System.loadLibrary("HLSPlayerSDK");
-			InitNativeDecoder();
-			mInterfaceThread = new HLSUtilityThread("Interface");
-			mHTTPResponseThread = new HLSUtilityThread("HTTPResponse");
-		} catch (Exception e) {
-			Log.e("PlayerViewController", "Failed to initialize native video library.");
+		synchronized (sPlayers)
+		{
+			if (!sPlayers.contains(this))
+			{
+				sPlayers.add(this);
+				HLSExecutors.acquire();
+				HLSSegmentCache.openPartition(mPlayerId);
+				if (sInterfaceThread == null) sInterfaceThread = new HLSUtilityThread("Interface");
+				if (sHTTPResponseThread == null) sHTTPResponseThread = new HLSUtilityThread("HTTPResponse");
+			}
 		}
+		// A player that's still closing holds this until it has closed the decoder
+		synchronized (sDecoderLock)
+		{
+			HLSPlayerViewController previous = currentController;
+			if (previous != null && previous != this)
+			{
+				boolean previousOpen;
+				synchronized (sPlayers)
+				{
+					previousOpen = sPlayers.contains(previous);
+				}
+				if (previousOpen)
+				{
+					// It's playing; we're the one that doesn't get to
+					Log.w("PlayerViewController.initializeNative", "Player " + previous.mPlayerId + " holds the decoder; player " + mPlayerId + " can't decode");
+					postFatalError(OnErrorListener.MEDIA_ERROR_DECODER_BUSY, "Player " + previous.mPlayerId + " holds the decoder");
+					return;
+				}
+				// It's closing, but its teardown thread hasn't got to the decoder yet. Its render
+				// thread would otherwise go on pulling frames from ours
+				Log.i("PlayerViewController.initializeNative", "Taking the decoder over from closing player " + previous.mPlayerId);
+				previous.stopRenderThread(RENDER_THREAD_STOP_MS);
+			}
+			try {
+				System.loadLibrary("HLSPlayerSDK");
+				InitNativeDecoder();
+				mRenditionCap.setAllowAllProfiles(AllowAllProfiles());
+			} catch (Exception e) {
+				Log.e("PlayerViewController", "Failed to initialize native video library.");
+			}
 
-		// Note the active controller.
-		currentController = this;
+			// Note the active controller.
+			currentController = this;
+		}
 	}
 
 	/**
 	 * Terminate render thread and shut down JNI resources.
+	 * 
+	 * Doesn't block: the downloads the player was waiting on are cancelled and the render
+	 * thread is told to stop here, and waiting for it, and closing the decoder after, is
+	 * done on a teardown thread.
 	 */
 	public void close() {
 		Log.i("PlayerViewController.close", "Closing resources.");
-		if (mRenderThread != null)
+		final Thread renderThread = mRenderThread;
+		mRenderThread = null;
+		stopVideoThread = true;
+		mFramePacer.wake();
+		saveBandwidthHistory();
+		HLSSegmentCache.downloadStats.log();
+		HLSSegmentCache.fetchScheduler.log();
+		Log.i("PlayerViewController.close", "Coalesced playlist requests: " + URLLoader.getCoalescedRequestCount());
+		HLSExecutors.log();
+		mFramePacer.log();
+		Log.i("PlayerViewController.close", "Events: " + mEvents);
+
+		// Nothing's going to deliver these once the threads are gone, and the render thread
+		// may be waiting on one
+		HLSSegmentCache.cancelDownloads(mPlayerId);
+
+		boolean wasOpen = false;
+		boolean lastPlayer = false;
+		synchronized (sPlayers)
 		{
-			mRenderThread.interrupt();
-			mRenderThread = null;
+			wasOpen = sPlayers.remove(this);
+			lastPlayer = wasOpen && sPlayers.isEmpty();
+			if (lastPlayer)
+			{
+				URLLoader.cancelFlights();
+				HLSSegmentCache.cancelDownloads();
+				if (sInterfaceThread != null) sInterfaceThread.shutdown();
+				if (sHTTPResponseThread != null) sHTTPResponseThread.shutdown();
+				sInterfaceThread = null;
+				sHTTPResponseThread = null;
+			}
 		}
-		if (mInterfaceThread != null)
+		if (wasOpen)
+			HLSSegmentCache.closePartition(mPlayerId);
+
+		final boolean releaseExecutors = wasOpen;
+		HLSExecutors.newThread(new Runnable()
 		{
-			mInterfaceThread.interrupt();
-			mInterfaceThread = null;
-		}
-		if (mHTTPResponseThread != null)
+			@Override
+			public void run() {
+				finishClose(renderThread, releaseExecutors);
+			}
+		}, "Teardown").start();
+	}
+
+	/*
+	 * finishClose
+	 * 
+	 * The blocking half of close(), on the teardown thread.
+	 */
+	private void finishClose(Thread renderThread, boolean releaseExecutors)
+	{
+		// The render thread calls into the decoder, so it has to be gone before the decoder is
+		awaitRenderThread(renderThread, RENDER_THREAD_STOP_MS);
+		synchronized (sDecoderLock)
 		{
-			mHTTPResponseThread.interrupt();
-			mHTTPResponseThread = null;
+			// Another player may have taken the decoder over since; it's theirs to close
+			if (currentController == this)
+			{
+				CloseNativeDecoder();
+				currentController = null;
+			}
 		}
-		CloseNativeDecoder();
 		if (mStreamHandler != null)
 		{
 			mStreamHandler.close();
 			mStreamHandler = null;
 		}
-		currentController = null;
+		if (releaseExecutors)
+			HLSExecutors.release();
 		Log.i("PlayerViewController.close", "Resources closed");
 	}
 	
@@ -472,7 +645,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		if (mRestoringState)
 		{
 			
-			Thread t = new Thread( new Runnable()
+			HLSExecutors.work().execute( new Runnable()
 			{
 				@Override
 				public void run() {
@@ -483,7 +656,6 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		        	play();
 				}
 			});
-			t.start();
 		}
 	}
 
@@ -493,7 +665,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	public void reset()
 	{
 		mTimeMS = 0;
-		HLSSegmentCache.resetProgress();
+		HLSSegmentCache.resetProgress(mPlayerId);
 	}
 
 	/**
@@ -524,32 +696,33 @@ public class HLSPlayerViewController extends RelativeLayout implements
         noMoreSegments = false;
 		Log.i(this.getClass().getName() + ".onParserComplete", "Entered");
 		mStreamHandler = new StreamHandler(parser);
-		ManifestParser p = mStreamHandler.getManifestForQuality(0);
-		StreamHandler.EDGE_BUFFER_SEGMENT_COUNT = p.segments.size() - edgeBufferSegmentCount > 0 ? edgeBufferSegmentCount : p.segments.size() - 1; // prevent this from being larger than the number of available segments
+		mStreamHandler.setInitialQuality(mRestoringState ? mInitialQualityLevel : chooseInitialQuality());
+		mStreamHandler.setEdgeBufferSegmentCount(edgeBufferSegmentCount);
 
 		setBufferTime(mTimeToBuffer);
 
 		mSubtitleHandler = new SubtitleHandler(parser);
 
-		final HLSPlayerViewController self = this;
-		Thread t = new Thread("KnowledgePrepThread") {
-			public void run()
+		final int vpId = parser.videoPlayId;
+		mStreamHandler.doKnowledgePrep().then(new PendingResult.Callback<Boolean>()
+		{
+			@Override
+			public void onComplete(Boolean result)
 			{
-                if (parser.videoPlayId != videoPlayId)
-                {
-                    Log.i("HLSPlayerViewController.onParserComplete.run", "video play id invalid, ignoring");
-                    return;
-                }
-
-				mStreamHandler.doKnowledgePrep(self, parser.videoPlayId);
+				knowledgePrefetchComplete(vpId);
 			}
-		};
 
-		t.start();
+			@Override
+			public void onFailed(String reason)
+			{
+				if (vpId != videoPlayId) return;
+				Log.e("HLSPlayerViewController.onParserComplete", "Unable to establish a timebase: " + reason);
+				postError(OnErrorListener.MEDIA_ERROR_IO, "Unable to establish a timebase for the stream.");
+			}
+		}, getInterfaceThreadHandler());
 	}
 	
 	// knowledgePrefetchComplete() is the completion of the code path that begins in onParserComplete()
-	@Override
 	public void knowledgePrefetchComplete(int vpId)
 	{
         if (vpId != videoPlayId)
@@ -565,13 +738,15 @@ public class HLSPlayerViewController extends RelativeLayout implements
 
 		double startTime = StreamHandler.USE_DEFAULT_START; // This is a trigger to let getFileForTime know to start a live stream
 		int subtitleIndex = 0;
-		int qualityLevel = mQualityLevel = 0;
+		int qualityLevel = mQualityLevel = getStreamHandler().lastQuality;
+		mQualitySwitchPending = false;
+		mBufferStarting = true;
+		mRenditionCap.reset();
 		int textTrackIndex = mSubtitleHandler.hasSubtitles() ? mSubtitleHandler.getDefaultLanguageIndex() : 0;
 		if (mRestoringState)
 		{
 			getStreamHandler().setAltAudioTrack(mAltAudioIndex);
 			startTime = mStreamHandler.streamEnds() ? (double)mStartingMS / 1000.0 : StreamHandler.USE_DEFAULT_START; // Always go to the end on a live stream, even when we resume
-			qualityLevel = mInitialQualityLevel;
 			textTrackIndex = mInitialSubtitleTrack;
 		}
 
@@ -613,7 +788,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 			postAudioTracksList(new ArrayList<String>(), -1);
 		}
 
-		postQualityTracksList(mStreamHandler.getQualityTrackList(), 0);
+		postQualityTracksList(mStreamHandler.getQualityTrackList(), mQualityLevel);
 
 
 		if (seg.altAudioSegment != null)
@@ -636,11 +811,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		}
 
 		// Kick off render thread.
-		if (mRenderThreadState == THREAD_STATE_STOPPED);
-		{
-			mRenderThread = new Thread(renderRunnable, "RenderThread");
-			mRenderThread.start();
-		}
+		startRenderThread();
 
 		postDurationChanged();
 	}
@@ -694,8 +865,10 @@ public class HLSPlayerViewController extends RelativeLayout implements
 			mManifest = null;
 		}
 		mManifest = new ManifestParser();
+		mManifest.playerId = mPlayerId;
 		mManifest.setOnParseCompleteListener(this, loader.videoPlayId);
-		mManifest.parse(response, loader.getRequestURI().toString());
+		if (mEarlyStart) mManifest.setEarlyStart(startBandwidth());
+		mManifest.parse(response, loader.uri);
 	}
 
 	public void onDownloadFailed(URLLoader loader, String response) {
@@ -712,18 +885,35 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	}
 
 	public boolean getIsPlaying() {
-		return GetState() == STATE_PLAYING;
+		return ownsDecoder() && GetState() == STATE_PLAYING;
 	}
 
 	public void initialize() {
 		setBackgroundColor(0xFF000000);
 		initializeNative();
+		initializeFramePacer();
+	}
+
+	// Paces frames to the display we're on
+	private void initializeFramePacer()
+	{
+		try
+		{
+			WindowManager wm = (WindowManager)getContext().getSystemService(Context.WINDOW_SERVICE);
+			if (wm != null) mFramePacer.setRefreshRate(wm.getDefaultDisplay().getRefreshRate());
+		}
+		catch (Exception e)
+		{
+			Log.i("PlayerViewController.initializeFramePacer", "Couldn't get the refresh rate: " + e);
+		}
+		mFramePacer.reset();
 	}
 
 	@Override
 	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
 		super.onSizeChanged(w, h, oldw, oldh);
 		Log.i("PlayerViewController.onSizeChanged", "Set size to " + w + "x" + h);
+		mRenditionCap.setViewSize(w, h);
 	}
 
 	public void destroy()
@@ -776,6 +966,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	
 	private void initiatePlay()
 	{
+		if (!checkOwnsDecoder("initiatePlay")) return;
         if(getStreamHandler() == null)
         {
             Log.i("HLSPlayerViewController.initiatePlay", "null stream handler, aborting.");
@@ -785,6 +976,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		setStartupState(STARTUP_STATE_STARTED);
 		mStreamHandler.initialize(mSubtitleHandler);
 		PlayFile(((double)mStartingMS) / 1000.0f);
+		mFramePacer.wake();
     	if (mStartingMS != 0) seek(mStartingMS, false);
 		postPlayerStateChange(PlayerStates.PLAY);
 
@@ -807,6 +999,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
         {
             public void run()
             {
+                if (!checkOwnsDecoder("play")) return;
                 int state = GetState();
                 if (state == STATE_PAUSED)
                 {
@@ -814,6 +1007,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
                         public void run()
                         {
                             Pause(false);
+                            mFramePacer.wake();
                             int state = GetState();
                             if (state == STATE_PAUSED) postPlayerStateChange(PlayerStates.PAUSE);
                             else if (state == STATE_PLAYING) postPlayerStateChange(PlayerStates.PLAY);
@@ -834,7 +1028,9 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	public void pause() {
 		postToInterfaceThread(new Runnable() {
             public void run() {
+                if (!checkOwnsDecoder("pause")) return;
                 Pause(true);
+                mFramePacer.wake();
                 int state = GetState();
                 if (state == STATE_PAUSED) postPlayerStateChange(PlayerStates.PAUSE);
                 else if (state == STATE_PLAYING) postPlayerStateChange(PlayerStates.PLAY);
@@ -845,9 +1041,12 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	public void stop() {
         postToInterfaceThread(new Runnable() {
             public void run() {
-                HLSSegmentCache.cancelDownloads();
+                if (!checkOwnsDecoder("stop")) return;
+                HLSSegmentCache.cancelDownloads(mPlayerId);
                 if (mStreamHandler != null) mStreamHandler.stopReloads();
+                if (mQualitySwitchPending) postQualityTrackSwitchingEnd(mQualityLevel);
                 StopPlayer();
+                mFramePacer.wake();
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException e) {
@@ -901,47 +1100,90 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		postToInterfaceThread( new Runnable() {
 			public void run()
 			{
-                HLSSegmentCache.cancelAllCacheEvents();
-
-                targetSeekSet = true;
-                targetSeekMS = msec;
-
-				boolean tss = targetSeekSet;
-				int tsms = targetSeekMS;
-				int state = GetState();
-
-				if (tss && state != STATE_STOPPED)
-				{
-					if (notify) postPlayerStateChange(PlayerStates.SEEKING);
-					targetSeekSet = false;
-					targetSeekMS = 0;
-					if (tsms != StreamHandler.USE_DEFAULT_START)
-						SeekTo(((double)tsms) / 1000.0f);
-					else
-						SeekTo((double)tsms);
-					if (notify) postPlayerStateChange(PlayerStates.SEEKED);
-				}
-				else if (tss && state == STATE_STOPPED && mRenderThreadState == THREAD_STATE_RUNNING)
+				// The native seek asks for its segment there and then, so get the timebase
+				// first rather than have it block waiting. A newer seek replaces this one.
+				if (mPendingSeekTimebase != null) mPendingSeekTimebase.cancel();
+				mPendingSeekTimebase = null;
+				
+				PendingResult<Boolean> timebase = mStreamHandler != null ? mStreamHandler.requestSeekTimebase(mQualityLevel) : null;
+				if (timebase == null || timebase.isDone())
 				{
-					Log.i("PlayerViewController.Seek().Runnable()", "Seeking while player is stopped.");
-					mStreamHandler.initialize(mSubtitleHandler); // Need to restart the reload manifest process
-					if (notify) postPlayerStateChange(PlayerStates.SEEKING);
-					targetSeekSet = false;
-					targetSeekMS = 0;
-
-					if (tsms != StreamHandler.USE_DEFAULT_START)
-						SeekTo(((double)tsms) / 1000.0f);
-					else
-						SeekTo((double)tsms);
-					if (notify) postPlayerStateChange(PlayerStates.SEEKED);
+					performSeek(msec, notify);
+					return;
 				}
-				else
+				
+				Log.i("PlayerViewController.Seek().Runnable()", "Waiting for timebase knowledge before seeking to " + msec);
+				mPendingSeekTimebase = timebase;
+				timebase.then(new PendingResult.Callback<Boolean>()
 				{
-					Log.i("PlayerViewController.Seek().Runnable()", "No More Seeks Queued");
-				}
+					@Override
+					public void onComplete(Boolean result)
+					{
+						mPendingSeekTimebase = null;
+						performSeek(msec, notify);
+					}
+					
+					@Override
+					public void onFailed(String reason)
+					{
+						Log.w("PlayerViewController.Seek().Runnable()", "Seeking without timebase knowledge: " + reason);
+						mPendingSeekTimebase = null;
+						performSeek(msec, notify);
+					}
+				}, getInterfaceThreadHandler());
 			}
 		});
 	}
+	
+	private PendingResult<Boolean> mPendingSeekTimebase = null;
+	
+	// Runs on the interface thread
+	private void performSeek(final int msec, final boolean notify)
+	{
+		if (!checkOwnsDecoder("seek")) return;
+		HLSSegmentCache.cancelAllCacheEvents(mPlayerId);
+		mBufferStarting = true;
+		if (mQualitySwitchPending) postQualityTrackSwitchingEnd(mQualityLevel); // The seek picks up wherever the switch got to
+		
+		targetSeekSet = true;
+		targetSeekMS = msec;
+		
+		boolean tss = targetSeekSet;
+		int tsms = targetSeekMS;
+		int state = GetState();
+		
+		if (tss && state != STATE_STOPPED)
+		{
+			if (notify) postPlayerStateChange(PlayerStates.SEEKING);
+			targetSeekSet = false;
+			targetSeekMS = 0;
+			if (tsms != StreamHandler.USE_DEFAULT_START)
+				SeekTo(((double)tsms) / 1000.0f);
+			else
+				SeekTo((double)tsms);
+			if (notify) postPlayerStateChange(PlayerStates.SEEKED);
+		}
+		else if (tss && state == STATE_STOPPED && mRenderThreadState == THREAD_STATE_RUNNING)
+		{
+			Log.i("PlayerViewController.Seek().Runnable()", "Seeking while player is stopped.");
+			mStreamHandler.initialize(mSubtitleHandler); // Need to restart the reload manifest process
+			if (notify) postPlayerStateChange(PlayerStates.SEEKING);
+			targetSeekSet = false;
+			targetSeekMS = 0;
+		
+			if (tsms != StreamHandler.USE_DEFAULT_START)
+				SeekTo(((double)tsms) / 1000.0f);
+			else
+				SeekTo((double)tsms);
+			if (notify) postPlayerStateChange(PlayerStates.SEEKED);
+		}
+		else
+		{
+			Log.i("PlayerViewController.Seek().Runnable()", "No More Seeks Queued");
+		}
+		mFramePacer.skip();
+		mFramePacer.wake();
+	}
 
 	// Helper to check network status.
 	public boolean isOnline() {
@@ -960,16 +1202,64 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	    return (networkInfo != null && networkInfo.isConnected());
 	}
 	
-	public void stopAndReset()
+	/*
+	 * startRenderThread
+	 *
+	 * Starts the render thread, unless it's already running. One that's on its way out is
+	 * waited for first, so there's never more than one calling into the decoder.
+	 */
+	private void startRenderThread()
 	{
-		if (mRenderThreadState == THREAD_STATE_RUNNING)
-			stopVideoThread = true;
-		try {
-			if (mRenderThread != null) mRenderThread.join();
-		} catch (InterruptedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		if (mRenderThread != null && mRenderThread.isAlive())
+		{
+			if (!stopVideoThread) return;
+			stopRenderThread(RENDER_THREAD_STOP_MS);
+		}
+		mRenderThread = HLSExecutors.newThread(renderRunnable, "RenderThread");
+		mRenderThread.start();
+	}
+
+	/*
+	 * stopRenderThread
+	 *
+	 * Asks the render thread to stop, and waits up to timeoutMs for it to (forever, if
+	 * timeoutMs is 0).
+	 */
+	private void stopRenderThread(long timeoutMs)
+	{
+		Thread renderThread = mRenderThread;
+		if (renderThread == null || !renderThread.isAlive()) return;
+		stopVideoThread = true;
+		mFramePacer.wake();
+		awaitRenderThread(renderThread, timeoutMs);
+	}
+	
+	/**
+	 * Cuts short the render thread's wait, for when data it may be buffering on has landed.
+	 */
+	public void wakeRenderThread()
+	{
+		mFramePacer.wake();
+	}
+	
+	private static void awaitRenderThread(Thread renderThread, long timeoutMs)
+	{
+		if (renderThread == null) return;
+		try
+		{
+			renderThread.join(timeoutMs);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
 		}
+		if (renderThread.isAlive())
+			Log.w("PlayerViewController.stopRenderThread", "Render thread didn't stop within " + timeoutMs + "ms");
+	}
+
+	public void stopAndReset()
+	{
+		stopRenderThread(0);
 		StopPlayer();
 		ResetPlayer();
 		if (mStreamHandler != null)
@@ -1014,6 +1304,11 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	public void setVideoUrl(String url) {
 		Log.i("PlayerView.setVideoUrl", url);
 
+		// Get the manifest host's DNS and connection going while the old video is torn down
+		HLSSegmentCache.connectionWarmer.startSession();
+		HLSSegmentCache.connectionWarmer.prefetchDns(url);
+		HLSSegmentCache.connectionWarmer.warm(HLSSegmentCache.httpTransport(), url, ConnectionWarmer.PHASE_MANIFEST);
+
         final HLSPlayerViewController self = this;
         final String lUrl = url;
 
@@ -1022,6 +1317,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
             public void run() {
                 if (manifestLoader != null)
                 {
+                    manifestLoader.cancel();
                     manifestLoader.setDownloadEventListener(null);
                     manifestLoader = null;
                 }
@@ -1032,8 +1328,8 @@ public class HLSPlayerViewController extends RelativeLayout implements
                     mManifest = null;
                 }
 
-                HLSSegmentCache.cancelAllCacheEvents();
-                HLSSegmentCache.cancelDownloads();
+                HLSSegmentCache.cancelAllCacheEvents(mPlayerId);
+                HLSSegmentCache.cancelDownloads(mPlayerId);
                 targetSeekMS = 0;
                 targetSeekSet = false;
                 stopAndReset();
@@ -1050,6 +1346,9 @@ public class HLSPlayerViewController extends RelativeLayout implements
 
                 setStartupState(STARTUP_STATE_LOADING);
 
+                saveBandwidthHistory();
+                loadBandwidthHistory();
+
 
                 // Incrementing the videoPlayId. This will keep us from starting videos delayed
                 // by slow manifest downloads when the user tries to start a new video (meaning
@@ -1058,6 +1357,8 @@ public class HLSPlayerViewController extends RelativeLayout implements
 
                 // Init loading.
                 manifestLoader = new URLLoader("HLSPlayerViewController.setVideoUrl", self, null, videoPlayId);
+                manifestLoader.playerId = mPlayerId;
+                manifestLoader.timingPhase = ConnectionWarmer.PHASE_MANIFEST;
                 manifestLoader.get(lUrl);
             }
         });
@@ -1071,17 +1372,56 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		mPlayerStateChangeListener = listener;
 	}
 
+	// Delivers the frequent events: state changes, playhead, progress, duration, errors and
+	// subtitle text. See EventDispatcher.
+	private EventDispatcher mEvents = new EventDispatcher(new EventDispatcher.Sink()
+	{
+		@Override
+		public void onEvent(EventDispatcher.Event e)
+		{
+			switch (e.type)
+			{
+			case EventDispatcher.EVENT_STATE_CHANGE:
+				if (mPlayerStateChangeListener != null) mPlayerStateChangeListener.onStateChanged((PlayerStates)e.value);
+				break;
+			case EventDispatcher.EVENT_ERROR:
+				if (mErrorListener != null) mErrorListener.onError(e.code, e.text);
+				break;
+			case EventDispatcher.EVENT_FATAL_ERROR:
+				if (mErrorListener != null) mErrorListener.onFatalError(e.code, e.text);
+				break;
+			case EventDispatcher.EVENT_TEXT:
+				if (mSubtitleTextListener != null) mSubtitleTextListener.onSubtitleText(e.startTime, e.length, e.align, e.text);
+				break;
+			}
+		}
+
+		@Override
+		public void onPlayhead(int msec)
+		{
+			if (mPlayheadUpdateListener != null) mPlayheadUpdateListener.onPlayheadUpdated(msec);
+		}
+
+		@Override
+		public void onProgress(int progress)
+		{
+			if (mOnProgressListener != null) mOnProgressListener.onProgressUpdate(progress);
+		}
+
+		@Override
+		public void onDurationChanged()
+		{
+			if (mDurationChangedListener != null) mDurationChangedListener.onDurationChanged(getDuration());
+		}
+	});
+
 	private void postPlayerStateChange(final PlayerStates state)
 	{
 		if (mPlayerStateChangeListener != null)
 		{
-			post(new Runnable()
-			{
-				@Override
-				public void run() {
-					mPlayerStateChangeListener.onStateChanged(state);
-				}
-			});
+			EventDispatcher.Event e = mEvents.obtain(EventDispatcher.EVENT_STATE_CHANGE);
+			e.value = state;
+			mEvents.post(e);
 		}
 	}
 	
@@ -1097,13 +1437,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	{
 		if (mDurationChangedListener != null)
 		{
-			post( new Runnable()
-			{
-				@Override
-				public void run() {
-					mDurationChangedListener.onDurationChanged(getDuration());
-				}
-			} );
+			mEvents.postDurationChanged();
 		}
 	}
 	
@@ -1116,14 +1450,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	{
 		if (mPlayheadUpdateListener != null)
 		{
-			post(new Runnable()
-			{
-				@Override
-				public void run() {
-					mPlayheadUpdateListener.onPlayheadUpdated(msec);
-				}
-
-			});
+			mEvents.postPlayhead(msec);
 		}
 	}
 
@@ -1137,14 +1464,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	{
 		if (mOnProgressListener != null)
 		{
-			post(new Runnable()
-			{
-				@Override
-				public void run() {
-					mOnProgressListener.onProgressUpdate(progress);
-				}
-
-			});
+			mEvents.postProgress(progress);
 		}
 	}
 	
@@ -1160,13 +1480,10 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		Log.e("HLSPlayerSDK.FatalError", "(" + errorCode + ")" + errorMessage);
 		if (mErrorListener != null)
 		{
-			post(new Runnable()
-			{
-				@Override
-				public void run() {
-					mErrorListener.onFatalError(errorCode, errorMessage);
-				}
-			});
+			EventDispatcher.Event e = mEvents.obtain(EventDispatcher.EVENT_FATAL_ERROR);
+			e.code = errorCode;
+			e.text = errorMessage;
+			mEvents.post(e);
 		}
 	}
 	
@@ -1175,13 +1492,10 @@ public class HLSPlayerViewController extends RelativeLayout implements
 		Log.e("HLSPlayerSDK.Error", "(" + errorCode + ")" + errorMessage);
 		if (mErrorListener != null)
 		{
-			post(new Runnable()
-			{
-				@Override
-				public void run() {
-					mErrorListener.onError(errorCode, errorMessage);
-				}
-			});
+			EventDispatcher.Event e = mEvents.obtain(EventDispatcher.EVENT_ERROR);
+			e.code = errorCode;
+			e.text = errorMessage;
+			mEvents.post(e);
 		}
 	}
 	
@@ -1212,12 +1526,12 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	{
 		if (mSubtitleTextListener != null)
 		{
-			post(new Runnable() {
-                @Override
-                public void run() {
-                    mSubtitleTextListener.onSubtitleText(startTime, length, align, buffer);
-                }
-            });
+			EventDispatcher.Event e = mEvents.obtain(EventDispatcher.EVENT_TEXT);
+			e.startTime = startTime;
+			e.length = length;
+			e.align = align;
+			e.text = buffer;
+			mEvents.post(e);
 		}
 	}
 	
@@ -1363,16 +1677,36 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	// Quality Change interface
 	//////////////////////////////////////////////////////////
 
+	private boolean mAutoSwitch = false;
+	private boolean mQualitySwitchPending = false;
+	private AbrPolicy mAbrPolicy = new ThroughputAbrPolicy(HLSSegmentCache.bandwidthEstimator);
+	private AbrPolicy.State mAbrState = new AbrPolicy.State();
+	private RenditionCap mRenditionCap = new RenditionCap();
+	private boolean mBufferStarting = true; // Started or seeked, and nothing buffered since
+	private long mLastDroppedFrameSample = 0;
+
 	@Override
 	public void switchQualityTrack(int newIndex) {
+		mAutoSwitch = false;
+		changeQuality(newIndex);
+	}
+
+	private void changeQuality(int newIndex) {
 		Log.i("HLSPlayerViewController.switchQualityTrack", "Trying to switch to quality: " + newIndex);
 		if (mStreamHandler != null)
 		{
 			int ql = mStreamHandler.getQualityLevels();
-			if (newIndex >= 0 && newIndex < ql)
+			if (newIndex >= 0 && newIndex < ql && !mStreamHandler.isQualityLoaded(newIndex))
+			{
+				Log.w("HLSPlayerViewController.switchQualityTrack", "Quality " + newIndex + "'s playlist hasn't loaded yet");
+				postQualityTrackSwitchingEnd(mQualityLevel);
+			}
+			else if (newIndex >= 0 && newIndex < ql)
 			{
 				postQualityTrackSwitchingStart(mQualityLevel, newIndex);
 				mQualityLevel = newIndex;
+				mQualitySwitchPending = true;
+				mAbrPolicy.noteSwitch();
 
 				postToInterfaceThread(new Runnable() {
 					public void run()
@@ -1396,8 +1730,142 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	}
 	@Override
 	public void setAutoSwitch(boolean autoSwitch) {
-		postError(OnErrorListener.MEDIA_ERROR_UNSUPPORTED, "setAutoSwitch");
+		Log.i("HLSPlayerViewController.setAutoSwitch", "autoSwitch=" + autoSwitch);
+		mAutoSwitch = autoSwitch;
+	}
+
+	/*
+	 * setAbrPolicy
+	 * 
+	 * Sets the policy that picks qualities when auto switch is on. The default is a
+	 * ThroughputAbrPolicy; a BufferAbrPolicy is steadier on links whose throughput swings.
+	 */
+	public void setAbrPolicy(AbrPolicy policy)
+	{
+		if (policy != null)
+			mAbrPolicy = policy;
+	}
 
+	public AbrPolicy getAbrPolicy()
+	{
+		return mAbrPolicy;
+	}
+
+	private BandwidthHistory mBandwidthHistory = null;
+	private String mBandwidthNetwork = null;
+
+	/*
+	 * loadBandwidthHistory
+	 * 
+	 * Seeds the bandwidth estimate from what we've seen before on this kind of network,
+	 * so we can start at the right quality. Estimates from a different network are no use,
+	 * so we throw those away.
+	 */
+	private void loadBandwidthHistory()
+	{
+		if (mBandwidthHistory == null)
+			mBandwidthHistory = new BandwidthHistory(getContext());
+
+		String network = BandwidthHistory.currentNetwork(getContext());
+		if (network == null || !network.equals(mBandwidthNetwork))
+			HLSSegmentCache.bandwidthEstimator.reset();
+		mBandwidthNetwork = network;
+
+		double estimate = mBandwidthHistory.getEstimate(network);
+		HLSSegmentCache.bandwidthEstimator.setDefaultEstimate(estimate);
+		Log.i("HLSPlayerViewController.loadBandwidthHistory", "network=" + network + " estimate=" + (int)estimate + "bps");
+	}
+
+	private void saveBandwidthHistory()
+	{
+		if (mBandwidthHistory == null || mBandwidthNetwork == null) return;
+		if (!HLSSegmentCache.bandwidthEstimator.hasEstimate()) return;
+		mBandwidthHistory.record(mBandwidthNetwork, HLSSegmentCache.bandwidthEstimator.getEstimate());
+	}
+
+	private boolean mEarlyStart = true;
+
+	/*
+	 * setEarlyStart
+	 * 
+	 * Starts playback as soon as the starting stream and the default audio have loaded,
+	 * rather than waiting on every variant, audio and subtitle playlist in the master.
+	 * The rest load in the background, and can't be switched to until they have. On by
+	 * default; takes effect from the next setVideoUrl().
+	 */
+	public void setEarlyStart(boolean enabled)
+	{
+		mEarlyStart = enabled;
+	}
+
+	// The bandwidth chooseInitialQuality() will pick a stream for, or -1 for the lowest
+	private double startBandwidth()
+	{
+		double estimate = HLSSegmentCache.bandwidthEstimator.getEstimate();
+		if (estimate < 0) return -1;
+		return estimate * ThroughputAbrPolicy.UPGRADE_SAFETY;
+	}
+
+	/*
+	 * chooseInitialQuality
+	 * 
+	 * The best quality the bandwidth estimate will sustain, within the rendition cap.
+	 */
+	private int chooseInitialQuality()
+	{
+		double estimate = HLSSegmentCache.bandwidthEstimator.getEstimate();
+		if (estimate < 0 || mStreamHandler == null) return 0;
+
+		int [] bitrates = mStreamHandler.getQualityBitrates();
+		int quality = 0;
+		for (int i = 0; i < bitrates.length; ++i)
+		{
+			if (bitrates[i] <= startBandwidth())
+				quality = i;
+		}
+		quality = Math.min(quality, mRenditionCap.getMaxQuality(mStreamHandler.getQualityStreams()));
+		Log.i("HLSPlayerViewController.chooseInitialQuality", "Starting at quality " + quality + " for estimate " + (int)estimate + "bps");
+		return quality;
+	}
+
+	/*
+	 * checkAutoSwitch
+	 * 
+	 * Called as each segment is requested. If we're switching automatically, asks the
+	 * ABR policy whether we should be playing a different quality.
+	 */
+	private void checkAutoSwitch()
+	{
+		if (!mAutoSwitch || mQualitySwitchPending || mStreamHandler == null) return;
+
+		ManifestParser m = mStreamHandler.getManifestForQuality(mQualityLevel);
+		double segmentDuration = (m != null) ? m.targetDuration : 0;
+
+		mAbrState.currentQuality = mQualityLevel;
+		mAbrState.bitrates = mStreamHandler.getQualityBitrates();
+		mAbrState.segmentDuration = segmentDuration;
+		int bufferedSegments = GetBufferedSegmentCount();
+		if (bufferedSegments > 0) mBufferStarting = false;
+		mAbrState.bufferedSeconds = bufferedSegments * segmentDuration;
+		mAbrState.bufferTargetSeconds = GetSegmentCountToBuffer() * segmentDuration;
+		mAbrState.startingUp = mBufferStarting;
+
+		// Whatever the policy says, don't go above what we can show or decode
+		int maxQuality = mRenditionCap.getMaxQuality(mStreamHandler.getQualityStreams());
+		int target = Math.min(mAbrPolicy.chooseQuality(mAbrState), maxQuality);
+		int loaded = mStreamHandler.nearestLoadedQuality(target, maxQuality);
+		if ((target > mQualityLevel) != (loaded > mQualityLevel)) return; // Nothing's loaded in the direction we want to go
+		target = loaded;
+		if (target == mQualityLevel) return;
+
+		final int newIndex = target;
+		postToInterfaceThread(new Runnable() {
+			public void run()
+			{
+				if (mAutoSwitch && !mQualitySwitchPending && newIndex != mQualityLevel)
+					changeQuality(newIndex);
+			}
+		});
 	}
 	
 	private OnQualityTracksListListener mOnQualityTracksListListener = null;
@@ -1443,6 +1911,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	
 	public void postQualityTrackSwitchingEnd(final int newTrackIndex  )
 	{
+		mQualitySwitchPending = false;
 		if (mOnQualitySwitchingListener != null)
 		{
 			post(new Runnable()
@@ -1496,7 +1965,7 @@ public class HLSPlayerViewController extends RelativeLayout implements
 	}
 	@Override
 	public float getBufferPercentage() {
-		return HLSSegmentCache.lastBufferPct;
+		return HLSSegmentCache.lastBufferPct(mPlayerId);
 	}
 	@Override
 	public int getCurrentQualityIndex() {
@@ -1506,11 +1975,13 @@ public class HLSPlayerViewController extends RelativeLayout implements
 
     /**
      * Responsible for managing video playback state; this is done async to keep
-     * UI responsive and handle blocking activities.
+     * UI responsive and handle blocking activities. Paced by mFramePacer: it sleeps
+     * until the next frame is due, and parks while there's nothing to render.
      */
     private class VideoRenderRunnable implements Runnable {
         private int lastState = STATE_STOPPED;
         private int lastTimeStamp = -1;
+        private int lastRenderedCount = -1;
 
         public void run() {
             mRenderThreadState = THREAD_STATE_RUNNING;
@@ -1542,6 +2013,14 @@ public class HLSPlayerViewController extends RelativeLayout implements
 
                     // Handle various return states.
                     if (rval >= 0) { mTimeMS = rval; /* Log.i("RunThread", "mTimeMS = " + mTimeMS); */ }
+
+                    // Keep an eye on how well the decoder is keeping up.
+                    long now = SystemClock.elapsedRealtime();
+                    if (state == STATE_PLAYING && now - mLastDroppedFrameSample >= RenditionCap.DROPPED_FRAME_SAMPLE_MS)
+                    {
+                        mLastDroppedFrameSample = now;
+                        mRenditionCap.noteDroppedFrames(mQualityLevel, DroppedFramesPerSecond());
+                    }
                     if (rval < 0 && state != lastState)
                     {
                         Log.i("videoThread", "State Changed -- NextFrame() returned " + rval + " : state = " +
@@ -1585,13 +2064,26 @@ public class HLSPlayerViewController extends RelativeLayout implements
                         }
                     }
 
-                    // Give other things a shot at the CPU.
-                    try {
-                        Thread.yield();
-                    } catch (Exception e) {
-                        Log.i("video run", "Video thread sleep interrupted!");
+                    // Note the frame if one went up, then wait for the next one to be due.
+                    int renderedCount = RenderedFrameCount();
+                    if (renderedCount != lastRenderedCount)
+                    {
+                        if (state == STATE_PLAYING) mFramePacer.onFrameRendered(FrameIntervalUs());
+                        lastRenderedCount = renderedCount;
                     }
 
+                    int waitUs = FrameWaitUs();
+                    if (waitUs > 0)
+                        mFramePacer.waitForFrame(waitUs);
+                    else if (rval == -1)
+                    {
+                        // Nothing to render until more data turns up
+                        mFramePacer.skip();
+                        mFramePacer.park(FramePacer.BUFFERING_PARK_TIMEOUT_MS);
+                    }
+                    else
+                        Thread.yield();
+
                     //Log.i("PlayerViewController", "Dropped Frames Per Sec: " + DroppedFramesPerSecond());
                 }
                 else if (state == STATE_CUE_STOP)
@@ -1599,14 +2091,17 @@ public class HLSPlayerViewController extends RelativeLayout implements
                     // We're done playing.
                     stop();
                 }
+                else if (state == STATE_FORMAT_CHANGING || state == STATE_SEEKING)
+                {
+                    // Back to playing shortly, and not always with a wake() to tell us
+                    mFramePacer.skip();
+                    mFramePacer.park(FramePacer.BUFFERING_PARK_TIMEOUT_MS);
+                }
                 else
                 {
-                    // Really yield CPU as we're not doing anything right now.
-                    try {
-                        Thread.sleep(30);
-                    } catch (InterruptedException ie) {
-                        Log.i("video run", "Video thread sleep interrupted!");
-                    }
+                    // Nothing to do until someone plays, seeks or stops us.
+                    mFramePacer.skip();
+                    mFramePacer.park(FramePacer.PARK_TIMEOUT_MS);
                 }
             }
 
@@ -13,6 +13,7 @@ class HLSUtilityThread extends HandlerThread
     HLSUtilityThread(String name)
     {
         super(name);
+        HLSExecutors.register(this);
         start();
         setHandler(new Handler(getLooper()));
     }
@@ -29,4 +30,12 @@ class HLSUtilityThread extends HandlerThread
     {
         getHandler().post(r);
     }
+
+    /**
+     * Stops the thread once the message it's handling is done. Anything still queued is dropped.
+     */
+    public void shutdown()
+    {
+        quit();
+    }
 }
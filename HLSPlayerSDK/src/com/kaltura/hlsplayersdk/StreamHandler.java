@@ -2,15 +2,21 @@ package com.kaltura.hlsplayersdk;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 
+import android.os.Handler;
 import android.os.SystemClock;
 import android.util.Log;
 
 import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
 import com.kaltura.hlsplayersdk.cache.SegmentCachedListener;
+import com.kaltura.hlsplayersdk.cache.SegmentFailoverResolver;
+import com.kaltura.hlsplayersdk.cache.SegmentProbe;
+import com.kaltura.hlsplayersdk.cache.SegmentProbeListener;
 import com.kaltura.hlsplayersdk.manifest.M2TSParser;
 import com.kaltura.hlsplayersdk.manifest.ManifestEncryptionKey;
 import com.kaltura.hlsplayersdk.manifest.ManifestParser;
@@ -18,29 +24,28 @@ import com.kaltura.hlsplayersdk.manifest.ManifestPlaylist;
 import com.kaltura.hlsplayersdk.manifest.ManifestReloader;
 import com.kaltura.hlsplayersdk.manifest.ManifestSegment;
 import com.kaltura.hlsplayersdk.manifest.ManifestStream;
+import com.kaltura.hlsplayersdk.manifest.SegmentIndex;
 import com.kaltura.hlsplayersdk.subtitles.SubtitleHandler;
 import com.kaltura.hlsplayersdk.types.ByteArray;
+import com.kaltura.hlsplayersdk.types.PendingResult;
 import com.kaltura.hlsplayersdk.types.TrackType;
 
 
 
 // This is the confusingly named "HLSIndexHandler" from the flash HLSPlugin
 // I'll change it, if anyone really hates the new name. It just makes more sense to me.
-public class StreamHandler implements ManifestParser.ReloadEventListener, ManifestReloader.ManifestGetHandler, SegmentCachedListener {
+public class StreamHandler implements ManifestParser.ReloadEventListener, ManifestReloader.ManifestGetHandler, SegmentCachedListener, SegmentFailoverResolver {
 	
 	// Constant that allows modifying the behavior when starting a live stream. If the value is true (the intended state), it
 	// should cause the player to start at the live edge of the stream. If the value is false, it will start at the earliest
 	// part of the stream. It's only for testing purposes.
 	private static final boolean SKIP_TO_END_OF_LIVE = true;
 	
-	public static int EDGE_BUFFER_SEGMENT_COUNT = 3;	// The number of segments to keep between playback and live edge.
+	public static final int DEFAULT_EDGE_BUFFER_SEGMENT_COUNT = 3;	// The number of segments to keep between playback and live edge.
+	private int edgeBufferSegmentCount = DEFAULT_EDGE_BUFFER_SEGMENT_COUNT;	// This stream's; see setEdgeBufferSegmentCount()
 
-    private int mKnowledgePrepId = -1;
-	private KnowledgePrepHandler mKnowledgePrepHandler = null;
-	public interface KnowledgePrepHandler
-	{
-		public void knowledgePrefetchComplete( int playId );
-	}
+	// How long we'll wait for a best effort request to give us a timebase before giving up
+	public static final long TIMEBASE_TIMEOUT_MS = 10000;
 
 	private class ErrorTimer
 	{
@@ -80,6 +85,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	public static final int USE_DEFAULT_START = -999;
 
 	public int lastSequence = 0;
+	private double lastFedEndTime = -1; // Where the last segment we handed out ends, on the timeline
 	public int altAudioIndex = -1;
 	private int reloadingAltAudioIndex = -1;
 	public double lastKnownPlaylistStartTime = 0.0;
@@ -115,6 +121,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		public int type = TYPE_VIDEO;
 		public ManifestSegment segment = null;
 		public boolean downloadComplete = false;
+		public boolean altAudioComplete = false;
 		public boolean parsed = false;
 		
 		public BestEffortRequest(ManifestSegment seg, int segType)
@@ -146,8 +153,44 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	
 	
 	private List<BestEffortRequest> _bestEffortRequests = new ArrayList<BestEffortRequest>(); // Active best effort requests
+	
+	/*
+	 * TimebaseWait
+	 * 
+	 * Someone waiting for a manifest to get timebase knowledge. The result completes
+	 * when it does, and fails if the best effort request started for it ends without
+	 * giving us any, or we time out.
+	 * 
+	 */
+	private class TimebaseWait
+	{
+		public ManifestParser manifest = null;
+		public PendingResult<Boolean> result = null;
+		public BestEffortRequest request = null;	// null if one couldn't be started
+		public Runnable timeout = null;
+		
+		public TimebaseWait(ManifestParser man, PendingResult<Boolean> res, BestEffortRequest req)
+		{
+			manifest = man;
+			result = res;
+			request = req;
+		}
+	}
+	
+	private List<TimebaseWait> _timebaseWaits = new ArrayList<TimebaseWait>();
+	
+	// The timebase requests behind in-flight quality and audio track switches. A newer
+	// switch cancels the older one.
+	private PendingResult<Boolean> mPendingQualitySwitch = null;
+	private PendingResult<Boolean> mPendingAudioSwitch = null;
 
 
+	// The player we're streaming for, which gets our events
+	private HLSPlayerViewController player()
+	{
+		return HLSPlayerViewController.getPlayer(baseManifest != null ? baseManifest.playerId : 0);
+	}
+
 	public StreamHandler(ManifestParser parser)
 	{
 		baseManifest = parser;
@@ -161,23 +204,164 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 				break;
 			}
 		}
+		HLSSegmentCache.setFailoverResolver(this);
 	}
 	
-	public void doKnowledgePrep(KnowledgePrepHandler prepHandler, int id)
+	/*
+	 * doKnowledgePrep
+	 * 
+	 * Gets the timebase for the starting quality. The result completes once we have it.
+	 * 
+	 */
+	public PendingResult<Boolean> doKnowledgePrep()
 	{
-        mKnowledgePrepId = id;
-		mKnowledgePrepHandler = prepHandler;
-		if (streamEnds())
+		if (establishProgramDateTimeTimebase())
 		{
-			//initiateBestEffortRequest(Integer.MAX_VALUE, lastQuality);
-			initiateBestEffortRequest(0, lastQuality, true);
+			Log.i("StreamHandler.doKnowledgePrep", "Established timebase from EXT-X-PROGRAM-DATE-TIME. Skipping best effort request.");
+			return PendingResult.completed(Boolean.TRUE);
 		}
-		else
+		
+		ManifestParser man = getManifestForQuality(lastQuality);
+		return requestTimebase(man, streamEnds() ? 0 : Integer.MAX_VALUE, lastQuality, bestEffortTypeFromString(man.type));
+	}
+	
+	/*
+	 * requestTimebase
+	 * 
+	 * Returns a result that completes once the manifest has timebase knowledge, starting
+	 * a best effort request for it if we need one.
+	 * 
+	 */
+	private PendingResult<Boolean> requestTimebase(ManifestParser man, int nextFragmentId, int quality, int type)
+	{
+		if (shareAlignedTimebase(man))
+			return PendingResult.completed(Boolean.TRUE);
+		
+		final PendingResult<Boolean> result = new PendingResult<Boolean>();
+		if (closed)
+		{
+			result.cancel();
+			return result;
+		}
+		
+		BestEffortRequest request = initiateBestEffortRequest(nextFragmentId, quality, man, type);
+		
+		final TimebaseWait wait = new TimebaseWait(man, result, request);
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		if (handler != null)
+		{
+			wait.timeout = new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					synchronized (_timebaseWaits)
+					{
+						_timebaseWaits.remove(wait);
+					}
+					if (result.fail("Timed out waiting for timebase knowledge"))
+						Log.e("StreamHandler.requestTimebase", "Did not receive timebase knowledge for manifest " + wait.manifest.instance() + " within " + TIMEBASE_TIMEOUT_MS + "ms");
+				}
+			};
+			handler.postDelayed(wait.timeout, TIMEBASE_TIMEOUT_MS);
+		}
+		synchronized (_timebaseWaits)
+		{
+			_timebaseWaits.add(wait);
+		}
+		
+		// The request may not have been able to start at all
+		resolveTimebaseWaits();
+		return result;
+	}
+	
+	/*
+	 * resolveTimebaseWaits
+	 * 
+	 * Completes the waits whose manifests now have timebase knowledge. A wait whose own
+	 * best effort request has ended without giving it any fails.
+	 * 
+	 */
+	private void resolveTimebaseWaits()
+	{
+		List<TimebaseWait> completed = new ArrayList<TimebaseWait>();
+		List<TimebaseWait> failed = new ArrayList<TimebaseWait>();
+		synchronized (_timebaseWaits)
+		{
+			for (int i = _timebaseWaits.size() - 1; i >= 0; --i)
+			{
+				TimebaseWait wait = _timebaseWaits.get(i);
+				if (wait.result.isDone())
+					clearTimebaseWait(_timebaseWaits.remove(i));
+				else if (shareAlignedTimebase(wait.manifest))
+					completed.add(_timebaseWaits.remove(i));
+				else if (!isBestEffortRequestActive(wait.request))
+					failed.add(_timebaseWaits.remove(i));
+			}
+		}
+		
+		// Callbacks can start new requests, so run them outside the lock
+		for (TimebaseWait wait : completed)
+		{
+			clearTimebaseWait(wait);
+			wait.result.complete(Boolean.TRUE);
+		}
+		for (TimebaseWait wait : failed)
+		{
+			clearTimebaseWait(wait);
+			wait.result.fail("Best effort request did not produce timebase knowledge");
+		}
+	}
+	
+	private boolean isBestEffortRequestActive(BestEffortRequest request)
+	{
+		if (request == null) return false;
+		synchronized (_bestEffortRequests)
+		{
+			return _bestEffortRequests.contains(request);
+		}
+	}
+	
+	// The wait is over one way or another, so its timeout doesn't need to fire
+	private void clearTimebaseWait(TimebaseWait wait)
+	{
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		if (handler != null && wait.timeout != null)
+			handler.removeCallbacks(wait.timeout);
+		wait.timeout = null;
+	}
+	
+	private void cancelTimebaseWaits()
+	{
+		List<TimebaseWait> waits;
+		synchronized (_timebaseWaits)
+		{
+			waits = new ArrayList<TimebaseWait>(_timebaseWaits);
+			_timebaseWaits.clear();
+		}
+		for (TimebaseWait wait : waits)
 		{
-			initiateBestEffortRequest(Integer.MAX_VALUE, lastQuality, true);
+			clearTimebaseWait(wait);
+			wait.result.cancel();
 		}
 	}
 	
+	/*
+	 * requestSeekTimebase
+	 * 
+	 * Returns a result that completes once the quality we'd seek in has timebase
+	 * knowledge, so a seek can wait for it without blocking the thread it's on.
+	 * 
+	 */
+	public PendingResult<Boolean> requestSeekTimebase(int quality)
+	{
+		quality = getWorkingQuality(quality);
+		ManifestParser man = getManifestForQuality(quality);
+		if (man == null || man.segments == null || man.segments.size() == 0)
+			return PendingResult.completed(Boolean.TRUE); // Nothing to wait for; getFileForTime will sort it out
+		return requestTimebase(man, Integer.MAX_VALUE, quality, BestEffortRequest.TYPE_VIDEO);
+	}
+	
 	// WE keep a list of witnesses of known PTS start values for segments.
 	// This is indexed by segmentURL and returns the PTS start for that
 	// seg if known. Since all segments are immutable, we can keep this
@@ -185,10 +369,306 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	
 	public Map<String, Double> startTimeWitnesses = new HashMap<String, Double>();
 	
+	// Exact segment durations from full scans of downloaded segments, indexed by
+	// segmentURL. These outlive the cached segment data, and replace the EXTINF
+	// estimates when we rebuild the timeline.
+	public Map<String, Double> durationWitnesses = new HashMap<String, Double>();
+	
+	// Maps a segment's EXT-X-PROGRAM-DATE-TIME (in seconds) onto our timeline, by
+	// continuity era. While our timeline is PTS, which restarts at a discontinuity, each
+	// era gets its own, from a PTS witness for one of its dated segments.
+	private Map<Integer, Double> programDateTimeOffsets = new HashMap<Integer, Double>();
+	
+	// Set if we anchored our timeline on program date times, with no PTS witness to go
+	// on. It's then the program date time offset for every era, and it's PTS that needs
+	// mapping onto our timeline: each era's mapping comes from the first PTS witness for
+	// one of its dated segments.
+	private double programDateTimeAnchor = Double.NaN;
+	private Map<Integer, Double> ptsTimelineOffsets = new HashMap<Integer, Double>();
+	
+	// The continuity era of every segment we've seen a program date time for
+	private Map<String, Integer> datedSegmentEras = new HashMap<String, Integer>();
+	
+	// The start time witnesses that came from program date times. A PTS witness for the
+	// same segment replaces them.
+	private Set<String> programDateTimeWitnesses = new HashSet<String>();
+	
+	// The start time witnesses we estimated from an aligned sibling rendition rather
+	// than measured. A PTS witness for the same segment replaces them, and they're never
+	// passed on to another rendition as if they'd been measured.
+	private Set<String> estimatedWitnesses = new HashSet<String>();
+	
+	private ManifestSegment firstDatedSegment(Vector<ManifestSegment> segments)
+	{
+		if (segments == null) return null;
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			if (segments.get(i).hasProgramDateTime())
+				return segments.get(i);
+		}
+		return null;
+	}
+	
+	private boolean hasProgramDateTime(Vector<ManifestSegment> segments)
+	{
+		return firstDatedSegment(segments) != null;
+	}
+	
+	private double programDateTimeOffset(int era)
+	{
+		if (!Double.isNaN(programDateTimeAnchor)) return programDateTimeAnchor;
+		Double offset = programDateTimeOffsets.get(era);
+		return offset != null ? offset : Double.NaN;
+	}
+	
+	/*
+	 * applyProgramDateTimeWitnesses
+	 * 
+	 * Adds start time witnesses for the segments that carry a program date time, in
+	 * whichever continuity eras we know how program date time maps to our timeline. They
+	 * never replace a PTS witness, and a PTS witness that arrives later replaces them (see
+	 * recordPtsWitness).
+	 * 
+	 */
+	private void applyProgramDateTimeWitnesses(Vector<ManifestSegment> segments)
+	{
+		if (!hasProgramDateTime(segments)) return;
+		
+		if (Double.isNaN(programDateTimeAnchor))
+		{
+			// See if our PTS witnesses can give us the mapping for any more eras
+			for (int i = 0; i < segments.size(); ++i)
+			{
+				ManifestSegment seg = segments.get(i);
+				if (!seg.hasProgramDateTime() || programDateTimeOffsets.containsKey(seg.continuityEra)) continue;
+				if (startTimeWitnesses.containsKey(seg.uri) && !estimatedWitnesses.contains(seg.uri) && !programDateTimeWitnesses.contains(seg.uri))
+				{
+					double offset = startTimeWitnesses.get(seg.uri) - (double)seg.programDateTime / 1000.0;
+					programDateTimeOffsets.put(seg.continuityEra, offset);
+					Log.i("StreamHandler.applyProgramDateTimeWitnesses", "Program date time offset=" + offset + " for era " + seg.continuityEra + " from Segment=" + seg);
+				}
+			}
+		}
+		
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			ManifestSegment seg = segments.get(i);
+			if (!seg.hasProgramDateTime()) continue;
+			datedSegmentEras.put(seg.uri, seg.continuityEra);
+			
+			double offset = programDateTimeOffset(seg.continuityEra);
+			if (!Double.isNaN(offset) && !startTimeWitnesses.containsKey(seg.uri))
+			{
+				startTimeWitnesses.put(seg.uri, (double)seg.programDateTime / 1000.0 + offset);
+				programDateTimeWitnesses.add(seg.uri);
+			}
+		}
+	}
+	
+	/*
+	 * recordPtsWitness
+	 * 
+	 * Records the PTS (in seconds) we found at the start of a segment as its start time
+	 * witness, translated onto our timeline. If the timeline was anchored on program date
+	 * times, the first dated segment we measure in each continuity era fixes that era's
+	 * translation; until then we can't place its PTS witnesses, so they're dropped rather
+	 * than mixed in. Returns the start time on our timeline, or NaN if it was dropped.
+	 * 
+	 */
+	private double recordPtsWitness(String uri, double pts)
+	{
+		double offset = 0;
+		if (!Double.isNaN(programDateTimeAnchor))
+		{
+			Integer era = datedSegmentEras.get(uri);
+			Double eraOffset = era != null ? ptsTimelineOffsets.get(era) : null;
+			if (eraOffset == null)
+			{
+				if (!programDateTimeWitnesses.contains(uri))
+				{
+					Log.i("StreamHandler.recordPtsWitness", "Can't place PTS " + pts + " on the program date time timeline yet; dropping witness for " + uri);
+					return Double.NaN;
+				}
+				eraOffset = startTimeWitnesses.get(uri) - pts;
+				ptsTimelineOffsets.put(era, eraOffset);
+				Log.i("StreamHandler.recordPtsWitness", "PTS timeline offset=" + eraOffset + " for era " + era + " from " + uri);
+			}
+			offset = eraOffset;
+		}
+		
+		double startTime = pts + offset;
+		programDateTimeWitnesses.remove(uri);
+		estimatedWitnesses.remove(uri);
+		startTimeWitnesses.put(uri, startTime);
+		return startTime;
+	}
+	
+	/*
+	 * establishProgramDateTimeTimebase
+	 * 
+	 * If the current video manifest (and alt audio manifest, if we have one) carry
+	 * EXT-X-PROGRAM-DATE-TIME, we can build our timebase from that instead of
+	 * downloading a segment to find its PTS. Returns true if the timebase is ready.
+	 * 
+	 */
+	private boolean establishProgramDateTimeTimebase()
+	{
+		ManifestParser videoManifest = getManifestForQuality(lastQuality);
+		ManifestSegment firstDated = firstDatedSegment(videoManifest.segments);
+		if (firstDated == null) return false;
+		
+		// An alt audio stream without program date times would need a PTS timebase, which wouldn't line up with ours
+		if (altAudioManifest != null && !hasProgramDateTime(altAudioManifest.segments)) return false;
+		
+		applyProgramDateTimeWitnesses(videoManifest.segments);
+		if (Double.isNaN(programDateTimeAnchor) && programDateTimeOffsets.isEmpty())
+		{
+			// Nothing to line up with, so our timeline starts at the first segment we know about.
+			// PTS witnesses wait until we can tell where they land on it.
+			programDateTimeAnchor = -(double)firstDated.programDateTime / 1000.0;
+			applyProgramDateTimeWitnesses(videoManifest.segments);
+		}
+		
+		if (altAudioManifest != null)
+			applyProgramDateTimeWitnesses(altAudioManifest.segments);
+		
+		return true;
+	}
+	
+	// Aligned renditions have identical EXTINF durations. The slack covers durations we've
+	// since replaced with exact ones from a segment scan, which can be off by a frame or so.
+	private static final double ALIGNMENT_TOLERANCE = 0.1;
+	
+	/*
+	 * renditionsAligned
+	 * 
+	 * True if two playlists cut their segments in the same places: they share media
+	 * sequence numbers, and each shared sequence number has the same duration and
+	 * continuity era in both.
+	 * 
+	 */
+	private boolean renditionsAligned(Vector<ManifestSegment> a, Vector<ManifestSegment> b)
+	{
+		if (a == null || b == null || a.size() == 0 || b.size() == 0) return false;
+		
+		int firstB = b.get(0).id;
+		int overlap = 0;
+		for (int i = 0; i < a.size(); ++i)
+		{
+			ManifestSegment segA = a.get(i);
+			int j = segA.id - firstB;
+			if (j < 0 || j >= b.size()) continue;
+			
+			ManifestSegment segB = b.get(j);
+			if (segB.id != segA.id) return false; // Gaps in the sequence numbers. Don't guess.
+			if (Math.abs(segA.duration - segB.duration) > ALIGNMENT_TOLERANCE) return false;
+			if (segA.continuityEra != segB.continuityEra) return false;
+			++overlap;
+		}
+		return overlap > 0;
+	}
+	
+	/*
+	 * getSiblingRenditions
+	 * 
+	 * The other renditions of the same media: the video streams for a video manifest,
+	 * or the alt audio playlists for an audio manifest.
+	 * 
+	 */
+	private List<ManifestParser> getSiblingRenditions(ManifestParser target)
+	{
+		List<ManifestParser> siblings = new ArrayList<ManifestParser>();
+		if (baseManifest == null) return siblings;
+		
+		if (bestEffortTypeFromString(target.type) == BestEffortRequest.TYPE_AUDIO)
+		{
+			for (int i = 0; i < baseManifest.playLists.size(); ++i)
+			{
+				if (baseManifest.playLists.get(i).manifest != null)
+					siblings.add(baseManifest.playLists.get(i).manifest);
+			}
+		}
+		else
+		{
+			for (int i = 0; i < baseManifest.streams.size(); ++i)
+			{
+				if (baseManifest.streams.get(i).manifest != null)
+					siblings.add(baseManifest.streams.get(i).manifest);
+			}
+		}
+		return siblings;
+	}
+	
+	/*
+	 * shareAlignedTimebase
+	 * 
+	 * Gives a rendition timebase knowledge from any segment aligned sibling that already
+	 * has it, matching segments by media sequence number. Returns true if the rendition
+	 * has timebase knowledge afterwards.
+	 * 
+	 * What we give it are estimates: the rendition's own PTS replaces them as soon as we
+	 * scan or probe one of its segments.
+	 * 
+	 */
+	private boolean shareAlignedTimebase(ManifestParser target)
+	{
+		if (target == null || target.segments == null || target.segments.size() == 0) return false;
+		if (checkAnySegmentKnowledge(target.segments)) return true;
+		
+		Vector<ManifestSegment> segments = target.segments;
+		int firstId = segments.get(0).id;
+		
+		for (ManifestParser sibling : getSiblingRenditions(target))
+		{
+			if (sibling == null || sibling == target || sibling.segments == null) continue;
+			if (!checkAnySegmentKnowledge(sibling.segments)) continue;
+			if (!renditionsAligned(segments, sibling.segments)) continue;
+			
+			// Prefer the sibling's measured witnesses, but one derived start time is enough
+			ManifestSegment derived = null;
+			boolean shared = false;
+			updateSegmentTimes(sibling.segments);
+			for (int i = 0; i < sibling.segments.size(); ++i)
+			{
+				ManifestSegment s = sibling.segments.get(i);
+				int j = s.id - firstId;
+				if (j < 0 || j >= segments.size()) continue;
+				
+				Double witness = startTimeWitnesses.get(s.uri);
+				if (witness != null && !estimatedWitnesses.contains(s.uri))
+				{
+					addEstimatedWitness(segments.get(j).uri, witness);
+					shared = true;
+				}
+				else if (derived == null)
+				{
+					derived = s;
+				}
+			}
+			if (!shared && derived != null)
+				addEstimatedWitness(segments.get(derived.id - firstId).uri, derived.startTime);
+			
+			if (checkAnySegmentKnowledge(segments))
+			{
+				Log.i("StreamHandler.shareAlignedTimebase", "Shared timebase by sequence number from aligned rendition " + sibling.instance());
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private void addEstimatedWitness(String uri, double startTime)
+	{
+		if (startTimeWitnesses.containsKey(uri)) return;
+		startTimeWitnesses.put(uri, startTime);
+		estimatedWitnesses.add(uri);
+	}
+	
 	public Vector<ManifestSegment> updateSegmentTimes(Vector<ManifestSegment> segments)
 	{
 		// Using our witnesses, fill in as much knowledge as we can about
 		// segment start/end times.
+		applyProgramDateTimeWitnesses(segments);
 		
 		// Keep track of whatever segments we've assigned to.
 		int setSegments[] = new int[segments.size()];
@@ -196,6 +676,10 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		// First, set any exactly known values.
 		for (int i = 0; i < segments.size(); ++i)
 		{
+			Double duration = durationWitnesses.get(segments.get(i).uri);
+			if (duration != null)
+				segments.get(i).duration = duration;
+			
 			// Skip unknowns.
 			if (!startTimeWitnesses.containsKey(segments.get(i).uri))
 				continue;
@@ -249,6 +733,8 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	
 	public boolean checkAnySegmentKnowledge(Vector<ManifestSegment> segments)
 	{
+		applyProgramDateTimeWitnesses(segments);
+		
 		// Find matches
 		for (int i = 0; i < segments.size(); ++i)
 		{
@@ -429,7 +915,11 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	{
 		closed = true;
 		stopReloads();
+		cancelPendingQualitySwitch();
+		cancelPendingAudioSwitch();
+		cancelTimebaseWaits();
 		stopListeningToBestEffortDownloads();
+		HLSSegmentCache.removeFailoverResolver(this);
 	}
 
 	@Override
@@ -454,9 +944,8 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	private ManifestParser getAltAudioManifestForLanguage(int language)
 	{
 		if (baseManifest == null || language == -1) return null;
-		if (baseManifest.playLists.size() < 1 || baseManifest.playLists.get(0).manifest == null) return null;
-		else if (language < baseManifest.playLists.size())
-			return baseManifest.playLists.get(language).manifest;
+		if (language < baseManifest.playLists.size())
+			return baseManifest.playLists.get(language).manifest; // null if it hasn't loaded yet
 		return null;
 	}
 
@@ -599,12 +1088,12 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (isBackupStreamSwitch)
 			{
 				Log.i("StreamHandler.onReloadComplete", "Restoring reloading quality to normal");
-				HLSPlayerViewController.currentController.seekToCurrentPosition();
+				player().seekToCurrentPosition();
 				reloadingQuality = lid; // restoring our quality since we're "done"
 			}
 
 			reloader.start();
-			HLSPlayerViewController.currentController.postDurationChanged();
+			player().postDurationChanged();
 		}
 	}
 
@@ -682,10 +1171,78 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		return false;
 	}
 
+	/*
+	 * getBackupUris
+	 * 
+	 * The same segment in each of the backup streams of the stream it's from. We only
+	 * offer ones encrypted the same way, since the cache decrypts with the original's key.
+	 */
+	@Override
+	public List<String> getBackupUris(String uri)
+	{
+		if (closed || baseManifest == null) return null;
+		
+		for (int i = 0; i < baseManifest.streams.size(); ++i)
+		{
+			ManifestStream stream = baseManifest.streams.get(i);
+			ManifestSegment seg = findSegmentByUri(stream.manifest, uri);
+			if (seg == null) continue;
+			
+			List<String> uris = new ArrayList<String>();
+			for (ManifestStream b = stream.backupStream; b != null && b != stream; b = b.backupStream)
+			{
+				ManifestSegment backup = findEquivalentSegment(b.manifest, seg);
+				if (backup != null && sameEncryption(seg, backup) && !backup.uri.equals(uri))
+					uris.add(backup.uri);
+			}
+			return uris;
+		}
+		return null;
+	}
+	
+	private ManifestSegment findSegmentByUri(ManifestParser man, String uri)
+	{
+		if (man == null) return null;
+		Vector<ManifestSegment> segments = man.segments;
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			if (segments.get(i).uri.equals(uri))
+				return segments.get(i);
+		}
+		return null;
+	}
+	
+	// The segment with the same media sequence, or failing that the same start time
+	private ManifestSegment findEquivalentSegment(ManifestParser man, ManifestSegment seg)
+	{
+		if (man == null) return null;
+		Vector<ManifestSegment> segments = man.segments;
+		ManifestSegment byTime = null;
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			ManifestSegment s = segments.get(i);
+			if (s.id == seg.id) return s;
+			if (byTime == null && Math.abs(s.startTime - seg.startTime) < ALIGNMENT_TOLERANCE)
+				byTime = s;
+		}
+		return byTime;
+	}
+	
+	private boolean sameEncryption(ManifestSegment a, ManifestSegment b)
+	{
+		if (a.key == null || b.key == null) return a.key == b.key;
+		return equalStrings(a.key.url, b.key.url) && equalStrings(a.key.iv, b.key.iv);
+	}
+	
+	private static boolean equalStrings(String a, String b)
+	{
+		return a == null ? b == null : a.equals(b);
+	}
+	
 	public boolean backupStreamExists()
 	{
 		ManifestStream curStream = getStreamForQuality(lastQuality);
-		return (curStream != null && curStream.backupStream != null);
+		return (curStream != null && curStream.backupStream != null && curStream.backupStream.manifest != null);
 	}
 
 	public boolean isStalled()
@@ -845,37 +1402,29 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 
 		double accum = 0.0;
 		ManifestParser curManifest = getManifestForQuality(quality);
+		shareAlignedTimebase(curManifest);
 		Vector<ManifestSegment> segments = updateSegmentTimes(curManifest.segments);
 				
-		if (!checkAnySegmentKnowledge(segments) && _bestEffortRequests.size() == 0)
+		if (!checkAnySegmentKnowledge(segments))
 		{
-			// We may also need to establish a timebase
-			Log.i("StreamHandler.getFileForTime", "Seeking without timebase; initiating reuest.");
-			initiateBestEffortRequest(Integer.MAX_VALUE, quality, false);
-			
-			while (!checkAnySegmentKnowledge(segments) && _bestEffortRequests.size() > 0)
-			{
-				try
-				{
-					Thread.sleep(50);
-				}
-				catch (Exception e)
-				{
-					
-				}
-			}
+			// Seeks wait for the timebase before they get here (see requestSeekTimebase), so
+			// this shouldn't happen. We can't block the native caller for it, so ask for it
+			// and carry on with what we have.
+			Log.w("StreamHandler.getFileForTime", "Continuing without timebase knowledge for quality " + quality + "; initiating request.");
+			requestTimebase(curManifest, Integer.MAX_VALUE, quality, BestEffortRequest.TYPE_VIDEO);
 		}
 
 		if (time == USE_DEFAULT_START && !streamEnds())
 		{
 			if (SKIP_TO_END_OF_LIVE)
 			{
-				int idx = Math.max(segments.size() - EDGE_BUFFER_SEGMENT_COUNT, 0);
+				int idx = Math.max(segments.size() - edgeBufferSegmentCount, 0);
 				lastSequence = segments.get(idx).id;
 				ManifestSegment seg = segments.get(idx);
 				seg.quality = quality;
 				attachAltAudio(seg, seg.startTime, altAudioManifest);
 				seg.initializeCrypto(getKeyForSequence(seg.id, getManifestForQuality(lastQuality).keys)); // TODO: I don't think this is right. I think it will end up with a bug when working on non-current quality segments
+				lastFedEndTime = seg.startTime + seg.duration;
 
 				return seg;
 			}
@@ -904,8 +1453,8 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			Log.i("StreamHandler.GetFileForTime", "Got out of bound timestamp for time " + time + ". Trying to recover...");
 			
 			ManifestSegment lastSeg = segments.get(segments.size() - 1);
-			if (segments.size() >= EDGE_BUFFER_SEGMENT_COUNT + 1)
-				lastSeg = segments.get(segments.size() - EDGE_BUFFER_SEGMENT_COUNT);
+			if (segments.size() >= edgeBufferSegmentCount + 1)
+				lastSeg = segments.get(segments.size() - edgeBufferSegmentCount);
 			
 			if (time < segments.get(0).startTime)
 			{
@@ -927,6 +1476,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			attachAltAudio(curSegment, time, altAudioManifest);
 			curSegment.initializeCrypto(getKeyForSequence(curSegment.id, getManifestForQuality(lastQuality).keys)); // TODO: I don't think this is right. I think it will end up with a bug when working on non-current quality segments
 			lastSequence = seq;
+			lastFedEndTime = curSegment.startTime + curSegment.duration;
 			
 			return curSegment;
 		}
@@ -972,13 +1522,13 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			return null;
 		}
 		
-		if (!checkAnySegmentKnowledge(segments))
+		if (!shareAlignedTimebase(parser))
 		{
 			Log.i("StreamHandler.getNextFile", "Lack timebase for manifest " + parser.instance());
 			
 			if (_bestEffortRequests.size() == 0)
 			{
-				initiateBestEffortRequest(Integer.MAX_VALUE, quality, false);
+				initiateBestEffortRequest(Integer.MAX_VALUE, quality);
 				stalled = true;
 				return null;
 			}
@@ -1015,6 +1565,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (attachAltAudio(curSegment, curSegment.startTime, altAudioManifest))
 			{
 				curSegment.initializeCrypto(getKeyForSequence(curSegment.id, getManifestForQuality(lastQuality).keys)); // TODO: I don't think this is right. I think it will end up with a bug when working on non-current quality segments
+				lastFedEndTime = curSegment.startTime + curSegment.duration;
 	
 				stalled = false;
 				return curSegment;
@@ -1067,6 +1618,100 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 
 	}
 
+	/*
+	 * getQualityBitrates
+	 * 
+	 * The advertised bandwidth of each quality level, in bits per second. Qualities are
+	 * sorted by bandwidth, so this is in increasing order.
+	 * 
+	 */
+	public int [] getQualityBitrates()
+	{
+		if (baseManifest == null || baseManifest.streams.size() == 0) return new int[0];
+		int [] bitrates = new int[baseManifest.streams.size()];
+		for (int i = 0; i < bitrates.length; ++i)
+			bitrates[i] = baseManifest.streams.get(i).bandwidth;
+		return bitrates;
+	}
+
+	/*
+	 * setInitialQuality
+	 * 
+	 * Picks the quality we start on. Only meaningful before knowledge prep; after that,
+	 * use initiateQualityChange. If nothing at or below quality has loaded yet, we start
+	 * on the nearest quality above it that has.
+	 * 
+	 */
+	public void setInitialQuality(int quality)
+	{
+		if (quality < 0 || quality >= getQualityLevels()) return;
+		int loaded = nearestLoadedQuality(quality, quality);
+		lastQuality = isQualityLoaded(loaded) ? loaded : nearestLoadedQuality(quality);
+	}
+	
+	/*
+	 * setEdgeBufferSegmentCount
+	 * 
+	 * How many segments back from the live edge a live stream starts, and reloads
+	 * resume. Kept under the number of segments in the playlist at the initial quality.
+	 * 
+	 */
+	public void setEdgeBufferSegmentCount(int segments)
+	{
+		ManifestParser p = getManifestForQuality(lastQuality);
+		int available = p != null ? p.segments.size() : 0;
+		edgeBufferSegmentCount = available - segments > 0 ? segments : Math.max(available - 1, 0);
+	}
+	
+	/*
+	 * isQualityLoaded
+	 * 
+	 * False if the quality's playlist hasn't loaded (yet), which happens when playback
+	 * starts before all of the master's sub-manifests are in.
+	 * 
+	 */
+	public boolean isQualityLoaded(int quality)
+	{
+		if (baseManifest == null) return false;
+		if (baseManifest.streams.size() == 0) return quality == 0;
+		ManifestStream stream = getStreamForQuality(quality);
+		return stream != null && stream.manifest != null && stream.manifest.isComplete();
+	}
+	
+	/*
+	 * nearestLoadedQuality
+	 * 
+	 * The quality itself if it's loaded, or the nearest one below it that is, or failing
+	 * that above it, but never above maxQuality (the rendition cap, say). The last quality
+	 * if there's nothing else.
+	 * 
+	 */
+	public int nearestLoadedQuality(int quality, int maxQuality)
+	{
+		maxQuality = Math.min(maxQuality, getQualityLevels() - 1);
+		quality = Math.min(quality, maxQuality);
+		for (int i = quality; i >= 0; --i)
+		{
+			if (isQualityLoaded(i)) return i;
+		}
+		for (int i = quality + 1; i <= maxQuality; ++i)
+		{
+			if (isQualityLoaded(i)) return i;
+		}
+		return lastQuality;
+	}
+	
+	public int nearestLoadedQuality(int quality)
+	{
+		return nearestLoadedQuality(quality, getQualityLevels() - 1);
+	}
+
+	public List<ManifestStream> getQualityStreams()
+	{
+		if (baseManifest == null) return new ArrayList<ManifestStream>();
+		return baseManifest.streams;
+	}
+
 	public int getQualityLevels()
 	{
 		if (baseManifest == null) return 0;
@@ -1079,18 +1724,42 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	{
 		if ( baseManifest == null) return new Vector<ManifestSegment>();
 		if (baseManifest.streams.size() < 1 || baseManifest.streams.get(0) == null) return baseManifest.segments;
-		else if ( quality >= baseManifest.streams.size() ) return baseManifest.streams.get(0).manifest.segments;
-		else return baseManifest.streams.get(quality).manifest.segments;
+		ManifestParser man = getManifestForQuality(quality);
+		if (man == null) return new Vector<ManifestSegment>(); // Not loaded yet
+		return man.segments;
 	}
 	
 	public ManifestParser getManifestForQuality(int quality)
 	{
 		if (baseManifest == null) return new ManifestParser();
-		else if (baseManifest.streams.size() < 1 || baseManifest.streams.get(0).manifest == null) return baseManifest;
+		else if (baseManifest.streams.size() < 1) return baseManifest;
 		else if ( quality >= baseManifest.streams.size() ) return baseManifest.streams.get(0).manifest;
-		return baseManifest.streams.get(quality).manifest;
+		return baseManifest.streams.get(quality).manifest; // null if it hasn't loaded yet
 	}
 
+	/*
+	 * getSegmentsAfter
+	 * 
+	 * Up to count segments that follow seg in its playlist, for the cache to fetch along
+	 * with it where it can.
+	 */
+	public List<ManifestSegment> getSegmentsAfter(ManifestSegment seg, int count)
+	{
+		List<ManifestSegment> result = new ArrayList<ManifestSegment>();
+		ManifestParser man = getManifestForQuality(seg.quality);
+		if (man == null) return result;
+		
+		Vector<ManifestSegment> segments = man.segments;
+		for (int i = 0; i < segments.size(); ++i)
+		{
+			if (segments.get(i).id != seg.id) continue;
+			for (int j = i + 1; j < segments.size() && result.size() < count; ++j)
+				result.add(segments.get(j));
+			break;
+		}
+		return result;
+	}
+	
 	public ManifestStream getStreamForQuality(int quality)
 	{
 		if (baseManifest == null || baseManifest.streams.size() < 1 || quality >= baseManifest.streams.size()) return null;
@@ -1102,22 +1771,45 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	@Override
 	public void onSegmentCompleted(String [] uri) {
 		HLSSegmentCache.cancelCacheEvent(uri[0]);
+		if (!HLSSegmentCache.segmentIndexingEnabled()) return;
 		
-		for (String url : uri)
+		// A full scan takes a while, and this is called with the cache locked, so the
+		// indexing happens on a worker, and is skipped if the worker's backed up. The
+		// witnesses are recorded back on this thread.
+		for (final String url : uri)
 		{
-			ByteArray ba = new ByteArray(HLSSegmentCache.getByteArray(url));
-			
-			long pts = getPTS(ba, url);
-			if (pts != -1)
+			HLSExecutors.optionalWork().execute(new Runnable()
 			{
-				double startTime = (double)((double)pts / (double)90000);
-				startTimeWitnesses.put(url, startTime);
-			}
+				@Override
+				public void run()
+				{
+					// Only what's still cached; the segment may have been expired since
+					byte [] data = HLSSegmentCache.getCachedByteArray(url);
+					if (data == null) return;
+					
+					final SegmentIndex index = indexSegment(new ByteArray(data), url);
+					HLSSegmentCache.setSegmentIndex(url, index);
+					HLSPlayerViewController.postToInterfaceThread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							onSegmentIndexed(url, index);
+						}
+					});
+				}
+			});
 		}
-		
-		
-
-
+	}
+	
+	private void onSegmentIndexed(String url, SegmentIndex index)
+	{
+		if (closed) return;
+		if (index.hasTimestamps())
+			recordPtsWitness(url, (double)index.firstPTS / 90000.0);
+		if (index.duration() > 0)
+			durationWitnesses.put(url, index.duration());
+		resolveTimebaseWaits();
 	}
 
 	@Override
@@ -1129,15 +1821,23 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	}
 	
 
-	private void initiateBestEffortRequest(int nextFragmentId, int quality, boolean wait)
+	private BestEffortRequest initiateBestEffortRequest(int nextFragmentId, int quality)
 	{
-		initiateBestEffortRequest(nextFragmentId, quality, null, BestEffortRequest.TYPE_VIDEO, wait);
+		return initiateBestEffortRequest(nextFragmentId, quality, null, BestEffortRequest.TYPE_VIDEO);
 	}
 	
-	private void initiateBestEffortRequest(int nextFragmentId, int quality, ManifestParser newMan, int type, boolean wait)
+	/*
+	 * initiateBestEffortRequest
+	 * 
+	 * Probes a segment of the manifest for its PTS. Replaces any best effort request
+	 * already running for the same kind of track (audio, or video), but leaves the
+	 * other kind alone. Returns the request, or null if there was nothing to probe.
+	 * 
+	 */
+	private BestEffortRequest initiateBestEffortRequest(int nextFragmentId, int quality, ManifestParser newMan, int type)
 	{
-		/// if we had a pending BEF download, invalidate it
-		stopListeningToBestEffortDownloads();
+		/// if we had a pending BEF download for this kind of track, invalidate it
+		stopListeningToBestEffortDownloads(type == BestEffortRequest.TYPE_AUDIO);
 		
 		// clean up best effort state
 		Vector<ManifestSegment> segments = null;
@@ -1159,7 +1859,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (newMan == null)
 			{
 				Log.i("StreamHandler.initiateBestEffortRequest", "No manifest found to best effort request quality level " + quality);
-				return;
+				return null;
 			}
 			segments = newMan.segments;
 		}
@@ -1167,13 +1867,13 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		if (segments == null)
 		{
 			Log.i("StreamHandler.initiateBestEffortRequest", "NO SEGMENTS FOUND, ABORTING initiateBestEffortRequest");
-			return;
+			return null;
 		}
 		
-		if (nextFragmentId > segments.size() - EDGE_BUFFER_SEGMENT_COUNT || nextFragmentId == Integer.MAX_VALUE)
+		if (nextFragmentId > segments.size() - edgeBufferSegmentCount || nextFragmentId == Integer.MAX_VALUE)
 		{
 			Log.i("StreamHandler.initiateBestEffortRequest", "Capping to end of segment list " + (segments.size() - 1));
-			nextFragmentId = segments.size() - EDGE_BUFFER_SEGMENT_COUNT;
+			nextFragmentId = segments.size() - edgeBufferSegmentCount;
 		}
 		
 		ManifestSegment seg = null;
@@ -1185,9 +1885,16 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		{
 			seg = getSegmentForIndex(newMan, nextFragmentId, quality);
 		}
-		_bestEffortRequests.add(new BestEffortRequest(seg, type));
+		if (seg == null) return null;
+		BestEffortRequest request = new BestEffortRequest(seg, type);
+		synchronized (_bestEffortRequests)
+		{
+			_bestEffortRequests.add(request);
+		}
 		
-		HLSSegmentCache.precache(seg, wait, bestEffortListener, HLSPlayerViewController.getHTTPResponseThreadHandler());
+		// We only need the first PTS, so probe the head of the segment rather than caching all of it.
+		SegmentProbe.probe(seg, bestEffortListener, HLSPlayerViewController.getHTTPResponseThreadHandler());
+		return request;
 	}
 	
 	// Use this to clear ALL besteffort downloads
@@ -1198,11 +1905,25 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			// we've got one going already
 			while (_bestEffortRequests.size() > 0)
 			{
-				ManifestSegment seg = _bestEffortRequests.get(0).segment;
-				HLSSegmentCache.cancelCacheEvent(seg.uri);
+				cancelBestEffortProbes(_bestEffortRequests.get(0));
 				_bestEffortRequests.remove(0);
 			}
 		}
+		resolveTimebaseWaits();
+	}
+	
+	private void stopListeningToBestEffortDownloads(boolean audio)
+	{
+		synchronized (_bestEffortRequests)
+		{
+			for (int i = _bestEffortRequests.size() - 1; i >= 0; --i)
+			{
+				if ((_bestEffortRequests.get(i).type == BestEffortRequest.TYPE_AUDIO) != audio) continue;
+				cancelBestEffortProbes(_bestEffortRequests.get(i));
+				_bestEffortRequests.remove(i);
+			}
+		}
+		resolveTimebaseWaits();
 	}
 	
 	private void stopListeningToCompletedBestEffortDownloads()
@@ -1214,111 +1935,81 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			{
 				if (_bestEffortRequests.get(i).parsed )
 				{
-					HLSSegmentCache.cancelCacheEvent(_bestEffortRequests.get(i).segment.uri);
+					cancelBestEffortProbes(_bestEffortRequests.get(i));
 					_bestEffortRequests.remove(i);
 				}
 			}
 		}
+		resolveTimebaseWaits();
 	}
 	
-
-	private final int _bufferCopySize = 0x4000;  
-	private long getPTS(ByteArray segmentBytes, String uri)
+	private void cancelBestEffortProbes(BestEffortRequest req)
 	{
-		M2TSParser tsParser = new M2TSParser();
-					
-		long pts = -1;
-		int offset = 0;
-		while (pts == -1 && offset < segmentBytes.length())
-		{
-			int len = Math.min(_bufferCopySize, segmentBytes.length() - offset);
-			tsParser.appendBytes(segmentBytes, offset, len );
-			pts = tsParser.pts;
-			offset += len;
-		}
-		
-		Log.i("StreamHandler.bestEffortListener.onSegmentCompleted", "Found PTS ( " + pts + " / " + ((long)(((double)pts / (double)90000) * (double)1000 * (double)1000)) + " / " + (double)((double)pts / 90000.0 )+  " )  in first " + offset + " bytes for " + uri);
-
-		return pts;
+		SegmentProbe.cancel(req.segment.uri, bestEffortListener);
+		if (req.segment.altAudioSegment != null)
+			SegmentProbe.cancel(req.segment.altAudioSegment.uri, bestEffortListener);
 	}
+	
 
-	private SegmentCachedListener bestEffortListener = new SegmentCachedListener()
+	/*
+	 * indexSegment
+	 * 
+	 * Scans a whole downloaded segment for its PTS range, keyframes and discontinuities.
+	 * 
+	 */
+	private SegmentIndex indexSegment(ByteArray segmentBytes, String uri)
 	{
+		M2TSParser tsParser = new M2TSParser(true);
+		tsParser.appendBytes(segmentBytes, 0, segmentBytes.length());
+		tsParser.flush();
 		
-
-		
-		
+		SegmentIndex index = tsParser.getIndex();
+		Log.i("StreamHandler.indexSegment", "Indexed " + segmentBytes.length() + " bytes ( " + index + " ) for " + uri);
+		return index;
+	}
+	
+	private SegmentProbeListener bestEffortListener = new SegmentProbeListener()
+	{
 		@Override
-		public void onSegmentCompleted(String [] uris)
+		public void onProbeCompleted(String uri, long pts)
 		{
-			Log.i("StreamHandler.bestEffortListener.onSegmentCompleted", "Completed for URL[0]: " + uris[0] + " _bestEffortRequests count = " + _bestEffortRequests.size());
+			Log.i("StreamHandler.bestEffortListener.onProbeCompleted", "Completed for URL: " + uri + " _bestEffortRequests count = " + _bestEffortRequests.size());
 			if (_bestEffortRequests.size() == 0) return; // There's nothing to work against
 			
-			for (String uri : uris)
-			{
-				synchronized (_bestEffortRequests)
-				{
-					for(BestEffortRequest v : _bestEffortRequests)
-					{
-						if (v.segment.uri.equals(uri))
-						{
-							v.downloadComplete = true;
-						}
-					}
-				}
-			}
+			double ptsTime = (double)pts / 90000.0;
+			boolean anyParsed = false;
 			
 			synchronized (_bestEffortRequests)
 			{
 				for (BestEffortRequest req : _bestEffortRequests)
 				{
-					if (!req.downloadComplete) continue;
-					
-					ByteArray ba = new ByteArray(HLSSegmentCache.getByteArray(req.segment.uri));
-					
-					long pts = getPTS(ba, req.segment.uri);
-					
-					if (req.type == BestEffortRequest.TYPE_VIDEO) // check the base - i should be 0
+					if (req.segment.uri.equals(uri))
 					{
-						req.segment.startTime = (double)((double)pts / (double)90000);
-						startTimeWitnesses.put(req.segment.uri, req.segment.startTime);
-						req.parsed = true;
+						double startTime = recordPtsWitness(req.segment.uri, ptsTime);
+						if (!Double.isNaN(startTime)) req.segment.startTime = startTime;
+						req.downloadComplete = true;
 					}
-					else if (req.type == BestEffortRequest.TYPE_AUDIO)
+					else if (req.type == BestEffortRequest.TYPE_AUDIO_VIDEO && req.segment.altAudioSegment.uri.equals(uri))
 					{
-						req.segment.startTime = (double)((double)pts / (double)90000);
-						startTimeWitnesses.put(req.segment.uri, req.segment.startTime);
-						req.parsed = true;
-						
+						double startTime = recordPtsWitness(req.segment.altAudioSegment.uri, ptsTime);
+						if (!Double.isNaN(startTime)) req.segment.altAudioSegment.startTime = startTime;
+						req.altAudioComplete = true;
 					}
-					else if (req.type == BestEffortRequest.TYPE_AUDIO_VIDEO && uris.length == 2) // There should be two uris in the finished request
-					{
-						
-						req.segment.startTime = (double)((double)pts / (double)90000);
-						startTimeWitnesses.put(req.segment.uri, req.segment.startTime);
-						
-						// Have to get the PTS for the alt audio separately.
-						ByteArray baa = new ByteArray(HLSSegmentCache.getByteArray(req.segment.altAudioSegment.uri));
-						pts = getPTS(baa, req.segment.altAudioSegment.uri);
-						
-						req.segment.altAudioSegment.startTime = (double)((double)pts / (double)90000);
-						startTimeWitnesses.put(req.segment.altAudioSegment.uri, req.segment.altAudioSegment.startTime);
+					
+					// An audio+video request needs both PTS values before it's done
+					if (req.downloadComplete && (req.type != BestEffortRequest.TYPE_AUDIO_VIDEO || req.altAudioComplete))
 						req.parsed = true;
-					}
+					
+					anyParsed |= req.parsed;
 				}
 			}
 			
-			if (mKnowledgePrepHandler != null)
-			{
-				mKnowledgePrepHandler.knowledgePrefetchComplete(mKnowledgePrepId);
-				mKnowledgePrepHandler = null;
-                mKnowledgePrepId = -1;
-			}
+			if (!anyParsed) return;
 			stopListeningToCompletedBestEffortDownloads();
 		}
 		
 		@Override
-		public void onSegmentFailed(String uri, int errorCode)
+		public void onProbeFailed(String uri, int errorCode)
 		{
 			// TODO: Not sure what to do here, yet...
 			synchronized(_bestEffortRequests)
@@ -1351,6 +2042,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	{
 		Log.i("StreamHandler.initiateQualityChange", "Changing to quality level: " + newQuality);
 		ManifestParser man = getManifestForQuality(newQuality);
+		cancelPendingQualitySwitch();
 		if (man != null)
 		{
 			man.quality = newQuality;
@@ -1383,7 +2075,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		@Override
 		public void onReloadFailed(ManifestParser parser)
 		{
-			HLSPlayerViewController.currentController.postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
+			player().postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
 		}
 		
 		@Override
@@ -1397,83 +2089,119 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (currentManifest.quality == lastQuality)
 			{
 				// We don't need to do anything since this one matches what we're already playing
-				HLSPlayerViewController.currentController.postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
+				player().postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
 				return;
 			}
 			
-			// Make sure we have timebase knowledge			
-			if (!checkAnySegmentKnowledge(newManifest.segments)) // I honestly wouldn't expect any, in many cases
-			{
-				Log.i("StreamHandler.onReloadComplete", "(A) Encountered a live/VOD manifest with no timebase knowledge. Requesting newest segment via best effort path for quality " + reloadingQuality);
-				initiateBestEffortRequest(Integer.MAX_VALUE, quality, newManifest, bestEffortTypeFromString( newManifest.type) , false);
-			}
-
-			// If we don't have timebase knowledge, we need to wait until we have it.
-			// What we can't do is wait in here, as it might block a thread, so we stick
-			// it in a new thread!
-			Thread t = new Thread(new Runnable()
+			// Make sure we have timebase knowledge. Aligned renditions can share the timebase
+			// of the one we're playing, so often we already do.
+			if (!shareAlignedTimebase(newManifest))
+				Log.i("StreamHandler.onReloadComplete", "(A) Encountered a live/VOD manifest with no timebase knowledge. Requesting newest segment via best effort path for quality " + quality);
+
+			// Finish the change once we have the timebase, without holding up this thread
+			cancelPendingQualitySwitch();
+			mPendingQualitySwitch = requestTimebase(newManifest, Integer.MAX_VALUE, quality, bestEffortTypeFromString(newManifest.type));
+			mPendingQualitySwitch.then(new PendingResult.Callback<Boolean>()
 			{
 				@Override
-				public void run()
+				public void onComplete(Boolean result)
 				{
-					// We're only going to do so many checks for the new knowledge, so that we don't end up with zombie threads
-					// that never complete.
-					int checksLeft = 10000 / 100; // 10 seconds / sleep time
-					while (!checkAnySegmentKnowledge(newManifest.segments) && checksLeft > 0)
-					{
-						--checksLeft;
-						try
-						{
-							Thread.sleep(100);
-						}
-						catch (Exception e)
-						{
-							
-						}
-					}
-					
-					if (checksLeft == 0 && !checkAnySegmentKnowledge(newManifest.segments))
-					{
-						Log.e("StreamHandler.onReloadComplete", "We did not recieve timebase knowledge in a timely fashion. Giving up on quality change.");
-						HLSPlayerViewController.currentController.postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
-						return;
-					}
-					
-					updateSegmentTimes(currentManifest.segments);
-					updateSegmentTimes(newManifest.segments);
-					
-					int newQuality = currentManifest.quality;
-					
-					if (newQuality == lastQuality)
-					{
-						// what the hell? I guess this is just a reload, maybe - but - why? Maybe they went forward, then back...
-						Log.i("StreamHandler.onReloadComplete", "Our new quality matches the old (" + lastQuality + ", so not going to change anything - what's the point?");
-						HLSPlayerViewController.currentController.postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
-						return;
-					}
-					else
-					{
-						// Swap the old manifest for the new one
-						// We don't have to pause here because we haven't changed quality, yet
-						if (currentManifest.instance() == baseManifest.instance())
-						{
-							// I'm not sure this should ever happen, as if you are in the base manifest, there aren't any other quality levels.
-							baseManifest = newManifest; 
-						}
-						else
-						{
-							baseManifest.streams.get(newManifest.quality).manifest = newManifest;
-						}
-						
-						lastQuality = newManifest.quality;						
-						HLSPlayerViewController.currentController.seekToCurrentPosition();
-						HLSPlayerViewController.currentController.postQualityTrackSwitchingEnd(newManifest.quality);
-					}
+					completeQualityChange(currentManifest, newManifest);
+				}
+				
+				@Override
+				public void onFailed(String reason)
+				{
+					Log.e("StreamHandler.onReloadComplete", "We did not receive timebase knowledge (" + reason + "). Giving up on quality change.");
+					player().postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
 				}
-			} );
-			t.start();
+			}, HLSPlayerViewController.getInterfaceThreadHandler());
 		}
 	};
+	
+	private void cancelPendingQualitySwitch()
+	{
+		if (mPendingQualitySwitch != null)
+		{
+			mPendingQualitySwitch.cancel();
+			mPendingQualitySwitch = null;
+		}
+	}
+	
+	/*
+	 * completeQualityChange
+	 * 
+	 * Swaps in the reloaded manifest once we have its timebase. The next segment we hand
+	 * out comes from the new rendition, starting where the last one we handed out ends,
+	 * so what's already buffered plays out first. The native player changes format when
+	 * it reaches that segment and reports the end of the switch itself.
+	 * 
+	 * If we can't find that boundary in the new rendition, we seek to the current
+	 * position to move over immediately instead.
+	 * 
+	 */
+	private void completeQualityChange(ManifestParser currentManifest, ManifestParser newManifest)
+	{
+		updateSegmentTimes(currentManifest.segments);
+		updateSegmentTimes(newManifest.segments);
+		
+		int newQuality = currentManifest.quality;
+		
+		if (newQuality == lastQuality)
+		{
+			// what the hell? I guess this is just a reload, maybe - but - why? Maybe they went forward, then back...
+			Log.i("StreamHandler.onReloadComplete", "Our new quality matches the old (" + lastQuality + ", so not going to change anything - what's the point?");
+			player().postQualityTrackSwitchingEnd(lastQuality); // Tell 'em we're done, but haven't switched quality
+			return;
+		}
+		
+		// Swap the old manifest for the new one
+		// We don't have to pause here because we haven't changed quality, yet
+		if (currentManifest.instance() == baseManifest.instance())
+		{
+			// I'm not sure this should ever happen, as if you are in the base manifest, there aren't any other quality levels.
+			baseManifest = newManifest; 
+		}
+		else
+		{
+			baseManifest.streams.get(newManifest.quality).manifest = newManifest;
+		}
+		
+		lastQuality = newManifest.quality;
+		
+		if (continueAtBoundary(newManifest))
+		{
+			Log.i("StreamHandler.completeQualityChange", "Switching to quality " + lastQuality + " at sequence " + (lastSequence + 1));
+			return;
+		}
+		
+		Log.i("StreamHandler.completeQualityChange", "No segment boundary to switch at; seeking to switch to quality " + lastQuality);
+		player().seekToCurrentPosition();
+		player().postQualityTrackSwitchingEnd(newManifest.quality);
+	}
+
+	/*
+	 * continueAtBoundary
+	 * 
+	 * Points lastSequence at the segment of the new rendition that contains the end of
+	 * the last segment we handed out, so getNextFile() carries on from there. Aligned
+	 * renditions keep the same sequence number; for the rest, the first segment may
+	 * overlap a little of what's already buffered, which beats skipping ahead.
+	 * 
+	 */
+	private boolean continueAtBoundary(ManifestParser newManifest)
+	{
+		if (lastFedEndTime < 0) return false;
+		
+		Vector<ManifestSegment> segments = updateSegmentTimes(newManifest.segments);
+		if (segments.size() == 0 || !checkAnySegmentKnowledge(segments)) return false;
+		
+		ManifestSegment next = getSegmentContainingTime(segments, lastFedEndTime + ALIGNMENT_TOLERANCE);
+		if (next == null) return false;
+		
+		lastSequence = next.id - 1;
+		return true;
+	}
 
 	/*
 	 * Alt Audio changes
@@ -1485,6 +2213,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 	{
 		Log.i("StreamHandler.initiateAudioTrackChange", "Changing to track: " + trackIndex);
 		ManifestParser man = getAltAudioManifestForLanguage(trackIndex);
+		cancelPendingAudioSwitch();
 		if (man != null)
 		{
 			man.quality = trackIndex;
@@ -1497,7 +2226,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		@Override
 		public void onReloadFailed(ManifestParser parser)
 		{
-			HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex);
+			player().postAudioTrackSwitchingEnd(altAudioIndex);
 		}
 		
 		@Override
@@ -1509,78 +2238,75 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (currentManifest.quality == altAudioIndex)
 			{
 				// We don't need to do anything since this one matches what we're already playing
-				HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched tracks
+				player().postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched tracks
 				return;
 			}
 			
-			// Make sure we have timebase knowledge
-			if (!checkAnySegmentKnowledge(newManifest.segments)) // I honestly wouldn't expect any, in many cases
+			// An aligned audio playlist can borrow the timebase of the one we're playing
+			if (shareAlignedTimebase(newManifest))
 			{
-				Log.i("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "(A) Encountered an altAudio manifest with no timebase knowledge. Requesting newest segment via best effort path for index " + currentManifest.quality);
-				initiateBestEffortRequest(Integer.MAX_VALUE, newManifest.quality, newManifest, bestEffortTypeFromString(newManifest.type), false);
+				completeAudioTrackChange(currentManifest, newManifest);
+				return;
 			}
 			
-			// If we don't have timebase knowledge, we need to wait until we have it.
-			// What we can't do is wait in here, as it might block a thread, so we stick
-			// it in a new thread!
+			// Make sure we have timebase knowledge
+			if (!checkAnySegmentKnowledge(newManifest.segments)) // I honestly wouldn't expect any, in many cases
+				Log.i("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "(A) Encountered an altAudio manifest with no timebase knowledge. Requesting newest segment via best effort path for index " + currentManifest.quality);
 			
-			Thread t = new Thread(new Runnable()
+			// Finish the change once we have the timebase, without holding up this thread
+			cancelPendingAudioSwitch();
+			mPendingAudioSwitch = requestTimebase(newManifest, Integer.MAX_VALUE, newManifest.quality, bestEffortTypeFromString(newManifest.type));
+			mPendingAudioSwitch.then(new PendingResult.Callback<Boolean>()
 			{
 				@Override
-				public void run()
+				public void onComplete(Boolean result)
 				{
-					// We're only going to do so many checks for the new knowledge, so that we don't end up with zombie threads
-					// that never complete.
-					int checksLeft = 10000 / 100; // 10 seconds / sleep time
-					while (!checkAnySegmentKnowledge(newManifest.segments) && checksLeft > 0)
-					{
-						--checksLeft;
-						try
-						{
-							Thread.sleep(100);
-						}
-						catch (Exception e)
-						{
-							
-						}
-					}
-					
-					if (checksLeft == 0 && !checkAnySegmentKnowledge(newManifest.segments))
-					{
-						Log.e("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "We did not recieve timebase knowledge in a timely fashion. Giving up on audio track change.");
-						HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched quality
-						return;
-					}
-					
-					updateSegmentTimes(currentManifest.segments);
-					updateSegmentTimes(newManifest.segments);
-					
-					// Swap the old manifest for the new one
-					// We don't have to pause here because we haven't changed quality, yet
-					if (currentManifest.instance() == baseManifest.instance())
-					{
-						Log.e("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "Trying to set an alt audio manifest as the base manifest. This should never happen!!! Ignoring and giving up.");
-						HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched quality
-						return;
-					}
-					else
-					{
-						baseManifest.playLists.get(newManifest.quality).manifest = newManifest;
-						altAudioIndex = newManifest.quality;
-						altAudioManifest = newManifest;
-					}
-					
-					HLSPlayerViewController.currentController.seekToCurrentPosition();
-					HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(newManifest.quality);
-
+					completeAudioTrackChange(currentManifest, newManifest);
 				}
-			}, "altAudioSwitchTimeBaseListener");
-			t.start();
-			
-			
+				
+				@Override
+				public void onFailed(String reason)
+				{
+					Log.e("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "We did not receive timebase knowledge (" + reason + "). Giving up on audio track change.");
+					player().postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched tracks
+				}
+			}, HLSPlayerViewController.getInterfaceThreadHandler());
 		}
 	};
 	
+	private void cancelPendingAudioSwitch()
+	{
+		if (mPendingAudioSwitch != null)
+		{
+			mPendingAudioSwitch.cancel();
+			mPendingAudioSwitch = null;
+		}
+	}
+	
+	private void completeAudioTrackChange(ManifestParser currentManifest, ManifestParser newManifest)
+	{
+		updateSegmentTimes(currentManifest.segments);
+		updateSegmentTimes(newManifest.segments);
+		
+		// Swap the old manifest for the new one
+		// We don't have to pause here because we haven't changed quality, yet
+		if (currentManifest.instance() == baseManifest.instance())
+		{
+			Log.e("StreamHandler.altAudioChangeReloadListener.onReloadComplete", "Trying to set an alt audio manifest as the base manifest. This should never happen!!! Ignoring and giving up.");
+			player().postAudioTrackSwitchingEnd(altAudioIndex); // Tell 'em we're done, but haven't switched quality
+			return;
+		}
+		else
+		{
+			baseManifest.playLists.get(newManifest.quality).manifest = newManifest;
+			altAudioIndex = newManifest.quality;
+			altAudioManifest = newManifest;
+		}
+		
+		player().seekToCurrentPosition();
+		player().postAudioTrackSwitchingEnd(newManifest.quality);
+	}
+	
 	
 	public void setAltAudioTrack(int index)
 	{
@@ -1589,15 +2315,20 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 			if (index == altAudioIndex)
 			{
 				// This is our current index. No point in setting it again.
-				HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex);
+				player().postAudioTrackSwitchingEnd(altAudioIndex);
 				return;
 			}
-			if (index < 0)
+			if (index >= 0 && baseManifest.playLists.get(index).manifest == null)
+			{
+				Log.w("StreamHandler.setAltAudioTrack", "Audio track " + index + "'s playlist hasn't loaded yet");
+				player().postAudioTrackSwitchingEnd(altAudioIndex);
+			}
+			else if (index < 0)
 			{
 				altAudioManifest = null;
 				altAudioIndex = -1;
-				HLSPlayerViewController.currentController.seekToCurrentPosition();
-				HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex);
+				player().seekToCurrentPosition();
+				player().postAudioTrackSwitchingEnd(altAudioIndex);
 			}
 			else
 			{
@@ -1606,7 +2337,7 @@ public class StreamHandler implements ManifestParser.ReloadEventListener, Manife
 		}
 		else
 		{
-			HLSPlayerViewController.currentController.postAudioTrackSwitchingEnd(altAudioIndex);
+			player().postAudioTrackSwitchingEnd(altAudioIndex);
 		}
 	}
 }
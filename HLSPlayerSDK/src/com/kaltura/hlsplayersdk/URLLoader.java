@@ -1,19 +1,25 @@
 package com.kaltura.hlsplayersdk;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.http.Header;
-
-import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
 import com.kaltura.hlsplayersdk.events.OnErrorListener;
 import com.kaltura.hlsplayersdk.manifest.BaseManifestItem;
-import com.loopj.android.http.*;
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
 
-public class URLLoader extends AsyncHttpResponseHandler 
+public class URLLoader implements HttpResponseListener 
 {	
 	private static int urlHandleSource = 0;
 	
@@ -40,6 +46,7 @@ public class URLLoader extends AsyncHttpResponseHandler
 	
 	
 	private boolean mComplete = false;
+	private volatile boolean mCancelled = false;
 	
 	private static int getNextHandle()
 	{
@@ -54,10 +61,14 @@ public class URLLoader extends AsyncHttpResponseHandler
 	public BaseManifestItem manifestItem = null;
 	public String uri;
 	public int videoPlayId = 0; // Used for tracking which video play we're on. See HLSPlayerViewController.setVideoURL()
+	public int playerId = 0; // The player it's loading for (HLSPlayerViewController.getPlayerId()); its errors go there
 	private int reloadCount = 0;
 	private final int MAX_RELOAD_TRIES = 3;
 	private String mTag;
 	
+	// What the first byte of our request is timed as, if it's the first of its kind
+	public String timingPhase = ConnectionWarmer.PHASE_PLAYLIST;
+	
 	public URLLoader(String tag, DownloadEventListener eventListener, BaseManifestItem item)
 	{
 		myUrlHandle = getNextHandle();
@@ -78,33 +89,239 @@ public class URLLoader extends AsyncHttpResponseHandler
 		manifestItem = item;
 	}
 	
-	RequestHandle reqHandle = null;
+	HttpRequestHandle reqHandle = null;
+	
+	/// SINGLE FLIGHT
+	
+	// Playlists get asked for from several places at once (reloads, quality changes,
+	// recovery). Loaders that ask for a url that's already being fetched wait on that
+	// fetch instead of starting their own, and each gets the response.
+	//
+	// A flight that hasn't landed within FLIGHT_TIMEOUT_MS fails its waiters, so a response
+	// that never gets delivered (a dropped callback, a thread that's gone) can't leave them,
+	// and everyone who joins later, waiting forever.
+	public static final long FLIGHT_TIMEOUT_MS = 30000;
+	
+	private static class Flight implements HttpResponseListener
+	{
+		public String url;
+		public String phase;
+		public HttpRequestHandle handle = null;
+		public ScheduledFuture<?> timeout = null;
+		public ArrayList<URLLoader> waiters = new ArrayList<URLLoader>();
+		private long startTime = SystemClock.elapsedRealtime();
+		private boolean timed = false;
+		
+		public Flight(String url, String phase)
+		{
+			this.url = url;
+			this.phase = phase;
+		}
+		
+		private void timeFirstByte()
+		{
+			if (timed) return;
+			timed = true;
+			HLSSegmentCache.connectionWarmer.noteFirstByte(phase, SystemClock.elapsedRealtime() - startTime);
+		}
+		
+		// Takes the flight out of the map and hands back its waiters. Only the first call
+		// gets any; a response that turns up after a timeout goes nowhere.
+		private URLLoader [] land()
+		{
+			synchronized (flights)
+			{
+				if (flights.get(url) == this) flights.remove(url);
+				if (timeout != null) timeout.cancel(false);
+				timeout = null;
+				URLLoader [] loaders = waiters.toArray(new URLLoader[waiters.size()]);
+				waiters.clear();
+				return loaders;
+			}
+		}
+		
+		private void expire()
+		{
+			URLLoader [] loaders = land();
+			if (loaders.length == 0) return;
+			Log.w("URLLoader.Flight.expire", "No response in " + FLIGHT_TIMEOUT_MS + "ms; failing " + loaders.length + " waiters: " + url);
+			if (handle != null) handle.cancel();
+			for (int i = 0; i < loaders.length; ++i)
+				loaders[i].onFailure(0, null, new IOException("Timed out waiting for " + url));
+		}
+		
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+			timeFirstByte();
+			URLLoader [] loaders;
+			synchronized (flights)
+			{
+				loaders = waiters.toArray(new URLLoader[waiters.size()]);
+			}
+			for (int i = 0; i < loaders.length; ++i)
+				loaders[i].onProgress(bytesReceived, totalSize);
+		}
+		
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			timeFirstByte();
+			URLLoader [] loaders = land();
+			for (int i = 0; i < loaders.length; ++i)
+				loaders[i].onSuccess(response);
+		}
+		
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			URLLoader [] loaders = land();
+			for (int i = 0; i < loaders.length; ++i)
+				loaders[i].onFailure(statusCode, response, error);
+		}
+	}
+	
+	private static final HashMap<String, Flight> flights = new HashMap<String, Flight>();
+	private static int coalescedRequests = 0;
+	
+	/*
+	 * getCoalescedRequestCount
+	 * 
+	 * How many requests have been served by a fetch (or a reload) that was already under way.
+	 */
+	public static synchronized int getCoalescedRequestCount()
+	{
+		return coalescedRequests;
+	}
+	
+	public static synchronized void noteCoalescedRequest()
+	{
+		++coalescedRequests;
+	}
+	
+	/*
+	 * cancelFlights
+	 * 
+	 * Drops every fetch in flight without telling its waiters. For when the last player
+	 * closes and the threads their responses would be delivered on are going away.
+	 */
+	public static void cancelFlights()
+	{
+		ArrayList<Flight> cancelled;
+		synchronized (flights)
+		{
+			cancelled = new ArrayList<Flight>(flights.values());
+			flights.clear();
+			for (int i = 0; i < cancelled.size(); ++i)
+			{
+				Flight flight = cancelled.get(i);
+				if (flight.timeout != null) flight.timeout.cancel(false);
+				flight.timeout = null;
+				flight.waiters.clear();
+			}
+		}
+		for (int i = 0; i < cancelled.size(); ++i)
+		{
+			if (cancelled.get(i).handle != null) cancelled.get(i).handle.cancel();
+		}
+		if (cancelled.size() > 0) Log.i("URLLoader.cancelFlights", "Cancelled " + cancelled.size() + " fetches in flight");
+	}
+	
+	/// END SINGLE FLIGHT
 	
 	public void get(String url)
 	{
 		uri = url;
-		AsyncHttpClient httpClient = HLSSegmentCache.httpClient();
-		if (httpClient == HLSSegmentCache.syncHttpClient) Log.i("HLS Cache", "Using Synchronous HTTP CLient");
-		else Log.i("HLS Cache", "Using Asynchronous HTTP Client");
-
-		Log.i("URLLoader [" + myUrlHandle + "].get[" + mTag + "]", "Client:" + httpClient.hashCode() + " Looper:" + Looper.myLooper() + " Getting: " + uri);
-		httpClient.setMaxRetriesAndTimeout(0,httpClient.getConnectTimeout());
-		httpClient.setEnableRedirects(true);
+		
+		Flight flight = null;
+		synchronized (flights)
+		{
+			Flight existing = flights.get(url);
+			if (existing != null)
+			{
+				Log.i("URLLoader [" + myUrlHandle + "].get[" + mTag + "]", "Joining fetch in flight: " + uri);
+				existing.waiters.add(this);
+				reqHandle = existing.handle;
+				noteCoalescedRequest();
+				return;
+			}
+			flight = new Flight(url, timingPhase);
+			flight.waiters.add(this);
+			flights.put(url, flight);
+		}
+		
+		final Flight expiring = flight;
 		try
 		{
-			reqHandle = httpClient.get(HLSSegmentCache.context, url, this);
+			ScheduledFuture<?> timeout = HLSExecutors.timers().schedule(new Runnable()
+			{
+				@Override
+				public void run() {
+					expiring.expire();
+				}
+			}, FLIGHT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			synchronized (flights)
+			{
+				if (flights.get(url) == flight) flight.timeout = timeout;
+				else timeout.cancel(false);
+			}
+		}
+		catch (Exception e)
+		{
+			Log.w("URLLoader [" + myUrlHandle + "].get[" + mTag + "]", "Couldn't schedule a timeout: " + e.getMessage());
+		}
+		
+		Log.i("URLLoader [" + myUrlHandle + "].get[" + mTag + "]", "Getting: " + uri);
+		try
+		{
+			HttpRequestHandle handle = HLSSegmentCache.httpTransport().get(new HttpRequest(url), flight, HLSPlayerViewController.getHTTPResponseThreadHandler());
+			synchronized (flights)
+			{
+				flight.handle = handle;
+				for (int i = 0; i < flight.waiters.size(); ++i)
+					flight.waiters.get(i).reqHandle = handle;
+			}
 		}
 		catch (Exception e)
 		{
-			HLSPlayerViewController.currentController.postError(OnErrorListener.ERROR_UNKNOWN, "URL Get Failed: " + e.getMessage());
+			// Loaders may have joined while we were starting it; they all fail (and retry) with us
+			URLLoader [] loaders = flight.land();
+			HLSPlayerViewController player = HLSPlayerViewController.getPlayer(playerId);
+			if (player != null) player.postError(OnErrorListener.ERROR_UNKNOWN, "URL Get Failed: " + e.getMessage());
+			for (int i = 0; i < loaders.length; ++i)
+				loaders[i].onFailure(0, null, e);
 		}
 		Log.i("URLLoader [" + myUrlHandle + "].get[" + mTag + "]", "reqHandle.isCancelled: " + (reqHandle != null ? reqHandle.isCancelled() : "null"));
 	}
 	
+	/*
+	 * cancel
+	 * 
+	 * Stops waiting for the response. If no other loader is waiting on the same fetch, the
+	 * fetch is cancelled too. The listener isn't called.
+	 */
+	public void cancel()
+	{
+		mCancelled = true;
+		HttpRequestHandle abandoned = null;
+		synchronized (flights)
+		{
+			Flight flight = uri != null ? flights.get(uri) : null;
+			if (flight != null && flight.waiters.remove(this) && flight.waiters.isEmpty())
+			{
+				flights.remove(uri);
+				if (flight.timeout != null) flight.timeout.cancel(false);
+				flight.timeout = null;
+				abandoned = flight.handle;
+			}
+		}
+		if (abandoned != null) abandoned.cancel();
+	}
+	
 	private boolean retrying()
 	{
 		++reloadCount;
-		if (mDownloadEventListener == null) return false;
+		if (mDownloadEventListener == null || mCancelled) return false;
 		if (reloadCount <= MAX_RELOAD_TRIES)
 		{
 			Log.i("URLLoader [" + myUrlHandle + "].retrying[" + mTag + "]", "Retrying [" + reloadCount + "]: " + uri);
@@ -172,27 +389,10 @@ public class URLLoader extends AsyncHttpResponseHandler
 	}
 	
 	@Override
-	public void onCancel()
-	{
-		Log.i("URLLoader [" + myUrlHandle + "].cancelled[" + mTag + "]", "Request Cancelled - " + toString());
-	}
-	
-	@Override
-	public void onStart()
-	{
-		Log.i("URLLoader [" + myUrlHandle + "].started[" + mTag + "]", "Request Started");
-	}
-	
-	@Override
-	public void onFinish()
-	{
-		Log.i("URLLoader [" + myUrlHandle + "].finished[" + mTag + "]", "Request Finished");
-	}
-	
-	@Override
-	public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+	public void onFailure(int statusCode, HttpResponse httpResponse, Throwable error) {
 		Log.i("URLLoader [" + myUrlHandle + "].failure[" + mTag + "]", uri + "StatusCode (" + statusCode + ")");
 		logLoaderStates();
+		if (mCancelled) return;
 		if (retrying()) return;
 		mComplete = true;
 		final URLLoader thisLoader = this;
@@ -220,27 +420,20 @@ public class URLLoader extends AsyncHttpResponseHandler
 	}
 
 	@Override
-	public void onSuccess(int statusCode, Header[] headers, byte[] responseData) {
+	public void onSuccess(HttpResponse httpResponse) {
 		
 		Log.i("URLLoader [" + myUrlHandle + "].success[" + mTag + "]", "Received: " + uri);
 		logLoaderStates();
+		if (mCancelled) return;
 		final URLLoader thisLoader = this;
 
-//		for (int i = 0; i < headers.length; ++i)
-//		{
-//			Log.v("URLLoader [" + myUrlHandle + "].success", "Header: " + headers[i].getName() + ": " + headers[i].getValue());
-//		}
-	
-
 		if (uri.lastIndexOf(".m3u8") == uri.length() - 5)
 		{
-			for (int i = 0; i < headers.length; ++i)
+			String contentType = httpResponse.getHeader("Content-Type");
+			if (contentType != null && contentType.toLowerCase().contains("mpegurl") == false)
 			{
-				if (headers[i].getName().equals("Content-Type") && headers[i].getValue().toLowerCase().contains("mpegurl") == false)
-				{
-					onFailure(statusCode, headers, responseData, null);
-					return;
-				}
+				onFailure(httpResponse.statusCode, httpResponse, null);
+				return;
 			}
 		}
 
@@ -248,12 +441,13 @@ public class URLLoader extends AsyncHttpResponseHandler
 		String s = null;
 		try
 		{
-			s = new String(responseData);
+			s = new String(httpResponse.body);
 		}
 		catch (Exception e)
 		{
 			Log.i("URLLoader [" + myUrlHandle + "]", "Failed to convert response to string for uri: " + uri);
-			onFailure(statusCode, headers, responseData, null);
+			onFailure(httpResponse.statusCode, httpResponse, null);
+			return;
 		}
 		final String response = s;
 		
@@ -0,0 +1,39 @@
+package com.kaltura.hlsplayersdk.abr;
+
+/*
+ * AbrPolicy
+ *
+ * Decides which quality level to play when the player is switching automatically.
+ * HLSPlayerViewController.setAbrPolicy() swaps policies, so strategies can be compared
+ * against each other.
+ *
+ */
+public interface AbrPolicy
+{
+	/*
+	 * What the player knows when it asks for a decision.
+	 */
+	public class State
+	{
+		public int currentQuality = 0;
+		public int [] bitrates = null;			// Bits per second, by quality, in increasing order
+		public double bufferedSeconds = 0;		// Media buffered ahead of playback
+		public double bufferTargetSeconds = 0;	// How much media the player tries to keep buffered
+		public double segmentDuration = 0;		// Target duration of the current quality's segments
+		public boolean startingUp = false;		// From a start or seek until the first segment after it is buffered
+	}
+
+	/*
+	 * chooseQuality
+	 *
+	 * Returns the quality we should be playing. Returning state.currentQuality keeps it.
+	 */
+	public int chooseQuality(State state);
+
+	/*
+	 * noteSwitch
+	 *
+	 * Called when a quality change starts, whoever asked for it.
+	 */
+	public void noteSwitch();
+}
@@ -0,0 +1,104 @@
+package com.kaltura.hlsplayersdk.abr;
+
+/*
+ * BandwidthEstimator
+ *
+ * Estimates download bandwidth from (duration, bytes) samples with two exponentially
+ * weighted moving averages, a fast one that reacts to drops and a slow one that keeps
+ * a single good sample from pulling us up too far. The estimate is the lower of them.
+ *
+ * Samples are weighted by their duration, so a long sample counts for more than a
+ * short one, and the averages are corrected for their zero starting value.
+ *
+ */
+public class BandwidthEstimator
+{
+	private static final double FAST_HALF_LIFE = 2.0;	// seconds
+	private static final double SLOW_HALF_LIFE = 5.0;	// seconds
+
+	// Samples smaller than this are mostly latency, and tell us little about throughput
+	public static final int MIN_SAMPLE_BYTES = 16 * 1024;
+
+	// We won't give an estimate until we've seen this much data
+	private static final long MIN_TOTAL_BYTES = 128 * 1024;
+
+	private Ewma mFast = new Ewma(FAST_HALF_LIFE);
+	private Ewma mSlow = new Ewma(SLOW_HALF_LIFE);
+	private long mTotalBytes = 0;
+	private double mDefaultEstimate = -1;
+
+	private class Ewma
+	{
+		private double mAlpha;
+		private double mEstimate = 0;
+		private double mTotalWeight = 0;
+
+		public Ewma(double halfLife)
+		{
+			mAlpha = Math.exp(Math.log(0.5) / halfLife);
+		}
+
+		public void sample(double weight, double value)
+		{
+			double adjAlpha = Math.pow(mAlpha, weight);
+			mEstimate = value * (1 - adjAlpha) + adjAlpha * mEstimate;
+			mTotalWeight += weight;
+		}
+
+		public double getEstimate()
+		{
+			double zeroFactor = 1 - Math.pow(mAlpha, mTotalWeight);
+			return mEstimate / zeroFactor;
+		}
+	}
+
+	/*
+	 * sample
+	 *
+	 * Adds bytes that took durationMs to download.
+	 */
+	public synchronized void sample(long durationMs, long bytes)
+	{
+		if (durationMs <= 0 || bytes < MIN_SAMPLE_BYTES) return;
+
+		double bitsPerSecond = (bytes * 8 * 1000.0) / durationMs;
+		double weight = durationMs / 1000.0;
+		mFast.sample(weight, bitsPerSecond);
+		mSlow.sample(weight, bitsPerSecond);
+		mTotalBytes += bytes;
+	}
+
+	public synchronized boolean hasEstimate()
+	{
+		return mTotalBytes >= MIN_TOTAL_BYTES;
+	}
+
+	/*
+	 * setDefaultEstimate
+	 *
+	 * What to estimate until we've seen enough data ourselves, or -1 for nothing.
+	 */
+	public synchronized void setDefaultEstimate(double bitsPerSecond)
+	{
+		mDefaultEstimate = bitsPerSecond;
+	}
+
+	/*
+	 * getEstimate
+	 *
+	 * Returns the estimated bandwidth in bits per second. Until we've seen enough data,
+	 * that's the default estimate, which is -1 if there isn't one.
+	 */
+	public synchronized double getEstimate()
+	{
+		if (!hasEstimate()) return mDefaultEstimate;
+		return Math.min(mFast.getEstimate(), mSlow.getEstimate());
+	}
+
+	public synchronized void reset()
+	{
+		mFast = new Ewma(FAST_HALF_LIFE);
+		mSlow = new Ewma(SLOW_HALF_LIFE);
+		mTotalBytes = 0;
+	}
+}
@@ -0,0 +1,157 @@
+package com.kaltura.hlsplayersdk.abr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+/*
+ * BandwidthHistory
+ *
+ * Remembers the last few bandwidth estimates for each kind of network we've played
+ * on, so a new session can start at a sensible quality instead of climbing up from
+ * the bottom.
+ *
+ * It's kept small: SAMPLES_PER_NETWORK estimates for each of at most MAX_NETWORKS
+ * networks, one short string per network in its own preferences file (the player's
+ * own preferences get cleared on release()).
+ *
+ */
+public class BandwidthHistory
+{
+	private static final String PREFS_NAME = "hlsplayersdk.bandwidth";
+	private static final String NETWORKS_KEY = "networks";	// Most recently used first
+	private static final String SAMPLES_KEY_PREFIX = "bw.";
+	private static final String SEPARATOR = ",";
+
+	public static final int SAMPLES_PER_NETWORK = 5;
+	public static final int MAX_NETWORKS = 8;
+
+	private SharedPreferences mPrefs = null;
+
+	public BandwidthHistory(Context context)
+	{
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/*
+	 * currentNetwork
+	 *
+	 * A key for the kind of network we're on, like "WIFI" or "MOBILE/LTE", or null if
+	 * we aren't connected or can't tell.
+	 */
+	public static String currentNetwork(Context context)
+	{
+		try
+		{
+			ConnectivityManager connMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = connMgr.getActiveNetworkInfo();
+			if (info == null || !info.isConnected()) return null;
+
+			String subtype = info.getSubtypeName();
+			if (subtype == null || subtype.length() == 0) return info.getTypeName();
+			return info.getTypeName() + "/" + subtype;
+		}
+		catch (Exception e)
+		{
+			Log.i("BandwidthHistory.currentNetwork", e.toString());
+			return null;
+		}
+	}
+
+	/*
+	 * getEstimate
+	 *
+	 * The median of the estimates we have for the network, in bits per second, or -1
+	 * if we have none.
+	 */
+	public synchronized double getEstimate(String network)
+	{
+		if (network == null) return -1;
+
+		List<Double> samples = readSamples(network);
+		if (samples.size() == 0) return -1;
+
+		Double [] sorted = samples.toArray(new Double[samples.size()]);
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	/*
+	 * record
+	 *
+	 * Adds an estimate (bits per second) for the network, dropping its oldest one, and
+	 * the least recently used network, if we're full.
+	 */
+	public synchronized void record(String network, double bitsPerSecond)
+	{
+		if (network == null || bitsPerSecond <= 0) return;
+
+		List<Double> samples = readSamples(network);
+		samples.add(0, bitsPerSecond);
+		while (samples.size() > SAMPLES_PER_NETWORK)
+			samples.remove(samples.size() - 1);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < samples.size(); ++i)
+		{
+			if (i > 0) sb.append(SEPARATOR);
+			sb.append((long)samples.get(i).doubleValue());
+		}
+
+		List<String> networks = readNetworks();
+		networks.remove(network);
+		networks.add(0, network);
+
+		Editor editor = mPrefs.edit();
+		while (networks.size() > MAX_NETWORKS)
+			editor.remove(SAMPLES_KEY_PREFIX + networks.remove(networks.size() - 1));
+
+		StringBuilder nb = new StringBuilder();
+		for (int i = 0; i < networks.size(); ++i)
+		{
+			if (i > 0) nb.append("|");
+			nb.append(networks.get(i));
+		}
+
+		editor.putString(NETWORKS_KEY, nb.toString());
+		editor.putString(SAMPLES_KEY_PREFIX + network, sb.toString());
+		editor.apply();
+	}
+
+	private List<Double> readSamples(String network)
+	{
+		List<Double> samples = new ArrayList<Double>();
+		String stored = mPrefs.getString(SAMPLES_KEY_PREFIX + network, "");
+		if (stored.length() == 0) return samples;
+
+		String [] parts = stored.split(SEPARATOR);
+		for (int i = 0; i < parts.length; ++i)
+		{
+			try
+			{
+				samples.add(Double.parseDouble(parts[i]));
+			}
+			catch (NumberFormatException e)
+			{
+				// Skip anything we can't read
+			}
+		}
+		return samples;
+	}
+
+	private List<String> readNetworks()
+	{
+		List<String> networks = new ArrayList<String>();
+		String stored = mPrefs.getString(NETWORKS_KEY, "");
+		if (stored.length() == 0) return networks;
+		networks.addAll(Arrays.asList(stored.split("\\|")));
+		return networks;
+	}
+}
@@ -0,0 +1,119 @@
+package com.kaltura.hlsplayersdk.abr;
+
+import android.util.Log;
+
+/*
+ * BufferAbrPolicy
+ *
+ * Picks a quality level from how much media is buffered, after BOLA (Spiteri et al.,
+ * "BOLA: Near-Optimal Bitrate Adaptation for Online Videos"). Each quality has a
+ * utility, the log of its bitrate relative to the lowest one, and we play the one that
+ * gives the most utility per bit at the current buffer level. An empty buffer favours
+ * the lowest quality and a full one the highest, without a bandwidth estimate.
+ *
+ * A cellular link's throughput swings a lot more than its buffer does, so this is
+ * steadier than ThroughputAbrPolicy there. On top of plain BOLA:
+ *  - We only move up with at least HEALTHY_BUFFER_FRACTION of the buffer filled, one
+ *    level at a time, and never above what the bandwidth estimate can sustain.
+ *  - We move down as soon as BOLA says so, and straight to the lowest quality once
+ *    less than PANIC_SEGMENTS of media is buffered.
+ *  - While starting up or after a seek the buffer is empty because we just emptied it,
+ *    not because the link can't keep up, so we keep whatever quality we started at
+ *    until the first segment is buffered.
+ *
+ */
+public class BufferAbrPolicy implements AbrPolicy
+{
+	public static final double MINIMUM_BUFFER = 10.0;			// seconds
+	public static final double HEALTHY_BUFFER_FRACTION = 0.5;
+	public static final double PANIC_SEGMENTS = 1.0;
+
+	private BandwidthEstimator mEstimator = null;
+
+	/*
+	 * The estimator only caps upswitches, and may be null.
+	 */
+	public BufferAbrPolicy(BandwidthEstimator estimator)
+	{
+		mEstimator = estimator;
+	}
+
+	@Override
+	public int chooseQuality(State state)
+	{
+		int currentQuality = state.currentQuality;
+		int [] bitrates = state.bitrates;
+		if (bitrates == null || bitrates.length < 2) return currentQuality;
+		if (currentQuality < 0 || currentQuality >= bitrates.length) return currentQuality;
+
+		if (state.startingUp) return currentQuality;
+
+		double buffer = state.bufferedSeconds;
+		double segmentDuration = Math.max(state.segmentDuration, 1.0);
+
+		if (buffer < PANIC_SEGMENTS * segmentDuration)
+		{
+			if (currentQuality != 0)
+				Log.i("BufferAbrPolicy.chooseQuality", "Buffer draining (" + buffer + "s); dropping from quality " + currentQuality + " to 0");
+			return 0;
+		}
+
+		int target = bolaQuality(bitrates, buffer, stableBuffer(state, segmentDuration));
+
+		if (target > currentQuality)
+		{
+			if (buffer < HEALTHY_BUFFER_FRACTION * stableBuffer(state, segmentDuration))
+				return currentQuality;
+
+			target = currentQuality + 1;
+
+			double estimate = mEstimator != null ? mEstimator.getEstimate() : -1;
+			if (estimate >= 0 && bitrates[target] > estimate)
+				return currentQuality;
+		}
+
+		if (target != currentQuality)
+			Log.i("BufferAbrPolicy.chooseQuality", "Buffer " + buffer + "s; switching from quality " + currentQuality + " (" + bitrates[currentQuality] + "bps) to " + target + " (" + bitrates[target] + "bps)");
+		return target;
+	}
+
+	@Override
+	public void noteSwitch()
+	{
+	}
+
+	/*
+	 * The most buffer we expect to see. The player stops asking for segments once it
+	 * has its buffer target, so we won't see more than one segment short of it.
+	 */
+	private double stableBuffer(State state, double segmentDuration)
+	{
+		return Math.max(state.bufferTargetSeconds - segmentDuration, 2 * segmentDuration);
+	}
+
+	private int bolaQuality(int [] bitrates, double buffer, double stableBuffer)
+	{
+		double minimumBuffer = Math.min(MINIMUM_BUFFER, stableBuffer / 2);
+
+		double [] utilities = new double[bitrates.length];
+		for (int i = 0; i < bitrates.length; ++i)
+			utilities[i] = Math.log((double)Math.max(bitrates[i], 1) / Math.max(bitrates[0], 1)) + 1;
+
+		double gp = (utilities[utilities.length - 1] - 1) / (stableBuffer / minimumBuffer - 1);
+		if (gp <= 0) return 0; // Every quality has the same bitrate
+		double vp = minimumBuffer / gp;
+
+		int best = 0;
+		double bestScore = 0;
+		for (int i = 0; i < bitrates.length; ++i)
+		{
+			double score = (vp * (utilities[i] + gp) - buffer) / Math.max(bitrates[i], 1);
+			if (i == 0 || score >= bestScore)
+			{
+				best = i;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,164 @@
+package com.kaltura.hlsplayersdk.abr;
+
+import java.util.List;
+
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.manifest.ManifestStream;
+
+/*
+ * RenditionCap
+ *
+ * Works out the highest quality worth playing, whatever the bandwidth:
+ *  - Nothing bigger than the smallest rendition that fills the view. Pixels we can't
+ *    show just cost bandwidth and decoder time.
+ *  - Nothing the decoder can't take. Unless the native side allows all profiles, it
+ *    refuses anything above H.264 baseline.
+ *  - Nothing at or above a quality that has dropped frames for a sustained stretch.
+ *
+ * Streams that don't say what resolution or codecs they use aren't capped for it.
+ *
+ */
+public class RenditionCap
+{
+	public static final long DROPPED_FRAME_SAMPLE_MS = 1000;
+	public static final int MAX_DROPPED_FPS = 5;			// More than this and we count the sample against the quality
+	public static final int SUSTAINED_DROP_SAMPLES = 5;	// This many bad samples in a row caps the quality
+
+	private static final int AVC_BASELINE_PROFILE = 66;
+
+	private int mViewWidth = 0;
+	private int mViewHeight = 0;
+	private boolean mAllowAllProfiles = true;
+
+	private int mDroppedFrameCap = Integer.MAX_VALUE;
+	private int mDropQuality = -1;
+	private int mDropStreak = 0;
+
+	public synchronized void setViewSize(int width, int height)
+	{
+		mViewWidth = width;
+		mViewHeight = height;
+	}
+
+	public synchronized void setAllowAllProfiles(boolean allowAllProfiles)
+	{
+		mAllowAllProfiles = allowAllProfiles;
+	}
+
+	/*
+	 * noteDroppedFrames
+	 *
+	 * Call about every DROPPED_FRAME_SAMPLE_MS while playing.
+	 */
+	public synchronized void noteDroppedFrames(int quality, int droppedFramesPerSecond)
+	{
+		if (droppedFramesPerSecond <= MAX_DROPPED_FPS || quality <= 0)
+		{
+			mDropStreak = 0;
+			return;
+		}
+
+		if (quality != mDropQuality)
+		{
+			mDropQuality = quality;
+			mDropStreak = 0;
+		}
+
+		if (++mDropStreak >= SUSTAINED_DROP_SAMPLES && quality - 1 < mDroppedFrameCap)
+		{
+			mDroppedFrameCap = quality - 1;
+			mDropStreak = 0;
+			Log.i("RenditionCap.noteDroppedFrames", "Dropping " + droppedFramesPerSecond + " frames/sec at quality " + quality + "; capping at " + mDroppedFrameCap);
+		}
+	}
+
+	/*
+	 * reset
+	 *
+	 * Forgets the dropped frame history, for a new stream.
+	 */
+	public synchronized void reset()
+	{
+		mDroppedFrameCap = Integer.MAX_VALUE;
+		mDropQuality = -1;
+		mDropStreak = 0;
+	}
+
+	/*
+	 * getMaxQuality
+	 *
+	 * Returns the highest quality index we should play from streams, ordered the way the
+	 * stream handler orders qualities. Never less than 0.
+	 */
+	public synchronized int getMaxQuality(List<ManifestStream> streams)
+	{
+		if (streams == null || streams.size() == 0) return 0;
+
+		long viewportPixels = viewportPixels(streams);
+
+		int max = 0;
+		for (int i = 0; i < streams.size() && i <= mDroppedFrameCap; ++i)
+		{
+			ManifestStream s = streams.get(i);
+			if ((long)s.width * s.height > viewportPixels) continue;
+			if (!mAllowAllProfiles && avcProfile(s.codecs) > AVC_BASELINE_PROFILE) continue;
+			max = i;
+		}
+		return max;
+	}
+
+	/*
+	 * The pixel count of the smallest stream that fills the view in at least one
+	 * dimension, or Long.MAX_VALUE if there isn't one (or we don't know the view size).
+	 */
+	private long viewportPixels(List<ManifestStream> streams)
+	{
+		long best = Long.MAX_VALUE;
+		if (mViewWidth <= 0 || mViewHeight <= 0) return best;
+
+		for (int i = 0; i < streams.size(); ++i)
+		{
+			ManifestStream s = streams.get(i);
+			if (s.width <= 0 || s.height <= 0) continue;
+			if (s.width >= mViewWidth || s.height >= mViewHeight)
+				best = Math.min(best, (long)s.width * s.height);
+		}
+		return best;
+	}
+
+	/*
+	 * avcProfile
+	 *
+	 * Pulls the H.264 profile_idc out of a CODECS attribute, either the RFC 6381 form
+	 * (avc1.4d401f) or the older decimal one (avc1.77.30). Returns -1 if there's no
+	 * H.264 codec in it, or we can't read it.
+	 */
+	public static int avcProfile(String codecs)
+	{
+		if (codecs == null) return -1;
+
+		String [] list = codecs.replace("\"", "").split(",");
+		for (int i = 0; i < list.length; ++i)
+		{
+			String codec = list[i].trim();
+			if (!codec.startsWith("avc1.") && !codec.startsWith("avc3.")) continue;
+
+			String params = codec.substring(5);
+			try
+			{
+				int dot = params.indexOf('.');
+				if (dot != -1)
+					return Integer.parseInt(params.substring(0, dot));
+				if (params.length() >= 2)
+					return Integer.parseInt(params.substring(0, 2), 16);
+			}
+			catch (NumberFormatException e)
+			{
+				Log.i("RenditionCap.avcProfile", "Couldn't read profile from " + codec);
+			}
+			return -1;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,72 @@
+package com.kaltura.hlsplayersdk.abr;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/*
+ * ThroughputAbrPolicy
+ *
+ * Picks a quality level from the bandwidth estimate.
+ *
+ * We only move up to a quality whose bitrate fits in UPGRADE_SAFETY of the estimate,
+ * and only move down once the current one no longer fits in DOWNGRADE_SAFETY of it.
+ * The gap between the two keeps us from flapping between neighbouring levels, and
+ * MIN_UPGRADE_INTERVAL_MS stops us climbing again right after a switch. Downgrades
+ * happen as soon as they're needed.
+ *
+ */
+public class ThroughputAbrPolicy implements AbrPolicy
+{
+	public static final double UPGRADE_SAFETY = 0.7;
+	public static final double DOWNGRADE_SAFETY = 0.9;
+	public static final long MIN_UPGRADE_INTERVAL_MS = 10000;
+
+	private BandwidthEstimator mEstimator = null;
+	private long mLastSwitchTime = 0;
+
+	public ThroughputAbrPolicy(BandwidthEstimator estimator)
+	{
+		mEstimator = estimator;
+	}
+
+	@Override
+	public int chooseQuality(State state)
+	{
+		int currentQuality = state.currentQuality;
+		int [] bitrates = state.bitrates;
+		if (bitrates == null || bitrates.length < 2) return currentQuality;
+		if (currentQuality < 0 || currentQuality >= bitrates.length) return currentQuality;
+
+		double estimate = mEstimator.getEstimate();
+		if (estimate < 0) return currentQuality;
+
+		// The best quality we could move up to
+		int target = 0;
+		for (int i = 0; i < bitrates.length; ++i)
+		{
+			if (bitrates[i] <= estimate * UPGRADE_SAFETY)
+				target = i;
+		}
+
+		if (target > currentQuality)
+		{
+			if (SystemClock.elapsedRealtime() - mLastSwitchTime < MIN_UPGRADE_INTERVAL_MS)
+				return currentQuality;
+		}
+		else if (bitrates[currentQuality] <= estimate * DOWNGRADE_SAFETY)
+		{
+			// Still fits, so stay put
+			return currentQuality;
+		}
+
+		if (target != currentQuality)
+			Log.i("ThroughputAbrPolicy.chooseQuality", "Estimate " + (int)estimate + "bps; switching from quality " + currentQuality + " (" + bitrates[currentQuality] + "bps) to " + target + " (" + bitrates[target] + "bps)");
+		return target;
+	}
+
+	@Override
+	public void noteSwitch()
+	{
+		mLastSwitchTime = SystemClock.elapsedRealtime();
+	}
+}
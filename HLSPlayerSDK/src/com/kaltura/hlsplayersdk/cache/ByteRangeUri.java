@@ -0,0 +1,109 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.util.Arrays;
+
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+
+/*
+ * ByteRangeUri
+ * 
+ * Segments of an EXT-X-BYTERANGE playlist are ranges of one shared resource, so the
+ * cache knows each of them by the resource url plus its range, e.g.
+ * "http://host/movie.ts#hls-byterange=1000-1999" for bytes 1000 through 1999. The range
+ * goes to the server as a Range header; the fragment never leaves the player.
+ * 
+ */
+public class ByteRangeUri
+{
+	private static final String MARKER = "#hls-byterange=";
+	
+	/*
+	 * make
+	 * 
+	 * The uri for bytes start through end (inclusive) of url.
+	 */
+	public static String make(String url, long start, long end)
+	{
+		return url + MARKER + start + "-" + end;
+	}
+	
+	public static boolean isRanged(String uri)
+	{
+		return uri != null && uri.lastIndexOf(MARKER) != -1;
+	}
+	
+	/*
+	 * getUrl
+	 * 
+	 * The url of the resource, without the range.
+	 */
+	public static String getUrl(String uri)
+	{
+		int marker = uri.lastIndexOf(MARKER);
+		return marker == -1 ? uri : uri.substring(0, marker);
+	}
+	
+	// The first byte of the range, or -1 if there isn't one
+	public static long getStart(String uri)
+	{
+		return parse(uri, true);
+	}
+	
+	// The last byte of the range (inclusive), or -1 if there isn't one
+	public static long getEnd(String uri)
+	{
+		return parse(uri, false);
+	}
+	
+	/*
+	 * toRequest
+	 * 
+	 * A request for the uri, with a Range header if it has a range.
+	 */
+	public static HttpRequest toRequest(String uri)
+	{
+		HttpRequest request = new HttpRequest(getUrl(uri));
+		long start = getStart(uri);
+		if (start != -1)
+			request.setRange(start, getEnd(uri));
+		return request;
+	}
+	
+	/*
+	 * extractRange
+	 * 
+	 * The bytes of the uri's range out of a response to toRequest(): all of a 206, or
+	 * the right slice of a 200 from a server that ignored the Range header. Returns null
+	 * if the body doesn't hold the range.
+	 */
+	public static byte [] extractRange(String uri, int statusCode, byte [] body)
+	{
+		long start = getStart(uri);
+		if (start == -1 || body == null) return body;
+		long length = getEnd(uri) - start + 1;
+		
+		if (statusCode == 206)
+			return body.length == length ? body : null;
+		if (body.length < start + length)
+			return null;
+		return Arrays.copyOfRange(body, (int)start, (int)(start + length));
+	}
+	
+	private static long parse(String uri, boolean start)
+	{
+		if (uri == null) return -1;
+		int marker = uri.lastIndexOf(MARKER);
+		if (marker == -1) return -1;
+		String range = uri.substring(marker + MARKER.length());
+		int dash = range.indexOf('-');
+		if (dash == -1) return -1;
+		try
+		{
+			return Long.parseLong(start ? range.substring(0, dash) : range.substring(dash + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+}
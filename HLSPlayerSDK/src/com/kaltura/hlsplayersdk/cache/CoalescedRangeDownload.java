@@ -0,0 +1,106 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+
+/*
+ * CoalescedRangeDownload
+ * 
+ * Fetches the cache items for several adjacent byte ranges of one resource with a single
+ * request, and splits the response between them as it arrives. If the request fails,
+ * each item falls back to a download of its own.
+ * 
+ */
+class CoalescedRangeDownload extends SegmentBinaryResponseHandler
+{
+	private List<SegmentCacheItem> mItems = null;
+	private String mGroupUri = null;
+	
+	public CoalescedRangeDownload(List<SegmentCacheItem> items)
+	{
+		super(items.get(0), groupUri(items));
+		mItems = items;
+		mGroupUri = groupUri(items);
+	}
+	
+	// The range running from the first item's start to the last item's end
+	private static String groupUri(List<SegmentCacheItem> items)
+	{
+		String first = items.get(0).uri;
+		String last = items.get(items.size() - 1).uri;
+		return ByteRangeUri.make(ByteRangeUri.getUrl(first), ByteRangeUri.getStart(first), ByteRangeUri.getEnd(last));
+	}
+	
+	private static int rangeLength(SegmentCacheItem sci)
+	{
+		return (int)(ByteRangeUri.getEnd(sci.uri) - ByteRangeUri.getStart(sci.uri) + 1);
+	}
+	
+	public void start(Handler handler)
+	{
+		long now = System.currentTimeMillis();
+		for (SegmentCacheItem sci : mItems)
+		{
+			sci.running = true;
+			sci.downloadStartTime = now;
+			sci.bytesDownloaded = 0;
+		}
+		
+		Log.i("CoalescedRangeDownload.start", "Fetching " + mItems.size() + " ranges with one request: " + mGroupUri);
+		HLSSegmentCache.downloadStats.noteDownloadStarted();
+		HLSSegmentCache.fetchScheduler.get(TrackFetchScheduler.TRACK_VIDEO, mItems.get(0), ByteRangeUri.toRequest(mGroupUri), this, handler);
+	}
+	
+	@Override
+	public void onProgress(int bytesWritten, int totalSize)
+	{
+		int offset = 0;
+		for (SegmentCacheItem sci : mItems)
+		{
+			int length = rangeLength(sci);
+			int itemBytes = Math.max(0, Math.min(bytesWritten - offset, length));
+			if (itemBytes > 0 && sci.running)
+				sci.updateProgress(itemBytes, length);
+			offset += length;
+		}
+		sampleBandwidth(bytesWritten, totalSize);
+	}
+	
+	@Override
+	public void onSuccess(HttpResponse response)
+	{
+		byte [] body = ByteRangeUri.extractRange(mGroupUri, response.statusCode, response.body);
+		if (body == null)
+		{
+			onFailure(0, response, new IOException("Response doesn't hold the requested range (" + response.statusCode + ")"));
+			return;
+		}
+		
+		Log.i("CoalescedRangeDownload.onSuccess", "Splitting " + body.length + " bytes between " + mItems.size() + " segments: " + mGroupUri);
+		int offset = 0;
+		for (SegmentCacheItem sci : mItems)
+		{
+			int length = rangeLength(sci);
+			if (sci.running && sci.data == null)
+				sci.postSegmentSucceeded(200, Arrays.copyOfRange(body, offset, offset + length));
+			offset += length;
+		}
+	}
+	
+	@Override
+	public void onFailure(int statusCode, HttpResponse response, Throwable error)
+	{
+		Log.i("CoalescedRangeDownload.onFailure", "Coalesced request failed (" + statusCode + (error != null ? " : " + error : "") + "). Fetching the ranges separately: " + mGroupUri);
+		for (SegmentCacheItem sci : mItems)
+		{
+			if (sci.running && sci.data == null)
+				sci.cacheEntry.retry(sci, 0);
+		}
+	}
+}
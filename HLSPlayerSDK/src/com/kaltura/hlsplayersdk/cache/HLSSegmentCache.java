@@ -3,18 +3,25 @@ package com.kaltura.hlsplayersdk.cache;
 import java.util.Collection;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
-import android.content.Context;
 import android.os.Debug;
 import android.os.Handler;
-import android.os.Looper;
 import android.util.Log;
 
 import com.kaltura.hlsplayersdk.HLSPlayerViewController;
+import com.kaltura.hlsplayersdk.abr.BandwidthEstimator;
 import com.kaltura.hlsplayersdk.manifest.ManifestSegment;
-import com.loopj.android.http.*;
+import com.kaltura.hlsplayersdk.manifest.SegmentIndex;
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
+import com.kaltura.hlsplayersdk.net.HttpTransport;
+import com.kaltura.hlsplayersdk.net.PooledHttpTransport;
 
 public class HLSSegmentCache 
 {	
@@ -27,35 +34,146 @@ public class HLSSegmentCache
      * lock an individual SegmentCacheEntry.
      */
 	protected static Map<String, SegmentCacheEntry> segmentCache = null;
-	public static AsyncHttpClient asyncHttpClient = new AsyncHttpClient();
-	public static AsyncHttpClient syncHttpClient = new SyncHttpClient();
+	private static HttpTransport transport = null;
+	private static final Object transportLock = new Object();
 	
 	public static double lastDownloadDataRate = 0.0;
-	public static int lastBufferPct = -1;
+	public static BandwidthEstimator bandwidthEstimator = new BandwidthEstimator(); // Fed by segment download progress
+	public static SegmentDownloadStats downloadStats = new SegmentDownloadStats();
+	public static ConnectionWarmer connectionWarmer = new ConnectionWarmer(); // Warms hosts at startup, and times their first bytes
+	public static TrackFetchScheduler fetchScheduler = new TrackFetchScheduler(); // Shares the link between video, audio, subtitles and probes
 	
-	public static void resetProgress() { lastBufferPct = -1; }
+	// Players with a share of targetSize; see expire()
+	private static Set<Integer> openPartitions = new HashSet<Integer>();
 	
-	public static Context context = null;
+	// Each player's download progress, and when it was last told
+	private static class Progress
+	{
+		public long lastTime = 0;
+		public int lastPct = -1;
+	}
+	private static Map<Integer, Progress> progress = new HashMap<Integer, Progress>();
 	
-	public static AsyncHttpClient httpClient()
+	public static void resetProgress(int playerId)
 	{
-		synchronized (asyncHttpClient)
+		synchronized (progress)
 		{
-			if (Looper.myLooper() == null)
-				return syncHttpClient;
-			return asyncHttpClient;
+			progress.remove(playerId);
 		}
 	}
 	
-	public static void resetHTTPLibrary()
+	public static int lastBufferPct(int playerId)
+	{
+		synchronized (progress)
+		{
+			Progress p = progress.get(playerId);
+			return p != null ? p.lastPct : -1;
+		}
+	}
+	
+	/*
+	 * httpTransport
+	 * 
+	 * What all of the player's HTTP goes through, a PooledHttpTransport unless another
+	 * has been set.
+	 */
+	public static HttpTransport httpTransport()
+	{
+		synchronized (transportLock)
+		{
+			if (transport == null)
+				transport = new PooledHttpTransport();
+			return transport;
+		}
+	}
+	
+	/*
+	 * setHttpTransport
+	 * 
+	 * Replaces the transport, shutting down the old one. Anything it had in flight fails
+	 * or is cancelled (segment downloads fail and get retried on the new one), so this is
+	 * best done before playback starts.
+	 */
+	public static void setHttpTransport(HttpTransport newTransport)
 	{
-		synchronized(asyncHttpClient)
+		HttpTransport old = null;
+		synchronized (transportLock)
+		{
+			if (transport == newTransport) return;
+			old = transport;
+			transport = newTransport;
+		}
+		if (old != null)
 		{
-			asyncHttpClient = new AsyncHttpClient();
-			syncHttpClient = new SyncHttpClient();
+			old.shutdown();
+			fetchScheduler.failRunning();
 		}
 	}
 	
+	private static volatile boolean parallelDownloads = false;
+	
+	/*
+	 * setParallelDownloads
+	 * 
+	 * Fetches each segment over several connections at once, which helps on links with
+	 * long round trips and lots of bandwidth. Reads of a segment that's still arriving are
+	 * served as soon as the bytes they want are in, unless it's encrypted. Off by default.
+	 */
+	public static void setParallelDownloads(boolean enabled)
+	{
+		parallelDownloads = enabled;
+	}
+	
+	public static boolean parallelDownloadsEnabled()
+	{
+		return parallelDownloads;
+	}
+	
+	private static volatile boolean segmentIndexing = false;
+	
+	/*
+	 * setSegmentIndexing
+	 * 
+	 * Scans every downloaded segment in full for its PTS range, keyframes and
+	 * discontinuities, and keeps the index with it. That makes segment durations exact,
+	 * at the cost of a pass over every byte we download. Off by default.
+	 */
+	public static void setSegmentIndexing(boolean enabled)
+	{
+		segmentIndexing = enabled;
+	}
+	
+	public static boolean segmentIndexingEnabled()
+	{
+		return segmentIndexing;
+	}
+	
+	private static volatile SegmentFailoverResolver failoverResolver = null;
+	
+	public static synchronized void setFailoverResolver(SegmentFailoverResolver resolver)
+	{
+		failoverResolver = resolver;
+	}
+	
+	// Clears the resolver, if it's still this one
+	public static synchronized void removeFailoverResolver(SegmentFailoverResolver resolver)
+	{
+		if (failoverResolver == resolver)
+			failoverResolver = null;
+	}
+	
+	/*
+	 * getBackupUris
+	 * 
+	 * Where else we might find the segment at uri, or null if we don't know anywhere.
+	 */
+	public static List<String> getBackupUris(String uri)
+	{
+		SegmentFailoverResolver resolver = failoverResolver;
+		if (resolver == null) return null;
+		return resolver.getBackupUris(uri);
+	}
+	
 	static public int getCryptoId(final String segmentUri)
 	{
 		initialize();
@@ -77,6 +195,17 @@ public class HLSSegmentCache
 	}
 	
 	static public SegmentCacheEntry populateCache(String [] segmentUris)
+	{
+		return populateCache(segmentUris, TrackFetchScheduler.TRACK_VIDEO);
+	}
+	
+	/*
+	 * populateCache
+	 * 
+	 * As above, with the first uri fetched as primaryTrack, and any others as its alt audio.
+	 * The track only matters if this creates the entry.
+	 */
+	static public SegmentCacheEntry populateCache(String [] segmentUris, int primaryTrack)
 	{
 		if (segmentUris == null || segmentUris.length == 0)
 		{
@@ -98,7 +227,7 @@ public class HLSSegmentCache
 			
 			// Populate a cache entry and initiate the requests
 			Log.i("HLS Cache", "Miss on " + segmentUris[0] + ", populating..");
-			sce = (existing != null) ? existing : new SegmentCacheEntry(segmentUris);
+			sce = (existing != null) ? existing : new SegmentCacheEntry(segmentUris, primaryTrack);
 			
 			// We're putting it in the map for every URI, so that it can be looked up by any of them
 			for (int i = 0; i < segmentUris.length; ++i)
@@ -124,6 +253,11 @@ public class HLSSegmentCache
 		
 		sce.notifySegmentCached();
 		
+		// A render thread buffering on this shouldn't have to wait for its next poll to see it
+		HLSPlayerViewController player = HLSPlayerViewController.getPlayer(sce.playerId);
+		if (player != null)
+			player.wakeRenderThread();
+		
 		if (sce.downloadCompletedTime != 0 && sce.downloadStartTime != 0 && sce.downloadCompletedTime != sce.downloadStartTime)
 			lastDownloadDataRate = (double)sce.dataSize() / (sce.downloadCompletedTime - sce.downloadStartTime);
 		
@@ -141,16 +275,56 @@ public class HLSSegmentCache
 		}
 	}
 	
+	/*
+	 * openPartition
+	 * 
+	 * Gives a player a share of the cache. Each open player gets an equal share of
+	 * targetSize; the entries for its segments count against it.
+	 */
+	static public void openPartition(int playerId)
+	{
+		synchronized (openPartitions)
+		{
+			openPartitions.add(playerId);
+		}
+	}
+	
+	/*
+	 * closePartition
+	 * 
+	 * Takes a player's share back. Its entries stay until the cache is next over its
+	 * target, and then they're the first to go.
+	 */
+	static public void closePartition(int playerId)
+	{
+		synchronized (openPartitions)
+		{
+			openPartitions.remove(playerId);
+		}
+		resetProgress(playerId);
+	}
+	
+	static private long partitionShare(int playerId)
+	{
+		synchronized (openPartitions)
+		{
+			if (!openPartitions.contains(playerId)) return 0;
+			return targetSize / openPartitions.size();
+		}
+	}
+	
+	// The first player to ask for an entry is the one it's counted against
+	static private void claim(SegmentCacheEntry sce, int playerId)
+	{
+		if (sce != null && sce.playerId == 0) sce.playerId = playerId;
+	}
+	
 	static protected void initialize()
 	{
 		if(segmentCache == null)
 		{
 			Log.i("HLS Cache", "Initializing concurrent hash map.");
 			segmentCache = new ConcurrentHashMap<String, SegmentCacheEntry>();
-			context = null;
-			if(HLSPlayerViewController.currentController != null)
-				context = HLSPlayerViewController.currentController.getContext();
-			if (context == null) Log.e("HLS Cache", "Context is null!!!");
 		}
 	}
 	
@@ -162,12 +336,38 @@ public class HLSSegmentCache
 	 * @param cryptoId
 	 */
 	static public void precache(String segmentUri, int cryptoId)
+	{
+		precache(segmentUri, cryptoId, TrackFetchScheduler.TRACK_VIDEO);
+	}
+	
+	/**
+	 * As above, fetching the segment as the given TrackFetchScheduler track.
+	 * 
+	 * @param segmentUri
+	 * @param cryptoId
+	 * @param track
+	 */
+	static public void precache(String segmentUri, int cryptoId, int track)
+	{
+		precache(segmentUri, cryptoId, track, 0);
+	}
+	
+	/**
+	 * As above, counting the segment against the given player's share of the cache.
+	 * 
+	 * @param segmentUri
+	 * @param cryptoId
+	 * @param track
+	 * @param playerId
+	 */
+	static public void precache(String segmentUri, int cryptoId, int track, int playerId)
 	{
 		initialize();
 		
-		populateCache( new String [] { segmentUri } );
+		populateCache( new String [] { segmentUri }, track );
 
 		SegmentCacheEntry sce = segmentCache.get( segmentUri );
+		claim(sce, playerId);
 		SegmentCacheItem sci = sce.getItem(segmentUri);
 		sci.setCryptoHandle(cryptoId);
 	}
@@ -191,7 +391,7 @@ public class HLSSegmentCache
 			sce.setWaiting(forceWait);
 			if (!sce.isRunning())
 			{
-				HLSSegmentCache.postProgressUpdate(true);
+				HLSSegmentCache.postProgressUpdate(sce.playerId, true);
 				sce.notifySegmentCached();
 			}
 		}
@@ -209,7 +409,7 @@ public class HLSSegmentCache
 			sce.setWaiting(forceWait);
 			if (!sce.isRunning())
 			{
-				HLSSegmentCache.postProgressUpdate(true);
+				HLSSegmentCache.postProgressUpdate(sce.playerId, true);
 				sce.notifySegmentCached();
 			}
 		}
@@ -230,6 +430,92 @@ public class HLSSegmentCache
 		{
 			HLSSegmentCache.precache(segment.uri, segment.cryptoId, forceWait, segmentCachedListener, callbackHandler);
 		}
+		
+		synchronized (segmentCache)
+		{
+			SegmentCacheEntry sce = segmentCache.get(segment.uri);
+			if (sce != null) sce.setMediaDuration(segment.duration);
+			claim(sce, segment.playerId);
+		}
+	}
+	
+	// Limits on how many adjacent byte ranges we'll fetch with one request
+	public static final int MAX_COALESCED_SEGMENTS = 4;
+	public static final long MAX_COALESCED_BYTES = 4 * 1024 * 1024;
+	
+	/*
+	 * precache
+	 * 
+	 * As above, but if the segment is a byte range, any of the upcoming segments that
+	 * directly follow it in the same resource are fetched along with it, in one request.
+	 */
+	static public void precache(ManifestSegment segment, List<ManifestSegment> upcoming, boolean forceWait, SegmentCachedListener segmentCachedListener, Handler callbackHandler)
+	{
+		coalesceRanges(segment, upcoming);
+		precache(segment, forceWait, segmentCachedListener, callbackHandler);
+	}
+	
+	static private void coalesceRanges(ManifestSegment segment, List<ManifestSegment> upcoming)
+	{
+		if (upcoming == null || upcoming.size() == 0) return;
+		if (segment.altAudioSegment != null || !ByteRangeUri.isRanged(segment.uri)) return;
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		if (handler == null) return;
+		initialize();
+		
+		List<ManifestSegment> group = adjacentRanges(segment, upcoming);
+		if (group.size() < 2) return;
+		
+		// Make entries for the ones we don't have yet. If we end up with only the first
+		// one, precache() will fetch it as usual.
+		List<SegmentCacheItem> items = new ArrayList<SegmentCacheItem>();
+		synchronized (segmentCache)
+		{
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < group.size(); ++i)
+			{
+				ManifestSegment seg = group.get(i);
+				if (segmentCache.containsKey(seg.uri)) break;
+				SegmentCacheEntry sce = new SegmentCacheEntry(new String[] { seg.uri });
+				sce.setMediaDuration(seg.duration);
+				sce.playerId = seg.playerId;
+				sce.lastTouchedMillis = now;
+				sce.downloadStartTime = now;
+				segmentCache.put(seg.uri, sce);
+				items.add(sce.getItem(seg.uri));
+			}
+		}
+		if (items.size() < 2) return;
+		
+		new CoalescedRangeDownload(items).start(handler);
+	}
+	
+	/*
+	 * adjacentRanges
+	 * 
+	 * The segment, and as many of the upcoming segments as run on directly from it in
+	 * the same resource, within the coalescing limits.
+	 */
+	static List<ManifestSegment> adjacentRanges(ManifestSegment segment, List<ManifestSegment> upcoming)
+	{
+		String url = ByteRangeUri.getUrl(segment.uri);
+		List<ManifestSegment> group = new ArrayList<ManifestSegment>();
+		group.add(segment);
+		long bytes = ByteRangeUri.getEnd(segment.uri) - ByteRangeUri.getStart(segment.uri) + 1;
+		for (int i = 0; i < upcoming.size() && group.size() < MAX_COALESCED_SEGMENTS; ++i)
+		{
+			ManifestSegment next = upcoming.get(i);
+			ManifestSegment last = group.get(group.size() - 1);
+			if (next.altAudioSegment != null || !ByteRangeUri.isRanged(next.uri)) break;
+			if (!url.equals(ByteRangeUri.getUrl(next.uri))) break;
+			if (ByteRangeUri.getStart(next.uri) != ByteRangeUri.getEnd(last.uri) + 1) break;
+			
+			long length = ByteRangeUri.getEnd(next.uri) - ByteRangeUri.getStart(next.uri) + 1;
+			if (bytes + length > MAX_COALESCED_BYTES) break;
+			bytes += length;
+			group.add(next);
+		}
+		return group;
 	}
 	
 	/**
@@ -260,6 +546,25 @@ public class HLSSegmentCache
 		}
 	}
 	
+	/*
+	 * cancelAllCacheEvents
+	 * 
+	 * Drops the segment cached listeners on one player's entries, leaving other players'
+	 * alone.
+	 */
+	static public void cancelAllCacheEvents(int playerId)
+	{
+		initialize();
+		synchronized (segmentCache)
+		{
+			for (SegmentCacheEntry v : segmentCache.values())
+			{
+				if (v.playerId == playerId)
+					v.registerSegmentCachedListener(null, null);
+			}
+		}
+	}
+	
 	
 	/**
 	 * Return the size of a downloaded segment. Blocking.
@@ -275,54 +580,109 @@ public class HLSSegmentCache
 			// Do we have a cache entry for the segment? Populate if it doesn't exist.
 			sce = populateCache( new String [] { segmentUri });
 		}
-		waitForLoad(sce);
 		SegmentCacheItem sci = sce.getItem(segmentUri);
+		long partialSize = waitForPartialSize(sci);
+		if (partialSize != -1) return partialSize;
+		
+		waitForLoad(sce);
 		if(sci.forceSize != -1)
 			return sci.forceSize;
 		if (sci.data == null) return 0;
 		return sci.data.length;
 	}
 	
-	private static long lastTime = System.currentTimeMillis();
-	public static void postProgressUpdate(boolean force)
+	/**
+	 * Attach a full scan index to a cached segment. It's dropped along with the segment data.
+	 */
+	static public void setSegmentIndex(String segmentUri, SegmentIndex index)
+	{
+		initialize();
+		synchronized (segmentCache)
+		{
+			SegmentCacheEntry sce = segmentCache.get(segmentUri);
+			if (sce == null) return;
+			SegmentCacheItem sci = sce.getItem(segmentUri);
+			if (sci != null) sci.index = index;
+		}
+	}
+	
+	/**
+	 * Return the full scan index of a cached segment, or null if we don't have one.
+	 */
+	static public SegmentIndex getSegmentIndex(String segmentUri)
 	{
-		if (System.currentTimeMillis() - minimumTimeBetweenProgressNotifications > lastTime || force)
+		initialize();
+		synchronized (segmentCache)
 		{
-			lastTime = System.currentTimeMillis();
-
-			int totalBytes = 0;
-			int curBytes = 0;
-			boolean segmentsWaiting = false;
-			int segmentsWaitingCount = 0;
-			synchronized (segmentCache)
+			SegmentCacheEntry sce = segmentCache.get(segmentUri);
+			if (sce == null) return null;
+			SegmentCacheItem sci = sce.getItem(segmentUri);
+			return sci != null ? sci.index : null;
+		}
+	}
+	
+	/*
+	 * postProgressUpdate
+	 * 
+	 * Tells a player how far along the downloads it's waiting on are. Each player is
+	 * throttled on its own; an id of 0 (unowned) goes to the one holding the decoder.
+	 */
+	public static void postProgressUpdate(int playerId, boolean force)
+	{
+		HLSPlayerViewController player = HLSPlayerViewController.getPlayer(playerId);
+		if (player == null) return;
+		playerId = player.getPlayerId();
+		
+		Progress p;
+		synchronized (progress)
+		{
+			p = progress.get(playerId);
+			if (p == null)
 			{
-				Collection<SegmentCacheEntry> values = segmentCache.values();
-
-				for(SegmentCacheEntry v : values)
-				{
-					if (v.isRunning())
-					{
-						Log.i("HLS Cache", "map value: " + v.toString());
-						totalBytes += v.expectedSize();
-						curBytes += v.bytesDownloaded();
-						segmentsWaiting = true;
-						++segmentsWaitingCount;
-					}
-				}
+				p = new Progress();
+				progress.put(playerId, p);
 			}
-			double pct = totalBytes != 0 ? ((double)curBytes / (double)totalBytes) * 100.0 : 0;
-			if (lastBufferPct == (int)pct)
+			long now = System.currentTimeMillis();
+			if (now - minimumTimeBetweenProgressNotifications <= p.lastTime && !force)
 				return;
+			p.lastTime = now;
+		}
 
-			lastBufferPct = (int)pct;
-			
-			if (segmentsWaiting)
+		int totalBytes = 0;
+		int curBytes = 0;
+		boolean segmentsWaiting = false;
+		int segmentsWaitingCount = 0;
+		// Other players' downloads don't count
+		synchronized (segmentCache)
+		{
+			Collection<SegmentCacheEntry> values = segmentCache.values();
+
+			for(SegmentCacheEntry v : values)
 			{
-				Log.i("HLS Cache", "Progress=" + (int)pct + " (" + curBytes +"/" + totalBytes + ") seg count=" + segmentsWaitingCount);
-				if(HLSPlayerViewController.currentController != null)
-					HLSPlayerViewController.currentController.postProgressUpdate((int)pct);
+				if (v.playerId != 0 && v.playerId != playerId)
+					continue;
+				if (v.isRunning())
+				{
+					Log.i("HLS Cache", "map value: " + v.toString());
+					totalBytes += v.expectedSize();
+					curBytes += v.bytesDownloaded();
+					segmentsWaiting = true;
+					++segmentsWaitingCount;
+				}
 			}
-
+		}
+		double pct = totalBytes != 0 ? ((double)curBytes / (double)totalBytes) * 100.0 : 0;
+		synchronized (progress)
+		{
+			if (p.lastPct == (int)pct)
+				return;
+			p.lastPct = (int)pct;
+		}
+		
+		if (segmentsWaiting)
+		{
+			Log.i("HLS Cache", "Progress=" + (int)pct + " (" + curBytes +"/" + totalBytes + ") seg count=" + segmentsWaitingCount + " player=" + playerId);
+			player.postProgressUpdate((int)pct);
 		}
 	}
 	
@@ -340,6 +700,26 @@ public class HLSSegmentCache
 		}
 	}
 	
+	/*
+	 * cancelDownloads
+	 * 
+	 * Cancels the downloads counted against one player. Anything waiting on them stops
+	 * waiting, and gets no data.
+	 */
+	static public void cancelDownloads(int playerId)
+	{
+		initialize();
+		synchronized (segmentCache)
+		{
+			Log.i("HLS Cache", "Cancelling downloads for player " + playerId);
+			for (SegmentCacheEntry v : segmentCache.values())
+			{
+				if (v.playerId == playerId)
+					v.cancel();
+			}
+		}
+	}
+	
 	static private void waitForLoad(SegmentCacheEntry sce)
 	{
 		// Wait for data, if required...
@@ -352,7 +732,7 @@ public class HLSSegmentCache
 		sce.setWaiting(true);
 		while(sce.isRunning())
 		{
-			postProgressUpdate(false);
+			postProgressUpdate(sce.playerId, false);
 			try {
 				Thread.sleep(30);
 				Thread.yield();
@@ -366,6 +746,72 @@ public class HLSSegmentCache
 		else Log.i("HLS Cache", "sce.data is 0 - request must have been canceled");
 	}
 	
+	/*
+	 * waitForPartialSize
+	 * 
+	 * The size of a segment that's arriving progressively, as soon as we know it, or -1
+	 * if it isn't arriving that way.
+	 */
+	static private long waitForPartialSize(SegmentCacheItem sci)
+	{
+		if (sci == null || sci.hasCrypto()) return -1;
+		while (sci.progressive && sci.running)
+		{
+			byte [] partial = sci.partialData;
+			if (partial != null) return partial.length;
+			sleepWaiting();
+		}
+		return -1;
+	}
+	
+	/*
+	 * readPartial
+	 * 
+	 * Serves a read from a segment that's arriving progressively, once the bytes asked
+	 * for are in. Returns -1 if it isn't arriving that way (any more), and the read should
+	 * go on as usual.
+	 */
+	static private long readPartial(SegmentCacheItem sci, int playerId, long offset, long size, ByteBuffer output)
+	{
+		if (sci == null || sci.hasCrypto() || !sci.progressive) return -1;
+		
+		sci.waiting = true;
+		try
+		{
+			while (sci.progressive && sci.running)
+			{
+				byte [] partial = sci.partialData;
+				if (partial != null)
+				{
+					long end = Math.min(offset + size, partial.length);
+					if (end <= offset) return 0;
+					if (sci.partialAvailable >= end)
+					{
+						output.put(partial, (int)offset, (int)(end - offset));
+						return end - offset;
+					}
+				}
+				postProgressUpdate(playerId, false);
+				sleepWaiting();
+			}
+			return -1;
+		}
+		finally
+		{
+			sci.waiting = false;
+		}
+	}
+	
+	static private void sleepWaiting()
+	{
+		try {
+			Thread.sleep(30);
+			Thread.yield();
+		} catch (InterruptedException e) {
+			// Don't care.
+		}
+	}
+	
 	static public String readFileAsString(String segmentUri)
 	{
 		initialize();
@@ -413,6 +859,9 @@ public static String bytesToHex(ByteBuffer bytes) {
 			return 0;
 		}
 		
+		long partialRead = readPartial(sce.getItem(segmentUri), sce.playerId, offset, size, output);
+		if (partialRead != -1) return partialRead;
+		
 		waitForLoad(sce);
 		
 		if (sce.dataSize(segmentUri) == 0)
@@ -522,6 +971,31 @@ public static String bytesToHex(ByteBuffer bytes) {
 			return null;
 		}
 		
+		return decryptedData(sce, segmentUri);
+	}
+	
+	/*
+	 * getCachedByteArray
+	 * 
+	 * As getByteArray, but only if the segment is already in the cache and finished
+	 * downloading. Never fetches, and never waits; returns null otherwise.
+	 */
+	static public byte[] getCachedByteArray(String segmentUri)
+	{
+		initialize();
+		SegmentCacheEntry sce = null;
+		synchronized (segmentCache)
+		{
+			sce = segmentCache.get(segmentUri);
+			if (sce == null || sce.isRunning()) return null;
+			SegmentCacheItem sci = sce.getItem(segmentUri);
+			if (sci == null || sci.data == null || sci.data.length == 0) return null;
+		}
+		return decryptedData(sce, segmentUri);
+	}
+	
+	static private byte[] decryptedData(SegmentCacheEntry sce, String segmentUri)
+	{
 		synchronized(segmentCache)
 		{
 			SegmentCacheItem sci = sce.getItem(segmentUri);
@@ -581,6 +1055,11 @@ public static String bytesToHex(ByteBuffer bytes) {
 	
 	/**
 	 * We only have finite memory; evict segments when we exceed a maximum size.
+	 * 
+	 * Each open player has an equal share of targetSize (see openPartition()). The entry
+	 * evicted is the oldest one of whichever player is furthest over its share, so one
+	 * player can't push another's segments out. Entries that no open player owns have no
+	 * share, and go first.
 	 */
 	static public void expire()
 	{
@@ -601,31 +1080,55 @@ public static String bytesToHex(ByteBuffer bytes) {
 			
 			while (cacheSize() > targetSize)
 			{
-				// Otherwise, find the oldest segment.
-				long oldestTime = System.currentTimeMillis();
-				SegmentCacheEntry oldestSce = null;
-				for(SegmentCacheEntry v : values)
-				{
-					if(v.lastTouchedMillis >= oldestTime)
-						continue;
-					
-					oldestSce = v;
-					oldestTime = v.lastTouchedMillis;
-				}
-				
-				long entryAge = System.currentTimeMillis() - oldestTime;
-				if(entryAge < minimumExpireAge)
+				// Otherwise, find the oldest segment of the player that's most over its share.
+				SegmentCacheEntry oldestSce = findEvictable();
+				if (oldestSce == null)
 				{
 					// There aren't any more segments that we can purge
-					Log.i("HLS Cache", "Tried to purge segment that is less than " + minimumExpireAge/1000 + " seconds old. Ignoring... (" + oldestSce.toString() + ", " + entryAge/1000 + ")");
+					Log.i("HLS Cache", "All segments are less than " + minimumExpireAge/1000 + " seconds old. Ignoring...");
 					break;
 				}
 				
 				// We're over cache target, delete that one.
-				Log.i("HLS Cache", "Purging " + oldestSce.toString() + ", freeing " + (oldestSce.dataSize()/1024) + "kb, age " + (entryAge/1000) + "sec");
+				long entryAge = System.currentTimeMillis() - oldestSce.lastTouchedMillis;
+				Log.i("HLS Cache", "Purging " + oldestSce.toString() + " of player " + oldestSce.playerId + ", freeing " + (oldestSce.dataSize()/1024) + "kb, age " + (entryAge/1000) + "sec");
 				oldestSce.clear();
 				oldestSce.removeMe(segmentCache);				
 			}
 		}
 	}
+	
+	// The oldest entry, older than minimumExpireAge, of the player furthest over its share.
+	// Call with segmentCache locked.
+	static private SegmentCacheEntry findEvictable()
+	{
+		long now = System.currentTimeMillis();
+		Map<Integer, Long> usage = new HashMap<Integer, Long>();
+		Map<Integer, SegmentCacheEntry> oldest = new HashMap<Integer, SegmentCacheEntry>();
+		for (Map.Entry<String, SegmentCacheEntry> e : segmentCache.entrySet())
+		{
+			SegmentCacheEntry sce = e.getValue();
+			Long used = usage.get(sce.playerId);
+			usage.put(sce.playerId, (used != null ? used : 0) + sce.dataSize(e.getKey()));
+			
+			if (now - sce.lastTouchedMillis < minimumExpireAge) continue;
+			SegmentCacheEntry o = oldest.get(sce.playerId);
+			if (o == null || sce.lastTouchedMillis < o.lastTouchedMillis)
+				oldest.put(sce.playerId, sce);
+		}
+		
+		SegmentCacheEntry victim = null;
+		long victimExcess = 0;
+		for (Map.Entry<Integer, SegmentCacheEntry> e : oldest.entrySet())
+		{
+			long excess = usage.get(e.getKey()) - partitionShare(e.getKey());
+			if (victim == null || excess > victimExcess
+					|| (excess == victimExcess && e.getValue().lastTouchedMillis < victim.lastTouchedMillis))
+			{
+				victim = e.getValue();
+				victimExcess = excess;
+			}
+		}
+		return victim;
+	}
 }
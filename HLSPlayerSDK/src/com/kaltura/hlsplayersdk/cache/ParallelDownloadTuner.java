@@ -0,0 +1,66 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import android.util.Log;
+
+/*
+ * ParallelDownloadTuner
+ * 
+ * Decides how many connections a parallel segment download should use. A connection's
+ * throughput is capped by its window over the round trip time, so extra connections only
+ * help on long round trips; below LOW_RTT_MS we stick to one. Above it, we keep a running
+ * throughput for each connection count we've tried, and move up while another connection
+ * still pays off by at least MIN_GAIN, and back down when the one fewer does as well.
+ * 
+ */
+public class ParallelDownloadTuner
+{
+	public static final int MAX_CONNECTIONS = 4;
+	public static final long MIN_RANGE_BYTES = 512 * 1024;	// Not worth a connection for less
+	public static final long LOW_RTT_MS = 40;
+	private static final double MIN_GAIN = 1.1;
+	private static final double SMOOTHING = 0.3;
+	
+	private int mConnections = 2;
+	private double [] mThroughput = new double[MAX_CONNECTIONS + 2];	// bytes/ms, 0 for untried
+	
+	/*
+	 * connectionsFor
+	 * 
+	 * How many connections to split bytes between, given the time to first byte we've just
+	 * seen on this server.
+	 */
+	public synchronized int connectionsFor(long bytes, long firstByteMs)
+	{
+		if (firstByteMs >= 0 && firstByteMs < LOW_RTT_MS) return 1;
+		return (int)Math.max(1, Math.min(mConnections, bytes / MIN_RANGE_BYTES));
+	}
+	
+	/*
+	 * noteResult
+	 * 
+	 * Records how long bytes took with connections in parallel.
+	 */
+	public synchronized void noteResult(int connections, long bytes, long elapsedMs)
+	{
+		if (connections < 1 || connections > MAX_CONNECTIONS || elapsedMs <= 0) return;
+		
+		double rate = (double)bytes / elapsedMs;
+		double old = mThroughput[connections];
+		mThroughput[connections] = old == 0 ? rate : old + SMOOTHING * (rate - old);
+		
+		// Only a download at the current setting tells us anything about moving from it
+		if (connections != mConnections) return;
+		
+		double here = mThroughput[connections];
+		double up = mThroughput[connections + 1];
+		double down = connections > 1 ? mThroughput[connections - 1] : 0;
+		
+		if (connections < MAX_CONNECTIONS && (up == 0 || up > here * MIN_GAIN))
+			++mConnections;
+		else if (connections > 1 && down * MIN_GAIN >= here)
+			--mConnections;
+		
+		if (mConnections != connections)
+			Log.i("ParallelDownloadTuner.noteResult", (int)(rate * 8) + "kbps over " + connections + " connections; using " + mConnections + " next");
+	}
+}
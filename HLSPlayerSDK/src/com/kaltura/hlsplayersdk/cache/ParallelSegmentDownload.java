@@ -0,0 +1,244 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.io.IOException;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+
+/*
+ * ParallelSegmentDownload
+ * 
+ * Fetches a segment over several connections at once. It asks for the first HEAD_BYTES
+ * on its own, which tells us the segment's size and the server's time to first byte,
+ * then splits the rest into ranges fetched in parallel, as many as the tuner says.
+ * 
+ * The ranges land in one buffer, the item's partialData, and partialAvailable tracks how
+ * much of it from the start is in, so reads can begin before the tail arrives.
+ * 
+ * All callbacks run on the handler's thread. Any failure abandons the whole download and
+ * hands the item back to the normal retry path.
+ * 
+ */
+class ParallelSegmentDownload implements HttpRequestHandle
+{
+	public static final int HEAD_BYTES = 256 * 1024;
+	
+	public static final ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+	
+	private SegmentCacheItem mItem = null;
+	private String mUrl = null;
+	private Handler mHandler = null;
+	
+	private HttpRequestHandle [] mRequests = null;
+	private long [] mRangeStarts = null;	// Range i is mRangeStarts[i] up to mRangeStarts[i + 1]
+	private boolean [] mRangeDone = null;
+	private int [] mRangeProgress = null;
+	
+	private byte [] mBuffer = null;
+	private long mStartTime = 0;
+	private long mTailStartTime = 0;
+	private long mFirstByteMs = -1;
+	private boolean mCancelled = false;
+	private boolean mFinished = false;
+	
+	public ParallelSegmentDownload(SegmentCacheItem sci, String url)
+	{
+		mItem = sci;
+		mUrl = url;
+	}
+	
+	public void start(Handler handler)
+	{
+		mHandler = handler;
+		mStartTime = System.currentTimeMillis();
+		mItem.progressive = true;
+		HLSSegmentCache.downloadStats.noteDownloadStarted();
+		
+		HttpRequest head = new HttpRequest(mUrl).setRange(0, HEAD_BYTES - 1);
+		mRequests = new HttpRequestHandle [] { HLSSegmentCache.fetchScheduler.get(mItem.track, mItem, head, new HeadListener(), handler) };
+	}
+	
+	private class HeadListener implements HttpResponseListener
+	{
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+			if (mFirstByteMs == -1)
+			{
+				mFirstByteMs = System.currentTimeMillis() - mStartTime;
+				HLSSegmentCache.connectionWarmer.noteFirstByte(ConnectionWarmer.PHASE_SEGMENT, mFirstByteMs);
+			}
+			mItem.updateProgress(bytesReceived, totalSize);
+		}
+		
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			if (mCancelled) return;
+			byte [] head = response.body != null ? response.body : new byte[0];
+			long total = response.statusCode == 206 ? response.getContentRangeTotal() : head.length;
+			
+			// The server ignored the range, or the segment fitted in the head
+			if (total <= head.length || total > Integer.MAX_VALUE)
+			{
+				if (total > head.length)
+				{
+					fail(0, new IOException("Unknown or oversized total length " + total));
+					return;
+				}
+				finish(head, head.length);
+				return;
+			}
+			
+			mBuffer = new byte[(int)total];
+			System.arraycopy(head, 0, mBuffer, 0, head.length);
+			startTail(head.length, total);
+		}
+		
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			fail(statusCode, error);
+		}
+	}
+	
+	private void startTail(long start, long total)
+	{
+		long remaining = total - start;
+		int n = tuner.connectionsFor(remaining, mFirstByteMs);
+		Log.i("ParallelSegmentDownload.startTail", "Fetching " + remaining + " bytes over " + n + " connections (first byte in " + mFirstByteMs + "ms): " + mUrl);
+		
+		mRangeStarts = new long[n + 1];
+		for (int i = 0; i < n; ++i)
+			mRangeStarts[i] = start + remaining * i / n;
+		mRangeStarts[n] = total;
+		mRangeDone = new boolean[n];
+		mRangeProgress = new int[n];
+		
+		// Nothing can be read until the head is in place
+		mItem.partialData = mBuffer;
+		mItem.partialAvailable = (int)start;
+		
+		mTailStartTime = System.currentTimeMillis();
+		mRequests = new HttpRequestHandle[n];
+		for (int i = 0; i < n && !mCancelled; ++i)
+		{
+			HttpRequest request = new HttpRequest(mUrl).setRange(mRangeStarts[i], mRangeStarts[i + 1] - 1);
+			mRequests[i] = HLSSegmentCache.fetchScheduler.get(mItem.track, mItem, request, new RangeListener(i), mHandler);
+		}
+	}
+	
+	private class RangeListener implements HttpResponseListener
+	{
+		private int mIndex;
+		
+		public RangeListener(int index)
+		{
+			mIndex = index;
+		}
+		
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+			mRangeProgress[mIndex] = bytesReceived;
+			int received = (int)mRangeStarts[0];
+			for (int i = 0; i < mRangeProgress.length; ++i)
+				received += mRangeProgress[i];
+			mItem.updateProgress(received, mBuffer.length);
+		}
+		
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			if (mCancelled) return;
+			long length = mRangeStarts[mIndex + 1] - mRangeStarts[mIndex];
+			if (response.statusCode != 206 || response.body == null || response.body.length != length)
+			{
+				fail(0, new IOException("Range " + mIndex + " came back as " + response.statusCode + " with " + (response.body != null ? response.body.length : 0) + " bytes, not " + length));
+				return;
+			}
+			
+			System.arraycopy(response.body, 0, mBuffer, (int)mRangeStarts[mIndex], (int)length);
+			mRangeDone[mIndex] = true;
+			
+			// Move the readable mark past every range that's now contiguous with the head
+			int i = 0;
+			while (i < mRangeDone.length && mRangeDone[i]) ++i;
+			mItem.partialAvailable = (int)mRangeStarts[i];
+			
+			if (i == mRangeDone.length)
+			{
+				long elapsed = System.currentTimeMillis() - mTailStartTime;
+				tuner.noteResult(mRangeDone.length, mBuffer.length - mRangeStarts[0], elapsed);
+				finish(mBuffer, mBuffer.length);
+			}
+		}
+		
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			fail(statusCode, error);
+		}
+	}
+	
+	private void finish(byte [] data, long bytes)
+	{
+		synchronized (this)
+		{
+			if (mFinished || mCancelled) return;
+			mFinished = true;
+		}
+		
+		long elapsed = System.currentTimeMillis() - mStartTime;
+		HLSSegmentCache.bandwidthEstimator.sample(elapsed, bytes);
+		
+		mItem.partialData = null;
+		mItem.progressive = false;
+		mItem.postSegmentSucceeded(200, data);
+	}
+	
+	private void fail(int statusCode, Throwable error)
+	{
+		if (mFinished || mCancelled) return;
+		Log.i("ParallelSegmentDownload.fail", "Parallel download failed (" + statusCode + (error != null ? " : " + error : "") + "): " + mUrl);
+		cancel();
+		mItem.postOnSegmentFailed(statusCode);
+	}
+	
+	@Override
+	public void cancel()
+	{
+		HttpRequestHandle [] requests;
+		synchronized (this)
+		{
+			if (mCancelled || mFinished) return;
+			mCancelled = true;
+			requests = mRequests;
+		}
+		if (requests != null)
+		{
+			for (int i = 0; i < requests.length; ++i)
+				if (requests[i] != null) requests[i].cancel();
+		}
+		mItem.partialData = null;
+		mItem.progressive = false;
+	}
+	
+	@Override
+	public synchronized boolean isCancelled()
+	{
+		return mCancelled;
+	}
+	
+	@Override
+	public synchronized boolean isFinished()
+	{
+		return mFinished;
+	}
+}
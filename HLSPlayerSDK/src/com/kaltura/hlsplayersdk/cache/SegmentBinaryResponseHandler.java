@@ -1,62 +1,104 @@
 package com.kaltura.hlsplayersdk.cache;
 
-import org.apache.http.Header;
+import java.io.IOException;
 
+import android.os.SystemClock;
 import android.util.Log;
 
-import com.loopj.android.http.*;
+import com.kaltura.hlsplayersdk.abr.BandwidthEstimator;
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
 
-public class SegmentBinaryResponseHandler extends AsyncHttpResponseHandler {
+public class SegmentBinaryResponseHandler implements HttpResponseListener {
 
 	public SegmentCacheItem entry = null;
 	
-	private boolean succeeded = false;
+	// Where the current bandwidth sample starts. We start timing at the first progress
+	// report, so connection setup doesn't count against throughput.
+	private long sampleStartTime = -1;
+	private int sampleStartBytes = 0;
 	
-	public SegmentBinaryResponseHandler(SegmentCacheItem sci)
+	// True if this is a hedge, racing the item's original request
+	private boolean hedge = false;
+	
+	// What we actually asked for, which tells us the range we should have got
+	private String fetchUri = null;
+	
+	private boolean firstByteTimed = false;
+	
+	public SegmentBinaryResponseHandler(SegmentCacheItem sci, String uri)
+	{
+		entry = sci;
+		fetchUri = uri;
+	}
+	
+	public SegmentBinaryResponseHandler(SegmentCacheItem sci, String uri, boolean isHedge)
 	{
 		entry = sci;
+		fetchUri = uri;
+		hedge = isHedge;
 	}
 	
 	@Override
-	public void onFailure(int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
-		if (succeeded)
+	public void onFailure(int statusCode, HttpResponse response, Throwable error) {
+		Log.e("SegmentBinaryResponseHandler.onFailure", "Failed to download '" + entry.uri + "'! " + statusCode + (error != null ? " : " + error : "") + (hedge ? " (hedge)" : ""));
+		if (hedge)
+			entry.postHedgeFailed(statusCode);
+		else
+			entry.postOnSegmentFailed(statusCode);
+	}
+
+	@Override
+	public void onSuccess(HttpResponse response) {
+		int statusCode = response.statusCode;
+		byte [] body = response.body;
+		if (ByteRangeUri.isRanged(fetchUri))
 		{
-			if (entry != null && entry.request != null && !entry.request.cancel(true))
+			body = ByteRangeUri.extractRange(fetchUri, statusCode, body);
+			if (body == null)
 			{
-				Log.e("SegmentBinaryResponseHandler.onFailure", "Request has succeded, but then called onFailure. request.cancel attempt failed. Status Code = " + statusCode);
+				onFailure(0, response, new IOException("Response doesn't hold the requested range (" + statusCode + ")"));
+				return;
 			}
-			else
-			{
-				Log.e("SegmentBinaryResponseHandler.onFailure", "Request has succeded, but then called onFailure. Status Code = " + statusCode);
-				HLSSegmentCache.resetHTTPLibrary();
-			}
-			return; // This is a hack because sometimes, loopj likes to call onFailure after it's called onSuccess
+			statusCode = 200;
 		}
-		Log.e("SegmentBinaryResponseHandler.onFailure", "Failed to download '" + entry.uri + "'! " + statusCode);
-		entry.postOnSegmentFailed(statusCode);
-	}
-
-	@Override
-	public void onSuccess(int statusCode, Header[] headers, byte[] responseData) {
-		Log.i("SegmentBinaryResponseHandler.onSuccess", "Download Succeeded: " + entry.uri);
-		succeeded = true;
-		entry.postSegmentSucceeded(statusCode, responseData);
+		
+		Log.i("SegmentBinaryResponseHandler.onSuccess", "Download Succeeded: " + entry.uri + (hedge ? " (hedge)" : ""));
+		if (hedge)
+			entry.postHedgeSucceeded(statusCode, body);
+		else
+			entry.postSegmentSucceeded(statusCode, body);
 	}
 	
-    @Override
-    public void onRetry(int retryNo) {
-        Log.i("SegmentBinaryResponseHandler.onRetry", "Automatic Retry: " + retryNo);
-    }
-
     @Override
     public void onProgress(int bytesWritten, int totalSize) {
     	//Log.i("SegmentBinaryResponseHandler.onProgress", "Bytes Written:" + bytesWritten + " Total Size:" + totalSize + " : " + entry.uri);
-        entry.updateProgress(bytesWritten, totalSize);
+        if (!hedge) entry.updateProgress(bytesWritten, totalSize);
+        if (!hedge && !firstByteTimed)
+        {
+        	firstByteTimed = true;
+        	String phase = HLSSegmentCache.connectionWarmer.phaseOf(entry.uri, ConnectionWarmer.PHASE_SEGMENT);
+        	HLSSegmentCache.connectionWarmer.noteFirstByte(phase, System.currentTimeMillis() - entry.downloadStartTime);
+        }
+        sampleBandwidth(bytesWritten, totalSize);
     }
-
-    @Override
-    public void onFinish() {
-        // Completed the request (either success or failure)
-    	Log.i("SegmentBinaryResponseHandler.onFinish", entry.uri);
+    
+    protected void sampleBandwidth(int bytesWritten, int totalSize)
+    {
+    	long now = SystemClock.elapsedRealtime();
+    	if (sampleStartTime == -1 || bytesWritten < sampleStartBytes)
+    	{
+    		sampleStartTime = now;
+    		sampleStartBytes = bytesWritten;
+    		return;
+    	}
+    	
+    	int bytes = bytesWritten - sampleStartBytes;
+    	if (bytes < BandwidthEstimator.MIN_SAMPLE_BYTES && bytesWritten != totalSize) return;
+    	
+    	HLSSegmentCache.bandwidthEstimator.sample(now - sampleStartTime, bytes);
+    	sampleStartTime = now;
+    	sampleStartBytes = bytesWritten;
     }
 }
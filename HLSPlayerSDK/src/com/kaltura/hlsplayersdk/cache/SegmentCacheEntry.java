@@ -7,7 +7,6 @@ import android.util.Log;
 
 import com.kaltura.hlsplayersdk.HLSPlayerViewController;
 import com.kaltura.hlsplayersdk.events.OnErrorListener;
-import com.loopj.android.http.AsyncHttpClient;
 
 
 /*
@@ -25,12 +24,19 @@ public class SegmentCacheEntry
 	private SegmentCacheEntry selfRef = this;
 
 	public SegmentCacheEntry(String [] uris)
+	{
+		this(uris, TrackFetchScheduler.TRACK_VIDEO);
+	}
+	
+	// The first uri is fetched as the given track; any others are its alt audio
+	public SegmentCacheEntry(String [] uris, int primaryTrack)
 	{
 		mItems = new SegmentCacheItem[uris.length];
 		for (int i = 0; i < uris.length; ++i)
 		{
 			mItems[i] = new SegmentCacheItem(this);
 			mItems[i].uri = uris[i];			
+			mItems[i].track = (i == 0) ? primaryTrack : TrackFetchScheduler.TRACK_AUDIO;
 		}
 		
 		registerSegmentCachedListener(null, null);
@@ -45,6 +51,7 @@ public class SegmentCacheEntry
 	
 	public long lastTouchedMillis = 0;
 	public long downloadCompletedTime = 0;
+	public int playerId = 0; // The player whose share of the cache this counts against, or 0 for none yet
 	public long downloadStartTime = 0;
 	
 	
@@ -53,7 +60,10 @@ public class SegmentCacheEntry
 	public void clear()
 	{
 		for (int i = 0; i < mItems.length; ++i)
+		{
 			mItems[i].data = null;
+			mItems[i].index = null;
+		}
 	}
 	
 	public void cancel()
@@ -95,36 +105,87 @@ public class SegmentCacheEntry
 	
 	private void initiateDownload(final SegmentCacheItem sci)
 	{
-		if (dataSize() != 0) return; // We don't want to initiate a completed download
+		if (sci.data != null) return; // We don't want to initiate a completed download
 		sci.running = true;
 		sci.downloadStartTime = System.currentTimeMillis();
 		
-		HLSPlayerViewController.postToHTTPResponseThread( new Runnable()
+		sci.bytesDownloaded = 0;
+		
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		if (handler == null) return; // The player's gone
+		// Byte range segments are ranges already, and a retry gets the simplest request we have
+		if (HLSSegmentCache.parallelDownloadsEnabled() && sci.isFirstAttempt() && !ByteRangeUri.isRanged(sci.uri))
+		{
+			ParallelSegmentDownload download = new ParallelSegmentDownload(sci, sci.uri);
+			sci.request = download;
+			download.start(handler);
+		}
+		else
+		{
+			HLSSegmentCache.downloadStats.noteDownloadStarted();
+			sci.request = HLSSegmentCache.fetchScheduler.get(sci.track, sci, ByteRangeUri.toRequest(sci.getFetchUri()), new SegmentBinaryResponseHandler(sci, sci.getFetchUri()), handler);
+		}
+		scheduleHedgeCheck(sci, handler);
+	}
+	
+	private static final long HEDGE_CHECK_INTERVAL_MS = 250;
+	
+	/*
+	 * scheduleHedgeCheck
+	 * 
+	 * Keeps an eye on the download, and starts a hedge for it if it looks like it'll be
+	 * late and the hedge budget allows.
+	 */
+	private void scheduleHedgeCheck(final SegmentCacheItem sci, final Handler handler)
+	{
+		if (sci.hedgeCheckScheduled) return;
+		sci.hedgeCheckScheduled = true;
+		handler.postDelayed(new Runnable()
 		{
 			@Override
 			public void run() {
-				AsyncHttpClient httpClient = HLSSegmentCache.httpClient();
+				sci.hedgeCheckScheduled = false;
+				if (!sci.canHedge()) return;
+				if (!sci.shouldHedge(System.currentTimeMillis()))
+				{
+					scheduleHedgeCheck(sci, handler);
+					return;
+				}
 				
-				if (httpClient == HLSSegmentCache.syncHttpClient) Log.i("HLS Cache", "Using Synchronous HTTP CLient");
-				else Log.i("HLS Cache", "Using Asynchronous HTTP Client");
+				String hedgeUri = sci.getHedgeUri();
+				if (hedgeUri == null || !HLSSegmentCache.downloadStats.tryStartHedge()) return;
 				
-				httpClient.setMaxRetriesAndTimeout(0, httpClient.getConnectTimeout());
-				sci.request = httpClient.get(HLSSegmentCache.context, sci.uri, new SegmentBinaryResponseHandler(sci));
-
+				Log.i("SegmentCacheEntry.hedge", "Download of " + sci.uri + " is running late (" + sci.bytesDownloaded + "/" + sci.expectedSize + "). Hedging with " + hedgeUri);
+				sci.hedgeRequest = HLSSegmentCache.fetchScheduler.get(sci.track, sci, ByteRangeUri.toRequest(hedgeUri), new SegmentBinaryResponseHandler(sci, hedgeUri, true), handler);
 			}
-		});
+		}, HEDGE_CHECK_INTERVAL_MS);
 	}
 	
-	public void retry(SegmentCacheItem sce)
+	public void setMediaDuration(double duration)
 	{
-		try {
-			Thread.sleep(100);
-			Thread.yield();
-		} catch (InterruptedException e) {
-			// Don't care.
-		}
-		Log.i("SegmentCacheEntry.retry", "retry: " + sce.uri);
-		initiateDownload(sce);
+		for (int i = 0; i < mItems.length; ++i)
+			mItems[i].mediaDuration = duration;
+	}
+	
+	/*
+	 * retry
+	 * 
+	 * Downloads the item again after delayMs, unless it's been cancelled by then. Called
+	 * on the HTTP response thread, which it doesn't hold up.
+	 */
+	public void retry(final SegmentCacheItem sci, long delayMs)
+	{
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		if (handler == null) return; // The player's gone
+		handler.postDelayed(new Runnable()
+		{
+			@Override
+			public void run() {
+				if (!sci.running) return;
+				Log.i("SegmentCacheEntry.retry", "retry: " + sci.getFetchUri());
+				initiateDownload(sci);
+			}
+		}, delayMs);
 	}
 	
 	public boolean isRunning()
@@ -155,6 +216,8 @@ public class SegmentCacheEntry
 	{
 		for (int i = 0; i < mItems.length; ++i)
 			mItems[i].waiting = waiting;
+		// Anything of ours still queued now goes to the front
+		if (waiting) HLSSegmentCache.fetchScheduler.pump();
 	}
 	
 	public void setWaiting(String uri, boolean waiting)
@@ -164,6 +227,7 @@ public class SegmentCacheEntry
 			if (mItems[i].uri.equals(uri))
 				mItems[i].waiting = waiting;
 		}
+		if (waiting) HLSSegmentCache.fetchScheduler.pump();
 	}
 	
 	public int expectedSize()
@@ -245,7 +309,7 @@ public class SegmentCacheEntry
 	
 	public void notifySegmentCached()
 	{
-		HLSSegmentCache.postProgressUpdate(true);
+		HLSSegmentCache.postProgressUpdate(playerId, true);
 		setWaiting(false);
 		if (mSegmentCachedListener != null && mCallbackHandler != null)
 		{
@@ -291,7 +355,7 @@ public class SegmentCacheEntry
 			Log.i("SegmentCacheEntry.postItemSucceeded", "status code " + "[" + statusCode + "]" + item.uri);
 			if (mSegmentCachedListener != null)
 				mSegmentCachedListener.onSegmentFailed(item.uri, statusCode);
-			HLSPlayerViewController.currentController.postError(OnErrorListener.MEDIA_ERROR_IO, item.uri + "(" + statusCode + ")");
+			postError(OnErrorListener.MEDIA_ERROR_IO, item.uri + "(" + statusCode + ")");
 			
 		}
 	}
@@ -301,21 +365,28 @@ public class SegmentCacheEntry
 	{
 		if (mSegmentCachedListener != null)
 			mSegmentCachedListener.onSegmentFailed(item.uri, statusCode);
-		HLSPlayerViewController.currentController.postError(OnErrorListener.MEDIA_ERROR_IO, item.uri + "(" + statusCode + ")");
+		postError(OnErrorListener.MEDIA_ERROR_IO, item.uri + "(" + statusCode + ")");
 
 	}
 	
+	// To the player that owns us
+	private void postError(int errorCode, String message)
+	{
+		HLSPlayerViewController player = HLSPlayerViewController.getPlayer(playerId);
+		if (player != null) player.postError(errorCode, message);
+	}
+	
 	public void updateProgress(boolean force)
 	{
 		// If we have a callback handler, it pretty much means that we're not going to be
 		// in a wait state in the SegmentCache <-- does this comment make sense?
 		if (mCallbackHandler != null && isWaiting() && bytesDownloaded() != expectedSize())
 		{
-			HLSSegmentCache.postProgressUpdate(false);
+			HLSSegmentCache.postProgressUpdate(playerId, false);
 		}
 		else if (mCallbackHandler != null && force)
 		{
-			HLSSegmentCache.postProgressUpdate(true);
+			HLSSegmentCache.postProgressUpdate(playerId, true);
 		}
 	}
 }
@@ -1,14 +1,20 @@
 package com.kaltura.hlsplayersdk.cache;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.os.Handler;
 import android.util.Log;
 
 import com.kaltura.hlsplayersdk.HLSPlayerViewController;
 import com.kaltura.hlsplayersdk.events.OnErrorListener;
-import com.loopj.android.http.*;
+import com.kaltura.hlsplayersdk.manifest.SegmentIndex;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.RetryPolicy;
 
 public class SegmentCacheItem {
 	public String uri;
+	public int track = TrackFetchScheduler.TRACK_VIDEO;
 	public byte[] data;
 	public boolean running = false;
 	public boolean waiting = false;
@@ -16,6 +22,9 @@ public class SegmentCacheItem {
 	public long downloadStartTime = 0;
 	public long downloadCompletedTime = 0;
 	public long forceSize = -1;
+	
+	// PTS range and keyframe offsets from a full scan of the data, once we've done one.
+	public SegmentIndex index = null;
 
 	// If >= 0, ID of a crypto context on the native side.
 	protected int cryptoHandle = -1;
@@ -25,16 +34,39 @@ public class SegmentCacheItem {
 	protected long decryptHighWaterMark = 0;
 	private boolean fullyDecrypted = false;
 	
-	// We will retry 3 times before giving up
-	private static final int maxRetries = 3;
-	private int curRetries = 0;
+	// Failures in a row before we try the segment from a backup stream instead
+	private static final int failoverAfterFailures = 2;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	
+	// Where we're actually downloading the segment from; uri, unless we've failed over
+	private String fetchUri = null;
+	private List<String> backupUris = null;
+	private int nextBackup = 0;
+	
+	// A download that looks like it'll be late gets one hedge: the same segment from a
+	// backup stream, requested alongside it. Whichever finishes first wins.
+	private static final long hedgeFirstByteMillis = 1500;
+	private static final long hedgeMinimumSampleMillis = 500;
+	private static final long defaultDeadlineMillis = 10000;
+	private static final int noFailure = Integer.MIN_VALUE;
+	public HttpRequestHandle hedgeRequest = null;
+	public double mediaDuration = 0; // seconds, if we know it
+	boolean hedgeCheckScheduled = false;
+	private boolean hedged = false;
+	private int pendingFailure = noFailure; // The original failed while the hedge was still running
 	
 	
 	public static native int allocAESCryptoState(byte[] key, byte[] iv);
 	public static native void freeCryptoState(int id);
 	public static native long decrypt(int cryptoHandle, byte[] data, long start, long length);
 	
-	public RequestHandle request = null;
+	public HttpRequestHandle request = null;
+	
+	// While a parallel download is running, the segment as far as it's arrived: the first
+	// partialAvailable bytes of partialData can be read. Null until we know the size.
+	volatile boolean progressive = false;
+	volatile byte [] partialData = null;
+	volatile int partialAvailable = 0;
 	
 	SegmentCacheEntry cacheEntry = null;
 	
@@ -53,6 +85,9 @@ public class SegmentCacheItem {
 			Log.i("HLS Cache", "Cancelling " + uri);
 			running = false;
 			waiting = false;
+			if (request != null) request.cancel();
+			if (hedgeRequest != null) hedgeRequest.cancel();
+			hedgeRequest = null;
 		}
 		
 	}
@@ -99,26 +134,141 @@ public class SegmentCacheItem {
 		return (decryptHighWaterMark == data.length);
 	}
 	
-	private boolean retry()
+	public boolean isFirstAttempt()
 	{
-		++curRetries;
-		if (curRetries >= maxRetries) return false;
-		return true;
+		return retryPolicy.getFailures() == 0 && fetchUri == null;
+	}
+	
+	public String getFetchUri()
+	{
+		return fetchUri != null ? fetchUri : uri;
 	}
 	
 	public void postOnSegmentFailed(int statusCode)
 	{
-		if (retry())
+		if (!running) return; // Cancelled
+		
+		if (hedgeRequest != null)
 		{
-			if (statusCode == 0) HLSSegmentCache.expire();
-			Log.i("SegmentCacheItem.postOnSegmentFailed", "Segment download failed. Retrying: " + uri + " : " + statusCode);
-			cacheEntry.retry(this);
+			Log.i("SegmentCacheItem.postOnSegmentFailed", "Segment download failed (" + statusCode + "). Waiting on the hedge: " + uri);
+			pendingFailure = statusCode;
+			return;
 		}
-		else
+		
+		long delay = retryPolicy.nextDelay(statusCode);
+		if (delay == -1 || retryPolicy.getFailures() >= failoverAfterFailures)
+		{
+			String backup = nextBackupUri();
+			if (backup != null)
+			{
+				Log.i("SegmentCacheItem.postOnSegmentFailed", "Segment download failed (" + statusCode + "). Failing over to " + backup + " for " + uri);
+				fetchUri = backup;
+				retryPolicy.reset();
+				delay = 0;
+			}
+		}
+		
+		if (delay == -1)
 		{
 			Log.i("SegmentCacheItem.postOnSegmentFailed", "Segment download failed. No More Retries Left: " + uri + " : " + statusCode);
 			running = false;
 			cacheEntry.postItemFailed(this, statusCode);
+			return;
+		}
+		
+		Log.i("SegmentCacheItem.postOnSegmentFailed", "Segment download failed. Retrying in " + delay + "ms: " + getFetchUri() + " : " + statusCode);
+		cacheEntry.retry(this, delay);
+	}
+	
+	private String nextBackupUri()
+	{
+		if (backupUris == null)
+		{
+			backupUris = HLSSegmentCache.getBackupUris(uri);
+			if (backupUris == null) backupUris = new ArrayList<String>();
+		}
+		if (nextBackup >= backupUris.size()) return null;
+		return backupUris.get(nextBackup++);
+	}
+	
+	/*
+	 * shouldHedge
+	 * 
+	 * True if the download looks like it'll miss its deadline, either because nothing has
+	 * arrived after hedgeFirstByteMillis, or because at its current rate it'll finish
+	 * late. We have to download a segment in less time than it plays for, so that's the
+	 * deadline, halved if the player is already waiting on it.
+	 */
+	public boolean shouldHedge(long now)
+	{
+		if (!canHedge()) return false;
+		
+		long elapsed = now - downloadStartTime;
+		long deadline = mediaDuration > 0 ? (long)(mediaDuration * 1000) : defaultDeadlineMillis;
+		if (waiting) deadline /= 2;
+		
+		if (bytesDownloaded == 0) return elapsed >= Math.min(hedgeFirstByteMillis, deadline);
+		if (expectedSize <= 0 || elapsed < hedgeMinimumSampleMillis) return false;
+		double projected = elapsed * (double)expectedSize / bytesDownloaded;
+		return projected > deadline;
+	}
+	
+	public boolean canHedge()
+	{
+		return running && !hedged && data == null;
+	}
+	
+	/*
+	 * getHedgeUri
+	 * 
+	 * Somewhere else to fetch the segment from while the current download carries on, or
+	 * null if there's nowhere. Marks the item as hedged either way, since there's no point
+	 * asking again.
+	 */
+	public String getHedgeUri()
+	{
+		hedged = true;
+		if (backupUris == null)
+		{
+			backupUris = HLSSegmentCache.getBackupUris(uri);
+			if (backupUris == null) backupUris = new ArrayList<String>();
+		}
+		for (int i = 0; i < backupUris.size(); ++i)
+		{
+			if (!backupUris.get(i).equals(getFetchUri()))
+				return backupUris.get(i);
+		}
+		return null;
+	}
+	
+	public void postHedgeSucceeded(int statusCode, byte[] responseData)
+	{
+		if (hedgeRequest == null || !running) return;
+		if (statusCode != 200)
+		{
+			postHedgeFailed(statusCode);
+			return;
+		}
+		
+		Log.i("SegmentCacheItem.postHedgeSucceeded", "Hedge finished first: " + uri);
+		hedgeRequest = null;
+		HLSSegmentCache.downloadStats.noteHedgeWon();
+		if (request != null) request.cancel();
+		pendingFailure = noFailure;
+		postSegmentSucceeded(statusCode, responseData);
+	}
+	
+	public void postHedgeFailed(int statusCode)
+	{
+		if (hedgeRequest == null) return;
+		hedgeRequest = null;
+		Log.i("SegmentCacheItem.postHedgeFailed", "Hedge failed (" + statusCode + "): " + uri);
+		
+		if (pendingFailure != noFailure)
+		{
+			int failure = pendingFailure;
+			pendingFailure = noFailure;
+			postOnSegmentFailed(failure);
 		}
 	}
 	
@@ -126,6 +276,13 @@ public class SegmentCacheItem {
 	{
 		if (statusCode == 200)
 		{
+			if (hedgeRequest != null)
+			{
+				hedgeRequest.cancel();
+				hedgeRequest = null;
+				HLSSegmentCache.downloadStats.noteHedgeLost();
+			}
+			
 			data = responseData;
 			
 			downloadCompletedTime = System.currentTimeMillis();
@@ -0,0 +1,80 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import android.util.Log;
+
+/*
+ * SegmentDownloadStats
+ * 
+ * Counts what the segment downloader has been up to, for logging and for anyone tuning
+ * it. Also keeps hedging within its budget: at most MAX_HEDGE_FRACTION of downloads
+ * get a hedge, plus HEDGE_BURST to get started with.
+ * 
+ */
+public class SegmentDownloadStats
+{
+	public static final double MAX_HEDGE_FRACTION = 0.05;
+	public static final int HEDGE_BURST = 2;
+	
+	private long mDownloadsStarted = 0;
+	private long mHedgesStarted = 0;
+	private long mHedgesWon = 0;		// The hedge finished first
+	private long mHedgesLost = 0;		// The original finished first
+	private long mHedgesDenied = 0;	// Wanted to hedge, but were over budget
+	
+	public synchronized void noteDownloadStarted()
+	{
+		++mDownloadsStarted;
+	}
+	
+	/*
+	 * tryStartHedge
+	 * 
+	 * Returns true, and counts the hedge, if there's room in the budget for one.
+	 */
+	public synchronized boolean tryStartHedge()
+	{
+		if (mHedgesStarted >= HEDGE_BURST + MAX_HEDGE_FRACTION * mDownloadsStarted)
+		{
+			++mHedgesDenied;
+			return false;
+		}
+		++mHedgesStarted;
+		return true;
+	}
+	
+	public synchronized void noteHedgeWon()
+	{
+		++mHedgesWon;
+	}
+	
+	public synchronized void noteHedgeLost()
+	{
+		++mHedgesLost;
+	}
+	
+	public synchronized long getDownloadsStarted() { return mDownloadsStarted; }
+	public synchronized long getHedgesStarted() { return mHedgesStarted; }
+	public synchronized long getHedgesWon() { return mHedgesWon; }
+	public synchronized long getHedgesLost() { return mHedgesLost; }
+	public synchronized long getHedgesDenied() { return mHedgesDenied; }
+	
+	public synchronized void reset()
+	{
+		mDownloadsStarted = 0;
+		mHedgesStarted = 0;
+		mHedgesWon = 0;
+		mHedgesLost = 0;
+		mHedgesDenied = 0;
+	}
+	
+	public void log()
+	{
+		Log.i("SegmentDownloadStats", toString());
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		return "downloads=" + mDownloadsStarted + " hedges=" + mHedgesStarted + " (won " + mHedgesWon + ", lost " + mHedgesLost + ", denied " + mHedgesDenied + ")";
+	}
+}
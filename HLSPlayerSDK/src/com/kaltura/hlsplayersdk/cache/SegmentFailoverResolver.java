@@ -0,0 +1,17 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.util.List;
+
+/**
+ * 
+ *	Supplies alternative locations for a segment that keeps failing to download, such as
+ *	the same segment in a backup stream. Set with HLSSegmentCache.setFailoverResolver().
+ *
+ */
+public interface SegmentFailoverResolver {
+	/**
+	 * Returns uris with the same content as the segment at uri, best first, or null if
+	 * there aren't any. Called on the HTTP response thread.
+	 */
+	public List<String> getBackupUris(String uri);
+}
@@ -0,0 +1,399 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.HLSPlayerViewController;
+import com.kaltura.hlsplayersdk.manifest.M2TSParser;
+import com.kaltura.hlsplayersdk.manifest.ManifestSegment;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+import com.kaltura.hlsplayersdk.types.ByteArray;
+
+
+/*
+ *  The SegmentProbe finds the first PTS of a segment without downloading the whole
+ *  thing. It requests a small leading byte range and feeds it to an M2TSParser. If
+ *  no PTS turns up, it asks for the next range, twice as big, until it finds one or
+ *  runs out of segment. Servers that ignore the Range header just hand us the whole
+ *  segment, which we parse the same way.
+ *  
+ *  Probe bytes are never stored in the HLSSegmentCache. Only the resulting PTS is
+ *  kept, in a small per-uri table. Segments are immutable, so it never goes stale.
+ *  
+ *  Probes are shared by everyone who asks about the same uri, so each probe keeps a
+ *  list of listeners. A probe is only abandoned once its last listener cancels.
+ *  
+ */
+
+public class SegmentProbe
+{
+	private static final int INITIAL_RANGE_SIZE = 32 * 1024;
+	private static final int MAX_RANGE_SIZE = 1024 * 1024;
+	private static final int MAX_CACHED_RESULTS = 512;
+	
+	private static final Map<String, Long> probeResults = new LinkedHashMap<String, Long>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+		{
+			return size() > MAX_CACHED_RESULTS;
+		}
+	};
+	
+	private static final Map<String, SegmentProbe> activeProbes = new HashMap<String, SegmentProbe>();
+	
+	/*
+	 * getCachedPTS
+	 * 
+	 * Returns the PTS found by an earlier probe of this uri, or -1 if we don't have one.
+	 */
+	public static long getCachedPTS(String uri)
+	{
+		synchronized (probeResults)
+		{
+			Long pts = probeResults.get(uri);
+			return pts != null ? pts : -1;
+		}
+	}
+	
+	/*
+	 * probe
+	 * 
+	 * Starts probing the segment (and its alt audio segment, if it has one) for its first
+	 * PTS. The listener is called on the callbackHandler once per uri. If a uri is already
+	 * being probed, the new listener joins the running probe instead of starting over.
+	 */
+	public static void probe(ManifestSegment segment, SegmentProbeListener listener, Handler callbackHandler)
+	{
+		probe(segment, segment.uri, listener, callbackHandler);
+		if (segment.altAudioSegment != null)
+			probe(segment.altAudioSegment, segment.altAudioSegment.uri, listener, callbackHandler);
+	}
+	
+	private static void probe(ManifestSegment segment, String uri, SegmentProbeListener listener, Handler callbackHandler)
+	{
+		long pts = getCachedPTS(uri);
+		if (pts != -1)
+		{
+			Log.i("SegmentProbe.probe", "Using cached PTS " + pts + " for " + uri);
+			SegmentProbe p = new SegmentProbe(segment);
+			p.addListener(listener, callbackHandler);
+			p.notifyCompleted(pts);
+			return;
+		}
+		
+		SegmentProbe p = null;
+		synchronized (activeProbes)
+		{
+			p = activeProbes.get(uri);
+			if (p != null && p.addListener(listener, callbackHandler))
+				return;
+			p = new SegmentProbe(segment);
+			p.addListener(listener, callbackHandler);
+			activeProbes.put(uri, p);
+		}
+		p.start();
+	}
+	
+	/*
+	 * cancel
+	 * 
+	 * Stops the listener hearing about the probe of this uri. If nobody else is
+	 * listening, the request itself is abandoned.
+	 */
+	public static void cancel(String uri, SegmentProbeListener listener)
+	{
+		SegmentProbe p = null;
+		synchronized (activeProbes)
+		{
+			p = activeProbes.get(uri);
+			if (p == null || p.removeListener(listener) > 0) return;
+			activeProbes.remove(uri);
+		}
+		p.abandon();
+	}
+	
+	public static void cancelAll()
+	{
+		SegmentProbe [] probes = null;
+		synchronized (activeProbes)
+		{
+			probes = activeProbes.values().toArray(new SegmentProbe[activeProbes.size()]);
+			activeProbes.clear();
+		}
+		for (SegmentProbe p : probes)
+			p.abandon();
+	}
+	
+	
+	private ManifestSegment mSegment = null;
+	private String mUri = null;
+	private List<SegmentProbeListener> mListeners = new ArrayList<SegmentProbeListener>();
+	private List<Handler> mCallbackHandlers = new ArrayList<Handler>();
+	
+	private M2TSParser mParser = null;
+	private int mCryptoHandle = -1;
+	private HttpRequestHandle mRequest = null;
+	private boolean mFinished = false;
+	
+	private int mBytesReceived = 0;
+	private int mNextRangeSize = INITIAL_RANGE_SIZE;
+	private long mTotalSize = -1;
+	
+	private SegmentProbe(ManifestSegment segment)
+	{
+		mSegment = segment;
+		mUri = segment.uri;
+	}
+	
+	/*
+	 * addListener
+	 * 
+	 * Returns false if the probe has already finished, so the listener would never hear.
+	 */
+	private synchronized boolean addListener(SegmentProbeListener listener, Handler callbackHandler)
+	{
+		if (mFinished) return false;
+		if (listener == null || callbackHandler == null || mListeners.contains(listener)) return true;
+		mListeners.add(listener);
+		mCallbackHandlers.add(callbackHandler);
+		return true;
+	}
+	
+	/*
+	 * removeListener
+	 * 
+	 * Returns how many listeners are left.
+	 */
+	private synchronized int removeListener(SegmentProbeListener listener)
+	{
+		int i = mListeners.indexOf(listener);
+		if (i != -1)
+		{
+			mListeners.remove(i);
+			mCallbackHandlers.remove(i);
+		}
+		return mListeners.size();
+	}
+	
+	private void start()
+	{
+		mParser = new M2TSParser();
+		// The cached segment has its own crypto state, which is positioned wherever
+		// that download left it, so the probe decrypts with a state of its own.
+		mCryptoHandle = mSegment.allocCryptoState();
+		if (ByteRangeUri.isRanged(mUri))
+			mTotalSize = ByteRangeUri.getEnd(mUri) - ByteRangeUri.getStart(mUri) + 1;
+		requestNextRange();
+	}
+	
+	private void requestNextRange()
+	{
+		// A byte range segment is probed within its own range of the resource
+		long base = Math.max(ByteRangeUri.getStart(mUri), 0);
+		long end = mBytesReceived + mNextRangeSize - 1;
+		if (mTotalSize != -1) end = Math.min(end, mTotalSize - 1);
+		HttpRequest request = new HttpRequest(ByteRangeUri.getUrl(mUri));
+		request.setRange(base + mBytesReceived, base + end);
+		
+		Handler handler = HLSPlayerViewController.getHTTPResponseThreadHandler();
+		synchronized (this)
+		{
+			if (mFinished || handler == null) return;
+			mRequest = HLSSegmentCache.fetchScheduler.get(TrackFetchScheduler.TRACK_PROBE, null, request, new ProbeResponseListener(), handler);
+		}
+	}
+	
+	private void onRangeReceived(HttpResponse response)
+	{
+		int statusCode = response.statusCode;
+		byte [] data = response.body != null ? response.body : new byte[0];
+		boolean ranged = ByteRangeUri.isRanged(mUri);
+		
+		if (statusCode == 200)
+		{
+			// A byte range segment has to be cut out of the whole resource.
+			if (ranged) data = ByteRangeUri.extractRange(mUri, statusCode, data);
+			if (data == null)
+			{
+				fail(0);
+				return;
+			}
+			
+			// The server sent the whole segment. Start over if we'd already parsed some of it.
+			if (mBytesReceived != 0)
+			{
+				Log.i("SegmentProbe.onRangeReceived", "Server ignored the range after " + mBytesReceived + " bytes. Restarting parse: " + mUri);
+				freeCryptoState();
+				mParser = new M2TSParser();
+				mCryptoHandle = mSegment.allocCryptoState();
+				mBytesReceived = 0;
+			}
+			mTotalSize = data.length;
+		}
+		else if (statusCode == 206)
+		{
+			long total = response.getContentRangeTotal();
+			if (total != -1 && !ranged) mTotalSize = total;
+		}
+		else
+		{
+			fail(statusCode);
+			return;
+		}
+		
+		if (mCryptoHandle != -1 && data.length > 0)
+			SegmentCacheItem.decrypt(mCryptoHandle, data, 0, data.length);
+		
+		mParser.appendBytes(new ByteArray(data), 0, data.length);
+		mBytesReceived += data.length;
+		
+		if (mParser.pts != -1)
+		{
+			Log.i("SegmentProbe.onRangeReceived", "Found PTS ( " + mParser.pts + " / " + (double)mParser.pts / 90000.0 + " ) in first " + mBytesReceived + " bytes for " + mUri);
+			complete(mParser.pts);
+		}
+		else if (data.length == 0 || (mTotalSize != -1 && mBytesReceived >= mTotalSize))
+		{
+			Log.w("SegmentProbe.onRangeReceived", "No PTS found in " + mBytesReceived + " bytes for " + mUri);
+			fail(0);
+		}
+		else
+		{
+			mNextRangeSize = Math.min(mNextRangeSize * 2, MAX_RANGE_SIZE);
+			requestNextRange();
+		}
+	}
+	
+	private void complete(long pts)
+	{
+		synchronized (probeResults)
+		{
+			probeResults.put(mUri, pts);
+		}
+		finish();
+		notifyCompleted(pts);
+	}
+	
+	private void fail(int statusCode)
+	{
+		// Running past the end of the segment is how a ranged probe ends when there's no PTS.
+		if (statusCode == 416) statusCode = 0;
+		finish();
+		notifyFailed(statusCode);
+	}
+	
+	private void finish()
+	{
+		synchronized (activeProbes)
+		{
+			if (activeProbes.get(mUri) == this)
+				activeProbes.remove(mUri);
+		}
+		synchronized (this)
+		{
+			mFinished = true;
+			mRequest = null;
+		}
+		freeCryptoState();
+		mParser = null;
+	}
+	
+	private void abandon()
+	{
+		synchronized (this)
+		{
+			mListeners.clear();
+			mCallbackHandlers.clear();
+			mFinished = true;
+		}
+		
+		// Everything else the probe does happens on the HTTP response thread, so clean up there too.
+		HLSPlayerViewController.postToHTTPResponseThread( new Runnable()
+		{
+			@Override
+			public void run() {
+				if (mRequest != null)
+					mRequest.cancel();
+				mRequest = null;
+				freeCryptoState();
+				mParser = null;
+			}
+		});
+	}
+	
+	private void freeCryptoState()
+	{
+		if (mCryptoHandle != -1)
+			SegmentCacheItem.freeCryptoState(mCryptoHandle);
+		mCryptoHandle = -1;
+	}
+	
+	private synchronized void notifyCompleted(final long pts)
+	{
+		for (int i = 0; i < mListeners.size(); ++i)
+		{
+			final SegmentProbeListener listener = mListeners.get(i);
+			mCallbackHandlers.get(i).post(new Runnable() {
+				public void run()
+				{
+					listener.onProbeCompleted(mUri, pts);
+				}
+			});
+		}
+	}
+	
+	private synchronized void notifyFailed(final int statusCode)
+	{
+		for (int i = 0; i < mListeners.size(); ++i)
+		{
+			final SegmentProbeListener listener = mListeners.get(i);
+			mCallbackHandlers.get(i).post(new Runnable() {
+				public void run()
+				{
+					listener.onProbeFailed(mUri, statusCode);
+				}
+			});
+		}
+	}
+	
+	
+	private class ProbeResponseListener implements HttpResponseListener
+	{
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+		}
+		
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			if (isAbandoned()) return;
+			onRangeReceived(response);
+		}
+		
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			if (isAbandoned()) return;
+			Log.e("SegmentProbe.onFailure", "Failed to probe '" + mUri + "'! " + statusCode);
+			fail(statusCode);
+		}
+	}
+	
+	private synchronized boolean isAbandoned()
+	{
+		return mFinished;
+	}
+}
@@ -0,0 +1,11 @@
+package com.kaltura.hlsplayersdk.cache;
+
+/**
+ * 
+ *	Used for notification of segment PTS probe results.
+ *
+ */
+public interface SegmentProbeListener {
+	public void onProbeCompleted(String uri, long pts);
+	public void onProbeFailed(String uri, int errorCode);
+}
@@ -0,0 +1,415 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+
+/*
+ * TrackFetchScheduler
+ *
+ * Shares the connection between the tracks we download for: video, alt audio, subtitles
+ * and PTS probes. At most MAX_ACTIVE_REQUESTS run at once. When a slot frees up, the next
+ * request comes from the track that has had the least bandwidth for its weight, so no
+ * track can hog the link, and a request the player is waiting on goes ahead of anything
+ * it isn't waiting on.
+ *
+ * A track the player is waiting on gets to run one request even when every slot is
+ * taken. That's what keeps a small audio segment from sitting behind the video (or the
+ * subtitles) it gates. With several players open, that's one per track per player, so
+ * one player's downloads can't stall another's playback. Those go over the limit by at
+ * most MAX_GATING_BYPASS, which the transport's pool has room for, along with the
+ * playlist fetches and connection warming that don't come through here.
+ *
+ * Also measures each track's throughput, over the time it had requests running.
+ *
+ */
+public class TrackFetchScheduler
+{
+	public static final int TRACK_VIDEO = 0;
+	public static final int TRACK_AUDIO = 1;
+	public static final int TRACK_SUBTITLE = 2;
+	public static final int TRACK_PROBE = 3;
+	private static final String [] TRACK_NAMES = { "video", "audio", "subtitle", "probe" };
+	private static final int [] TRACK_WEIGHTS = { 4, 2, 1, 1 };
+
+	// Together these stay under PooledHttpTransport.DEFAULT_POOL_SIZE, so requests we start
+	// run rather than queue in the transport, and it has threads left for playlists
+	public static final int MAX_ACTIVE_REQUESTS = 4;
+	public static final int MAX_GATING_BYPASS = 2;
+
+	private static class Track
+	{
+		int active = 0;
+		int queued = 0;
+		double virtualTime = 0;		// Bytes received, over the track's weight
+		long bytes = 0;
+		long requests = 0;
+		long busyMillis = 0;
+		long busySince = -1;
+	}
+
+	private Track [] mTracks = new Track[TRACK_NAMES.length];
+	private LinkedList<Request> mQueue = new LinkedList<Request>();
+	private List<Request> mRunning = new ArrayList<Request>();
+	private int mActive = 0;
+	private long mRequestsDelayed = 0;	// Had to wait for a slot
+
+	public TrackFetchScheduler()
+	{
+		for (int i = 0; i < mTracks.length; ++i)
+			mTracks[i] = new Track();
+	}
+
+	/*
+	 * get
+	 *
+	 * Queues the request for the track and returns straight away, like HttpTransport.get().
+	 * If owner is set, the request is treated as one the player is waiting on whenever the
+	 * owner is.
+	 */
+	public HttpRequestHandle get(int track, SegmentCacheItem owner, HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+	{
+		if (track < 0 || track >= mTracks.length) track = TRACK_VIDEO;
+		Request r = new Request(track, owner, request, listener, callbackHandler);
+		synchronized (this)
+		{
+			Track t = mTracks[track];
+			if (t.active == 0 && t.queued == 0)
+			{
+				// A track that's been idle doesn't get to bank the bandwidth it didn't use
+				t.virtualTime = Math.max(t.virtualTime, minimumBusyVirtualTime());
+			}
+			++t.queued;
+			++t.requests;
+			mQueue.add(r);
+		}
+		pump();
+		return r;
+	}
+
+	/*
+	 * pump
+	 *
+	 * Starts whatever can start now. Call it when a request might have become one the
+	 * player is waiting on.
+	 */
+	public void pump()
+	{
+		while (true)
+		{
+			Request r = null;
+			synchronized (this)
+			{
+				r = next();
+				if (r == null) return;
+				mQueue.remove(r);
+				r.mQueued = false;
+				Track t = mTracks[r.mTrack];
+				--t.queued;
+				if (t.active++ == 0) t.busySince = SystemClock.elapsedRealtime();
+				++mActive;
+				mRunning.add(r);
+				if (r.mDelayed) ++mRequestsDelayed;
+			}
+			r.start();
+		}
+	}
+
+	// The queued request that should run next, or null if none can run yet
+	private Request next()
+	{
+		Request best = null;
+		boolean bestGating = false;
+		for (Iterator<Request> it = mQueue.iterator(); it.hasNext(); )
+		{
+			Request r = it.next();
+			boolean gating = r.isGating();
+			if (mActive >= MAX_ACTIVE_REQUESTS
+					&& (!gating || mActive >= MAX_ACTIVE_REQUESTS + MAX_GATING_BYPASS || isRunning(r.mTrack, r.playerId())))
+			{
+				r.mDelayed = true;
+				continue;
+			}
+
+			if (best == null || (gating && !bestGating)
+					|| (gating == bestGating && mTracks[r.mTrack].virtualTime < mTracks[best.mTrack].virtualTime))
+			{
+				best = r;
+				bestGating = gating;
+			}
+		}
+		return best;
+	}
+
+	// Whether the player has a request running on the track
+	private boolean isRunning(int track, int playerId)
+	{
+		for (int i = 0; i < mRunning.size(); ++i)
+		{
+			Request r = mRunning.get(i);
+			if (r.mTrack == track && r.playerId() == playerId) return true;
+		}
+		return false;
+	}
+
+	private double minimumBusyVirtualTime()
+	{
+		double min = -1;
+		for (int i = 0; i < mTracks.length; ++i)
+		{
+			Track t = mTracks[i];
+			if (t.active == 0 && t.queued == 0) continue;
+			if (min == -1 || t.virtualTime < min) min = t.virtualTime;
+		}
+		return Math.max(min, 0);
+	}
+
+	private synchronized void noteBytes(int track, long bytes)
+	{
+		if (bytes <= 0) return;
+		Track t = mTracks[track];
+		t.bytes += bytes;
+		t.virtualTime += (double)bytes / TRACK_WEIGHTS[track];
+	}
+
+	private void release(Request r)
+	{
+		synchronized (this)
+		{
+			if (r.mQueued)
+			{
+				mQueue.remove(r);
+				--mTracks[r.mTrack].queued;
+				return;
+			}
+			Track t = mTracks[r.mTrack];
+			if (--t.active == 0)
+			{
+				t.busyMillis += SystemClock.elapsedRealtime() - t.busySince;
+				t.busySince = -1;
+			}
+			--mActive;
+			mRunning.remove(r);
+		}
+		pump();
+	}
+
+	/*
+	 * failRunning
+	 * 
+	 * Fails everything that's running, so its owners can retry. For when the transport
+	 * they were running on has been shut down, which cancels them without a word.
+	 */
+	public void failRunning()
+	{
+		Request [] running;
+		synchronized (this)
+		{
+			running = mRunning.toArray(new Request[mRunning.size()]);
+		}
+		for (int i = 0; i < running.length; ++i)
+			running[i].abandon();
+	}
+
+	/*
+	 * getThroughput
+	 *
+	 * The track's throughput in bits per second, over the time it had requests running,
+	 * or -1 if it hasn't had any yet.
+	 */
+	public synchronized double getThroughput(int track)
+	{
+		Track t = mTracks[track];
+		long busy = t.busyMillis;
+		if (t.busySince != -1) busy += SystemClock.elapsedRealtime() - t.busySince;
+		if (busy <= 0) return -1;
+		return t.bytes * 8 * 1000.0 / busy;
+	}
+
+	public synchronized long getBytes(int track)
+	{
+		return mTracks[track].bytes;
+	}
+
+	public synchronized long getRequestsDelayed()
+	{
+		return mRequestsDelayed;
+	}
+
+	// Clears the counters. Anything running or queued carries on.
+	public synchronized void reset()
+	{
+		long now = SystemClock.elapsedRealtime();
+		for (int i = 0; i < mTracks.length; ++i)
+		{
+			Track t = mTracks[i];
+			t.virtualTime = 0;
+			t.bytes = 0;
+			t.requests = 0;
+			t.busyMillis = 0;
+			if (t.busySince != -1) t.busySince = now;
+		}
+		mRequestsDelayed = 0;
+	}
+
+	public void log()
+	{
+		Log.i("TrackFetchScheduler", toString());
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < mTracks.length; ++i)
+		{
+			Track t = mTracks[i];
+			if (i > 0) sb.append(" ");
+			double throughput = getThroughput(i);
+			sb.append(TRACK_NAMES[i] + "=" + t.requests + " requests/" + t.bytes + " bytes/" + (throughput == -1 ? "-" : (long)throughput + "bps"));
+		}
+		sb.append(" delayed=" + mRequestsDelayed);
+		return sb.toString();
+	}
+
+	/*
+	 * Request
+	 *
+	 * A request waiting for, or holding, one of the scheduler's slots. It listens to the
+	 * transport on the caller's behalf to count the track's bytes, and gives up the slot
+	 * when it finishes.
+	 */
+	private class Request implements HttpRequestHandle, HttpResponseListener
+	{
+		private int mTrack;
+		private SegmentCacheItem mOwner;
+		private HttpRequest mRequest;
+		private HttpResponseListener mListener;
+		private Handler mHandler;
+
+		private HttpRequestHandle mHandle = null;
+		private boolean mQueued = true;
+		private boolean mDelayed = false;
+		private boolean mCancelled = false;
+		private boolean mFinished = false;
+		private int mBytesCounted = 0;
+
+		public Request(int track, SegmentCacheItem owner, HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			mTrack = track;
+			mOwner = owner;
+			mRequest = request;
+			mListener = listener;
+			mHandler = callbackHandler;
+		}
+
+		public boolean isGating()
+		{
+			return mOwner != null && mOwner.waiting;
+		}
+
+		public int playerId()
+		{
+			return mOwner != null ? mOwner.cacheEntry.playerId : 0;
+		}
+
+		public void start()
+		{
+			synchronized (this)
+			{
+				if (mFinished) return; // Cancelled while we were starting it
+				mHandle = HLSSegmentCache.httpTransport().get(mRequest, this, mHandler);
+			}
+		}
+
+		// Gives up the slot, or the place in the queue, once
+		private boolean finish()
+		{
+			synchronized (this)
+			{
+				if (mFinished) return false;
+				mFinished = true;
+			}
+			release(this);
+			return true;
+		}
+
+		@Override
+		public void cancel()
+		{
+			HttpRequestHandle handle = null;
+			synchronized (this)
+			{
+				if (mCancelled) return;
+				mCancelled = true;
+				handle = mHandle;
+			}
+			if (handle != null) handle.cancel();
+			finish();
+		}
+
+		// The transport dropped us; tell the listener it failed
+		public void abandon()
+		{
+			if (!finish()) return;
+			final HttpResponseListener listener = mListener;
+			Runnable fail = new Runnable()
+			{
+				@Override
+				public void run() {
+					if (isCancelled()) return;
+					listener.onFailure(0, null, new IOException("HTTP transport was replaced"));
+				}
+			};
+			if (mHandler != null) mHandler.post(fail);
+			else fail.run();
+		}
+
+		@Override
+		public synchronized boolean isCancelled()
+		{
+			return mCancelled;
+		}
+
+		@Override
+		public synchronized boolean isFinished()
+		{
+			return mFinished;
+		}
+
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+			if (isCancelled()) return;
+			noteBytes(mTrack, bytesReceived - mBytesCounted);
+			mBytesCounted = Math.max(mBytesCounted, bytesReceived);
+			mListener.onProgress(bytesReceived, totalSize);
+		}
+
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			if (response.body != null) noteBytes(mTrack, response.body.length - mBytesCounted);
+			if (!finish()) return;
+			mListener.onSuccess(response);
+		}
+
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			if (!finish()) return;
+			mListener.onFailure(statusCode, response, error);
+		}
+	}
+}
@@ -23,7 +23,12 @@ public interface OnErrorListener {
 	
 	/** profile is incompatible to hardware */
 	public static final int MEDIA_INCOMPATIBLE_PROFILE = -106;
-	    
+
+	/** Another open player holds the decoder, and only one player can decode at a time. This
+	 * player ignores play, pause, seek and stop until it's initialized again after the other
+	 * has closed. */
+	public static final int MEDIA_ERROR_DECODER_BUSY = -107;
+
 	/** Called when an error occurred, but playback can proceed */
 	public void onError(int errorCode, String errorMessage);
 	
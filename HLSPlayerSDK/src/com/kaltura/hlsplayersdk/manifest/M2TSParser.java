@@ -1,29 +1,59 @@
 package com.kaltura.hlsplayersdk.manifest;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import android.util.Log;
+import java.util.Arrays;
 
 import com.kaltura.hlsplayersdk.types.ByteArray;
 
+/*
+ * M2TSParser
+ *
+ * Scans MPEG-2 transport stream data for the first PES timestamp.
+ *
+ * Whole packets are parsed straight out of the caller's buffer. Only a trailing
+ * partial packet is copied, into a small fixed carry buffer, and stitched to the
+ * front of the next appendBytes() call. Per-PID state lives in flat arrays indexed
+ * by the 13 bit PID, and each PID's payload accumulator is allocated once and
+ * reused, so steady-state parsing doesn't allocate per packet.
+ *
+ * In full scan mode the parser doesn't stop at the first PTS. It reads the whole
+ * segment and builds a SegmentIndex: the PTS range, the offset and PTS of every
+ * video random access point, and any discontinuities. Call flush() once all the
+ * bytes are in so the final PES gets counted.
+ *
+ */
 public class M2TSParser implements PacketStreamHandler
 {
+	private static final int TS_PACKET_SIZE = 188;
+	private static final int TS_SYNC_BYTE = 0x47;
+	private static final int PID_COUNT = 0x2000;
+	private static final int NULL_PID = 0x1fff;
+	
 	public class PacketStream
 	{
-		private static final int MAX_PACKET_SIZE = 256;
+		private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
 		
 		private ByteArray _buffer = null;
 		private int _packetID = 0;
 		private int _lastContinuity = -1;
 		
+		// Where the PES currently being accumulated started, and whether its first
+		// packet was flagged as a random access point.
+		private int _pesOffset = -1;
+		private boolean _pesRandomAccess = false;
+		
 		public PacketStream(int packetID)
 		{
-			_buffer = new ByteArray(MAX_PACKET_SIZE);
+			_buffer = new ByteArray(INITIAL_BUFFER_SIZE);
 			_packetID = packetID;			
 		}
 		
-		public void appendBytes(ByteArray bytes, int offset, int length, boolean payloadStart, int continuityCounter, boolean discontinuity, PacketStreamHandler packetStreamHandler)
+		public void reset()
+		{
+			_buffer.clear();
+			_lastContinuity = -1;
+		}
+		
+		public void appendBytes(byte [] bytes, int offset, int length, boolean payloadStart, int continuityCounter, boolean discontinuity, boolean randomAccess, int packetOffset, PacketStreamHandler packetStreamHandler)
 		{
 			
 			if (_lastContinuity == continuityCounter)
@@ -37,6 +67,8 @@ public class M2TSParser implements PacketStreamHandler
 			if (payloadStart)
 			{
 				onPacketComplete(packetStreamHandler);
+				_pesOffset = packetOffset;
+				_pesRandomAccess = randomAccess;
 			}
 			else
 			{
@@ -93,64 +125,52 @@ public class M2TSParser implements PacketStreamHandler
 		}
 	}
 	
-	public class PESPacketStream
-	{
-		public PESPacketStream ( double pts, double dts)
-		{
-			_buffer = new ByteArray(M2TSParser.PacketStream.MAX_PACKET_SIZE);
-			_shiftBuffer = new ByteArray(M2TSParser.PacketStream.MAX_PACKET_SIZE);
-		}
-		
-		public void shiftLeft(int num)
-		{
-			int newLength = _buffer.length() - num;
-			ByteArray tmpBytes = null;
-		
-			_shiftBuffer.clear();
-			_shiftBuffer.write(_buffer, num, newLength);
-			
-			tmpBytes = _buffer;
-			_buffer = _shiftBuffer;
-			_shiftBuffer = tmpBytes;
-		}
-		
-		public ByteArray _buffer = null;
-		public long _pts;
-		public long _dts;
-		
-		private ByteArray _shiftBuffer = null;
-	}
+	// Indexed by PID. Streams are created the first time their PID shows up and
+	// reused (cleared, not reallocated) after that.
+	private PacketStream [] _packets = new PacketStream[PID_COUNT];
+	private boolean [] _seenPID = new boolean[PID_COUNT];	// Full scan only: PIDs we've had a packet on in this segment
+	
+	// Partial packet left over from the previous appendBytes() call. Never holds more
+	// than one packet's worth, but has room for a full packet of new data behind it.
+	private byte [] _carry = new byte[TS_PACKET_SIZE * 2];
+	private int _carryLength = 0;
 	
-	public static byte [] _totalh264 = null;
+	// Offset into the segment of the next byte appendBytes() will be given.
+	private int _appendBase = 0;
 	
-	private ByteArray _buffer = null;
-	private Map<Integer, PacketStream> _packets = null;
-	private Map<Integer, Integer> _types = null;
-	private Map<Integer, PESPacketStream> _pesPackets = null;
+	private boolean _fullScan = false;
+	private SegmentIndex _index = null;
 	
 	public long pts = -1;
 	public long dts = -1;
 	
 	public M2TSParser()
 	{
-		_types = new HashMap<Integer, Integer>();
-		_packets = new HashMap<Integer, PacketStream>();
-		_pesPackets = new HashMap<Integer, PESPacketStream>();
-		clear();
+		this(false);
+	}
+	
+	public M2TSParser(boolean fullScan)
+	{
+		_fullScan = fullScan;
+		reset();
+	}
+	
+	/*
+	 * getIndex
+	 * 
+	 * The index built by a full scan, or null if this parser isn't in full scan mode.
+	 */
+	public SegmentIndex getIndex()
+	{
+		return _index;
 	}
 	
 	public void flush()
 	{
-		ByteArray tmp = new ByteArray(PacketStream.MAX_PACKET_SIZE);
-		
-		for (int i = 0; i < _packets.size(); ++i)
-		{
-			_packets.get(i).appendBytes(tmp, 0, 0, true, -1, true, this);
-		}
-		
-		for (int i = 0; i < _pesPackets.size(); ++i)
+		for (int i = 0; i < PID_COUNT; ++i)
 		{
-			parsePESPacketStreamComplete(_pesPackets.get(i), i, true);
+			if (_packets[i] != null)
+				_packets[i].appendBytes(_carry, 0, 0, true, -1, true, false, -1, this);
 		}
 		
 		clear();
@@ -158,59 +178,105 @@ public class M2TSParser implements PacketStreamHandler
 	
 	public void clear()
 	{
-		_buffer = null;
-		_packets.clear();
-		_pesPackets.clear();
+		_carryLength = 0;
+		for (int i = 0; i < PID_COUNT; ++i)
+		{
+			if (_packets[i] != null)
+				_packets[i].reset();
+		}
 	}
 	
 	public void reset()
 	{
 		clear();
-		_types.clear();
+		_appendBase = 0;
+		pts = -1;
+		dts = -1;
+		_index = _fullScan ? new SegmentIndex() : null;
+		if (_fullScan) Arrays.fill(_seenPID, false);
 	}
 	
 	public void appendBytes(ByteArray bytes, int offset, int count)
 	{
-		if (_buffer == null)
+		int end = Math.min(offset + count, bytes.length());
+		int cursor = offset;
+		int base = _appendBase;
+		_appendBase += end - offset;
+		
+		if (_carryLength > 0)
 		{
-			_buffer = new ByteArray(0);
+			// Stitch the partial packet from last time onto the head of this data, and
+			// parse from the carry buffer until we've caught up with the caller's buffer.
+			int take = Math.min(TS_PACKET_SIZE, end - cursor);
+			System.arraycopy(bytes.array, cursor, _carry, _carryLength, take);
+			int carryEnd = _carryLength + take;
+			int stopped = scan(_carry, 0, carryEnd, base - _carryLength);
+			
+			if (take < TS_PACKET_SIZE || isDone())
+			{
+				// Everything we were given went into the carry buffer.
+				keepCarry(_carry, stopped, carryEnd);
+				return;
+			}
+			
+			cursor += stopped - _carryLength;
+			_carryLength = 0;
 		}
-		_buffer.write(bytes, offset, count);
-		
-		int cursor = 0;
-		int len = _buffer.length();
 		
+		int stopped = scan(bytes.array, cursor, end, base - offset);
+		keepCarry(bytes.array, stopped, end);
+	}
+	
+	private void keepCarry(byte [] src, int from, int to)
+	{
+		if (isDone())
+		{
+			// Nothing more to find, and the unparsed tail may be longer than a packet.
+			_carryLength = 0;
+			return;
+		}
+		_carryLength = to - from;
+		System.arraycopy(src, from, _carry, 0, _carryLength);
+	}
+	
+	private boolean isDone()
+	{
+		return pts >= 0 && !_fullScan;
+	}
+	
+	/*
+	 * scan
+	 *
+	 * Parses every whole packet in buf between cursor and len, stopping early once we
+	 * have a PTS (unless we're doing a full scan). bufBase is the segment offset of
+	 * buf[0]. Returns the position of the first byte that wasn't consumed.
+	 */
+	private int scan(byte [] buf, int cursor, int len, int bufBase)
+	{
 		while (true)
 		{
-			int scanCount = 0;
-			while (cursor + 187 < len)
+			while (cursor + TS_PACKET_SIZE - 1 < len)
 			{
-				if (0x47 == _buffer.array[cursor]) // search for TS synch byte
+				if (TS_SYNC_BYTE == buf[cursor]) // search for TS synch byte
 					break;
 				
 				++cursor;
-				++scanCount;
 			}
 			
-			if (cursor + 188 > len)
+			if (cursor + TS_PACKET_SIZE > len)
 				break;
 			
-			parseTSPacket(cursor);
-			if (pts >= 0)
+			parseTSPacket(buf, cursor, bufBase + cursor);
+			if (isDone())
 				break; // we're done
 			
-			cursor += 188;
+			cursor += TS_PACKET_SIZE;
 		}
-		
-		// Snarf remainder into beginning of buffer
-		int remainder = _buffer.length() - cursor;
-		_buffer.toBeginning();
-		_buffer.write(_buffer, cursor, remainder);
-		_buffer.length(remainder);
+		return cursor;
 	}
 	
 	
-	private void parseTSPacket(int cursor)
+	private void parseTSPacket(byte [] buf, int cursor, int packetOffset)
 	{
 		boolean payloadStart = false;
 		int packetID = 0;
@@ -220,67 +286,66 @@ public class M2TSParser implements PacketStreamHandler
 		int headerLength = 4;
 		int payloadLength = 0;
 		boolean discontinuity = false;
+		boolean randomAccess = false;
 		
 		// Decode header bytes.
-		payloadStart 		= (_buffer.array[cursor + 1] & 0x40) != 0;
-		packetID			= ((_buffer.unsigned(cursor + 1) & 0x1f) << 8) + _buffer.unsigned(cursor + 2);
-		continuityCounter	= _buffer.unsigned(cursor + 3) & 0x0f;
-		hasPayload			= (_buffer.array[cursor + 3] & 0x10) != 0;
-		hasAdaptationField	= (_buffer.array[cursor + 3] & 0x20) != 0;
+		payloadStart 		= (buf[cursor + 1] & 0x40) != 0;
+		packetID			= ((buf[cursor + 1] & 0x1f) << 8) + (buf[cursor + 2] & 0xff);
+		continuityCounter	= buf[cursor + 3] & 0x0f;
+		hasPayload			= (buf[cursor + 3] & 0x10) != 0;
+		hasAdaptationField	= (buf[cursor + 3] & 0x20) != 0;
 		
 		// Set up rest of parsing.
 		if (hasAdaptationField)
 		{
-			int adaptationFieldLength = _buffer.unsigned(cursor + 4);
+			int adaptationFieldLength = buf[cursor + 4] & 0xff;
 			if (adaptationFieldLength > 183)
 				return; // invalid
 			
 			headerLength += adaptationFieldLength + 1;
 			
-			discontinuity = (_buffer.unsigned(cursor + 5) & 0x80) != 0;
+			if (adaptationFieldLength > 0)
+			{
+				discontinuity = (buf[cursor + 5] & 0x80) != 0;
+				randomAccess = (buf[cursor + 5] & 0x40) != 0;
+			}
+		}
+		
+		if (_index != null)
+		{
+			// Lots of segmenters flag the first packet on every PID of every segment; it's
+			// only a discontinuity inside the segment if the PID has already been going
+			if (discontinuity && _seenPID[packetID])
+				_index.addDiscontinuity(packetOffset);
+			_seenPID[packetID] = true;
 		}
 		
-		payloadLength = 188 - headerLength;
+		payloadLength = TS_PACKET_SIZE - headerLength;
 		
-		if (!hasPayload)
+		if (!hasPayload || packetID == NULL_PID)
 			return;
 		
-		switch (packetID)
-		{
-		case 0x1fff:
-			break;
-		default:
-			parseTSPayload(packetID, payloadStart, continuityCounter, discontinuity, cursor + headerLength, payloadLength);
-		}
+		parseTSPayload(buf, packetID, payloadStart, continuityCounter, discontinuity, randomAccess, packetOffset, cursor + headerLength, payloadLength);
 	}
 	
-	private void parseTSPayload(int packetID, boolean payloadStart, int continuityCounter, boolean discontinuity, int cursor, int length )
+	private void parseTSPayload(byte [] buf, int packetID, boolean payloadStart, int continuityCounter, boolean discontinuity, boolean randomAccess, int packetOffset, int cursor, int length )
 	{
-		PacketStream stream = null;
-		stream = _packets.get(packetID);
+		PacketStream stream = _packets[packetID];
 		if (stream == null)
 		{
 			stream = new PacketStream(packetID);
-			_packets.put(packetID, stream);
+			_packets[packetID] = stream;
 		}
 		
-		stream.appendBytes(_buffer, cursor, length, payloadStart, continuityCounter, discontinuity, this);		
+		stream.appendBytes(buf, cursor, length, payloadStart, continuityCounter, discontinuity, randomAccess, packetOffset, this);
 	}
 	
 	
-	private void parsePESPacketStreamComplete(PESPacketStream pes, int packetID, boolean flushing)
-	{
-		pts = pes._pts;
-		dts = pes._dts;
-	}
-	
 	private boolean parsePESPacket(int packetID, int type, ByteArray bytes)
 	{
 		int streamID = bytes.unsigned(3);
 		int packetLength = (bytes.unsigned(4) << 8) + bytes.unsigned(5);
 		int cursor = 6;
-
-		PESPacketStream pes = null;
 		
 		switch (streamID)
 		{
@@ -312,62 +377,84 @@ public class M2TSParser implements PacketStreamHandler
 			return false;
 		}
 		
-		boolean dataAlignment = (bytes.array[cursor] & 0x04) != 0;
-		++cursor;
+		++cursor; // flags (data alignment, etc)
 		
 		int ptsDts = (bytes.array[cursor] & 0xc0) >> 6;
 		++cursor;
 		
-		int pesHeaderDataLength = bytes.array[cursor];
+		int pesHeaderDataLength = bytes.unsigned(cursor);
 		++cursor;
 		
-		if ((ptsDts & 0x02) != 0)
-		{
-			// has PTS at least
-			if (cursor + 5 > bytes.length())
-				return false;
-			
-			Log.i("M2TSParser.parsePESPacket", bytes.toString(cursor, 5));
-
-			
-			pts = bytes.unsigned(cursor) & 0x0e;
-			pts *= 128;
-			pts += bytes.unsigned(cursor + 1);
-			pts *= 256;
-			pts += bytes.unsigned(cursor + 2) & 0xfe;
-			pts *= 128;
-			pts += bytes.unsigned(cursor + 3);
-			pts *= 256;
-			pts += bytes.unsigned(cursor + 4) & 0xfe;
-			pts /= 2;
+		if ((ptsDts & 0x02) == 0)
+			return false;
+		
+		// has PTS at least
+		if (cursor + 5 > bytes.length())
+			return false;
+		
+		long pesPts = readTimestamp(bytes, cursor);
+		long pesDts = pesPts;
+		if ((ptsDts & 0x01) != 0 && cursor + 10 <= bytes.length())
+			pesDts = readTimestamp(bytes, cursor + 5);
 
+		if (pts < 0)
+		{
+			pts = pesPts;
+			dts = pesDts;
+		}
 		
-			if ((ptsDts & 0x01) != 0)
-			{
-				Log.i("M2TSParser.parsePESPacket", bytes.toString(cursor + 5, 5));
-				dts  = bytes.array[cursor + 5] & 0x0e;
-				dts *= 128;
-				dts += bytes.array[cursor + 6];
-				dts *= 256;
-				dts += bytes.array[cursor + 7] & 0xfe;
-				dts *= 128;
-				dts += bytes.array[cursor + 8];
-				dts *= 256;
-				dts += bytes.array[cursor + 9] & 0xfe;
-				dts /= 2;
-			}
-			else
-				dts = pts;
+		if (_index != null)
+		{
+			PacketStream stream = _packets[packetID];
+			boolean isVideo = (streamID & 0xf0) == 0xe0;
+			_index.notePTS(packetID, isVideo, pesPts, stream._pesOffset);
+			if (isVideo && (stream._pesRandomAccess || containsIDR(bytes, cursor + pesHeaderDataLength)))
+				_index.addKeyframe(stream._pesOffset, pesPts);
 		}
 		
-		if (pts >= 0)
+		return true;
+	}
+	
+	/*
+	 * containsIDR
+	 *
+	 * Walks the H.264 NAL units of a PES payload until the first slice, and reports
+	 * whether it's an IDR slice.
+	 */
+	private static boolean containsIDR(ByteArray bytes, int start)
+	{
+		int end = bytes.length() - 3;
+		byte [] b = bytes.array;
+		for (int i = start; i < end; ++i)
 		{
-			return true;
+			if (b[i] != 0 || b[i + 1] != 0 || b[i + 2] != 1)
+				continue;
+			
+			int nalType = b[i + 3] & 0x1f;
+			if (nalType == 5)
+				return true;
+			if (nalType == 1)
+				return false;
+			i += 3;
 		}
 		return false;
 	}
 	
-	
+	// Decodes the 33 bit timestamp packed into 5 bytes with marker bits.
+	private static long readTimestamp(ByteArray bytes, int cursor)
+	{
+		long ts = bytes.unsigned(cursor) & 0x0e;
+		ts *= 128;
+		ts += bytes.unsigned(cursor + 1);
+		ts *= 256;
+		ts += bytes.unsigned(cursor + 2) & 0xfe;
+		ts *= 128;
+		ts += bytes.unsigned(cursor + 3);
+		ts *= 256;
+		ts += bytes.unsigned(cursor + 4) & 0xfe;
+		ts /= 2;
+		return ts;
+	}
 	
 
 	@Override
@@ -385,21 +472,7 @@ public class M2TSParser implements PacketStreamHandler
 			return;
 		}
 		
-		int cursor = ((int)(bytes.array[0] & 0xFF)) + 1;
-		int remaining = 0;
-		
-		if (cursor > bytes.length())
-			return;
-		
-		remaining = bytes.length() - cursor;
-		
-		if ( (remaining < 23)
-			|| (bytes.array[cursor] != 0x02)
-			|| ((bytes.array[cursor + 1] & 0xfc)) != 0xb0)
-		{
-			// different packet type
-		}
-		
+		// Anything else is PSI (PAT/PMT), which we don't need to find a timestamp.
 	}
 
 	@Override
@@ -412,10 +485,10 @@ public class M2TSParser implements PacketStreamHandler
 		if (bytes.array[0] == 0x00 && bytes.array[1] == 0x00 && bytes.array[2] == 0x01)
 			return false;
 		
-		int cursor = ((int)(bytes.array[0] & 0xFF)) + 1;
+		int cursor = (bytes.array[0] & 0xFF) + 1;
 		int remaining;
 		
-		if (cursor > bytes.length())
+		if (cursor + 1 >= bytes.length())
 			return false;
 		
 		remaining = bytes.length() - cursor;
@@ -1,17 +1,26 @@
 package com.kaltura.hlsplayersdk.manifest;
 
 
+import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
+import java.util.TimeZone;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 import android.util.EventLog.Event;
 
+import com.kaltura.hlsplayersdk.HLSExecutors;
 import com.kaltura.hlsplayersdk.HLSPlayerViewController;
 import com.kaltura.hlsplayersdk.URLLoader;
+import com.kaltura.hlsplayersdk.cache.ByteRangeUri;
+import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
+import com.kaltura.hlsplayersdk.net.ConnectionWarmer;
+import com.kaltura.hlsplayersdk.net.HttpTransport;
 import com.kaltura.hlsplayersdk.subtitles.*;
 import com.kaltura.hlsplayersdk.events.OnErrorListener;
 import com.kaltura.hlsplayersdk.manifest.events.*;
@@ -24,7 +33,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 	
 	private boolean complete = false;
 	
-	private Timer timeoutTimer = null;
+	private ScheduledFuture<?> timeoutTimer = null;
 	private final int timeOutDelay = 30000;
 	
 	class BandwidthComparator implements Comparator<ManifestStream>
@@ -75,6 +84,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 	private int mReloadFailureCount = 0;
 	
 	public int videoPlayId = 0; // Used for tracking which video play we're on. Only the base manifest parser will have this set to anything other than 0.
+	public int playerId = 0; // The player this was loaded for (HLSPlayerViewController.getPlayerId()). Sub-manifests and reloads inherit it.
 	
 	public int continuityEra = 0;
 	private int _subtitlesLoading = 0;
@@ -82,6 +92,21 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 	private ManifestParser mReloadingManifest = null; 	// If this is the parent, mReloadingManifest is the child. If this is the child, mReloadingManifest is the parent
 	
 	private boolean mReloadParent = true;
+	private volatile boolean mReloadPending = false;	// In the child, until the download finishes
+	
+	// Sub-manifests load this many at a time, the starting stream and the default audio first
+	public static final int MAX_CONCURRENT_SUBMANIFEST_LOADS = 4;
+	private Vector<BaseManifestItem> mQueuedItems = new Vector<BaseManifestItem>();
+	
+	// With early start, the parse completes once the starting stream, the default audio and
+	// the default subtitles have parsed, and the rest of the sub-manifests carry on loading
+	// in the background.
+	private boolean mEarlyStart = false;
+	private double mStartBandwidth = -1;
+	private boolean mAnnouncedEarly = false;
+	private ManifestStream mStartStream = null;
+	private ManifestPlaylist mStartAudio = null;
+	private ManifestPlaylist mStartSubtitles = null;
 	
 	
 	public ManifestParser getReloadParent()
@@ -151,6 +176,61 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		return ( uri.startsWith("http:") || uri.startsWith("https:") || uri.startsWith("file:")) ? uri : baseUrl + uri;
 	}
 	
+	/*
+	 * parseProgramDateTime
+	 * 
+	 * Parses an EXT-X-PROGRAM-DATE-TIME value (YYYY-MM-DDThh:mm:ss[.SSS][Z|+hh:mm|-hh:mm])
+	 * into ms since the epoch. Returns -1 if the value can't be parsed.
+	 * 
+	 */
+	public static long parseProgramDateTime(String value)
+	{
+		try
+		{
+			String v = value.trim();
+			int tIndex = v.indexOf('T');
+			if (tIndex == -1) tIndex = v.indexOf(' ');
+			if (tIndex != 10 || v.length() < 19)
+			{
+				Log.w("ManifestParser.parseProgramDateTime", "Unexpected date format '" + value + "', ignoring...");
+				return -1;
+			}
+			
+			Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("GMT"));
+			cal.clear();
+			cal.set(Integer.parseInt(v.substring(0, 4)), Integer.parseInt(v.substring(5, 7)) - 1, Integer.parseInt(v.substring(8, 10)),
+					Integer.parseInt(v.substring(11, 13)), Integer.parseInt(v.substring(14, 16)), Integer.parseInt(v.substring(17, 19)));
+			long ms = cal.getTimeInMillis();
+			
+			int cursor = 19;
+			if (cursor < v.length() && v.charAt(cursor) == '.')
+			{
+				// Fractional seconds - we only care about the ms
+				int fracStart = ++cursor;
+				while (cursor < v.length() && Character.isDigit(v.charAt(cursor)))
+					++cursor;
+				String frac = (v.substring(fracStart, cursor) + "000").substring(0, 3);
+				ms += Integer.parseInt(frac);
+			}
+			
+			if (cursor < v.length() && (v.charAt(cursor) == '+' || v.charAt(cursor) == '-'))
+			{
+				String zone = v.substring(cursor + 1).replace(":", "");
+				int offsetMinutes = Integer.parseInt(zone.substring(0, 2)) * 60;
+				if (zone.length() >= 4) offsetMinutes += Integer.parseInt(zone.substring(2, 4));
+				if (v.charAt(cursor) == '+') offsetMinutes = -offsetMinutes;
+				ms += offsetMinutes * 60000L;
+			}
+			
+			return ms;
+		}
+		catch (Exception e)
+		{
+			Log.w("ManifestParser.parseProgramDateTime", "Failed to parse '" + value + "': " + e.getMessage());
+		}
+		return -1;
+	}
+	
 	public static <T> T as(Class<T> t, Object o) {
 		  return t.isInstance(o) ? t.cast(o) : null;
 		}
@@ -184,6 +264,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		// process each line
 		
 		int nextByteRangeStart = 0;
+		long nextProgramDateTime = -1;
 		
 		if (lines.length == 0)
 		{
@@ -204,7 +285,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 			{
 				Log.i("ManifestParser.parse()", "Bad Stream! #EXTM3U is missing from the first line");
 				goodManifest = false;
-				HLSPlayerViewController.currentController.postError(OnErrorListener.MEDIA_ERROR_MALFORMED, "#EXTM3U is missing from the first line. " + this.fullUrl);
+				postError(OnErrorListener.MEDIA_ERROR_MALFORMED, "#EXTM3U is missing from the first line. " + this.fullUrl);
 				break;
 			}
 			
@@ -217,9 +298,8 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 					ManifestSegment segment = as(ManifestSegment.class, lastHint);
 					if (segment != null && segment.byteRangeStart != -1)
 					{
-						// Append akamai ByteRange properties to URL
-						String urlPostFix = targetUrl.indexOf( "?" ) == -1 ? "?" : "&";
-						targetUrl += urlPostFix + "range=" + segment.byteRangeStart + "-" + segment.byteRangeEnd;
+						// Sub-ranges of one resource are fetched with Range headers, and cached separately
+						targetUrl = ByteRangeUri.make(targetUrl, segment.byteRangeStart, segment.byteRangeEnd);
 					}
 					
 					BaseManifestItem mi = as(BaseManifestItem.class, lastHint);
@@ -317,6 +397,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 				if ( type.equals(SUBTITLES ))
 				{
 					SubTitleSegment subTitle = new SubTitleSegment();
+					subTitle.playerId = playerId;
 					String[] valueSplit = tagParams.split(",");
 					subTitle.segmentTimeWindowDuration = Double.parseDouble(valueSplit[0]);
 					subtitles.add( subTitle );
@@ -326,6 +407,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 				else
 				{
 					lastHint = new ManifestSegment();
+					((ManifestSegment)lastHint).playerId = playerId;
 					segments.add((ManifestSegment)lastHint);
 					lastHint = segments.get(segments.size()-1);
 					String [] valueSplit = tagParams.split(",");
@@ -336,6 +418,8 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 						((ManifestSegment)lastHint).duration = targetDuration;
 					
 					((ManifestSegment)lastHint).continuityEra = continuityEra;
+					((ManifestSegment)lastHint).programDateTime = nextProgramDateTime;
+					nextProgramDateTime = -1;
 					
 					if(valueSplit.length > 1)
 					{
@@ -349,7 +433,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 				if ( hintAsSegment == null ) break;
 				String [] byteRangeValues = tagParams.split("@");
 				hintAsSegment.byteRangeStart = byteRangeValues.length > 1 ? Integer.parseInt( byteRangeValues[ 1 ] ) : nextByteRangeStart;
-				hintAsSegment.byteRangeEnd = hintAsSegment.byteRangeStart + Integer.parseInt( byteRangeValues[ 0 ] );
+				hintAsSegment.byteRangeEnd = hintAsSegment.byteRangeStart + Integer.parseInt( byteRangeValues[ 0 ] ) - 1;
 				nextByteRangeStart = hintAsSegment.byteRangeEnd + 1;
 			}
 			else if (tagType.equals("EXT-X-DISCONTINUITY"))
@@ -358,7 +442,13 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 			}
 			else if (tagType.equals("EXT-X-PROGRAM-DATE-TIME"))
 			{
-				
+				// Applies to the segment we're in the middle of, if its EXTINF has been seen and
+				// its URI hasn't, otherwise to the next one
+				ManifestSegment open = as(ManifestSegment.class, lastHint);
+				if (open != null && open.uri.length() == 0)
+					open.programDateTime = parseProgramDateTime(tagParams);
+				else
+					nextProgramDateTime = parseProgramDateTime(tagParams);
 			}
 			else
 			{
@@ -378,15 +468,17 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		manifestItems.addAll(playLists);
 		manifestItems.addAll(subtitlePlayLists);
 		
-		for (int k = 0; k < manifestItems.size(); ++k)
+		warmConnections(manifestItems);
+		
+		for (BaseManifestItem curItem : orderForLoading(manifestItems))
 		{
-			BaseManifestItem curItem = manifestItems.get(k);
 			if (curItem.uri.lastIndexOf("m3u8") != -1)
 			{
 				// Request and parse the manifest.
-				addItemToManifestLoader(curItem);
+				mQueuedItems.add(curItem);
 			}
 		}
+		loadQueuedItems();
 		
 		// update start time for the segments we own
 		double timeAccum = 0.0;
@@ -396,6 +488,12 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 			segments.get(m).startTime = timeAccum;
 			//Log.i("ManifestParser(" + instanceCount + ").foundSegment", "SegmentURI=" + segments.get(m).uri);
 			timeAccum += segments.get(m).duration;
+			
+			// Segments without their own program date time follow on from the previous one, unless
+			// there's a discontinuity between them
+			if (m > 0 && !segments.get(m).hasProgramDateTime() && segments.get(m - 1).hasProgramDateTime()
+					&& segments.get(m).continuityEra == segments.get(m - 1).continuityEra)
+				segments.get(m).programDateTime = segments.get(m - 1).programDateTime + (long)(segments.get(m - 1).duration * 1000);
 		}
 		
 		// update start time for the subtitles we own
@@ -414,8 +512,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		}
 		else
 		{
-			timeoutTimer = new Timer();
-			timeoutTimer.schedule(new TimerTask()
+			timeoutTimer = HLSExecutors.timers().schedule(new Runnable()
 			{
 				public void run()
 				{
@@ -436,11 +533,136 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 					}
 				}
 				
-			}, timeOutDelay);
+			}, timeOutDelay, TimeUnit.MILLISECONDS);
 		}
 			
 	}
 	
+	/*
+	 * setEarlyStart
+	 * 
+	 * Completes the parse as soon as the starting stream (the best one that fits in
+	 * startBandwidth bits per second, or the lowest if that's -1), the default audio and
+	 * the default subtitles have parsed. The other sub-manifests load in the background, and their streams
+	 * have no manifest until they do. Call before parse().
+	 */
+	public void setEarlyStart(double startBandwidth)
+	{
+		mEarlyStart = true;
+		mStartBandwidth = startBandwidth;
+	}
+	
+	// The streams and playlists to load, the ones playback starts with first, then the
+	// streams nearest the starting one
+	private List<BaseManifestItem> orderForLoading(Vector<BaseManifestItem> items)
+	{
+		mStartStream = null;
+		int startIndex = 0;
+		for (int i = 0; i < streams.size(); ++i)
+		{
+			// The first of streams with the same bandwidth is the one the others back up
+			int bw = streams.get(i).bandwidth;
+			if (mStartStream == null || (mStartBandwidth >= 0 && bw <= mStartBandwidth && bw > mStartStream.bandwidth))
+			{
+				mStartStream = streams.get(i);
+				startIndex = i;
+			}
+		}
+		
+		mStartAudio = null;
+		for (int i = 0; i < playLists.size() && mStartAudio == null; ++i)
+		{
+			if (playLists.get(i).isDefault)
+				mStartAudio = playLists.get(i);
+		}
+		
+		// The subtitles SubtitleHandler starts with; its live window is set up from them
+		mStartSubtitles = null;
+		for (int i = 0; i < subtitlePlayLists.size() && mStartSubtitles == null; ++i)
+		{
+			if (subtitlePlayLists.get(i).isDefault)
+				mStartSubtitles = subtitlePlayLists.get(i);
+		}
+		if (mStartSubtitles == null && subtitlePlayLists.size() > 0)
+			mStartSubtitles = subtitlePlayLists.get(0);
+		
+		List<BaseManifestItem> ordered = new ArrayList<BaseManifestItem>();
+		if (mStartStream != null) ordered.add(mStartStream);
+		if (mStartAudio != null) ordered.add(mStartAudio);
+		if (mStartSubtitles != null) ordered.add(mStartSubtitles);
+		for (int d = 1; d < streams.size(); ++d)
+		{
+			if (startIndex - d >= 0) ordered.add(streams.get(startIndex - d));
+			if (startIndex + d < streams.size()) ordered.add(streams.get(startIndex + d));
+		}
+		for (int i = 0; i < items.size(); ++i)
+		{
+			if (!ordered.contains(items.get(i)))
+				ordered.add(items.get(i));
+		}
+		return ordered;
+	}
+	
+	private void loadQueuedItems()
+	{
+		while (manifestLoaders.size() < MAX_CONCURRENT_SUBMANIFEST_LOADS && mQueuedItems.size() > 0)
+			addItemToManifestLoader(mQueuedItems.remove(0));
+	}
+	
+	// Still queued, downloading or parsing
+	private boolean isPending(BaseManifestItem item)
+	{
+		if (mQueuedItems.contains(item)) return true;
+		for (int i = 0; i < manifestLoaders.size(); ++i)
+		{
+			if (manifestLoaders.get(i).manifestItem == item)
+				return true;
+		}
+		return item.manifest != null && manifestParsers.contains(item.manifest);
+	}
+	
+	private boolean canStartEarly()
+	{
+		if (!mEarlyStart || mStartStream == null || isPending(mStartStream)) return false;
+		if (mStartStream.manifest == null || !mStartStream.manifest.goodManifest) return false;
+		if (mStartAudio != null && isPending(mStartAudio)) return false;
+		return mStartSubtitles == null || !isPending(mStartSubtitles);
+	}
+	
+	/*
+	 * announceEarly
+	 * 
+	 * Completes the parse while some sub-manifests are still loading. The stream list is
+	 * settled now, since qualities are indexes into it: backups are linked, and streams
+	 * that fail to load later stay in it, without a manifest.
+	 */
+	private void announceEarly()
+	{
+		mAnnouncedEarly = true;
+		int pending = mQueuedItems.size() + manifestLoaders.size() + manifestParsers.size();
+		Log.i("ManifestParser.announceEarly(" + instanceCount + ")", "Starting with " + mStartStream.uri + "; " + pending + " sub-manifests still loading");
+		
+		streamEnds = mStartStream.manifest.streamEnds;
+		linkAllBackupStreams();
+		numberQualities();
+		postParseComplete(this);
+	}
+	
+	private void numberQualities()
+	{
+		for (int i = 0; i < playLists.size(); ++i)
+		{
+			if (playLists.get(i).manifest != null)
+				playLists.get(i).manifest.quality = i;
+		}
+		
+		for (int i = 0; i < streams.size(); ++i)
+		{
+			if (streams.get(i).manifest != null)
+				streams.get(i).manifest.quality = i;
+		}
+	}
+	
 	private void verifyManifestItemIntegrity()
 	{
 		// work through the streams and remove any broken ones
@@ -456,6 +678,21 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		else if (subtitlePlayLists.size() > 0)
 			streamEnds = subtitlePlayLists.get(0).manifest.streamEnds;
 		
+		linkAllBackupStreams();
+		
+		// Remove any dead manifests
+		for (int i = playLists.size() - 1; i >= 0; --i)
+		{
+			if (playLists.get(i).manifest == null)
+				playLists.remove(i);
+		}
+		
+		// Set the qualities
+		numberQualities();
+	}
+	
+	private void linkAllBackupStreams()
+	{
 		// Work through the streams and set up the backup streams
 		int backupCount = 0;
 		for (int i = streams.size() - 1; i >= 0; --i)
@@ -479,20 +716,6 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		// Check for leftovers
 		if (backupCount > 0)
 			linkBackupStreams(0, backupCount);
-		
-		// Remove any dead manifests
-		for (int i = playLists.size() - 1; i >= 0; --i)
-		{
-			if (playLists.get(i).manifest == null)
-				playLists.remove(i);
-		}
-		
-		// Set the qualities
-		for (int i = 0; i < playLists.size(); ++i)
-			playLists.get(i).manifest.quality = i;
-		
-		for (int i = 0; i < streams.size(); ++i)
-			streams.get(i).manifest.quality = i;
 	}
 	
 	private void linkBackupStreams(int startIndex, int count)
@@ -512,28 +735,60 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		}
 	}
 	
+	/*
+	 * warmConnections
+	 * 
+	 * Gets connections to the hosts we're about to need going, all at once: those of the
+	 * sub-manifests we're about to load, and, for a media playlist, those of its keys and
+	 * segments. Hosts that are already warm are skipped. Key hosts are only looked up.
+	 */
+	private void warmConnections(Vector<BaseManifestItem> manifestItems)
+	{
+		HttpTransport transport = HLSSegmentCache.httpTransport();
+		ConnectionWarmer warmer = HLSSegmentCache.connectionWarmer;
+		for (int k = 0; k < manifestItems.size(); ++k)
+		{
+			warmer.prefetchDns(manifestItems.get(k).uri);
+			warmer.warm(transport, manifestItems.get(k).uri, ConnectionWarmer.PHASE_PLAYLIST);
+		}
+		for (int k = 0; k < keys.size(); ++k)
+			warmer.prefetchDns(keys.get(k).url);
+		if (segments.size() > 0)
+			warmer.warm(transport, ByteRangeUri.getUrl(segments.get(0).uri), ConnectionWarmer.PHASE_SEGMENT);
+	}
+	
 	private void addItemToManifestLoader(BaseManifestItem item)
 	{
 		URLLoader manifestLoader = new URLLoader("ManifestParser.addItemToManifestLoader", this, item);
+		manifestLoader.playerId = playerId;
 		manifestLoaders.add(manifestLoader);
 		manifestLoader.get(item.uri);
 	}
 	
 	@Override
 	public void onDownloadFailed(URLLoader loader, String response) {
+		mReloadPending = false;
 		if (loader.manifestItem != null)
 		{
 			Log.w("ManifestParser.onManifestError", "ERROR loading manifest " + response);
 			manifestLoaders.remove(loader);
+			loadQueuedItems();
 			announceIfComplete();
 		}
 		else
 		{
 			
 		}
-		HLSPlayerViewController.currentController.postError(OnErrorListener.MEDIA_ERROR_IO, loader.uri + "(" + response + ")");
+		postError(OnErrorListener.MEDIA_ERROR_IO, loader.uri + "(" + response + ")");
 		postReloadFailed(this);
 	}
+	
+	// To the player we were loaded for
+	private void postError(int errorCode, String message)
+	{
+		HLSPlayerViewController player = HLSPlayerViewController.getPlayer(playerId);
+		if (player != null) player.postError(errorCode, message);
+	}
 
 	@Override
 	public void onDownloadComplete(URLLoader loader, String response) {
@@ -548,14 +803,17 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 			
 			ManifestParser parser = new ManifestParser();
 			parser.type = manifestItem.type;
+			parser.playerId = playerId;
 			manifestItem.manifest = parser;
 			manifestParsers.add(parser);
 	
 			parser.setOnParseCompleteListener(this);
 			parser.parse(resourceData, getNormalizedUrl(baseUrl, manifestItem.uri));
+			loadQueuedItems();
 		}
 		else // this is a reload!
 		{
+			mReloadPending = false;
 			String resourceData = response;
 			if (mOnParseCompleteListener == null) setOnParseCompleteListener(this);
 			parse(resourceData, fullUrl);
@@ -580,6 +838,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
             }
 
 			manifestParsers.remove(parser);
+			if (mAnnouncedEarly) numberQualities(); // Qualities are settled, so this one's is known
 			announceIfComplete();
 		}
 	}
@@ -590,6 +849,16 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		Log.i("ManifestParser.reload(" + instanceCount + ")", "Reloading type=" + type + " listenerHash=" + reloadListener.hashCode() + " URI=" + fullUrl);
 		mReloadParent = true; // We are the parent
 		
+		// If the playlist is already on its way, have it go to the new listener instead of
+		// fetching and parsing it all over again. The old listener is dropped either way.
+		if (mReloadingManifest != null && mReloadingManifest.mReloadPending)
+		{
+			Log.i("ManifestParser.reload(" + instanceCount + ")", "Joining the reload already in flight for " + fullUrl);
+			URLLoader.noteCoalescedRequest();
+			mReloadingManifest.setReloadEventListener(reloadListener);
+			return;
+		}
+		
 		if (mReloadingManifest != null) 
 		{
 			mReloadingManifest.setReloadEventListener(null);
@@ -599,6 +868,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		mReloadingManifest = new ManifestParser(); // This is creating the child that will be used to actually parse the update
 		mReloadingManifest.type = type;
 		mReloadingManifest.quality = quality;
+		mReloadingManifest.playerId = playerId;
 		mReloadingManifest.setReloadEventListener(reloadListener);
 		mReloadingManifest.reload(this);
 	}
@@ -610,6 +880,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 		// when that completes, it should call the reloadCompleteListener
 		mReloadParent = false; // we are not the parent
 		mReloadingManifest = manifest; // This is setting the parent - the one we're trying to reload
+		mReloadPending = true;
 		fullUrl = manifest.fullUrl;
 		final ManifestParser self = this;
 		
@@ -619,6 +890,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 			public void run()
 			{
 				URLLoader manifestLoader = new URLLoader("ManifestParser(" + instance() + ").reload(" + manifest.instance() + ")", self, null);
+				manifestLoader.playerId = playerId;
 				manifestLoader.get(fullUrl);
 				
 			}
@@ -628,11 +900,20 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 	private void announceIfComplete()
 	{
 		Log.i("ManifestParser.announceIfComplete()", "_subtitles = " + _subtitlesLoading);
-		if (manifestParsers.size() == 0 && manifestLoaders.size() == 0)
+		boolean allLoaded = manifestParsers.size() == 0 && manifestLoaders.size() == 0 && mQueuedItems.size() == 0;
+		if (mAnnouncedEarly)
+		{
+			if (allLoaded) Log.i("ManifestParser.announceIfComplete(" + instanceCount + ")", "Background sub-manifest loads finished");
+		}
+		else if (allLoaded)
 		{
 			verifyManifestItemIntegrity();
 			postParseComplete(this);
 		}
+		else if (canStartEarly())
+		{
+			announceEarly();
+		}
 	}
 
 	public int getReloadFailureCount()
@@ -695,7 +976,7 @@ public class ManifestParser implements OnParseCompleteListener, URLLoader.Downlo
 	private OnParseCompleteListener mOnParseCompleteListener;
 	public void postParseComplete(ManifestParser parser)
 	{
-		if (timeoutTimer != null) timeoutTimer.cancel();
+		if (timeoutTimer != null) timeoutTimer.cancel(false);
 		timeoutTimer = null;
 		complete = true;
 		if (mOnParseCompleteListener != null) mOnParseCompleteListener.onParserComplete(parser);
@@ -1,10 +1,12 @@
 package com.kaltura.hlsplayersdk.manifest;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import android.util.Log;
 
+import com.kaltura.hlsplayersdk.HLSExecutors;
+
 import com.kaltura.hlsplayersdk.manifest.ManifestParser.ReloadEventListener;
 
 public class ManifestReloader
@@ -17,7 +19,7 @@ public class ManifestReloader
 	private ManifestGetHandler altAudioGetHandler = null;
 	private ManifestGetHandler subtitleGetHandler = null;
 	
-	private Timer reloadTimer = null;
+	private ScheduledFuture<?> reloadTimer = null;
 	private long timerDelay = 10000;
 	private long lastTimerStart = 0;
 	
@@ -86,11 +88,9 @@ public class ManifestReloader
 	{
 		killTimer();
 		
-		reloadTimer = new Timer();
-
 		lastTimerStart = System.currentTimeMillis();
 		
-		reloadTimer.schedule(new TimerTask()
+		reloadTimer = HLSExecutors.timers().schedule(new Runnable()
 		{
 			public void run()
 			{
@@ -98,7 +98,7 @@ public class ManifestReloader
 				reload();
 			}
 			
-		}, timerDelay);
+		}, timerDelay, TimeUnit.MILLISECONDS);
 	}
 	
 	public void stop()
@@ -110,7 +110,7 @@ public class ManifestReloader
 	{
 		if (reloadTimer != null)
 		{
-			reloadTimer.cancel();
+			reloadTimer.cancel(false);
 			reloadTimer = null;
 		}
 	}
@@ -21,10 +21,13 @@ public class ManifestSegment extends BaseManifestItem
 	public int continuityEra;
 	public int quality = 0;
 	
-	// Byte Range support. -1 means no byte range.
+	// Byte Range support, first and last (inclusive) byte. -1 means no byte range.
 	public int byteRangeStart = -1;
 	public int byteRangeEnd = -1;
 	
+	// EXT-X-PROGRAM-DATE-TIME in ms since the epoch. -1 means the playlist didn't provide one.
+	public long programDateTime = -1;
+	
 	public ManifestSegment altAudioSegment = null;
 	public int altAudioIndex = -1;
 	
@@ -32,11 +35,18 @@ public class ManifestSegment extends BaseManifestItem
 
 	public int cryptoId = -1;
 	
+	public int playerId = 0; // The player it was loaded for; its cache entry is counted against that player's share
+	
 	public double endTime()
 	{
 		return startTime + duration;
 	}
 	
+	public boolean hasProgramDateTime()
+	{
+		return programDateTime != -1;
+	}
+	
 	@Override
 	public String toString()
 	{
@@ -50,6 +60,7 @@ public class ManifestSegment extends BaseManifestItem
 		sb.append("byteRangeStart : " + byteRangeStart + " | ");
 		sb.append("cryptoId : " + cryptoId + " | ");
 		sb.append("byteRangeEnd : " + byteRangeEnd + " | ");
+		sb.append("programDateTime : " + programDateTime + " | ");
 		sb.append("uri : " + uri + "\n");
 		
 		
@@ -79,6 +90,21 @@ public class ManifestSegment extends BaseManifestItem
 		if (cryptoId != -1) 
 			return;
 
+		cryptoId = allocCryptoState();
+	}
+	
+	/*
+	 * allocCryptoState
+	 * 
+	 * Allocates a fresh native decryption state for this segment, positioned at the
+	 * start of the segment. The caller owns the handle and must release it with
+	 * SegmentCacheItem.freeCryptoState(). Returns -1 if the segment isn't encrypted.
+	 */
+	public int allocCryptoState()
+	{
+		if (key == null)
+			return -1;
+		
 		// Read the key optimistically.
 		ByteBuffer keyBytes = ByteBuffer.allocate(16);
 		HLSSegmentCache.read(key.url, 0, 16, keyBytes);
@@ -90,8 +116,9 @@ public class ManifestSegment extends BaseManifestItem
 
 		byte[] iv = hexStringToByteArray(ivStr);
 
-		cryptoId = SegmentCacheItem.allocAESCryptoState(keyBytes.array(), iv);
-		Log.i("Crypto", "Got crypto ID " + cryptoId);
+		int handle = SegmentCacheItem.allocAESCryptoState(keyBytes.array(), iv);
+		Log.i("Crypto", "Got crypto ID " + handle);
+		return handle;
 	}
 
 }
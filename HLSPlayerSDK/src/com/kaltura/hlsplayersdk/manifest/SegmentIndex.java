@@ -0,0 +1,157 @@
+package com.kaltura.hlsplayersdk.manifest;
+
+import java.util.Arrays;
+
+/*
+ * SegmentIndex
+ *
+ * What a full scan of a segment's transport stream tells us: the exact PTS range,
+ * where the random access points are, and where the timeline jumps.
+ *
+ * Offsets are byte offsets into the segment of the TS packet that starts the PES.
+ * Times are in 90kHz PTS units unless a method says otherwise.
+ *
+ */
+public class SegmentIndex
+{
+	// PTS steps bigger than this (either direction) on the reference stream are
+	// treated as discontinuities. B-frame reordering stays well under it.
+	private static final long DISCONTINUITY_THRESHOLD = 2 * 90000;
+
+	public long firstPTS = -1;		// PTS of the first PES in the segment
+	public long minPTS = -1;
+	public long maxPTS = -1;
+	public long frameDuration = 0;	// Smallest PTS step seen on the reference stream
+
+	// The stream we measure frame duration and discontinuities on. The first video
+	// stream if there is one, otherwise the first stream with timestamps.
+	public int referencePID = -1;
+	private boolean referenceIsVideo = false;
+	private long lastReferencePTS = -1;
+
+	// PTS range of the reference stream alone. Audio and video PTS don't start or end
+	// together, so the segment's duration is measured on this rather than min/maxPTS.
+	public long referenceMinPTS = -1;
+	public long referenceMaxPTS = -1;
+
+	public int keyframeCount = 0;
+	public int [] keyframeOffsets = new int[8];
+	public long [] keyframePTS = new long[8];
+
+	public int discontinuityCount = 0;
+	public int [] discontinuityOffsets = new int[2];
+
+	public boolean hasTimestamps()
+	{
+		return firstPTS != -1;
+	}
+
+	public boolean hasDiscontinuity()
+	{
+		return discontinuityCount > 0;
+	}
+
+	/*
+	 * duration
+	 *
+	 * Exact duration of the segment in seconds, measured on the reference stream, or -1
+	 * if we can't say (no timestamps, or the timeline jumps inside the segment).
+	 */
+	public double duration()
+	{
+		if (referenceMinPTS == -1 || hasDiscontinuity()) return -1;
+		return (double)(referenceMaxPTS - referenceMinPTS + frameDuration) / 90000.0;
+	}
+
+	/*
+	 * keyframeForTime
+	 *
+	 * Returns the index of the last keyframe at or before time (in seconds on the PTS
+	 * timeline), the first keyframe if time is before all of them, or -1 if we have none.
+	 */
+	public int keyframeForTime(double time)
+	{
+		if (keyframeCount == 0) return -1;
+		long target = (long)(time * 90000.0);
+		int best = 0;
+		for (int i = 1; i < keyframeCount; ++i)
+		{
+			if (keyframePTS[i] <= target && keyframePTS[i] >= keyframePTS[best])
+				best = i;
+		}
+		return best;
+	}
+
+	public int keyframeOffsetForTime(double time)
+	{
+		int i = keyframeForTime(time);
+		return i == -1 ? -1 : keyframeOffsets[i];
+	}
+
+	void notePTS(int packetID, boolean isVideo, long pts, int offset)
+	{
+		if (firstPTS == -1) firstPTS = pts;
+		if (minPTS == -1 || pts < minPTS) minPTS = pts;
+		if (maxPTS == -1 || pts > maxPTS) maxPTS = pts;
+
+		if (referencePID == -1 || (isVideo && !referenceIsVideo))
+		{
+			referencePID = packetID;
+			referenceIsVideo = isVideo;
+			lastReferencePTS = -1;
+			frameDuration = 0;
+			referenceMinPTS = -1;
+			referenceMaxPTS = -1;
+		}
+		if (packetID != referencePID) return;
+
+		if (referenceMinPTS == -1 || pts < referenceMinPTS) referenceMinPTS = pts;
+		if (referenceMaxPTS == -1 || pts > referenceMaxPTS) referenceMaxPTS = pts;
+
+		if (lastReferencePTS != -1)
+		{
+			long delta = pts - lastReferencePTS;
+			if (delta > DISCONTINUITY_THRESHOLD || delta < -DISCONTINUITY_THRESHOLD)
+				addDiscontinuity(offset);
+			else if (delta > 0 && (frameDuration == 0 || delta < frameDuration))
+				frameDuration = delta;
+		}
+		lastReferencePTS = pts;
+	}
+
+	void addKeyframe(int offset, long pts)
+	{
+		if (keyframeCount == keyframeOffsets.length)
+		{
+			keyframeOffsets = Arrays.copyOf(keyframeOffsets, keyframeCount * 2);
+			keyframePTS = Arrays.copyOf(keyframePTS, keyframeCount * 2);
+		}
+		keyframeOffsets[keyframeCount] = offset;
+		keyframePTS[keyframeCount] = pts;
+		++keyframeCount;
+	}
+
+	void addDiscontinuity(int offset)
+	{
+		// The discontinuity flag and the PTS jump usually mark the same spot
+		if (discontinuityCount > 0 && discontinuityOffsets[discontinuityCount - 1] >= offset) return;
+
+		if (discontinuityCount == discontinuityOffsets.length)
+			discontinuityOffsets = Arrays.copyOf(discontinuityOffsets, discontinuityCount * 2);
+		discontinuityOffsets[discontinuityCount++] = offset;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("firstPTS : " + firstPTS + " | ");
+		sb.append("minPTS : " + minPTS + " | ");
+		sb.append("maxPTS : " + maxPTS + " | ");
+		sb.append("frameDuration : " + frameDuration + " | ");
+		sb.append("duration : " + duration() + " | ");
+		sb.append("keyframes : " + keyframeCount + " | ");
+		sb.append("discontinuities : " + discontinuityCount);
+		return sb.toString();
+	}
+}
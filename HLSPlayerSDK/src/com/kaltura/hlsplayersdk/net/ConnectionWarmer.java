@@ -0,0 +1,239 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.HLSExecutors;
+
+/*
+ * ConnectionWarmer
+ *
+ * Gets DNS, TCP and TLS setup out of the way before startup needs them, instead of
+ * paying for each host in turn as the master playlist, the variants, the key and the
+ * first segment come up.
+ *
+ *  - prefetchDns() looks a host up in the background, for a request that's about to go
+ *    out anyway and will make its own connection. Key hosts only get this: a key may
+ *    only be good for so many fetches, so we never ask for one we don't need.
+ *  - warm() also opens a connection, with a HEAD request, which leaves it in the
+ *    connection pool for the real request. There's no body to read or abandon, so the
+ *    connection is always left fit for reuse.
+ *
+ * Each host is only warmed once per session. Also times the first byte of the first
+ * request in each startup phase, and of each warm-up, for report().
+ *
+ */
+public class ConnectionWarmer
+{
+	public static final String PHASE_MANIFEST = "manifest";
+	public static final String PHASE_PLAYLIST = "playlist";
+	public static final String PHASE_KEY = "key";
+	public static final String PHASE_SEGMENT = "segment";
+
+	// Live playlists keep bringing new keys; we only need the first few for startup
+	private static final int MAX_PHASE_URLS = 64;
+
+	private Set<String> mResolved = new HashSet<String>();		// Hosts
+	private Set<String> mWarmed = new HashSet<String>();			// Origins
+	private Map<String, String> mPhaseUrls = new HashMap<String, String>();
+	private Map<String, Long> mFirstByteMs = new LinkedHashMap<String, Long>();
+	private Map<String, Long> mWarmMs = new LinkedHashMap<String, Long>();
+	private long mSessionStart = 0;
+	private boolean mReported = false;
+
+	/*
+	 * startSession
+	 *
+	 * Forgets what's been warmed and timed, for a new video.
+	 */
+	public synchronized void startSession()
+	{
+		mResolved.clear();
+		mWarmed.clear();
+		mPhaseUrls.clear();
+		mFirstByteMs.clear();
+		mWarmMs.clear();
+		mSessionStart = SystemClock.elapsedRealtime();
+		mReported = false;
+	}
+
+	/*
+	 * prefetchDns
+	 *
+	 * Resolves the url's host on the blocking executor, so the lookup is cached by the time
+	 * a request needs it.
+	 */
+	public void prefetchDns(String url)
+	{
+		final String host = hostOf(url);
+		if (host == null) return;
+		synchronized (this)
+		{
+			if (!mResolved.add(host)) return;
+		}
+
+		HLSExecutors.blocking().execute(new Runnable()
+		{
+			@Override
+			public void run() {
+				long start = SystemClock.elapsedRealtime();
+				try
+				{
+					InetAddress.getAllByName(host);
+					noteWarm("dns " + host, SystemClock.elapsedRealtime() - start);
+				}
+				catch (Exception e)
+				{
+					Log.i("ConnectionWarmer.prefetchDns", "Couldn't resolve " + host + ": " + e);
+				}
+			}
+		});
+	}
+
+	/*
+	 * warm
+	 *
+	 * Opens a connection to the url's origin, unless we have already, by asking the
+	 * transport for url's headers. The url is remembered as belonging to phase,
+	 * so its real request is timed under that phase.
+	 */
+	public void warm(HttpTransport transport, String url, String phase)
+	{
+		final String origin = originOf(url);
+		if (origin == null) return;
+		synchronized (this)
+		{
+			if (phase != null && mPhaseUrls.size() < MAX_PHASE_URLS) mPhaseUrls.put(url, phase);
+			if (!mWarmed.add(origin)) return;
+			mResolved.add(hostOf(url));
+		}
+
+		final long start = SystemClock.elapsedRealtime();
+		final String label = (phase != null ? phase : "connect") + " " + origin;
+		HttpResponseListener listener = new HttpResponseListener()
+		{
+			private boolean mTimed = false;
+
+			private synchronized void timeFirstByte()
+			{
+				if (mTimed) return;
+				mTimed = true;
+				noteWarm(label, SystemClock.elapsedRealtime() - start);
+			}
+
+			@Override
+			public void onProgress(int bytesReceived, int totalSize)
+			{
+				timeFirstByte();
+			}
+
+			@Override
+			public void onSuccess(HttpResponse response)
+			{
+				timeFirstByte();
+			}
+
+			@Override
+			public void onFailure(int statusCode, HttpResponse response, Throwable error)
+			{
+				// Any response at all means the connection's up
+				if (statusCode != 0) timeFirstByte();
+				else Log.i("ConnectionWarmer.warm", "Couldn't warm " + origin + ": " + error);
+			}
+		};
+		transport.get(new HttpRequest(url).setHead(true), listener, null);
+	}
+
+	/*
+	 * phaseOf
+	 *
+	 * The phase a url was warmed for, or defaultPhase if it wasn't.
+	 */
+	public synchronized String phaseOf(String url, String defaultPhase)
+	{
+		String phase = mPhaseUrls.get(url);
+		return phase != null ? phase : defaultPhase;
+	}
+
+	/*
+	 * noteFirstByte
+	 *
+	 * Times the first byte of a request in phase. Only the first request in each phase
+	 * counts. The first segment's is the last thing startup waits on, so that's when we
+	 * report.
+	 */
+	public void noteFirstByte(String phase, long ms)
+	{
+		synchronized (this)
+		{
+			if (mFirstByteMs.containsKey(phase)) return;
+			mFirstByteMs.put(phase, ms);
+			if (!PHASE_SEGMENT.equals(phase) || mReported) return;
+			mReported = true;
+		}
+		report();
+	}
+
+	private synchronized void noteWarm(String label, long ms)
+	{
+		mWarmMs.put(label, ms);
+	}
+
+	/*
+	 * getFirstByteMs
+	 *
+	 * How long the first request in phase took to its first byte, or -1 if there hasn't
+	 * been one this session.
+	 */
+	public synchronized long getFirstByteMs(String phase)
+	{
+		Long ms = mFirstByteMs.get(phase);
+		return ms != null ? ms : -1;
+	}
+
+	public void report()
+	{
+		Log.i("ConnectionWarmer.report", toString());
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return "first byte (ms): " + mFirstByteMs + " warm-ups (ms): " + mWarmMs + " since start: " + (SystemClock.elapsedRealtime() - mSessionStart) + "ms";
+	}
+
+	private static String hostOf(String url)
+	{
+		try
+		{
+			return new URL(url).getHost();
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+
+	// scheme://host:port, which is what a connection can be reused for
+	private static String originOf(String url)
+	{
+		try
+		{
+			URL u = new URL(url);
+			int port = u.getPort() != -1 ? u.getPort() : u.getDefaultPort();
+			return u.getProtocol() + "://" + u.getHost() + ":" + port;
+		}
+		catch (Exception e)
+		{
+			return null;
+		}
+	}
+}
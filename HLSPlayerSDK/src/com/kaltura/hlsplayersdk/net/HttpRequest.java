@@ -0,0 +1,54 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * HttpRequest
+ * 
+ * A GET (or a HEAD) for an HttpTransport to run.
+ * 
+ */
+public class HttpRequest
+{
+	public static final int DEFAULT_TIMEOUT_MS = 10000;
+	
+	public String url = null;
+	public Map<String, String> headers = new LinkedHashMap<String, String>();
+	public int connectTimeoutMs = DEFAULT_TIMEOUT_MS;
+	public int readTimeoutMs = DEFAULT_TIMEOUT_MS;
+	public boolean head = false;	// Just the status and headers; the response's body is empty
+	
+	public HttpRequest(String requestUrl)
+	{
+		url = requestUrl;
+	}
+	
+	public HttpRequest setHeader(String name, String value)
+	{
+		headers.put(name, value);
+		return this;
+	}
+	
+	public HttpRequest setHead(boolean headOnly)
+	{
+		head = headOnly;
+		return this;
+	}
+	
+	/*
+	 * setRange
+	 * 
+	 * Asks for bytes start through end, inclusive. An end of -1 means to the end.
+	 */
+	public HttpRequest setRange(long start, long end)
+	{
+		return setHeader("Range", "bytes=" + start + "-" + (end >= 0 ? Long.toString(end) : ""));
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "HttpRequest(" + url + ")" + headers;
+	}
+}
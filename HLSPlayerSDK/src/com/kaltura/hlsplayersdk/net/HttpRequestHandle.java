@@ -0,0 +1,22 @@
+package com.kaltura.hlsplayersdk.net;
+
+/*
+ * HttpRequestHandle
+ * 
+ * A request an HttpTransport is running.
+ * 
+ */
+public interface HttpRequestHandle
+{
+	/*
+	 * cancel
+	 * 
+	 * Stops the request. Its listener won't hear anything more, even if a callback was
+	 * already on its way.
+	 */
+	public void cancel();
+	
+	public boolean isCancelled();
+	
+	public boolean isFinished();
+}
@@ -0,0 +1,76 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * HttpResponse
+ * 
+ * What came back for an HttpRequest. Header names are kept in lower case.
+ * 
+ */
+public class HttpResponse
+{
+	public int statusCode = 0;
+	public Map<String, String> headers = new HashMap<String, String>();
+	public byte [] body = null;
+	
+	public HttpResponse(int status)
+	{
+		statusCode = status;
+	}
+	
+	public String getHeader(String name)
+	{
+		return headers.get(name.toLowerCase());
+	}
+	
+	public void setHeader(String name, String value)
+	{
+		headers.put(name.toLowerCase(), value);
+	}
+	
+	/*
+	 * setHeaders
+	 * 
+	 * Takes headers the way HttpURLConnection hands them out, keeping the last value of
+	 * any repeated header.
+	 */
+	public void setHeaders(Map<String, List<String>> fields)
+	{
+		if (fields == null) return;
+		for (Map.Entry<String, List<String>> e : fields.entrySet())
+		{
+			if (e.getKey() == null || e.getValue() == null || e.getValue().size() == 0) continue; // The status line
+			setHeader(e.getKey(), e.getValue().get(e.getValue().size() - 1));
+		}
+	}
+	
+	public boolean isSuccess()
+	{
+		return statusCode >= 200 && statusCode < 300;
+	}
+	
+	/*
+	 * getContentRangeTotal
+	 * 
+	 * The complete length from "Content-Range: bytes 0-32767/7340032", or -1 if there
+	 * isn't one or it's unknown.
+	 */
+	public long getContentRangeTotal()
+	{
+		String value = getHeader("Content-Range");
+		if (value == null) return -1;
+		int slash = value.lastIndexOf('/');
+		if (slash == -1) return -1;
+		try
+		{
+			return Long.parseLong(value.substring(slash + 1).trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1; // "*" - unknown length
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.kaltura.hlsplayersdk.net;
+
+/*
+ * HttpResponseListener
+ * 
+ * Hears how an HttpRequest goes. Every request gets exactly one of onSuccess() or
+ * onFailure(), unless it's cancelled first, in which case it gets neither.
+ * 
+ */
+public interface HttpResponseListener
+{
+	public void onProgress(int bytesReceived, int totalSize);
+	
+	public void onSuccess(HttpResponse response);
+	
+	/*
+	 * statusCode is 0 if we never got a response. response may be null, and error may
+	 * be null if the server answered with an error status.
+	 */
+	public void onFailure(int statusCode, HttpResponse response, Throwable error);
+}
@@ -0,0 +1,29 @@
+package com.kaltura.hlsplayersdk.net;
+
+import android.os.Handler;
+
+/*
+ * HttpTransport
+ * 
+ * How the player fetches anything over HTTP. PooledHttpTransport is the default; set
+ * another with HLSSegmentCache.setHttpTransport(), e.g. a LocalHttpTransport to run the
+ * player against an in-process server.
+ * 
+ */
+public interface HttpTransport
+{
+	/*
+	 * get
+	 * 
+	 * Starts the request and returns straight away. The listener is called on the
+	 * callbackHandler, or on the transport's own thread if that's null.
+	 */
+	public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler);
+	
+	/*
+	 * shutdown
+	 * 
+	 * Cancels everything in flight and releases the transport's threads and connections.
+	 */
+	public void shutdown();
+}
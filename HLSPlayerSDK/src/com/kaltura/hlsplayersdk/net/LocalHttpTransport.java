@@ -0,0 +1,150 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+
+/*
+ * LocalHttpTransport
+ * 
+ * Answers requests from an in-process Server instead of the network, so the player's
+ * networking can be exercised (and loaded) without a device or a real server. Latency
+ * and bandwidth can be simulated; bodies are handed over in CHUNK_SIZE pieces, with
+ * progress, the way a real download would be.
+ * 
+ */
+public class LocalHttpTransport implements HttpTransport
+{
+	public static final int CHUNK_SIZE = 16 * 1024;
+	
+	/*
+	 * Server
+	 * 
+	 * Produces the response for a request. Called on one of the transport's threads,
+	 * possibly several at once. Returning null is a 404; throwing is a network error.
+	 */
+	public interface Server
+	{
+		public HttpResponse handle(HttpRequest request) throws IOException;
+	}
+	
+	private Server mServer = null;
+	private ExecutorService mExecutor = null;
+	private volatile int mLatencyMs = 0;
+	private volatile long mBytesPerSecond = 0;
+	
+	public LocalHttpTransport(Server server)
+	{
+		this(server, PooledHttpTransport.DEFAULT_POOL_SIZE);
+	}
+	
+	public LocalHttpTransport(Server server, int poolSize)
+	{
+		mServer = server;
+		mExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory()
+		{
+			private int mCount = 0;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "HLSLocalHttp-" + (++mCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/*
+	 * setLatency
+	 * 
+	 * How long each request waits before the server sees it.
+	 */
+	public void setLatency(int latencyMs)
+	{
+		mLatencyMs = latencyMs;
+	}
+	
+	/*
+	 * setBandwidth
+	 * 
+	 * How fast bodies are delivered, per request, or 0 for as fast as possible.
+	 */
+	public void setBandwidth(long bytesPerSecond)
+	{
+		mBytesPerSecond = bytesPerSecond;
+	}
+	
+	@Override
+	public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+	{
+		LocalRequest r = new LocalRequest(request, listener, callbackHandler);
+		try
+		{
+			r.setFuture(mExecutor.submit(r));
+		}
+		catch (RejectedExecutionException e)
+		{
+			r.deliverFailure(0, null, new IOException("Transport has been shut down"));
+		}
+		return r;
+	}
+	
+	@Override
+	public void shutdown()
+	{
+		mExecutor.shutdownNow();
+	}
+	
+	private class LocalRequest extends TransportRequest
+	{
+		public LocalRequest(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			super(request, listener, callbackHandler);
+		}
+		
+		@Override
+		protected void execute()
+		{
+			try
+			{
+				if (mLatencyMs > 0) Thread.sleep(mLatencyMs);
+				
+				HttpResponse response = mServer.handle(mRequest);
+				if (response == null) response = new HttpResponse(404);
+				
+				if (!response.isSuccess())
+				{
+					deliverFailure(response.statusCode, response, null);
+					return;
+				}
+				
+				if (mRequest.head) response.body = new byte[0];
+				int length = response.body != null ? response.body.length : 0;
+				int sent = 0;
+				while (sent < length)
+				{
+					int chunk = Math.min(CHUNK_SIZE, length - sent);
+					long bytesPerSecond = mBytesPerSecond;
+					if (bytesPerSecond > 0) Thread.sleep(chunk * 1000L / bytesPerSecond);
+					if (isCancelled()) return;
+					sent += chunk;
+					deliverProgress(sent, length);
+				}
+				deliverSuccess(response);
+			}
+			catch (InterruptedException e)
+			{
+				deliverFailure(0, null, new IOException("Interrupted"));
+			}
+			catch (IOException e)
+			{
+				deliverFailure(0, null, e);
+			}
+		}
+	}
+}
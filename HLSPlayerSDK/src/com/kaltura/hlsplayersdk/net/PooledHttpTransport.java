@@ -0,0 +1,265 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.util.Log;
+
+/*
+ * PooledHttpTransport
+ * 
+ * The default transport. Requests run on a small fixed pool of threads over
+ * HttpURLConnection, which keeps connections alive and reuses them as long as every
+ * response body is read to the end and closed, so we always do that, errors included.
+ * 
+ * Bodies are read straight into an array of the advertised Content-Length, rather than
+ * being buffered and copied.
+ * 
+ */
+public class PooledHttpTransport implements HttpTransport
+{
+	// Segment downloads take at most 6 of these (TrackFetchScheduler's MAX_ACTIVE_REQUESTS
+	// plus MAX_GATING_BYPASS); the rest keep playlist reloads and connection warming from
+	// waiting behind them
+	public static final int DEFAULT_POOL_SIZE = 8;
+	private static final int MAX_REDIRECTS = 5;
+	private static final int READ_CHUNK_SIZE = 16 * 1024;
+	private static final int UNKNOWN_LENGTH_BUFFER_SIZE = 64 * 1024;
+	
+	private ExecutorService mExecutor = null;
+	private Set<ConnectionRequest> mActive = Collections.synchronizedSet(new HashSet<ConnectionRequest>());
+	
+	public PooledHttpTransport()
+	{
+		this(DEFAULT_POOL_SIZE);
+	}
+	
+	public PooledHttpTransport(int poolSize)
+	{
+		// Let the connection pool hold on to a connection for every worker
+		if (System.getProperty("http.maxConnections") == null)
+			System.setProperty("http.maxConnections", Integer.toString(poolSize));
+		
+		mExecutor = Executors.newFixedThreadPool(poolSize, new ThreadFactory()
+		{
+			private int mCount = 0;
+			
+			@Override
+			public synchronized Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "HLSHttp-" + (++mCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	@Override
+	public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+	{
+		ConnectionRequest r = new ConnectionRequest(request, listener, callbackHandler);
+		mActive.add(r);
+		try
+		{
+			r.setFuture(mExecutor.submit(r));
+		}
+		catch (RejectedExecutionException e)
+		{
+			mActive.remove(r);
+			r.deliverFailure(0, null, new IOException("Transport has been shut down"));
+		}
+		return r;
+	}
+	
+	@Override
+	public void shutdown()
+	{
+		ConnectionRequest [] active;
+		synchronized (mActive)
+		{
+			active = mActive.toArray(new ConnectionRequest[mActive.size()]);
+			mActive.clear();
+		}
+		for (ConnectionRequest r : active)
+			r.cancel();
+		mExecutor.shutdownNow();
+	}
+	
+	private class ConnectionRequest extends TransportRequest
+	{
+		private volatile HttpURLConnection mConnection = null;
+		
+		public ConnectionRequest(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			super(request, listener, callbackHandler);
+		}
+		
+		@Override
+		protected void execute()
+		{
+			try
+			{
+				fetch();
+			}
+			catch (IOException e)
+			{
+				if (!isCancelled())
+					Log.i("PooledHttpTransport.execute", "Request failed: " + mRequest.url + " : " + e);
+				deliverFailure(0, null, e);
+			}
+			finally
+			{
+				HttpURLConnection conn = mConnection;
+				if (conn != null) conn.disconnect();
+				mConnection = null;
+				mActive.remove(this);
+			}
+		}
+		
+		@Override
+		protected void onCancel()
+		{
+			mActive.remove(this);
+			HttpURLConnection conn = mConnection;
+			if (conn != null) conn.disconnect();
+		}
+		
+		private void fetch() throws IOException
+		{
+			URL url = new URL(mRequest.url);
+			HttpURLConnection conn = null;
+			int status = 0;
+			
+			// HttpURLConnection won't follow a redirect across protocols, so we follow them ourselves
+			for (int redirects = 0; ; ++redirects)
+			{
+				conn = open(url);
+				status = conn.getResponseCode();
+				if (!isRedirect(status)) break;
+				
+				String location = conn.getHeaderField("Location");
+				drain(conn.getInputStream());
+				if (location == null || redirects >= MAX_REDIRECTS) break;
+				url = new URL(url, location);
+			}
+			
+			HttpResponse response = new HttpResponse(status);
+			response.setHeaders(conn.getHeaderFields());
+			
+			if (status >= 200 && status < 300 && mRequest.head)
+			{
+				drain(conn.getInputStream());
+				response.body = new byte[0];
+				deliverSuccess(response);
+			}
+			else if (status >= 200 && status < 300)
+			{
+				response.body = readBody(conn.getInputStream(), conn.getContentLength());
+				if (response.body != null)
+					deliverSuccess(response);
+			}
+			else
+			{
+				drain(conn.getErrorStream());
+				deliverFailure(status, response, null);
+			}
+		}
+		
+		private HttpURLConnection open(URL url) throws IOException
+		{
+			HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+			conn.setInstanceFollowRedirects(false);
+			conn.setConnectTimeout(mRequest.connectTimeoutMs);
+			conn.setReadTimeout(mRequest.readTimeoutMs);
+			if (mRequest.head) conn.setRequestMethod("HEAD");
+			for (Map.Entry<String, String> h : mRequest.headers.entrySet())
+				conn.setRequestProperty(h.getKey(), h.getValue());
+			
+			// Ranges are of the encoded body, so don't let it be compressed
+			if (mRequest.headers.containsKey("Range"))
+				conn.setRequestProperty("Accept-Encoding", "identity");
+			
+			HttpURLConnection old = mConnection;
+			mConnection = conn;
+			if (old != null) old.disconnect();
+			if (isCancelled()) throw new IOException("Cancelled");
+			return conn;
+		}
+		
+		// Returns null if we were cancelled partway through
+		private byte [] readBody(InputStream in, int contentLength) throws IOException
+		{
+			byte [] body = new byte[contentLength >= 0 ? contentLength : UNKNOWN_LENGTH_BUFFER_SIZE];
+			int total = 0;
+			int lastReported = 0;
+			try
+			{
+				while (true)
+				{
+					if (total == body.length)
+					{
+						if (contentLength >= 0)
+							break;
+						body = Arrays.copyOf(body, body.length * 2);
+					}
+					
+					int read = in.read(body, total, Math.min(READ_CHUNK_SIZE, body.length - total));
+					if (read == -1) break;
+					total += read;
+					
+					if (isCancelled()) return null;
+					if (total - lastReported >= READ_CHUNK_SIZE)
+					{
+						deliverProgress(total, contentLength);
+						lastReported = total;
+					}
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+			
+			if (contentLength >= 0 && total < contentLength)
+				throw new IOException("Response truncated at " + total + " of " + contentLength + " bytes");
+			
+			deliverProgress(total, contentLength >= 0 ? contentLength : total);
+			return total == body.length ? body : Arrays.copyOf(body, total);
+		}
+		
+		// Reads what's left of a body we don't want, so the connection can be reused
+		private void drain(InputStream in) throws IOException
+		{
+			if (in == null) return;
+			try
+			{
+				byte [] buffer = new byte[4096];
+				while (in.read(buffer) != -1)
+				{
+					if (isCancelled()) return;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		
+		private boolean isRedirect(int status)
+		{
+			return status == 301 || status == 302 || status == 303 || status == 307 || status == 308;
+		}
+	}
+}
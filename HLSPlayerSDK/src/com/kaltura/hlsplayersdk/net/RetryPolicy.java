@@ -0,0 +1,89 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.util.Random;
+
+/*
+ * RetryPolicy
+ * 
+ * Decides whether, and when, to retry a failed request. Each class of error has its own
+ * budget, since a dropped connection is worth several more tries while a 403 isn't worth
+ * any. The delay doubles with every attempt, from BASE_DELAY_MS up to MAX_DELAY_MS, and
+ * is jittered so a burst of failures doesn't come back as a burst of retries.
+ * 
+ * One policy covers one request and is not thread safe.
+ * 
+ */
+public class RetryPolicy
+{
+	public static final int ERROR_NETWORK = 0;		// No response at all: refused, reset, timed out
+	public static final int ERROR_SERVER = 1;		// 5xx
+	public static final int ERROR_NOT_FOUND = 2;	// 404 and 410
+	public static final int ERROR_CLIENT = 3;		// Any other status; asking again won't change it
+	
+	private static final int [] BUDGETS = { 4, 3, 1, 0 };
+	
+	public static final long BASE_DELAY_MS = 250;
+	public static final long MAX_DELAY_MS = 5000;
+	
+	private static final Random sRandom = new Random();
+	
+	private int [] mAttempts = new int[BUDGETS.length];
+	private int mFailures = 0;
+	
+	public static int classify(int statusCode)
+	{
+		if (statusCode <= 0) return ERROR_NETWORK;
+		if (statusCode >= 500) return ERROR_SERVER;
+		if (statusCode == 404 || statusCode == 410) return ERROR_NOT_FOUND;
+		return ERROR_CLIENT;
+	}
+	
+	/*
+	 * nextDelay
+	 * 
+	 * Records a failure with this status (0 for no response), and returns how long to
+	 * wait before retrying, or -1 if the budget for its class is used up.
+	 */
+	public long nextDelay(int statusCode)
+	{
+		++mFailures;
+		int errorClass = classify(statusCode);
+		if (mAttempts[errorClass] >= BUDGETS[errorClass]) return -1;
+		++mAttempts[errorClass];
+		return backoff(mFailures - 1);
+	}
+	
+	/*
+	 * getFailures
+	 * 
+	 * How many failures we've seen since the last reset, of any class.
+	 */
+	public int getFailures()
+	{
+		return mFailures;
+	}
+	
+	public void reset()
+	{
+		mAttempts = new int[BUDGETS.length];
+		mFailures = 0;
+	}
+	
+	/*
+	 * backoff
+	 * 
+	 * The delay before retry number attempt (from 0): half the exponential delay, plus a
+	 * random amount up to the other half.
+	 */
+	public static long backoff(int attempt)
+	{
+		long delay = MAX_DELAY_MS;
+		if (attempt < 16)
+			delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << attempt);
+		long half = delay / 2;
+		synchronized (sRandom)
+		{
+			return half + (long)(sRandom.nextDouble() * (delay - half));
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package com.kaltura.hlsplayersdk.net;
+
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+
+/*
+ * TransportRequest
+ * 
+ * The bookkeeping every transport needs for a running request: delivering callbacks on
+ * the right thread, making sure there's only ever one outcome, and making sure nothing
+ * reaches the listener after a cancel.
+ * 
+ */
+abstract class TransportRequest implements HttpRequestHandle, Runnable
+{
+	protected final HttpRequest mRequest;
+	private final HttpResponseListener mListener;
+	private final Handler mCallbackHandler;
+	
+	private boolean mCancelled = false;
+	private boolean mFinished = false;
+	private Future<?> mFuture = null;
+	
+	protected TransportRequest(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+	{
+		mRequest = request;
+		mListener = listener;
+		mCallbackHandler = callbackHandler;
+	}
+	
+	/*
+	 * execute
+	 * 
+	 * Runs the request on a transport thread, reporting through deliverProgress(), and
+	 * finishing with one of deliverSuccess() or deliverFailure().
+	 */
+	protected abstract void execute();
+	
+	/*
+	 * onCancel
+	 * 
+	 * Called (on whatever thread cancelled) so the transport can abort any I/O.
+	 */
+	protected void onCancel()
+	{
+	}
+	
+	@Override
+	public void run()
+	{
+		if (isCancelled()) return;
+		try
+		{
+			execute();
+		}
+		catch (RuntimeException e)
+		{
+			deliverFailure(0, null, e);
+		}
+	}
+	
+	synchronized void setFuture(Future<?> future)
+	{
+		mFuture = future;
+		if (mCancelled) future.cancel(true);
+	}
+	
+	@Override
+	public void cancel()
+	{
+		Future<?> future;
+		boolean running;
+		synchronized (this)
+		{
+			if (mCancelled) return;
+			mCancelled = true;
+			running = !mFinished;
+			future = mFuture;
+		}
+		if (!running) return; // Just drop the callback that's on its way
+		if (future != null) future.cancel(true);
+		onCancel();
+	}
+	
+	@Override
+	public synchronized boolean isCancelled()
+	{
+		return mCancelled;
+	}
+	
+	@Override
+	public synchronized boolean isFinished()
+	{
+		return mFinished;
+	}
+	
+	protected void deliverProgress(final int bytesReceived, final int totalSize)
+	{
+		if (isCancelled()) return;
+		deliver(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!isCancelled())
+					mListener.onProgress(bytesReceived, totalSize);
+			}
+		});
+	}
+	
+	protected void deliverSuccess(final HttpResponse response)
+	{
+		if (!finish()) return;
+		deliver(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!isCancelled())
+					mListener.onSuccess(response);
+			}
+		});
+	}
+	
+	protected void deliverFailure(final int statusCode, final HttpResponse response, final Throwable error)
+	{
+		if (!finish()) return;
+		deliver(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if (!isCancelled())
+					mListener.onFailure(statusCode, response, error);
+			}
+		});
+	}
+	
+	// Returns false if we've already finished one way or another
+	private synchronized boolean finish()
+	{
+		if (mCancelled || mFinished) return false;
+		mFinished = true;
+		return true;
+	}
+	
+	private void deliver(Runnable r)
+	{
+		if (mCallbackHandler != null)
+			mCallbackHandler.post(r);
+		else
+			r.run();
+	}
+}
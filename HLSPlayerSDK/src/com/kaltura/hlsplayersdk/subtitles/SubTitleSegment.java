@@ -1,11 +1,15 @@
 package com.kaltura.hlsplayersdk.subtitles;
 
 
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Vector;
 
 import com.kaltura.hlsplayersdk.HLSPlayerViewController;
 import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
 import com.kaltura.hlsplayersdk.cache.SegmentCachedListener;
+import com.kaltura.hlsplayersdk.cache.TrackFetchScheduler;
 
 import android.util.Log;
 
@@ -24,6 +28,7 @@ public class SubTitleSegment implements SegmentCachedListener {
 	public double segmentTimeWindowStart = 0;
 	public double segmentTimeWindowDuration = -1;
 	public int id = 0;
+	public int playerId = 0; // The player it was loaded for
 	
 	public String _url;
 	private boolean _isLoaded = false;
@@ -31,6 +36,16 @@ public class SubTitleSegment implements SegmentCachedListener {
 	private double _localts = 0;
 	private double _tsmod = 0;
 	private boolean _precacheRequested = false;
+	private int _cueCursor = 0;	// The first cue after the last range asked for
+	
+	private static final Comparator<TextTrackCue> CUE_START_ORDER = new Comparator<TextTrackCue>()
+	{
+		@Override
+		public int compare(TextTrackCue a, TextTrackCue b)
+		{
+			return Double.compare(a.startTime, b.startTime);
+		}
+	};
 	
 	@Override
 	public String toString()
@@ -72,14 +87,47 @@ public class SubTitleSegment implements SegmentCachedListener {
 	public Vector<TextTrackCue> getCuesForTimeRange( double startTime, double endTime)
 	{
 		Vector<TextTrackCue> result = new Vector<TextTrackCue>();
+		getCuesForTimeRange(startTime, endTime, result);
+		return result;
+	}
+	
+	/*
+	 * getCuesForTimeRange
+	 * 
+	 * Adds the cues that start from startTime to endTime to result. Cues are kept in start
+	 * order, so we find the first one by binary search. When the range picks up where the
+	 * last one left off, as it does during playback, it's where the cursor already is.
+	 */
+	public void getCuesForTimeRange( double startTime, double endTime, List<TextTrackCue> result)
+	{
+		int count = textTrackCues.size();
+		int i = _cueCursor;
+		boolean atCursor = i <= count
+				&& (i == 0 || textTrackCues.get(i - 1).startTime < startTime)
+				&& (i == count || textTrackCues.get(i).startTime >= startTime);
+		if (!atCursor) i = firstCueStartingFrom(startTime);
 		
-		for (int i = 0; i < textTrackCues.size(); ++i)
+		for (; i < count; ++i)
 		{
 			TextTrackCue cue = textTrackCues.get(i);
 			if (cue.startTime > endTime) break;
-			if (cue.startTime >= startTime) result.add(cue);
+			result.add(cue);
 		}
-		return result;
+		_cueCursor = i;
+	}
+	
+	// The index of the first cue that starts at or after time
+	private int firstCueStartingFrom(double time)
+	{
+		int lo = 0;
+		int hi = textTrackCues.size();
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (textTrackCues.get(mid).startTime < time) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
 	}
 	
 	public void setLoaded()
@@ -105,7 +153,7 @@ public class SubTitleSegment implements SegmentCachedListener {
 		if (_precacheRequested) return;
 		//HLSSegmentCache.precache(_url, -1, false, this, HLSPlayerViewController.getHTTPResponseThreadHandler()); //(_url, -1, );
 		Log.i("SubTitleSegment.precache", "Precaching " + this);
-		HLSSegmentCache.precache(_url, -1);
+		HLSSegmentCache.precache(_url, -1, TrackFetchScheduler.TRACK_SUBTITLE, playerId);
 		_precacheRequested = true;
 	}
 	
@@ -205,6 +253,10 @@ public class SubTitleSegment implements SegmentCachedListener {
 		// And one last cue, just in case there wasn't an empty line
 		if (textTrackCue != null) textTrackCues.add(textTrackCue);
 		
+		// Lookups depend on start order, which WebVTT asks for but doesn't guarantee
+		Collections.sort(textTrackCues, CUE_START_ORDER);
+		_cueCursor = 0;
+		
 		setTimeWindowStart(segmentTimeWindowStart);
 		_isLoaded = true;
 		
@@ -2,10 +2,11 @@ package com.kaltura.hlsplayersdk.subtitles;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import com.kaltura.hlsplayersdk.HLSExecutors;
 import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
 import com.kaltura.hlsplayersdk.manifest.ManifestParser;
 import com.kaltura.hlsplayersdk.manifest.ManifestPlaylist;
@@ -19,15 +20,20 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 	private double mLastTime = 0;
 	private int lastLanguage = 0;
 	
+	private Vector<TextTrackCue> mCues = new Vector<TextTrackCue>();	// What update() returns, reused
+	private ManifestParser mCursorManifest = null;	// The playlist and segment the last lookup found
+	private int mCursorSegment = -1;
+	
 	public SubtitleHandler(ManifestParser baseManifest)
 	{
 		mManifest = baseManifest;
+		lastLanguage = getDefaultLanguageIndex(); // The one the player starts with, and whose playlist early start waits for
 		initialize();
 	}
 	
 	public void initialize()
 	{
-		Thread t = new Thread(new Runnable() {
+		HLSExecutors.work().execute(new Runnable() {
 			@Override
 			public void run()
 			{
@@ -43,8 +49,7 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 					}
 				}
 			}
-		}, "Subtitle Initialize Thread");
-		t.start();
+		});
 
 	}
 	
@@ -99,16 +104,23 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 		return 0;
 	}
 	
+	/*
+	 * update
+	 * 
+	 * The cues that have started since the last update. The vector returned is reused, and
+	 * is only good until the next call.
+	 */
 	public Vector<TextTrackCue> update(double time, int language)
 	{
-		SubTitleSegment stp = getSegmentForTime(time, language);
+		SubTitleSegment stp = getSegmentForTime(time, language, true);
 		
 		if (stp != null)
 		{
 			if (!stp.isLoaded())
 				stp.load();
 			
-			Vector<TextTrackCue> cues = stp.getCuesForTimeRange(mLastTime, time);
+			mCues.clear();
+			stp.getCuesForTimeRange(mLastTime, time, mCues);
 			mLastTime = time;
 			
 			if (stp.inPrecacheWindow(time, 10))
@@ -116,24 +128,22 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 				precacheSegmentAtTime(time + 10, language);
 			}
 			
-			for (TextTrackCue cue : cues)
-				Log.i("SubtitleHandler.update", "Returning:" + cue);
-			
-			return cues;
+			return mCues;
 		}
 		return null;
 	}
 	
 	public void precacheSegmentAtTime(double time, int language)
 	{
-		SubTitleSegment ntsp = getSegmentForTime(time, language);
+		SubTitleSegment ntsp = getSegmentForTime(time, language, false);
 		if (ntsp != null)
 		{
 			ntsp.precache();
 		}
 	}
 	
-	private SubTitleSegment getSegmentForTime(double time, int language)
+	// Looking ahead (for precaching, say) shouldn't move the cursor off the playhead
+	private SubTitleSegment getSegmentForTime(double time, int language, boolean moveCursor)
 	{
 		if (mManifest == null)
 		{
@@ -149,18 +159,48 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 			return null;
 		}
 		
-		for (int i = 0; i < mp.subtitles.size(); ++i)
+		Vector<SubTitleSegment> segments = mp.subtitles;
+		int count = segments.size();
+		
+		// Playback usually finds itself in the same segment as last time, or the next one
+		if (mp == mCursorManifest && mCursorSegment >= 0)
 		{
-			SubTitleSegment stp = mp.subtitles.get(i);
-			if (stp != null)
+			for (int i = mCursorSegment; i < count && i <= mCursorSegment + 1; ++i)
 			{
-				if ( stp.timeInSegment(time))
+				SubTitleSegment stp = segments.get(i);
+				if (stp != null && stp.timeInSegment(time))
 				{
-					//Log.i("SubtitleHandler.getSegmentForTime", "Returning segment " + i + " for time " + time + ". Window = " + stp.segmentTimeWindowStart + "-->" + (stp.segmentTimeWindowStart + stp.segmentTimeWindowDuration));
+					if (moveCursor) mCursorSegment = i;
 					return stp;
 				}
 			}
 		}
+		
+		// Otherwise find the last segment that starts by then. Windows are in time order,
+		// but a segment's window can shift a little once it loads, so check its neighbours too.
+		int lo = 0;
+		int hi = count;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			SubTitleSegment stp = segments.get(mid);
+			if (stp != null && stp.segmentTimeWindowStart <= time) lo = mid + 1;
+			else hi = mid;
+		}
+		for (int i = Math.max(lo - 2, 0); i < count && i <= lo; ++i)
+		{
+			SubTitleSegment stp = segments.get(i);
+			if (stp != null && stp.timeInSegment(time))
+			{
+				//Log.i("SubtitleHandler.getSegmentForTime", "Returning segment " + i + " for time " + time + ". Window = " + stp.segmentTimeWindowStart + "-->" + (stp.segmentTimeWindowStart + stp.segmentTimeWindowDuration));
+				if (moveCursor)
+				{
+					mCursorManifest = mp;
+					mCursorSegment = i;
+				}
+				return stp;
+			}
+		}
 		return null;
 
 	}
@@ -230,7 +270,7 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 	*****************************************/
 	
 	private ManifestParser reloadingManifest = null;
-	private Timer reloadTimer = null;
+	private ScheduledFuture<?> reloadTimer = null;
 	private int reloadingLanguage = -1;
 	private boolean closed = false;
 	private long mTimerDelay = 10000;
@@ -254,7 +294,7 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 	{
 		if (reloadTimer != null)
 		{
-			reloadTimer.cancel();
+			reloadTimer.cancel(false);
 			reloadTimer = null;
 		}
 	}
@@ -278,15 +318,14 @@ public class SubtitleHandler implements OnSubtitleParseCompleteListener, Manifes
 		if (closed) return;
 		killTimer();
 		
-		reloadTimer = new Timer();
-		reloadTimer.schedule(new TimerTask()
+		reloadTimer = HLSExecutors.timers().schedule(new Runnable()
 		{
 			public void run()
 			{
 				Log.i("SubtitleHandler.reloadTimerComplete.run", "Reload Timer Complete!");
 				reload(language, null);
 			}
-		}, mTimerDelay);
+		}, mTimerDelay, TimeUnit.MILLISECONDS);
 	}
 	
 
@@ -146,7 +146,8 @@ public class ByteArray
 		
 		if (position + count > array.length)
 		{
-			expand(position + count - array.length);
+			// Grow geometrically so that many small writes stay linear overall.
+			expand(Math.max(position + count - array.length, array.length));
 		}
 		
 		System.arraycopy(bytes, offset, array, position, count);
@@ -0,0 +1,192 @@
+package com.kaltura.hlsplayersdk.types;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Handler;
+
+/*
+ * PendingResult
+ *
+ * The result of some work that finishes later. Whoever does the work calls complete()
+ * or fail(); whoever wants the result either chains a Callback with then(), or blocks
+ * in get() with a timeout. Cancelling drops any callbacks that haven't run yet, even
+ * ones already posted, so a superseded request can't act after the fact.
+ *
+ */
+public class PendingResult<T>
+{
+	public interface Callback<T>
+	{
+		public void onComplete(T result);
+		public void onFailed(String reason);
+	}
+
+	private static final int PENDING = 0;
+	private static final int COMPLETED = 1;
+	private static final int FAILED = 2;
+
+	private int mState = PENDING;
+	private boolean mCancelled = false;
+	private T mResult = null;
+	private String mFailureReason = null;
+
+	private List<Callback<T>> mCallbacks = new ArrayList<Callback<T>>();
+	private List<Handler> mHandlers = new ArrayList<Handler>();
+
+	public static <T> PendingResult<T> completed(T result)
+	{
+		PendingResult<T> r = new PendingResult<T>();
+		r.complete(result);
+		return r;
+	}
+
+	public boolean complete(T result)
+	{
+		synchronized (this)
+		{
+			if (mState != PENDING || mCancelled) return false;
+			mResult = result;
+			mState = COMPLETED;
+			notifyAll();
+		}
+		dispatch();
+		return true;
+	}
+
+	public boolean fail(String reason)
+	{
+		synchronized (this)
+		{
+			if (mState != PENDING || mCancelled) return false;
+			mFailureReason = reason;
+			mState = FAILED;
+			notifyAll();
+		}
+		dispatch();
+		return true;
+	}
+
+	/*
+	 * cancel
+	 * 
+	 * Returns true if the work hadn't finished yet. Either way, callbacks that haven't
+	 * run won't.
+	 */
+	public synchronized boolean cancel()
+	{
+		mCancelled = true;
+		mCallbacks.clear();
+		mHandlers.clear();
+		notifyAll();
+		return mState == PENDING;
+	}
+
+	public synchronized boolean isDone()
+	{
+		return mState != PENDING || mCancelled;
+	}
+
+	public synchronized boolean isCompleted()
+	{
+		return mState == COMPLETED;
+	}
+
+	public synchronized boolean isCancelled()
+	{
+		return mCancelled;
+	}
+
+	/*
+	 * then
+	 *
+	 * Runs the callback on the handler once we have a result. If we already have one,
+	 * it's posted straight away. A null handler runs the callback on whichever thread
+	 * finishes the work.
+	 */
+	public void then(Callback<T> callback, Handler handler)
+	{
+		synchronized (this)
+		{
+			if (mCancelled) return;
+			mCallbacks.add(callback);
+			mHandlers.add(handler);
+			if (mState == PENDING) return;
+		}
+		dispatch();
+	}
+
+	/*
+	 * get
+	 *
+	 * Blocks until we have a result, or the timeout runs out. Returns the result, or null
+	 * if the work failed, was cancelled, or didn't finish in time.
+	 */
+	public T get(long timeoutMs)
+	{
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		synchronized (this)
+		{
+			while (mState == PENDING && !mCancelled)
+			{
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) return null;
+				try
+				{
+					wait(remaining);
+				}
+				catch (InterruptedException e)
+				{
+					return null;
+				}
+			}
+			return (mState == COMPLETED && !mCancelled) ? mResult : null;
+		}
+	}
+
+	public synchronized String getFailureReason()
+	{
+		return mFailureReason;
+	}
+
+	private void dispatch()
+	{
+		List<Callback<T>> callbacks;
+		List<Handler> handlers;
+		final boolean completed;
+		final T result;
+		final String reason;
+		synchronized (this)
+		{
+			if (mCallbacks.isEmpty()) return;
+			callbacks = mCallbacks;
+			handlers = mHandlers;
+			mCallbacks = new ArrayList<Callback<T>>();
+			mHandlers = new ArrayList<Handler>();
+			completed = mState == COMPLETED;
+			result = mResult;
+			reason = mFailureReason;
+		}
+
+		for (int i = 0; i < callbacks.size(); ++i)
+		{
+			final Callback<T> callback = callbacks.get(i);
+			Runnable r = new Runnable()
+			{
+				public void run()
+				{
+					if (isCancelled()) return;
+					if (completed)
+						callback.onComplete(result);
+					else
+						callback.onFailed(reason);
+				}
+			};
+			Handler handler = handlers.get(i);
+			if (handler != null)
+				handler.post(r);
+			else
+				r.run();
+		}
+	}
+}
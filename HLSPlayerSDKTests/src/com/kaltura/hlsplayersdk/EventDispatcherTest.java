@@ -0,0 +1,125 @@
+package com.kaltura.hlsplayersdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+public class EventDispatcherTest extends TestCase
+{
+	/*
+	 * RecordingSink
+	 *
+	 * Writes down what's delivered, in order.
+	 */
+	private static class RecordingSink implements EventDispatcher.Sink
+	{
+		public List<String> delivered = new ArrayList<String>();
+
+		@Override
+		public void onEvent(EventDispatcher.Event e)
+		{
+			delivered.add("event" + e.type + ":" + e.code);
+		}
+
+		@Override
+		public void onPlayhead(int msec)
+		{
+			delivered.add("playhead:" + msec);
+		}
+
+		@Override
+		public void onProgress(int progress)
+		{
+			delivered.add("progress:" + progress);
+		}
+
+		@Override
+		public void onDurationChanged()
+		{
+			delivered.add("duration");
+		}
+	}
+
+	private HandlerThread mThread;
+	private RecordingSink mSink;
+	private EventDispatcher mEvents;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+
+		// Its looper has quit, so nothing flushes but the test
+		mThread = new HandlerThread("EventDispatcherTest");
+		mThread.start();
+		Handler handler = new Handler(mThread.getLooper());
+		mThread.quit();
+
+		mSink = new RecordingSink();
+		mEvents = new EventDispatcher(mSink, handler);
+	}
+
+	private void post(int type, int code)
+	{
+		EventDispatcher.Event e = mEvents.obtain(type);
+		e.code = code;
+		mEvents.post(e);
+	}
+
+	public void testCoalescesToTheLatestValue()
+	{
+		mEvents.postPlayhead(100);
+		mEvents.postPlayhead(200);
+		mEvents.postProgress(10);
+		mEvents.postProgress(20);
+		mEvents.flush();
+
+		assertEquals(2, mSink.delivered.size());
+		assertEquals("progress:20", mSink.delivered.get(0));
+		assertEquals("playhead:200", mSink.delivered.get(1));
+	}
+
+	public void testOrderedEventsKeepTheirOrder()
+	{
+		post(EventDispatcher.EVENT_STATE_CHANGE, 1);
+		post(EventDispatcher.EVENT_ERROR, 2);
+		post(EventDispatcher.EVENT_STATE_CHANGE, 3);
+		mEvents.flush();
+
+		assertEquals(3, mSink.delivered.size());
+		assertEquals("event0:1", mSink.delivered.get(0));
+		assertEquals("event1:2", mSink.delivered.get(1));
+		assertEquals("event0:3", mSink.delivered.get(2));
+	}
+
+	public void testCoalescedValuesStayAheadOfLaterEvents()
+	{
+		// A seek: the old playhead, SEEKING, SEEKED, then the new playhead
+		mEvents.postPlayhead(1000);
+		mEvents.postDurationChanged();
+		post(EventDispatcher.EVENT_STATE_CHANGE, 5);
+		post(EventDispatcher.EVENT_STATE_CHANGE, 6);
+		mEvents.postPlayhead(9000);
+		mEvents.flush();
+
+		assertEquals(5, mSink.delivered.size());
+		assertEquals("duration", mSink.delivered.get(0));
+		assertEquals("playhead:1000", mSink.delivered.get(1));
+		assertEquals("event0:5", mSink.delivered.get(2));
+		assertEquals("event0:6", mSink.delivered.get(3));
+		assertEquals("playhead:9000", mSink.delivered.get(4));
+	}
+
+	public void testNothingIsDeliveredTwice()
+	{
+		mEvents.postPlayhead(100);
+		post(EventDispatcher.EVENT_TEXT, 0);
+		mEvents.flush();
+		mEvents.flush();
+
+		assertEquals(2, mSink.delivered.size());
+	}
+}
@@ -0,0 +1,227 @@
+package com.kaltura.hlsplayersdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+
+import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+import com.kaltura.hlsplayersdk.net.HttpTransport;
+
+public class URLLoaderTest extends TestCase
+{
+	/*
+	 * FakeTransport
+	 *
+	 * Records the fetches it's asked for. If it has a hook, runs it in the middle of get(),
+	 * and then fails.
+	 */
+	private static class FakeTransport implements HttpTransport
+	{
+		public List<FakeRequest> started = new ArrayList<FakeRequest>();
+		public Runnable throwAfter = null;
+
+		@Override
+		public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			if (throwAfter != null)
+			{
+				Runnable hook = throwAfter;
+				throwAfter = null;
+				hook.run();
+				throw new IllegalStateException("No connection");
+			}
+			FakeRequest r = new FakeRequest(listener);
+			started.add(r);
+			return r;
+		}
+
+		@Override
+		public void shutdown()
+		{
+		}
+	}
+
+	private static class FakeRequest implements HttpRequestHandle
+	{
+		public HttpResponseListener listener;
+		public boolean cancelled = false;
+
+		public FakeRequest(HttpResponseListener listener)
+		{
+			this.listener = listener;
+		}
+
+		public void succeed(String body)
+		{
+			HttpResponse response = new HttpResponse(200);
+			response.body = body.getBytes();
+			listener.onSuccess(response);
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		public boolean isFinished()
+		{
+			return false;
+		}
+	}
+
+	/*
+	 * RecordingLoader
+	 *
+	 * Notes what the flight hands it, instead of passing it on to a listener.
+	 */
+	private static class RecordingLoader extends URLLoader
+	{
+		public List<String> heard = new ArrayList<String>();
+
+		public RecordingLoader()
+		{
+			super("test", NO_LISTENER, null);
+		}
+
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+			heard.add("success:" + new String(response.body));
+		}
+
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+			heard.add("failure:" + statusCode);
+		}
+	}
+
+	private static final URLLoader.DownloadEventListener NO_LISTENER = new URLLoader.DownloadEventListener()
+	{
+		@Override
+		public void onDownloadComplete(URLLoader loader, String response)
+		{
+		}
+
+		@Override
+		public void onDownloadFailed(URLLoader loader, String response)
+		{
+		}
+	};
+
+	private static final String URL = "http://example.com/video/index.m3u8";
+
+	private FakeTransport mTransport;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mTransport = new FakeTransport();
+		HLSSegmentCache.setHttpTransport(mTransport);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		URLLoader.cancelFlights();
+		HLSSegmentCache.setHttpTransport(null);
+		super.tearDown();
+	}
+
+	public void testConcurrentGetsShareOneFetch()
+	{
+		int coalesced = URLLoader.getCoalescedRequestCount();
+		RecordingLoader a = new RecordingLoader();
+		RecordingLoader b = new RecordingLoader();
+		a.get(URL);
+		b.get(URL);
+		assertEquals(1, mTransport.started.size());
+		assertEquals(coalesced + 1, URLLoader.getCoalescedRequestCount());
+
+		mTransport.started.get(0).succeed("#EXTM3U");
+		assertEquals(1, a.heard.size());
+		assertEquals("success:#EXTM3U", a.heard.get(0));
+		assertEquals(a.heard, b.heard);
+	}
+
+	public void testAFetchThatLandedIsntJoined()
+	{
+		RecordingLoader a = new RecordingLoader();
+		a.get(URL);
+		mTransport.started.get(0).succeed("first");
+
+		RecordingLoader b = new RecordingLoader();
+		b.get(URL);
+		assertEquals(2, mTransport.started.size());
+		mTransport.started.get(1).succeed("second");
+		assertEquals("success:second", b.heard.get(0));
+		assertEquals(1, a.heard.size());
+	}
+
+	public void testCancellingOneWaiterLeavesTheFetchForTheOthers()
+	{
+		RecordingLoader a = new RecordingLoader();
+		RecordingLoader b = new RecordingLoader();
+		a.get(URL);
+		b.get(URL);
+
+		a.cancel();
+		assertFalse(mTransport.started.get(0).cancelled);
+
+		mTransport.started.get(0).succeed("#EXTM3U");
+		assertEquals(0, a.heard.size());
+		assertEquals(1, b.heard.size());
+	}
+
+	public void testCancellingTheLastWaiterCancelsTheFetch()
+	{
+		RecordingLoader a = new RecordingLoader();
+		RecordingLoader b = new RecordingLoader();
+		a.get(URL);
+		b.get(URL);
+
+		a.cancel();
+		b.cancel();
+		assertTrue(mTransport.started.get(0).cancelled);
+
+		// And the next get starts afresh
+		new RecordingLoader().get(URL);
+		assertEquals(2, mTransport.started.size());
+	}
+
+	public void testAFetchThatCantStartFailsEveryWaiter()
+	{
+		final RecordingLoader a = new RecordingLoader();
+		final RecordingLoader b = new RecordingLoader();
+
+		// b joins while a's fetch is still being started
+		mTransport.throwAfter = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				b.get(URL);
+			}
+		};
+		a.get(URL);
+
+		assertEquals(1, a.heard.size());
+		assertEquals("failure:0", a.heard.get(0));
+		assertEquals(a.heard, b.heard);
+	}
+}
@@ -0,0 +1,86 @@
+package com.kaltura.hlsplayersdk.abr;
+
+import junit.framework.TestCase;
+
+public class BandwidthEstimatorTest extends TestCase
+{
+	private static final long MBPS_BYTES_PER_SECOND = 125000;
+
+	private static void sampleSeconds(BandwidthEstimator estimator, int seconds, double mbps)
+	{
+		for (int i = 0; i < seconds; ++i)
+			estimator.sample(1000, (long)(mbps * MBPS_BYTES_PER_SECOND));
+	}
+
+	public void testNoEstimateUntilEnoughData()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		assertFalse(estimator.hasEstimate());
+		assertEquals(-1, estimator.getEstimate(), 0);
+
+		estimator.setDefaultEstimate(500000);
+		estimator.sample(1000, MBPS_BYTES_PER_SECOND);
+		assertEquals(500000, estimator.getEstimate(), 0);
+
+		estimator.sample(1000, MBPS_BYTES_PER_SECOND);
+		assertTrue(estimator.hasEstimate());
+	}
+
+	public void testSmallSamplesAreIgnored()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		for (int i = 0; i < 100; ++i)
+			estimator.sample(10, BandwidthEstimator.MIN_SAMPLE_BYTES - 1);
+		estimator.sample(0, MBPS_BYTES_PER_SECOND);
+		assertFalse(estimator.hasEstimate());
+	}
+
+	public void testSteadyRate()
+	{
+		// The averages start from zero; the estimate is corrected for it from the first sample
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		sampleSeconds(estimator, 2, 1.0);
+		assertEquals(1000000, estimator.getEstimate(), 1);
+	}
+
+	public void testDropIsFollowedQuickly()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		sampleSeconds(estimator, 20, 4.0);
+		sampleSeconds(estimator, 2, 1.0);
+		double estimate = estimator.getEstimate();
+		assertTrue("" + estimate, estimate < 2500000);
+		assertTrue("" + estimate, estimate > 1000000);
+	}
+
+	public void testSingleFastSampleIsDiscounted()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		sampleSeconds(estimator, 20, 1.0);
+		sampleSeconds(estimator, 1, 10.0);
+		double estimate = estimator.getEstimate();
+		assertTrue("" + estimate, estimate > 1000000);
+		assertTrue("" + estimate, estimate < 3000000);
+	}
+
+	public void testLongSamplesCountForMore()
+	{
+		BandwidthEstimator shortSample = new BandwidthEstimator();
+		sampleSeconds(shortSample, 20, 1.0);
+		shortSample.sample(500, (long)(2.0 * MBPS_BYTES_PER_SECOND / 2));
+
+		BandwidthEstimator longSample = new BandwidthEstimator();
+		sampleSeconds(longSample, 20, 1.0);
+		longSample.sample(4000, (long)(2.0 * MBPS_BYTES_PER_SECOND * 4));
+
+		assertTrue(longSample.getEstimate() > shortSample.getEstimate());
+	}
+
+	public void testReset()
+	{
+		BandwidthEstimator estimator = new BandwidthEstimator();
+		sampleSeconds(estimator, 4, 1.0);
+		estimator.reset();
+		assertFalse(estimator.hasEstimate());
+	}
+}
@@ -0,0 +1,159 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.kaltura.hlsplayersdk.manifest.ManifestSegment;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+
+public class ByteRangeUriTest extends TestCase
+{
+	private static final String URL = "http://example.com/video/movie.ts";
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		// Finished items are stored there
+		HLSSegmentCache.initialize();
+	}
+
+	public void testRoundTrip()
+	{
+		String uri = ByteRangeUri.make(URL, 1000, 1999);
+		assertTrue(ByteRangeUri.isRanged(uri));
+		assertEquals(URL, ByteRangeUri.getUrl(uri));
+		assertEquals(1000, ByteRangeUri.getStart(uri));
+		assertEquals(1999, ByteRangeUri.getEnd(uri));
+	}
+
+	public void testPlainUrlHasNoRange()
+	{
+		assertFalse(ByteRangeUri.isRanged(URL));
+		assertFalse(ByteRangeUri.isRanged(null));
+		assertEquals(URL, ByteRangeUri.getUrl(URL));
+		assertEquals(-1, ByteRangeUri.getStart(URL));
+		assertEquals(-1, ByteRangeUri.getEnd(URL));
+	}
+
+	public void testRequestCarriesTheRangeAsAHeader()
+	{
+		HttpRequest request = ByteRangeUri.toRequest(ByteRangeUri.make(URL + "?token=abc", 1000, 1999));
+		assertEquals(URL + "?token=abc", request.url);
+		assertEquals("bytes=1000-1999", request.headers.get("Range"));
+
+		assertNull(ByteRangeUri.toRequest(URL).headers.get("Range"));
+	}
+
+	public void testExtractRangeFromAPartialResponse()
+	{
+		String uri = ByteRangeUri.make(URL, 2, 5);
+		byte [] body = bytes(4, 2);
+		assertSame(body, ByteRangeUri.extractRange(uri, 206, body));
+
+		// A 206 of the wrong length isn't what we asked for
+		assertNull(ByteRangeUri.extractRange(uri, 206, bytes(3, 2)));
+	}
+
+	public void testExtractRangeFromAServerThatIgnoredRange()
+	{
+		String uri = ByteRangeUri.make(URL, 2, 5);
+		assertTrue(Arrays.equals(bytes(4, 2), ByteRangeUri.extractRange(uri, 200, bytes(10, 0))));
+		assertNull(ByteRangeUri.extractRange(uri, 200, bytes(5, 0)));
+	}
+
+	public void testUnrangedBodyIsUntouched()
+	{
+		byte [] body = bytes(10, 0);
+		assertSame(body, ByteRangeUri.extractRange(URL, 200, body));
+	}
+
+	public void testAdjacentRangesAreGrouped()
+	{
+		ManifestSegment first = segment(URL, 0, 99);
+		List<ManifestSegment> upcoming = segments(segment(URL, 100, 199), segment(URL, 200, 299));
+		List<ManifestSegment> group = HLSSegmentCache.adjacentRanges(first, upcoming);
+		assertEquals(3, group.size());
+		assertSame(first, group.get(0));
+		assertSame(upcoming.get(1), group.get(2));
+	}
+
+	public void testGroupStopsAtAGapOrAnotherResource()
+	{
+		ManifestSegment first = segment(URL, 0, 99);
+		assertEquals(1, HLSSegmentCache.adjacentRanges(first, segments(segment(URL, 101, 199))).size());
+		assertEquals(1, HLSSegmentCache.adjacentRanges(first, segments(segment(URL + "2", 100, 199))).size());
+
+		ManifestSegment plain = new ManifestSegment();
+		plain.uri = URL;
+		assertEquals(2, HLSSegmentCache.adjacentRanges(first, segments(segment(URL, 100, 199), plain, segment(URL, 200, 299))).size());
+	}
+
+	public void testGroupKeepsToTheLimits()
+	{
+		ManifestSegment first = segment(URL, 0, 99);
+		List<ManifestSegment> upcoming = new ArrayList<ManifestSegment>();
+		for (int i = 1; i <= HLSSegmentCache.MAX_COALESCED_SEGMENTS + 2; ++i)
+			upcoming.add(segment(URL, i * 100, i * 100 + 99));
+		assertEquals(HLSSegmentCache.MAX_COALESCED_SEGMENTS, HLSSegmentCache.adjacentRanges(first, upcoming).size());
+
+		long half = HLSSegmentCache.MAX_COALESCED_BYTES / 2;
+		first = segment(URL, 0, half - 1);
+		upcoming = segments(segment(URL, half, 2 * half - 1), segment(URL, 2 * half, 2 * half));
+		assertEquals(2, HLSSegmentCache.adjacentRanges(first, upcoming).size());
+	}
+
+	public void testCoalescedResponseIsSplitBetweenTheItems()
+	{
+		List<SegmentCacheItem> items = new ArrayList<SegmentCacheItem>();
+		items.add(item(ByteRangeUri.make(URL, 10, 13)));
+		items.add(item(ByteRangeUri.make(URL, 14, 15)));
+		items.add(item(ByteRangeUri.make(URL, 16, 20)));
+
+		CoalescedRangeDownload download = new CoalescedRangeDownload(items);
+		download.onProgress(5, 11);
+		assertEquals(4, items.get(0).bytesDownloaded);
+		assertEquals(1, items.get(1).bytesDownloaded);
+		assertEquals(0, items.get(2).bytesDownloaded);
+
+		HttpResponse response = new HttpResponse(206);
+		response.body = bytes(11, 10);
+		download.onSuccess(response);
+		assertTrue(Arrays.equals(bytes(4, 10), items.get(0).data));
+		assertTrue(Arrays.equals(bytes(2, 14), items.get(1).data));
+		assertTrue(Arrays.equals(bytes(5, 16), items.get(2).data));
+		for (SegmentCacheItem sci : items)
+			assertFalse(sci.running);
+	}
+
+	private static byte [] bytes(int length, int first)
+	{
+		byte [] b = new byte[length];
+		for (int i = 0; i < length; ++i)
+			b[i] = (byte)(first + i);
+		return b;
+	}
+
+	private static ManifestSegment segment(String url, long start, long end)
+	{
+		ManifestSegment segment = new ManifestSegment();
+		segment.uri = ByteRangeUri.make(url, start, end);
+		return segment;
+	}
+
+	private static List<ManifestSegment> segments(ManifestSegment... list)
+	{
+		return new ArrayList<ManifestSegment>(Arrays.asList(list));
+	}
+
+	private static SegmentCacheItem item(String uri)
+	{
+		SegmentCacheItem sci = new SegmentCacheEntry(new String[] { uri }).getItem(uri);
+		sci.running = true;
+		return sci;
+	}
+}
@@ -0,0 +1,66 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import junit.framework.TestCase;
+
+public class ParallelDownloadTunerTest extends TestCase
+{
+	private static final long LARGE_SEGMENT = 8 * ParallelDownloadTuner.MIN_RANGE_BYTES;
+	private static final long HIGH_RTT_MS = 200;
+
+	public void testShortRoundTripsUseOneConnection()
+	{
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		assertEquals(1, tuner.connectionsFor(LARGE_SEGMENT, ParallelDownloadTuner.LOW_RTT_MS - 1));
+		assertEquals(2, tuner.connectionsFor(LARGE_SEGMENT, ParallelDownloadTuner.LOW_RTT_MS));
+	}
+
+	public void testSmallSegmentsUseFewerConnections()
+	{
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		assertEquals(1, tuner.connectionsFor(ParallelDownloadTuner.MIN_RANGE_BYTES / 2, HIGH_RTT_MS));
+		assertEquals(1, tuner.connectionsFor(ParallelDownloadTuner.MIN_RANGE_BYTES + 1, HIGH_RTT_MS));
+	}
+
+	public void testUnknownRoundTripIsTreatedAsLong()
+	{
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		assertEquals(2, tuner.connectionsFor(LARGE_SEGMENT, -1));
+	}
+
+	public void testMovesUpWhileAnotherConnectionPaysOff()
+	{
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		tuner.noteResult(2, 1000, 10);
+		assertEquals(3, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+		tuner.noteResult(3, 1500, 10);
+		assertEquals(4, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+
+		// Never past the maximum
+		tuner.noteResult(4, 3000, 10);
+		assertEquals(ParallelDownloadTuner.MAX_CONNECTIONS, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+	}
+
+	public void testMovesDownWhenOneFewerDoesAsWell()
+	{
+		// A count that hasn't been tried gets a try first
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		tuner.noteResult(2, 1000, 10);
+		tuner.noteResult(3, 1500, 10);
+		assertEquals(4, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+		tuner.noteResult(4, 1000, 10);
+		assertEquals(3, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+	}
+
+	public void testOnlyResultsAtTheCurrentSettingMoveIt()
+	{
+		ParallelDownloadTuner tuner = new ParallelDownloadTuner();
+		tuner.noteResult(1, 1000, 10);
+		tuner.noteResult(4, 1000, 10);
+		assertEquals(2, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+
+		// Bad results are ignored
+		tuner.noteResult(2, 1000, 0);
+		tuner.noteResult(0, 1000, 10);
+		assertEquals(2, tuner.connectionsFor(LARGE_SEGMENT, HIGH_RTT_MS));
+	}
+}
@@ -0,0 +1,266 @@
+package com.kaltura.hlsplayersdk.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponse;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+import com.kaltura.hlsplayersdk.net.HttpTransport;
+
+public class TrackFetchSchedulerTest extends TestCase
+{
+	/*
+	 * FakeTransport
+	 *
+	 * Records what the scheduler starts, and lets the test finish it.
+	 */
+	private static class FakeTransport implements HttpTransport
+	{
+		public List<FakeRequest> started = new ArrayList<FakeRequest>();
+
+		@Override
+		public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			FakeRequest r = new FakeRequest(request.url, listener);
+			started.add(r);
+			return r;
+		}
+
+		@Override
+		public void shutdown()
+		{
+		}
+
+		public FakeRequest get(int i)
+		{
+			return started.get(i);
+		}
+
+		public String lastUrl()
+		{
+			return started.get(started.size() - 1).url;
+		}
+	}
+
+	private static class FakeRequest implements HttpRequestHandle
+	{
+		public String url;
+		public HttpResponseListener listener;
+		public boolean cancelled = false;
+		public boolean finished = false;
+
+		public FakeRequest(String url, HttpResponseListener listener)
+		{
+			this.url = url;
+			this.listener = listener;
+		}
+
+		public void progress(int bytes)
+		{
+			listener.onProgress(bytes, -1);
+		}
+
+		public void succeed(int bytes)
+		{
+			finished = true;
+			HttpResponse response = new HttpResponse(200);
+			response.body = new byte[bytes];
+			listener.onSuccess(response);
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		@Override
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		@Override
+		public boolean isFinished()
+		{
+			return finished;
+		}
+	}
+
+	private static final HttpResponseListener IGNORE = new HttpResponseListener()
+	{
+		@Override
+		public void onProgress(int bytesReceived, int totalSize)
+		{
+		}
+
+		@Override
+		public void onSuccess(HttpResponse response)
+		{
+		}
+
+		@Override
+		public void onFailure(int statusCode, HttpResponse response, Throwable error)
+		{
+		}
+	};
+
+	private FakeTransport mTransport;
+	private TrackFetchScheduler mScheduler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mTransport = new FakeTransport();
+		HLSSegmentCache.setHttpTransport(mTransport);
+		mScheduler = new TrackFetchScheduler();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		HLSSegmentCache.setHttpTransport(null);
+		super.tearDown();
+	}
+
+	private HttpRequestHandle get(int track, String url)
+	{
+		return mScheduler.get(track, null, new HttpRequest(url), IGNORE, null);
+	}
+
+	// A request that playerId is waiting on
+	private HttpRequestHandle getGating(int track, int playerId, String url)
+	{
+		SegmentCacheEntry entry = new SegmentCacheEntry(new String [] { url }, track);
+		entry.playerId = playerId;
+		SegmentCacheItem owner = entry.getItem(url);
+		owner.waiting = true;
+		return mScheduler.get(track, owner, new HttpRequest(url), IGNORE, null);
+	}
+
+	private void fillSlots(int track)
+	{
+		for (int i = 0; i < TrackFetchScheduler.MAX_ACTIVE_REQUESTS; ++i)
+			get(track, "fill" + i);
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS, mTransport.started.size());
+	}
+
+	public void testLimitsActiveRequests()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+		get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+		get(TrackFetchScheduler.TRACK_VIDEO, "v2");
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS, mTransport.started.size());
+
+		mTransport.get(0).succeed(1000);
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS + 1, mTransport.started.size());
+		assertEquals("v1", mTransport.lastUrl());
+		assertEquals(1, mScheduler.getRequestsDelayed());
+	}
+
+	public void testIdleTrackGoesFirst()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+		get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+		get(TrackFetchScheduler.TRACK_AUDIO, "a1");
+
+		// Video has had bandwidth and audio hasn't, so audio goes ahead though it asked later
+		mTransport.get(0).succeed(4000);
+		assertEquals("a1", mTransport.lastUrl());
+	}
+
+	public void testSlotsGoByWeightedBandwidth()
+	{
+		get(TrackFetchScheduler.TRACK_VIDEO, "v0");
+		get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+		get(TrackFetchScheduler.TRACK_AUDIO, "a0");
+		get(TrackFetchScheduler.TRACK_AUDIO, "a1");
+		get(TrackFetchScheduler.TRACK_VIDEO, "v2");
+		get(TrackFetchScheduler.TRACK_AUDIO, "a2");
+		assertEquals(4, mTransport.started.size());
+
+		// Video's weight is twice audio's: 3000 video bytes count for less than 2000 audio
+		mTransport.get(0).progress(3000);
+		mTransport.get(2).progress(2000);
+		mTransport.get(0).succeed(3000);
+		assertEquals("v2", mTransport.lastUrl());
+
+		get(TrackFetchScheduler.TRACK_VIDEO, "v3");
+		mTransport.get(1).progress(3000);
+		mTransport.get(1).succeed(3000);
+		assertEquals("a2", mTransport.lastUrl());
+	}
+
+	public void testGatingRequestGoesFirst()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+		get(TrackFetchScheduler.TRACK_AUDIO, "a1");
+
+		// The player already has video running, so this one waits for a slot, but it gets the next one
+		getGating(TrackFetchScheduler.TRACK_VIDEO, 0, "v1");
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS, mTransport.started.size());
+
+		mTransport.get(0).succeed(1000);
+		assertEquals("v1", mTransport.lastUrl());
+	}
+
+	public void testGatingRequestBypassesTheLimit()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+
+		getGating(TrackFetchScheduler.TRACK_AUDIO, 1, "a1");
+		assertEquals("a1", mTransport.lastUrl());
+
+		// Only one per track per player
+		getGating(TrackFetchScheduler.TRACK_AUDIO, 1, "a2");
+		assertEquals("a1", mTransport.lastUrl());
+
+		// Another player's is its own
+		getGating(TrackFetchScheduler.TRACK_AUDIO, 2, "a3");
+		assertEquals("a3", mTransport.lastUrl());
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS + TrackFetchScheduler.MAX_GATING_BYPASS, mTransport.started.size());
+	}
+
+	public void testGatingBypassIsBounded()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+		for (int i = 0; i < TrackFetchScheduler.MAX_GATING_BYPASS + 2; ++i)
+			getGating(TrackFetchScheduler.TRACK_AUDIO, i + 1, "a" + i);
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS + TrackFetchScheduler.MAX_GATING_BYPASS, mTransport.started.size());
+
+		// A freed slot goes to a gating request that's waiting, and still leaves us at the bound
+		get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+		mTransport.get(0).succeed(1000);
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS + TrackFetchScheduler.MAX_GATING_BYPASS + 1, mTransport.started.size());
+		assertEquals("a" + TrackFetchScheduler.MAX_GATING_BYPASS, mTransport.lastUrl());
+	}
+
+	public void testCancellingAQueuedRequest()
+	{
+		fillSlots(TrackFetchScheduler.TRACK_VIDEO);
+		HttpRequestHandle queued = get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+		queued.cancel();
+		assertTrue(queued.isCancelled());
+
+		mTransport.get(0).succeed(1000);
+		assertEquals(TrackFetchScheduler.MAX_ACTIVE_REQUESTS, mTransport.started.size());
+	}
+
+	public void testCancellingARunningRequestFreesItsSlot()
+	{
+		HttpRequestHandle running = get(TrackFetchScheduler.TRACK_VIDEO, "v0");
+		for (int i = 1; i < TrackFetchScheduler.MAX_ACTIVE_REQUESTS; ++i)
+			get(TrackFetchScheduler.TRACK_VIDEO, "fill" + i);
+		get(TrackFetchScheduler.TRACK_VIDEO, "v1");
+
+		running.cancel();
+		assertTrue(mTransport.get(0).cancelled);
+		assertEquals("v1", mTransport.lastUrl());
+	}
+}
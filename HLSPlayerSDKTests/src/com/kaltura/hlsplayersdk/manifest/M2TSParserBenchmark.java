@@ -0,0 +1,194 @@
+package com.kaltura.hlsplayersdk.manifest;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+import android.os.Debug;
+import android.util.Log;
+
+import com.kaltura.hlsplayersdk.types.ByteArray;
+
+/*
+ * M2TSParserBenchmark
+ *
+ * Times full scans of a generated multi-megabyte transport stream, the way segments are
+ * indexed once they've downloaded, and counts what the parser allocates while it does.
+ * Fed in one go and in network-sized pieces. The figures go to the log; the assertions
+ * only check the scans were right and that the parser doesn't allocate per packet.
+ *
+ */
+public class M2TSParserBenchmark extends TestCase
+{
+	private static final int TS_PACKET_SIZE = 188;
+	private static final int VIDEO_PID = 0x100;
+	private static final int AUDIO_PID = 0x101;
+	private static final int FRAMES = 400;				// About 13s at 30fps
+	private static final int FRAME_BYTES = 20000;		// About 5Mbps
+	private static final int KEYFRAME_INTERVAL = 60;
+	private static final long FRAME_PTS = 3000;
+	private static final long FIRST_PTS = 900000;
+	private static final int AUDIO_BYTES = 400;
+	private static final int CHUNK_BYTES = 16 * 1024;
+	private static final int RUNS = 5;
+
+	private static ByteArray sSegment = null;
+
+	private int [] mContinuity = new int[0x2000];
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		if (sSegment == null) sSegment = new ByteArray(generateSegment());
+	}
+
+	public void testFullScanThroughput()
+	{
+		runBenchmark("whole", sSegment.length());
+	}
+
+	public void testChunkedFullScanThroughput()
+	{
+		runBenchmark("chunked", CHUNK_BYTES);
+	}
+
+	private void runBenchmark(String name, int chunkBytes)
+	{
+		scan(chunkBytes); // Warm up
+
+		long best = Long.MAX_VALUE;
+		long total = 0;
+		for (int i = 0; i < RUNS; ++i)
+		{
+			long start = System.nanoTime();
+			SegmentIndex index = scan(chunkBytes);
+			long elapsed = System.nanoTime() - start;
+			best = Math.min(best, elapsed);
+			total += elapsed;
+			checkIndex(index);
+		}
+
+		int packets = sSegment.length() / TS_PACKET_SIZE;
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		scan(chunkBytes);
+		int allocations = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+
+		double megabytes = sSegment.length() / (1024.0 * 1024.0);
+		Log.i("M2TSParserBenchmark." + name, String.format("%.1fMB in %d byte pieces: best %.1fMB/s, mean %.1fMB/s; %d allocations for %d packets",
+				megabytes, chunkBytes, megabytes / (best / 1e9), megabytes / (total / 1e9 / RUNS), allocations, packets));
+
+		// The stream table, accumulators and index arrays, but nothing per packet
+		assertTrue(allocations + " allocations for " + packets + " packets", allocations < packets / 100);
+	}
+
+	private static SegmentIndex scan(int chunkBytes)
+	{
+		M2TSParser parser = new M2TSParser(true);
+		int length = sSegment.length();
+		for (int offset = 0; offset < length; offset += chunkBytes)
+			parser.appendBytes(sSegment, offset, Math.min(chunkBytes, length - offset));
+		parser.flush();
+		return parser.getIndex();
+	}
+
+	private static void checkIndex(SegmentIndex index)
+	{
+		assertEquals(VIDEO_PID, index.referencePID);
+		assertEquals(FIRST_PTS, index.referenceMinPTS);
+		assertEquals(FIRST_PTS + (FRAMES - 1) * FRAME_PTS, index.referenceMaxPTS);
+		assertEquals(FRAME_PTS, index.frameDuration);
+		assertEquals((FRAMES + KEYFRAME_INTERVAL - 1) / KEYFRAME_INTERVAL, index.keyframeCount);
+		assertEquals(0, index.discontinuityCount);
+	}
+
+	/*
+	 * generateSegment
+	 *
+	 * Video PES packets of FRAME_BYTES, each an access unit delimiter and one slice, with an
+	 * IDR every KEYFRAME_INTERVAL frames, and an audio PES after each.
+	 */
+	private byte [] generateSegment()
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(FRAMES * (FRAME_BYTES + AUDIO_BYTES) * 11 / 10);
+		for (int frame = 0; frame < FRAMES; ++frame)
+		{
+			long pts = FIRST_PTS + frame * FRAME_PTS;
+			boolean keyframe = frame % KEYFRAME_INTERVAL == 0;
+
+			byte [] video = new byte[FRAME_BYTES];
+			int cursor = writePesHeader(video, 0xe0, 0, pts);
+			byte [] nals = { 0, 0, 0, 1, 0x09, (byte)0xf0, 0, 0, 1, (byte)(keyframe ? 0x65 : 0x41) };
+			System.arraycopy(nals, 0, video, cursor, nals.length);
+			for (int i = cursor + nals.length; i < video.length; ++i)
+				video[i] = (byte)0xab;
+			writePackets(out, VIDEO_PID, video, keyframe);
+
+			byte [] audio = new byte[14 + AUDIO_BYTES];
+			cursor = writePesHeader(audio, 0xc0, audio.length - 6, pts);
+			for (int i = cursor; i < audio.length; ++i)
+				audio[i] = (byte)0xcd;
+			writePackets(out, AUDIO_PID, audio, false);
+		}
+		return out.toByteArray();
+	}
+
+	// A PES header with a PTS; returns where the payload starts
+	private static int writePesHeader(byte [] pes, int streamId, int length, long pts)
+	{
+		pes[0] = 0;
+		pes[1] = 0;
+		pes[2] = 1;
+		pes[3] = (byte)streamId;
+		pes[4] = (byte)(length >> 8);
+		pes[5] = (byte)length;
+		pes[6] = (byte)0x80;
+		pes[7] = (byte)0x80;	// PTS only
+		pes[8] = 5;
+		pes[9] = (byte)(0x21 | ((pts >> 29) & 0x0e));
+		pes[10] = (byte)(pts >> 22);
+		pes[11] = (byte)(((pts >> 14) & 0xfe) | 1);
+		pes[12] = (byte)(pts >> 7);
+		pes[13] = (byte)(((pts << 1) & 0xfe) | 1);
+		return 14;
+	}
+
+	// Splits a PES into packets, stuffing the last through its adaptation field
+	private void writePackets(ByteArrayOutputStream out, int pid, byte [] pes, boolean randomAccess)
+	{
+		byte [] packet = new byte[TS_PACKET_SIZE];
+		int offset = 0;
+		boolean first = true;
+		while (offset < pes.length)
+		{
+			boolean flagged = first && randomAccess;
+			int headerLength = 4 + (flagged ? 2 : 0);
+			int payload = Math.min(TS_PACKET_SIZE - headerLength, pes.length - offset);
+			boolean adaptation = flagged || payload < TS_PACKET_SIZE - 4;
+			if (adaptation) headerLength = TS_PACKET_SIZE - payload;
+
+			packet[0] = 0x47;
+			packet[1] = (byte)((first ? 0x40 : 0) | ((pid >> 8) & 0x1f));
+			packet[2] = (byte)pid;
+			packet[3] = (byte)((adaptation ? 0x30 : 0x10) | mContinuity[pid]);
+			mContinuity[pid] = (mContinuity[pid] + 1) & 0x0f;
+			if (adaptation)
+			{
+				int adaptationLength = headerLength - 5;
+				packet[4] = (byte)adaptationLength;
+				if (adaptationLength > 0)
+				{
+					packet[5] = (byte)(flagged ? 0x40 : 0);
+					for (int i = 6; i < headerLength; ++i)
+						packet[i] = (byte)0xff;
+				}
+			}
+			System.arraycopy(pes, offset, packet, headerLength, payload);
+			out.write(packet, 0, TS_PACKET_SIZE);
+
+			offset += payload;
+			first = false;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.kaltura.hlsplayersdk.manifest;
+
+import junit.framework.TestCase;
+import android.os.Handler;
+
+import com.kaltura.hlsplayersdk.cache.ByteRangeUri;
+import com.kaltura.hlsplayersdk.cache.HLSSegmentCache;
+import com.kaltura.hlsplayersdk.net.HttpRequest;
+import com.kaltura.hlsplayersdk.net.HttpRequestHandle;
+import com.kaltura.hlsplayersdk.net.HttpResponseListener;
+import com.kaltura.hlsplayersdk.net.HttpTransport;
+
+public class ManifestParserTest extends TestCase
+{
+	// 2014-03-05T11:15:00Z
+	private static final long BASE_MS = 1394018100000L;
+
+	// Parsing warms the first segment's host; this keeps that off the network
+	private static final HttpTransport NO_NETWORK = new HttpTransport()
+	{
+		@Override
+		public HttpRequestHandle get(HttpRequest request, HttpResponseListener listener, Handler callbackHandler)
+		{
+			return null;
+		}
+
+		@Override
+		public void shutdown()
+		{
+		}
+	};
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		HLSSegmentCache.setHttpTransport(NO_NETWORK);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		HLSSegmentCache.setHttpTransport(null);
+		super.tearDown();
+	}
+
+	private static ManifestParser parse(String playlist)
+	{
+		ManifestParser parser = new ManifestParser();
+		parser.parse(playlist, "http://example.com/video/index.m3u8");
+		return parser;
+	}
+
+	public void testParseProgramDateTime()
+	{
+		assertEquals(BASE_MS, ManifestParser.parseProgramDateTime("2014-03-05T11:15:00Z"));
+		assertEquals(BASE_MS + 250, ManifestParser.parseProgramDateTime("2014-03-05T11:15:00.25Z"));
+		assertEquals(BASE_MS + 123, ManifestParser.parseProgramDateTime("2014-03-05T11:15:00.123456Z"));
+		assertEquals(BASE_MS, ManifestParser.parseProgramDateTime("2014-03-05T12:45:00+01:30"));
+		assertEquals(BASE_MS, ManifestParser.parseProgramDateTime("2014-03-05T06:15:00-0500"));
+		assertEquals(BASE_MS, ManifestParser.parseProgramDateTime(" 2014-03-05T11:15:00 "));
+	}
+
+	public void testBadProgramDateTimeIsIgnored()
+	{
+		assertEquals(-1, ManifestParser.parseProgramDateTime("yesterday"));
+		assertEquals(-1, ManifestParser.parseProgramDateTime("2014-03-05"));
+		assertEquals(-1, ManifestParser.parseProgramDateTime("2014-xx-05T11:15:00Z"));
+	}
+
+	public void testProgramDateTimeAppliesToTheNextSegment()
+	{
+		ManifestParser parser = parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+				+ "#EXTINF:10,\nseg0.ts\n"
+				+ "#EXT-X-PROGRAM-DATE-TIME:2014-03-05T11:15:00Z\n"
+				+ "#EXTINF:10,\nseg1.ts\n");
+
+		assertFalse(parser.segments.get(0).hasProgramDateTime());
+		assertEquals(BASE_MS, parser.segments.get(1).programDateTime);
+	}
+
+	public void testProgramDateTimeBetweenExtinfAndUri()
+	{
+		ManifestParser parser = parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+				+ "#EXTINF:10,\n#EXT-X-PROGRAM-DATE-TIME:2014-03-05T11:15:00Z\nseg0.ts\n"
+				+ "#EXTINF:10,\nseg1.ts\n");
+
+		assertEquals(BASE_MS, parser.segments.get(0).programDateTime);
+		assertEquals(BASE_MS + 10000, parser.segments.get(1).programDateTime);
+	}
+
+	public void testProgramDateTimeIsExtrapolatedWithinAnEra()
+	{
+		ManifestParser parser = parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+				+ "#EXT-X-PROGRAM-DATE-TIME:2014-03-05T11:15:00Z\n"
+				+ "#EXTINF:10,\nseg0.ts\n"
+				+ "#EXTINF:9.5,\nseg1.ts\n"
+				+ "#EXTINF:10,\nseg2.ts\n"
+				+ "#EXT-X-DISCONTINUITY\n"
+				+ "#EXTINF:10,\nad0.ts\n"
+				+ "#EXTINF:10,\nad1.ts\n");
+
+		assertEquals(BASE_MS, parser.segments.get(0).programDateTime);
+		assertEquals(BASE_MS + 10000, parser.segments.get(1).programDateTime);
+		assertEquals(BASE_MS + 19500, parser.segments.get(2).programDateTime);
+
+		// Nothing says how the time carries on across the discontinuity
+		assertEquals(1, parser.segments.get(3).continuityEra);
+		assertFalse(parser.segments.get(3).hasProgramDateTime());
+		assertFalse(parser.segments.get(4).hasProgramDateTime());
+	}
+
+	public void testEachEraCanHaveItsOwnProgramDateTime()
+	{
+		ManifestParser parser = parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+				+ "#EXT-X-PROGRAM-DATE-TIME:2014-03-05T11:15:00Z\n"
+				+ "#EXTINF:10,\nseg0.ts\n"
+				+ "#EXT-X-DISCONTINUITY\n"
+				+ "#EXT-X-PROGRAM-DATE-TIME:2014-03-05T11:20:00Z\n"
+				+ "#EXTINF:10,\nad0.ts\n"
+				+ "#EXTINF:10,\nad1.ts\n");
+
+		assertEquals(BASE_MS, parser.segments.get(0).programDateTime);
+		assertEquals(BASE_MS + 300000, parser.segments.get(1).programDateTime);
+		assertEquals(BASE_MS + 310000, parser.segments.get(2).programDateTime);
+	}
+
+	public void testByteRangesRunOnFromTheLastOne()
+	{
+		ManifestParser parser = parse("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"
+				+ "#EXTINF:10,\n#EXT-X-BYTERANGE:1000@0\nmovie.ts\n"
+				+ "#EXTINF:10,\n#EXT-X-BYTERANGE:500\nmovie.ts\n");
+
+		assertEquals(0, parser.segments.get(0).byteRangeStart);
+		assertEquals(999, parser.segments.get(0).byteRangeEnd);
+		assertEquals(1000, parser.segments.get(1).byteRangeStart);
+		assertEquals(1499, parser.segments.get(1).byteRangeEnd);
+		assertEquals(ByteRangeUri.make("http://example.com/video/movie.ts", 1000, 1499), parser.segments.get(1).uri);
+	}
+}
@@ -0,0 +1,149 @@
+package com.kaltura.hlsplayersdk.manifest;
+
+import java.io.ByteArrayOutputStream;
+
+import junit.framework.TestCase;
+
+import com.kaltura.hlsplayersdk.types.ByteArray;
+
+public class SegmentIndexTest extends TestCase
+{
+	private static final int VIDEO_PID = 0x100;
+	private static final int AUDIO_PID = 0x101;
+	private static final long FRAME_PTS = 3000;
+
+	public void testDurationIsMeasuredOnVideo()
+	{
+		SegmentIndex index = new SegmentIndex();
+		index.notePTS(AUDIO_PID, false, 0, 0);
+		for (int i = 0; i < 10; ++i)
+			index.notePTS(VIDEO_PID, true, 900 + i * FRAME_PTS, 188 * (i + 1));
+		index.notePTS(AUDIO_PID, false, 90000, 188 * 20);
+
+		assertEquals(VIDEO_PID, index.referencePID);
+		assertEquals(FRAME_PTS, index.frameDuration);
+		assertEquals(0, index.firstPTS);
+		assertEquals(10 * FRAME_PTS / 90000.0, index.duration(), 1e-9);
+	}
+
+	public void testReorderedFramesAreNotADiscontinuity()
+	{
+		SegmentIndex index = new SegmentIndex();
+		long [] order = { 0, 3, 1, 2, 6, 4, 5 };
+		for (int i = 0; i < order.length; ++i)
+			index.notePTS(VIDEO_PID, true, order[i] * FRAME_PTS, 188 * i);
+
+		assertFalse(index.hasDiscontinuity());
+		assertEquals(FRAME_PTS, index.frameDuration);
+		assertEquals(7 * FRAME_PTS / 90000.0, index.duration(), 1e-9);
+	}
+
+	public void testPtsJumpIsADiscontinuity()
+	{
+		SegmentIndex index = new SegmentIndex();
+		index.notePTS(VIDEO_PID, true, 0, 0);
+		index.notePTS(VIDEO_PID, true, FRAME_PTS, 188);
+		index.notePTS(VIDEO_PID, true, 10 * 90000, 376);
+
+		assertEquals(1, index.discontinuityCount);
+		assertEquals(376, index.discontinuityOffsets[0]);
+		assertEquals(-1.0, index.duration());
+	}
+
+	public void testKeyframeForTime()
+	{
+		SegmentIndex index = new SegmentIndex();
+		assertEquals(-1, index.keyframeOffsetForTime(1.0));
+
+		index.addKeyframe(0, 90000);
+		index.addKeyframe(1000, 2 * 90000);
+		index.addKeyframe(2000, 3 * 90000);
+
+		assertEquals(0, index.keyframeOffsetForTime(0.5));
+		assertEquals(0, index.keyframeOffsetForTime(1.5));
+		assertEquals(1000, index.keyframeOffsetForTime(2.0));
+		assertEquals(2000, index.keyframeOffsetForTime(10.0));
+	}
+
+	public void testDiscontinuityFlagsOnEachStreamsFirstPacketAreIgnored()
+	{
+		// What a lot of segmenters write at the head of every segment
+		TsWriter ts = new TsWriter();
+		ts.video(0, true, true);
+		ts.audio(0, true);
+		for (int i = 1; i < 5; ++i)
+		{
+			ts.video(i * FRAME_PTS, false, false);
+			ts.audio(i * FRAME_PTS, false);
+		}
+
+		SegmentIndex index = ts.scan();
+		assertFalse(index.hasDiscontinuity());
+		assertEquals(5 * FRAME_PTS / 90000.0, index.duration(), 1e-9);
+		assertEquals(1, index.keyframeCount);
+	}
+
+	public void testDiscontinuityFlagInsideTheSegmentCounts()
+	{
+		TsWriter ts = new TsWriter();
+		ts.video(0, true, true);
+		ts.video(FRAME_PTS, false, false);
+		ts.video(2 * FRAME_PTS, true, false);
+
+		SegmentIndex index = ts.scan();
+		assertEquals(1, index.discontinuityCount);
+		assertEquals(2 * 188, index.discontinuityOffsets[0]);
+		assertEquals(-1.0, index.duration());
+	}
+
+	/*
+	 * TsWriter
+	 *
+	 * Writes one packet PES packets, with the adaptation field flags we ask for.
+	 */
+	private static class TsWriter
+	{
+		private ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+		private int [] mContinuity = new int[0x2000];
+
+		public void video(long pts, boolean discontinuity, boolean randomAccess)
+		{
+			write(VIDEO_PID, 0xe0, pts, discontinuity, randomAccess);
+		}
+
+		public void audio(long pts, boolean discontinuity)
+		{
+			write(AUDIO_PID, 0xc0, pts, discontinuity, false);
+		}
+
+		public SegmentIndex scan()
+		{
+			byte [] bytes = mOut.toByteArray();
+			M2TSParser parser = new M2TSParser(true);
+			parser.appendBytes(new ByteArray(bytes), 0, bytes.length);
+			parser.flush();
+			return parser.getIndex();
+		}
+
+		private void write(int pid, int streamId, long pts, boolean discontinuity, boolean randomAccess)
+		{
+			byte [] pes = { 0, 0, 1, (byte)streamId, 0, 0, (byte)0x80, (byte)0x80, 5,
+					(byte)(0x21 | ((pts >> 29) & 0x0e)), (byte)(pts >> 22), (byte)(((pts >> 14) & 0xfe) | 1),
+					(byte)(pts >> 7), (byte)(((pts << 1) & 0xfe) | 1), 0, 0, 0, 1, 0x09, (byte)0xf0 };
+
+			byte [] packet = new byte[188];
+			int headerLength = packet.length - pes.length;
+			packet[0] = 0x47;
+			packet[1] = (byte)(0x40 | ((pid >> 8) & 0x1f));
+			packet[2] = (byte)pid;
+			packet[3] = (byte)(0x30 | mContinuity[pid]);
+			mContinuity[pid] = (mContinuity[pid] + 1) & 0x0f;
+			packet[4] = (byte)(headerLength - 5);
+			packet[5] = (byte)((discontinuity ? 0x80 : 0) | (randomAccess ? 0x40 : 0));
+			for (int i = 6; i < headerLength; ++i)
+				packet[i] = (byte)0xff;
+			System.arraycopy(pes, 0, packet, headerLength, pes.length);
+			mOut.write(packet, 0, packet.length);
+		}
+	}
+}
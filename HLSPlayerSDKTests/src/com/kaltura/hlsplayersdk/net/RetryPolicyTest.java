@@ -0,0 +1,103 @@
+package com.kaltura.hlsplayersdk.net;
+
+import junit.framework.TestCase;
+
+public class RetryPolicyTest extends TestCase
+{
+	public void testClassify()
+	{
+		assertEquals(RetryPolicy.ERROR_NETWORK, RetryPolicy.classify(0));
+		assertEquals(RetryPolicy.ERROR_SERVER, RetryPolicy.classify(500));
+		assertEquals(RetryPolicy.ERROR_SERVER, RetryPolicy.classify(503));
+		assertEquals(RetryPolicy.ERROR_NOT_FOUND, RetryPolicy.classify(404));
+		assertEquals(RetryPolicy.ERROR_NOT_FOUND, RetryPolicy.classify(410));
+		assertEquals(RetryPolicy.ERROR_CLIENT, RetryPolicy.classify(403));
+		assertEquals(RetryPolicy.ERROR_CLIENT, RetryPolicy.classify(416));
+	}
+
+	public void testNetworkBudget()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		for (int i = 0; i < 4; ++i)
+			assertTrue(policy.nextDelay(0) >= 0);
+		assertEquals(-1, policy.nextDelay(0));
+	}
+
+	public void testServerBudget()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		for (int i = 0; i < 3; ++i)
+			assertTrue(policy.nextDelay(502) >= 0);
+		assertEquals(-1, policy.nextDelay(502));
+	}
+
+	public void testNotFoundBudget()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		assertTrue(policy.nextDelay(404) >= 0);
+		assertEquals(-1, policy.nextDelay(410));
+	}
+
+	public void testClientErrorsAreNotRetried()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		assertEquals(-1, policy.nextDelay(403));
+		assertEquals(1, policy.getFailures());
+	}
+
+	public void testBudgetsAreSeparate()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		assertTrue(policy.nextDelay(404) >= 0);
+		assertEquals(-1, policy.nextDelay(404));
+
+		// A used up 404 budget doesn't touch the others
+		assertTrue(policy.nextDelay(0) >= 0);
+		assertTrue(policy.nextDelay(500) >= 0);
+		assertEquals(4, policy.getFailures());
+	}
+
+	public void testReset()
+	{
+		RetryPolicy policy = new RetryPolicy();
+		for (int i = 0; i < 4; ++i)
+			policy.nextDelay(0);
+		assertEquals(-1, policy.nextDelay(0));
+
+		policy.reset();
+		assertEquals(0, policy.getFailures());
+		assertTrue(policy.nextDelay(0) >= 0);
+	}
+
+	public void testBackoffIsJitteredAroundTheExponentialDelay()
+	{
+		for (int attempt = 0; attempt < 8; ++attempt)
+		{
+			long delay = Math.min(RetryPolicy.MAX_DELAY_MS, RetryPolicy.BASE_DELAY_MS << attempt);
+			for (int i = 0; i < 50; ++i)
+			{
+				long backoff = RetryPolicy.backoff(attempt);
+				assertTrue("attempt " + attempt + ": " + backoff, backoff >= delay / 2);
+				assertTrue("attempt " + attempt + ": " + backoff, backoff <= delay);
+			}
+		}
+	}
+
+	public void testBackoffIsCapped()
+	{
+		assertTrue(RetryPolicy.backoff(15) <= RetryPolicy.MAX_DELAY_MS);
+		assertTrue(RetryPolicy.backoff(64) <= RetryPolicy.MAX_DELAY_MS);
+		assertTrue(RetryPolicy.backoff(64) >= RetryPolicy.MAX_DELAY_MS / 2);
+	}
+
+	public void testDelayGrowsWithEveryFailure()
+	{
+		// The delay follows failures of any class, not just the class that failed
+		RetryPolicy policy = new RetryPolicy();
+		policy.nextDelay(404);
+		policy.nextDelay(500);
+		long delay = policy.nextDelay(0);
+		assertTrue(delay >= (RetryPolicy.BASE_DELAY_MS << 2) / 2);
+		assertTrue(delay <= RetryPolicy.BASE_DELAY_MS << 2);
+	}
+}
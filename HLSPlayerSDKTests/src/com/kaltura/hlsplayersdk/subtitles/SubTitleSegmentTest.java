@@ -0,0 +1,70 @@
+package com.kaltura.hlsplayersdk.subtitles;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SubTitleSegmentTest extends TestCase
+{
+	private static SubTitleSegment segment(double... starts)
+	{
+		SubTitleSegment segment = new SubTitleSegment("http://example.com/subs/seg0.vtt");
+		for (int i = 0; i < starts.length; ++i)
+		{
+			TextTrackCue cue = new TextTrackCue();
+			cue.startTime = starts[i];
+			cue.endTime = starts[i] + 1;
+			cue.text = "cue " + starts[i];
+			segment.textTrackCues.add(cue);
+		}
+		segment.setLoaded();
+		return segment;
+	}
+
+	private static void assertStarts(List<TextTrackCue> cues, double... starts)
+	{
+		assertEquals(starts.length, cues.size());
+		for (int i = 0; i < starts.length; ++i)
+			assertEquals(starts[i], cues.get(i).startTime);
+	}
+
+	public void testCuesForARange()
+	{
+		SubTitleSegment segment = segment(1, 2, 3, 4, 5);
+		assertStarts(segment.getCuesForTimeRange(1.5, 3.5), 2, 3);
+		assertStarts(segment.getCuesForTimeRange(0, 1), 1);
+
+		// Both ends of the range are included
+		assertStarts(segment.getCuesForTimeRange(2, 3), 2, 3);
+		assertStarts(segment.getCuesForTimeRange(5.5, 10));
+	}
+
+	public void testRangesThatFollowOnDontRepeatOrSkipCues()
+	{
+		SubTitleSegment segment = segment(0.5, 1, 1.5, 2, 2.5, 3);
+		assertStarts(segment.getCuesForTimeRange(0, 1.2), 0.5, 1);
+		assertStarts(segment.getCuesForTimeRange(1.2, 2.1), 1.5, 2);
+		assertStarts(segment.getCuesForTimeRange(2.1, 2.2));
+		assertStarts(segment.getCuesForTimeRange(2.2, 4), 2.5, 3);
+	}
+
+	public void testSeekingBackFindsTheEarlierCues()
+	{
+		SubTitleSegment segment = segment(1, 2, 3, 4, 5);
+		assertStarts(segment.getCuesForTimeRange(3.5, 5), 4, 5);
+		assertStarts(segment.getCuesForTimeRange(0.5, 2), 1, 2);
+	}
+
+	public void testParsedCuesAreInStartOrder()
+	{
+		SubTitleSegment segment = new SubTitleSegment("http://example.com/subs/seg0.vtt");
+		segment.parse("WEBVTT\n\n"
+				+ "00:00:03.000 --> 00:00:04.000\nthird\n\n"
+				+ "00:00:01.000 --> 00:00:02.000\nfirst\n\n"
+				+ "00:00:02.000 --> 00:00:03.000\nsecond\n");
+
+		assertTrue(segment.isLoaded());
+		assertStarts(segment.textTrackCues, 1, 2, 3);
+		assertEquals("first", segment.getCuesForTimeRange(0, 1.5).get(0).text);
+	}
+}
@@ -0,0 +1,87 @@
+package com.kaltura.hlsplayersdk.subtitles;
+
+import java.util.Vector;
+
+import junit.framework.TestCase;
+
+import com.kaltura.hlsplayersdk.manifest.ManifestParser;
+
+public class SubtitleHandlerTest extends TestCase
+{
+	private static final double SEGMENT_DURATION = 30;
+	private static final int SEGMENT_COUNT = 20;
+
+	private ManifestParser mManifest;
+	private SubtitleHandler mHandler;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		mManifest = new ManifestParser();
+		// A finished playlist, so the handler has nothing to load up front
+		mManifest.streamEnds = true;
+		for (int i = 0; i < SEGMENT_COUNT; ++i)
+			mManifest.subtitles.add(segment(i * SEGMENT_DURATION, SEGMENT_DURATION));
+		mHandler = new SubtitleHandler(mManifest);
+	}
+
+	// One loaded segment with a single cue at the start of its window
+	private static SubTitleSegment segment(double start, double duration)
+	{
+		SubTitleSegment segment = new SubTitleSegment("http://example.com/subs/seg" + (int)start + ".vtt");
+		segment.segmentTimeWindowStart = start;
+		segment.segmentTimeWindowDuration = duration;
+		TextTrackCue cue = new TextTrackCue();
+		cue.startTime = start;
+		cue.endTime = start + 1;
+		segment.textTrackCues.add(cue);
+		segment.setLoaded();
+		return segment;
+	}
+
+	private double cueTime(Vector<TextTrackCue> cues)
+	{
+		assertNotNull(cues);
+		assertEquals(1, cues.size());
+		return cues.get(0).startTime;
+	}
+
+	public void testPlaybackFindsEachSegmentInTurn()
+	{
+		assertEquals(0.0, cueTime(mHandler.update(0.5, 0)));
+		assertEquals(0, mHandler.update(15, 0).size());
+		assertEquals(30.0, cueTime(mHandler.update(30, 0)));
+		assertEquals(60.0, cueTime(mHandler.update(60.5, 0)));
+	}
+
+	public void testSeekingFindsTheSegment()
+	{
+		mHandler.update(0.5, 0);
+		assertEquals(300.0, cueTime(mHandler.update(305, 0)));
+		assertEquals(330.0, cueTime(mHandler.update(331, 0)));
+
+		// And back
+		assertEquals(0, mHandler.update(45, 0).size());
+		assertEquals(60.0, cueTime(mHandler.update(61, 0)));
+	}
+
+	public void testTimeOutsideTheSegmentsFindsNothing()
+	{
+		assertNull(mHandler.update(SEGMENT_COUNT * SEGMENT_DURATION + 1, 0));
+		assertNull(mHandler.update(-1, 0));
+	}
+
+	public void testAShiftedWindowIsStillFound()
+	{
+		// Loading moved segment 5's window back into segment 4's
+		SubTitleSegment shifted = mManifest.subtitles.get(5);
+		shifted.segmentTimeWindowStart = 4 * SEGMENT_DURATION + 20;
+		shifted.segmentTimeWindowDuration = SEGMENT_DURATION + 10;
+		mManifest.subtitles.get(4).segmentTimeWindowDuration = 20;
+
+		assertNotNull(mHandler.update(4 * SEGMENT_DURATION + 25, 0));
+		assertEquals(0, mHandler.update(4 * SEGMENT_DURATION + 25, 0).size());
+		assertEquals(5 * SEGMENT_DURATION, cueTime(mHandler.update(5 * SEGMENT_DURATION + 1, 0)));
+	}
+}